@@ -53,7 +53,13 @@ package com.qizx.api;
  * (see setTimeOut).
  * <p>
  * This class is not thread safe (an Expression is built from an XQuery session
- * which is itself not thread safe).
+ * which is itself not thread safe). However the compiled form of the query
+ * is immutable once compiled, and is shared by all the Expressions compiled
+ * from the same source and settings by sessions of a
+ * {@link XQuerySessionManager}: such Expressions can be evaluated at the same
+ * time in different threads, each thread using its own session. The
+ * {@link XQueryContext} returned by {@link #getContext()} belongs to the
+ * Expression: its modifications do not affect other Expressions.
  */
 public interface Expression
     extends ItemFactory
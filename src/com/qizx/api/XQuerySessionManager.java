@@ -22,6 +22,7 @@ package com.qizx.api;
 import com.qizx.api.util.DefaultModuleResolver;
 import com.qizx.util.basic.Check;
 import com.qizx.xdm.DocumentPool;
+import com.qizx.xquery.CompiledQueryCache;
 import com.qizx.xquery.ModuleManager;
 import com.qizx.xquery.XQuerySessionImpl;
 
@@ -34,11 +35,19 @@ import java.net.URL;
  * the sessions created on this manager. This cache avoids reparsing XML
  * documents if different sessions access it. It can detect a change on
  * documents stored in the file-system and reload the document.
+ * <p>
+ * Compiled queries are also cached: compiling the same query text with the
+ * same static context settings (base URI, namespaces, collations, Java
+ * bindings etc) in any session of this manager reuses the compiled form.
+ * Each Expression has its own context: changes made through
+ * {@link Expression#getContext()} after compilation affect only this
+ * Expression.
  */
 public class XQuerySessionManager
 {
     private ModuleManager moduleMan;
     private DocumentPool  documentCache;
+    private CompiledQueryCache queryCache;
 
     /**
      * Creates a session manager with a default Module Resolver and 
@@ -61,6 +70,7 @@ public class XQuerySessionManager
     {
         moduleMan = new ModuleManager(moduleResolver);
         documentCache = new DocumentPool();
+        queryCache = new CompiledQueryCache();
         if(transientDocumentCacheSize >= 0)
             documentCache.setCacheSize(transientDocumentCacheSize);
     }
@@ -121,6 +131,45 @@ public class XQuerySessionManager
         this.documentCache = documentCache;
     }
 
+    /**
+     * Sets the maximum number of compiled queries kept in cache.
+     * @param size maximum number of compiled queries. 0 disables the cache.
+     * @return the former maximum number of compiled queries
+     */
+    public int setCompiledQueryCacheSize(int size)
+    {
+        int oldSize = queryCache.getMaxSize();
+        queryCache.setMaxSize(size);
+        return oldSize;
+    }
+
+    /**
+     * Gets the maximum number of compiled queries kept in cache.
+     * @return a number of compiled queries
+     */
+    public int getCompiledQueryCacheSize()
+    {
+        return queryCache.getMaxSize();
+    }
+
+    /**
+     * Returns the ratio of compilations that were avoided by using a cached
+     * compiled query.
+     * @return a number between 0 and 1
+     */
+    public double getCompiledQueryCacheHitRatio()
+    {
+        return queryCache.getHitRatio();
+    }
+
+    /**
+     * For internal use.
+     */
+    public CompiledQueryCache getCompiledQueryCache()
+    {
+        return queryCache;
+    }
+
     /**
      * Defines a resolver of XQuery modules.
      * @param resolver a module resolver
@@ -129,6 +178,7 @@ public class XQuerySessionManager
     {
         Check.nonNull(resolver, "resolver");
         moduleMan.setResolver(resolver);
+        queryCache.clear();
     }
     
     /**
@@ -0,0 +1,148 @@
+/*
+ *    Qizx/open 4.1
+ *
+ * This code is the open-source version of Qizx.
+ * Copyright (C) 2004-2009 Axyana Software -- All rights reserved.
+ *
+ * The contents of this file are subject to the Mozilla Public License
+ *  Version 1.1 (the "License"); you may not use this file except in
+ *  compliance with the License. You may obtain a copy of the License at
+ *  http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ *  WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ *  for the specific language governing rights and limitations under the
+ *  License.
+ *
+ * The Initial Developer of the Original Code is Xavier Franc - Axyana Software.
+ *
+ */
+package com.qizx.api.util.fulltext;
+
+import com.qizx.api.QName;
+
+import java.util.HashMap;
+
+/**
+ * Okapi BM25 scorer.
+ * <p>
+ * The score of a term in a scored node is
+ * <pre>idf * tf * (k1 + 1) / (tf + k1 * (1 - b + b * length / averageLength))</pre>
+ * where <code>idf = log(1 + (N - n + 0.5) / (n + 0.5))</code>, N is the
+ * number of nodes of the collection with the same name as the scored node,
+ * and n the number of these nodes that contain the term. The statistics are
+ * computed once per collection of parsed documents.
+ * <p>
+ * The occurrences of a term can be weighted by the name of their enclosing
+ * element, like fields in BM25F (see {@link #setFieldWeight}): for example a
+ * term found in a title can count twice as much as in a paragraph.
+ * <p>
+ * Scores of terms are summed, then normalized between 0 and 1 by
+ * {@link #normalizeScore}.
+ */
+public class BM25Scorer extends DefaultScorer
+{
+    /**
+     * Default saturation of term frequencies.
+     */
+    public static final float DEFAULT_K1 = 1.2f;
+    /**
+     * Default importance of the length normalization.
+     */
+    public static final float DEFAULT_B = 0.75f;
+
+    protected float k1 = DEFAULT_K1;
+    protected float b = DEFAULT_B;
+    private HashMap<QName, Float> fieldWeights;
+
+    public BM25Scorer()
+    {
+    }
+
+    public BM25Scorer(float k1, float b)
+    {
+        this.k1 = k1;
+        this.b = b;
+    }
+
+    public float getK1()
+    {
+        return k1;
+    }
+
+    public float getB()
+    {
+        return b;
+    }
+
+    /**
+     * Defines the weight of the occurrences of terms whose closest enclosing
+     * element has this name. The default weight is 1.
+     */
+    public void setFieldWeight(QName elementName, float weight)
+    {
+        if (fieldWeights == null)
+            fieldWeights = new HashMap<QName, Float>();
+        fieldWeights.put(elementName, Float.valueOf(weight));
+    }
+
+    /**
+     * Returns the weight of the occurrences of terms in an element of this
+     * name.
+     */
+    public float getFieldWeight(QName elementName)
+    {
+        Float weight = (fieldWeights == null) ? null
+                            : fieldWeights.get(elementName);
+        return (weight == null) ? 1 : weight.floatValue();
+    }
+
+    /**
+     * Returns true if some field weights are defined.
+     */
+    public boolean hasFieldWeights()
+    {
+        return fieldWeights != null;
+    }
+
+    /**
+     * Computes the inverse document frequency of a term.
+     * @param nodeCount number of scored nodes in the collection
+     * @param termNodeCount number of these nodes that contain the term
+     */
+    public float idf(int nodeCount, int termNodeCount)
+    {
+        return (float) Math.log(1 + (nodeCount - termNodeCount + 0.5)
+                                    / (termNodeCount + 0.5));
+    }
+
+    /**
+     * Computes the score of a term in a node.
+     * @param idf as computed by {@link #idf}
+     * @param termFrequency number of occurrences of the term in the node,
+     *        possibly weighted by fields
+     * @param length number of words of the node
+     * @param averageLength average number of words of the scored nodes in
+     *        the collection
+     */
+    public float scoreTerm(float idf, float termFrequency,
+                           float length, float averageLength)
+    {
+        if (termFrequency <= 0)
+            return 0;
+        float norm = (averageLength > 0) ? length / averageLength : 1;
+        return idf * termFrequency * (k1 + 1)
+               / (termFrequency + k1 * (1 - b + b * norm));
+    }
+
+    public float normWord(float inverseDocFrequency)
+    {
+        // N/n -> log(1 + (N - n) / n), without the statistics themselves
+        return (float) Math.log(inverseDocFrequency);
+    }
+
+    public float scoreWord(float norm, float termFrequency)
+    {
+        return scoreTerm(norm, termFrequency, 1, 1);
+    }
+}
@@ -27,7 +27,7 @@ import com.qizx.api.fulltext.Thesaurus;
 
 /**
  * Fulltext service provider plugged by default.
- * <p>Provides a generic TextTokenizer and a standard Scorer. Might be extended
+ * <p>Provides a generic TextTokenizer and a {@link BM25Scorer}. Might be extended
  * in future versions to provide stemmer and thesaurus.
  */
 public class DefaultFullTextFactory
@@ -53,6 +53,6 @@ public class DefaultFullTextFactory
 
     public Scorer createScorer()
     {
-        return new DefaultScorer();
+        return new BM25Scorer();
     }
 }
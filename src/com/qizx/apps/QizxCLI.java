@@ -35,6 +35,7 @@ import com.qizx.util.basic.Util;
 import com.qizx.util.basic.CLOptions.Error;
 import com.qizx.xquery.ExpressionImpl;
 import com.qizx.xquery.XMLExprDisplay;
+import com.qizx.xquery.XQuerySessionImpl;
 import com.qizx.xquery.impl.Lexer;
 import com.qizx.xquery.impl.NewLexer;
 
@@ -131,6 +132,15 @@ public class QizxCLI
                        "name of default collation");
         options.define("-doc-cache_", "<size_in_Kb>", "=docCache",
             "define the parsed document cache size (default 8 Mb)");
+        options.define("-load-threads_", "<count>", "=loadThreads",
+            "parse documents of fn:collection in parallel, with at most\n" +
+            "<count> threads (default 1: sequential loading)");
+        options.define("-for-threads_", "<count>", "=forThreads",
+            "evaluate iterations of FLWOR expressions without side effects\n" +
+            "with <count> threads (default 1: sequential evaluation)");
+        options.define("-ft-index.", "", "=fulltextIndex",
+            "search parsed documents through in-memory full-text indexes,\n" +
+            "built on first use");
         
         // --------- Output: -------
         options.defineSection("Output options:");
@@ -232,6 +242,9 @@ public class QizxCLI
     public String[] xmlOptions = new String[0];
     public String outputFile = null;
     public int    docCache;
+    public int    loadThreads;
+    public int    forThreads;
+    public boolean fulltextIndex;
     
     public int repeats = 1;  
     public int muteRepeats;
@@ -482,6 +495,16 @@ public class QizxCLI
 
             if(baseURI != null)
                 session.getContext().setBaseURI(baseURI);
+            if(loadThreads > 1 && session instanceof XQuerySessionImpl)
+                ((XQuerySessionImpl) session).setProperty(
+                     XQuerySessionImpl.COLLECTION_LOADING_THREADS,
+                     Integer.valueOf(loadThreads));
+            if(forThreads > 1 && session instanceof XQuerySessionImpl)
+                ((XQuerySessionImpl) session).setProperty(
+                     XQuerySessionImpl.PARALLEL_FOR, Integer.valueOf(forThreads));
+            if(fulltextIndex && session instanceof XQuerySessionImpl)
+                ((XQuerySessionImpl) session).setProperty(
+                     XQuerySessionImpl.FULLTEXT_INDEX, Boolean.TRUE);
 
             // Load modules relatively to this script
             String parentPath = PathUtil.getParentPath(path);
@@ -31,10 +31,14 @@ import com.qizx.api.fulltext.Thesaurus.TokenSequence;
 import com.qizx.queries.iterators.*;
 import com.qizx.util.RegexMatchPattern;
 import com.qizx.util.basic.Unicode;
+import com.qizx.xdm.FONIDataModel.FONINode;
 import com.qizx.xquery.ModuleContext;
 import com.qizx.xquery.XQValue;
 
+import java.util.Arrays;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.regex.Pattern;
 
 /**
@@ -197,8 +201,36 @@ public interface FullText
         public boolean matches(XQValue ctx, HashSet maskedNodes,
                                FullTextFactory ftFactory)
             throws EvaluationException, DataModelException
+        {
+            return matches(ctx, maskedNodes, ftFactory, false);
+        }
+
+        /**
+         * Returns true if one of the items of the context matches this
+         * selection.
+         * @param indexed if true, nodes of parsed documents are searched
+         * through a {@link TextIndex} of their document, built on first use
+         */
+        public boolean matches(XQValue ctx, HashSet maskedNodes,
+                               FullTextFactory ftFactory, boolean indexed)
+            throws EvaluationException, DataModelException
         {
             for (; ctx.next();) {
+                if (indexed && maskedNodes == null && ctx.isNode()) {
+                    Node node = ctx.getNode();
+                    TextIndex index =
+                        TextIndex.get(node, ftFactory, matchOptions.language);
+                    if (index != null) {
+                        TextIndex.Range words =
+                            index.getRange((FONINode) node);
+                        PostingIterator matches = realize(words);
+                        matches.initContainer(null, null);
+                        matches.skipToDoc(0); // for init
+                        if (matches.inRange(0, words.getTokenCount()))
+                            return true;
+                        continue;
+                    }
+                }
                 TokenStream tokens =
                     new TokenStream(ftFactory, matchOptions.language);
                 if (ctx.isNode()) {
@@ -670,6 +702,27 @@ public interface FullText
 //                exceptedStopWords = (ArrayList) options.exceptedStopWords.clone(); 
         }
         
+        public boolean equals(Object obj)
+        {
+            if (!(obj instanceof MatchOptions))
+                return false;
+            MatchOptions o = (MatchOptions) obj;
+            return (language == null ? o.language == null
+                                     : language.equals(o.language))
+                   && wildcards == o.wildcards && stemming == o.stemming
+                   && diacritics == o.diacritics
+                   && caseSensitivity == o.caseSensitivity
+                   && Arrays.equals(thesauri, o.thesauri);
+        }
+
+        public int hashCode()
+        {
+            int h = (language == null) ? 0 : language.hashCode();
+            h = 31 * h + (wildcards << 12) + (stemming << 8)
+                + (diacritics << 4) + caseSensitivity;
+            return 31 * h + Arrays.hashCode(thesauri);
+        }
+
         public boolean likeDefault()
         {
             return language == null
@@ -727,11 +780,36 @@ public interface FullText
             int flags = (caseSensitive != INSENSITIVE)? 0
                     : (Pattern.CASE_INSENSITIVE + Pattern.UNICODE_CASE);
             RegexMatchPattern pat =
-                  new RegexMatchPattern(Pattern.compile(new String(pattern), flags));
+                  new RegexMatchPattern(getPattern(new String(pattern), flags));
             pat.setDiacriticsSensitive(diacriticsSense);
             return pat;
         }
 
+        // compiled regular expressions, shared since Patterns are immutable
+        // (unlike RegexMatchPattern, which holds a Matcher):
+        private static final int PATTERN_CACHE_SIZE = 256;
+        private static final Map<String, Pattern> patterns =
+            new LinkedHashMap<String, Pattern>(16, 0.75f, true) {
+                protected boolean removeEldestEntry(Map.Entry eldest) {
+                    return size() > PATTERN_CACHE_SIZE;
+                }
+            };
+
+        private static Pattern getPattern(String regex, int flags)
+        {
+            String key = flags + ":" + regex;
+            synchronized (patterns) {
+                Pattern pattern = patterns.get(key);
+                if (pattern != null)
+                    return pattern;
+            }
+            Pattern pattern = Pattern.compile(regex, flags);
+            synchronized (patterns) {
+                patterns.put(key, pattern);
+            }
+            return pattern;
+        }
+
         public static char[] mapPattern(char[] token, 
                                         int caseMode, boolean diacriticsSense)
         {
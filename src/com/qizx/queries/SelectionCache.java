@@ -0,0 +1,135 @@
+/*
+ *    Qizx/open 4.1
+ *
+ * This code is the open-source version of Qizx.
+ * Copyright (C) 2004-2009 Axyana Software -- All rights reserved.
+ *
+ * The contents of this file are subject to the Mozilla Public License
+ *  Version 1.1 (the "License"); you may not use this file except in
+ *  compliance with the License. You may obtain a copy of the License at
+ *  http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ *  WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ *  for the specific language governing rights and limitations under the
+ *  License.
+ *
+ * The Initial Developer of the Original Code is Xavier Franc - Axyana Software.
+ *
+ */
+package com.qizx.queries;
+
+import com.qizx.queries.FullText.MatchOptions;
+import com.qizx.queries.FullText.Selection;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cache of full-text selections compiled from the simple syntax, keyed by
+ * query string and match options (which include the language), with or
+ * without expansion by thesauri.
+ * <p>
+ * The least recently used selections are discarded beyond a maximum size.
+ * Cached selections are shared and must not be modified.
+ */
+public class SelectionCache
+{
+    public static final int DEFAULT_SIZE = 256;
+
+    private int maxSize;
+    private LinkedHashMap<Key, Selection> selections;
+    private int hits;
+    private int misses;
+
+    public SelectionCache()
+    {
+        this(DEFAULT_SIZE);
+    }
+
+    public SelectionCache(int maxSize)
+    {
+        this.maxSize = maxSize;
+        selections = new LinkedHashMap<Key, Selection>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry eldest) {
+                return size() > SelectionCache.this.maxSize;
+            }
+        };
+    }
+
+    /**
+     * Returns the selection compiled from a query with these options, or
+     * null if not cached.
+     * @param expanded true if the selection is expanded by thesauri
+     */
+    public synchronized Selection get(String query, MatchOptions options,
+                                      boolean expanded)
+    {
+        Selection selection = selections.get(new Key(query, options, expanded));
+        if (selection == null)
+            ++misses;
+        else
+            ++hits;
+        return selection;
+    }
+
+    /**
+     * Stores a selection compiled from a query with these options. The
+     * options are copied.
+     */
+    public synchronized void put(String query, MatchOptions options,
+                                 boolean expanded, Selection selection)
+    {
+        selections.put(new Key(query, new MatchOptions(options), expanded),
+                       selection);
+    }
+
+    public synchronized void clear()
+    {
+        selections.clear();
+    }
+
+    public synchronized int size()
+    {
+        return selections.size();
+    }
+
+    public synchronized int getHits()
+    {
+        return hits;
+    }
+
+    public synchronized int getMisses()
+    {
+        return misses;
+    }
+
+    private static class Key
+    {
+        String query;
+        MatchOptions options;
+        boolean expanded;
+
+        Key(String query, MatchOptions options, boolean expanded)
+        {
+            this.query = query;
+            this.options = options;
+            this.expanded = expanded;
+        }
+
+        public boolean equals(Object obj)
+        {
+            if (!(obj instanceof Key))
+                return false;
+            Key k = (Key) obj;
+            return query.equals(k.query) && options.equals(k.options)
+                   && expanded == k.expanded;
+        }
+
+        public int hashCode()
+        {
+            return (query.hashCode() * 31 + options.hashCode()) * 2
+                   + (expanded ? 1 : 0);
+        }
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ *    Qizx/open 4.1
+ *
+ * This code is the open-source version of Qizx.
+ * Copyright (C) 2004-2009 Axyana Software -- All rights reserved.
+ *
+ * The contents of this file are subject to the Mozilla Public License
+ *  Version 1.1 (the "License"); you may not use this file except in
+ *  compliance with the License. You may obtain a copy of the License at
+ *  http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ *  WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ *  for the specific language governing rights and limitations under the
+ *  License.
+ *
+ * The Initial Developer of the Original Code is Xavier Franc - Axyana Software.
+ *
+ */
+package com.qizx.queries.iterators;
+
+import com.qizx.util.DLEditDistance;
+import com.qizx.util.StringPattern;
+import com.qizx.util.basic.Unicode;
+
+import java.util.Comparator;
+
+/**
+ * Sorted vocabulary, used to expand a wildcard, a prefix, a fuzzy or a
+ * sounds-like word into the words it matches, once per query instead of on
+ * each occurrence of a word.
+ * <p>
+ * Words are sorted on their form folded for case and diacritics (see
+ * {@link TextIndex#fold}), so that the words starting with a given prefix
+ * form a range whatever the case and diacritics sensitivity. The length of
+ * the prefix that each word shares with the previous one allows computing
+ * edit distances incrementally, and skipping all the words of a rejected
+ * prefix.
+ * <p>
+ * Expansion methods return the indexes of the matching words in sorted
+ * order.
+ */
+class TermDictionary
+{
+    /**
+     * Order of the words of a dictionary, on char[].
+     */
+    static final Comparator ORDER = new Comparator() {
+        public int compare(Object o1, Object o2)
+        {
+            char[] w1 = (char[]) o1, w2 = (char[]) o2;
+            int cmp = compareFolded(w1, w2, Integer.MAX_VALUE);
+            if (cmp != 0)
+                return cmp;
+            for (int i = 0, len = Math.min(w1.length, w2.length); i < len; i++)
+                if (w1[i] != w2[i])
+                    return w1[i] - w2[i];
+            return w1.length - w2.length;
+        }
+    };
+
+    private char[][] words;
+    private int[] shared;   // length of the prefix shared with previous word
+
+    /**
+     * @param words distinct words sorted in {@link #ORDER}
+     */
+    TermDictionary(char[][] words)
+    {
+        this.words = words;
+        shared = new int[words.length];
+        for (int w = 1; w < words.length; w++) {
+            char[] prev = words[w - 1], word = words[w];
+            int len = Math.min(prev.length, word.length), s = 0;
+            while (s < len && prev[s] == word[s])
+                ++s;
+            shared[w] = s;
+        }
+    }
+
+    int size()
+    {
+        return words.length;
+    }
+
+    char[] getWord(int index)
+    {
+        return words[index];
+    }
+
+    /**
+     * Returns the words matched by a pattern. Only the range of words that
+     * start with the fixed prefix of the pattern, regardless of case and
+     * diacritics, is tested.
+     */
+    int[] expand(StringPattern pattern)
+    {
+        char[] prefix = pattern.fixedPrefix();
+        int lo = 0, hi = words.length;
+        if (prefix != null && prefix.length > 0) {
+            lo = bound(prefix, false);
+            hi = bound(prefix, true);
+        }
+        int[] found = new int[Math.min(hi - lo, 16)];
+        int count = 0;
+        for (int w = lo; w < hi; w++) {
+            if (pattern.match(words[w]) != StringPattern.MATCH)
+                continue;
+            if (count == found.length)
+                found = grow(found);
+            found[count++] = w;
+        }
+        return trim(found, count);
+    }
+
+    /**
+     * Returns the words within the threshold of an edit distance from a
+     * word.
+     */
+    int[] expandFuzzy(char[] word, DLEditDistance distance)
+    {
+        distance.setReference(word);
+        int threshold = distance.getThreshold();
+        int[] found = new int[16];
+        int count = 0;
+        for (int w = 0; w < words.length; w++) {
+            if (distance.distanceFrom(words[w], shared[w]) <= threshold) {
+                if (count == found.length)
+                    found = grow(found);
+                found[count++] = w;
+                continue;
+            }
+            // skip the words that share the rejected prefix:
+            int rejected = distance.getRejectedLength();
+            while (w + 1 < words.length && shared[w + 1] >= rejected)
+                ++w;
+        }
+        return trim(found, count);
+    }
+
+    // index of the first word whose folded prefix is greater or equal to
+    // (or greater than, if 'after') a folded prefix
+    private int bound(char[] prefix, boolean after)
+    {
+        int lo = 0, hi = words.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            int cmp = compareFolded(words[mid], prefix, prefix.length);
+            if (cmp < 0 || after && cmp == 0)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    // compares at most 'length' folded characters; a word that is a proper
+    // prefix of the other one is lower
+    private static int compareFolded(char[] w1, char[] w2, int length)
+    {
+        int len = Math.min(Math.min(w1.length, w2.length), length);
+        for (int i = 0; i < len; i++) {
+            char c1 = w1[i], c2 = w2[i];
+            if (c1 != c2) {
+                c1 = Unicode.collapseDiacritic(Character.toUpperCase(c1));
+                c2 = Unicode.collapseDiacritic(Character.toUpperCase(c2));
+                if (c1 != c2)
+                    return c1 - c2;
+            }
+        }
+        if (len == length)
+            return 0;
+        return w1.length - w2.length;
+    }
+
+    private static int[] grow(int[] array)
+    {
+        int[] old = array;
+        array = new int[2 * old.length];
+        System.arraycopy(old, 0, array, 0, old.length);
+        return array;
+    }
+
+    private static int[] trim(int[] array, int count)
+    {
+        if (count == array.length)
+            return array;
+        int[] result = new int[count];
+        System.arraycopy(array, 0, result, 0, count);
+        return result;
+    }
+}
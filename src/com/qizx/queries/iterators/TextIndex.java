@@ -0,0 +1,770 @@
+/*
+ *    Qizx/open 4.1
+ *
+ * This code is the open-source version of Qizx.
+ * Copyright (C) 2004-2009 Axyana Software -- All rights reserved.
+ *
+ * The contents of this file are subject to the Mozilla Public License
+ *  Version 1.1 (the "License"); you may not use this file except in
+ *  compliance with the License. You may obtain a copy of the License at
+ *  http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ *  WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ *  for the specific language governing rights and limitations under the
+ *  License.
+ *
+ * The Initial Developer of the Original Code is Xavier Franc - Axyana Software.
+ *
+ */
+package com.qizx.queries.iterators;
+
+import com.qizx.api.DataModelException;
+import com.qizx.api.Node;
+import com.qizx.api.fulltext.FullTextFactory;
+import com.qizx.api.fulltext.Stemmer;
+import com.qizx.api.fulltext.TextTokenizer;
+import com.qizx.api.util.fulltext.DefaultFullTextFactory;
+import com.qizx.queries.Query;
+import com.qizx.queries.FullText.MatchOptions;
+import com.qizx.util.DLEditDistance;
+import com.qizx.util.StringPattern;
+import com.qizx.util.basic.Unicode;
+import com.qizx.util.basic.Util;
+import com.qizx.xdm.FONIDataModel;
+import com.qizx.xdm.FONIDocument;
+import com.qizx.xdm.FONIDataModel.FONINode;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * In-memory full-text index of a parsed document.
+ * <p>
+ * Words are extracted from the text nodes like {@link TokenStream} does, but
+ * once for the whole document: word positions are numbered in document
+ * order, so the words of a node are a range of positions. A full-text
+ * selection is checked on a node by realizing it on the {@link Range} of the
+ * node, whose iterators see the same positions as on a TokenStream of the
+ * node, without tokenizing the text again. The text node of a position is
+ * found through the table of text nodes and of their first position.
+ * <p>
+ * The postings of a word are its positions, delta-encoded as
+ * variable-length integers, with a skip entry every
+ * {@link #SKIP_INTERVAL} postings.
+ * <p>
+ * Wildcards, prefixes, fuzzy and sounds-like words are expanded once per
+ * query into the words of the document they match, through a
+ * {@link TermDictionary} of the vocabulary.
+ * <p>
+ * An index is kept by its document as a derived object (see
+ * {@link FONIDataModel#putDerivedObject}), so that it is accounted in the
+ * size of the document cache and dropped with the document. Indexes are
+ * identified by the tokenizer configuration: the sessions that use the
+ * default full-text factory share the same index.
+ */
+public class TextIndex
+{
+    static final int SKIP_INTERVAL = 64;
+
+    private FullTextFactory factory;
+    private String language;
+
+    private HashMap terms = new HashMap();  // String -> Term
+    // String folded for case and diacritics -> Term[]
+    private HashMap foldedTerms;
+    // built on first expansion; may be built twice by concurrent queries,
+    // which is harmless:
+    private volatile Dictionary dictionary;
+    private int tokenCount;
+    // text nodes in document order, and position of their first word
+    // (ended by tokenCount):
+    private int/*NId*/[] textNodes = new int[64];
+    private int[] textStarts = new int[65];
+    private int textCount;
+
+    private TextIndex(FullTextFactory factory, String language)
+    {
+        this.factory = factory;
+        this.language = language;
+    }
+
+    /**
+     * Returns the index of the document of a node, built on first use with
+     * the tokenizer provided by the factory for the language. Returns null if
+     * the node cannot be searched through an index (only document, element
+     * and text nodes of parsed documents can).
+     */
+    public static TextIndex get(Node node, FullTextFactory factory,
+                                String language)
+        throws DataModelException
+    {
+        if (node.getClass() != FONINode.class)
+            return null;
+        switch (node.getNodeNature()) {
+        case Node.DOCUMENT:
+        case Node.ELEMENT:
+        case Node.TEXT:
+            break;
+        default:
+            return null;
+        }
+        return get(((FONINode) node).getDM(), factory, language);
+    }
+
+    /**
+     * Returns the index of a document, built on first use.
+     */
+    static TextIndex get(FONIDataModel dm, FullTextFactory factory,
+                         String language)
+        throws DataModelException
+    {
+        Key key = new Key(factory, language);
+        synchronized (dm) {
+            TextIndex index = (TextIndex) dm.getDerivedObject(key);
+            if (index == null) {
+                index = new TextIndex(factory, language);
+                index.build(dm.getDom());
+                dm.putDerivedObject(key, index, index.memorySize());
+            }
+            return index;
+        }
+    }
+
+    private void build(FONIDocument dom)
+        throws DataModelException
+    {
+        TextTokenizer tokenizer = factory.getTokenizer(language);
+        tokenizer.setAcceptingWildcards(false);
+        tokenizer.setParsingSpecialChars(false);
+
+        for (int/*NId*/ id = dom.getRootNode(); id != 0;
+             id = dom.getNodeNext(id)) {
+            if (dom.getKind(id) != Node.TEXT)
+                continue;
+            char[] text = dom.getCharValue(id, 0);
+            if (text == null)
+                continue;
+            if (textCount + 1 >= textNodes.length) {
+                int[] old = textNodes;
+                textNodes = new int[2 * old.length];
+                System.arraycopy(old, 0, textNodes, 0, textCount);
+                old = textStarts;
+                textStarts = new int[2 * old.length + 1];
+                System.arraycopy(old, 0, textStarts, 0, textCount);
+            }
+            textNodes[textCount] = id;
+            textStarts[textCount] = tokenCount;
+            ++textCount;
+
+            tokenizer.start(text, text.length);
+            int token = tokenizer.nextToken();
+            for (; token != TextTokenizer.END;) {
+                if (token == TextTokenizer.WORD)
+                    addWord(tokenizer.getTokenChars());
+                token = tokenizer.nextToken();
+            }
+        }
+        textStarts[textCount] = tokenCount;
+
+        foldedTerms = new HashMap();
+        for (Iterator iter = terms.values().iterator(); iter.hasNext();) {
+            Term term = (Term) iter.next();
+            term.trim();
+            String key = fold(term.chars);
+            Term[] same = (Term[]) foldedTerms.get(key);
+            if (same == null)
+                same = new Term[] { term };
+            else {
+                Term[] old = same;
+                same = new Term[old.length + 1];
+                System.arraycopy(old, 0, same, 0, old.length);
+                same[old.length] = term;
+            }
+            foldedTerms.put(key, same);
+        }
+    }
+
+    // rough estimation of the memory used, dictionary included
+    private int memorySize()
+    {
+        long size = 128 + 4L * (textNodes.length + textStarts.length);
+        for (Iterator iter = terms.values().iterator(); iter.hasNext();) {
+            Term term = (Term) iter.next();
+            size += 280 + 6 * term.chars.length + term.postings.length;
+            if (term.skips != null)
+                size += 16 + 4 * term.skips.length;
+        }
+        return (int) Math.min(size, Integer.MAX_VALUE);
+    }
+
+    private void addWord(char[] word)
+    {
+        String key = new String(word);
+        Term term = (Term) terms.get(key);
+        if (term == null) {
+            term = new Term(word);
+            terms.put(key, term);
+        }
+        term.add(tokenCount++);
+    }
+
+    // case- and diacritics-insensitive key:
+    // words equal for Util.prefixCompare have the same key
+    static String fold(char[] word)
+    {
+        char[] folded = new char[word.length];
+        for (int i = 0; i < word.length; i++)
+            folded[i] = Unicode.collapseDiacritic(
+                                         Character.toUpperCase(word[i]));
+        return new String(folded);
+    }
+
+    /**
+     * Returns the total number of words in the document.
+     */
+    public int getTokenCount()
+    {
+        return tokenCount;
+    }
+
+    /**
+     * Returns the number of distinct words in the document.
+     */
+    public int getTermCount()
+    {
+        return terms.size();
+    }
+
+    /**
+     * Returns the words of a node of the indexed document.
+     */
+    public Range getRange(FONINode node)
+        throws DataModelException
+    {
+        return new Range(startOf(node.getNodeId()),
+                         endOf(node.getDom(), node.getNodeId()));
+    }
+
+    // first word position of a node
+    int startOf(int/*NId*/ nodeId)
+    {
+        return firstWordFrom(nodeId);
+    }
+
+    // word position after the last word of a node
+    int endOf(FONIDocument dom, int/*NId*/ nodeId)
+        throws DataModelException
+    {
+        int/*NId*/ after = dom.getNodeAfter(nodeId);
+        return (after == 0) ? tokenCount : firstWordFrom(after);
+    }
+
+    Iterator termIterator()
+    {
+        return terms.values().iterator();
+    }
+
+    /**
+     * Returns the id of the text node containing a word position.
+     */
+    public int/*NId*/ getTextNode(int position)
+    {
+        int lo = 0, hi = textCount - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (textStarts[mid] <= position)
+                lo = mid;
+            else
+                hi = mid - 1;
+        }
+        return textNodes[lo];
+    }
+
+    // position of the first word in a text node at or after the node
+    private int firstWordFrom(int/*NId*/ nodeId)
+    {
+        int lo = 0, hi = textCount;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (textNodes[mid] < nodeId)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return textStarts[lo];
+    }
+
+    /**
+     * The words of a node: positions are numbered from 0 by iterators, like
+     * on a TokenStream of the node.
+     */
+    public class Range
+        implements Query.Instantiator
+    {
+        private int start;
+        private int end;
+
+        Range(int start, int end)
+        {
+            this.start = start;
+            this.end = end;
+        }
+
+        public int getTokenCount()
+        {
+            return end - start;
+        }
+
+        // no scoring is performed, like on TokenStream
+        public FullTextFactory getScoringFactory()
+        {
+            return null;
+        }
+
+        public PostingIterator enumWord(char[] word, MatchOptions matchOptions)
+        {
+            return new TermIterator(findWord(word, matchOptions), start, end);
+        }
+
+        public PostingIterator enumWildcard(char[] pattern,
+                                            MatchOptions matchOptions)
+        {
+            int cass = MatchOptions.caseMode(matchOptions);
+            boolean diacSense = MatchOptions.diacMode(matchOptions);
+            try {
+                StringPattern pat =
+                    MatchOptions.compilePattern(pattern, cass, diacSense);
+                return enumMatches(pat);
+            }
+            catch (PatternSyntaxException e) {
+                // like TokenStream
+                return enumWord(new char[] { '?' }, matchOptions);
+            }
+        }
+
+        /**
+         * Enumerates the words matched by a pattern, for example a
+         * {@link com.qizx.util.PrefixPattern} or a
+         * {@link com.qizx.util.SoundsLikePattern}.
+         */
+        public PostingIterator enumMatches(StringPattern pattern)
+        {
+            return new TermIterator(findMatches(pattern), start, end);
+        }
+
+        /**
+         * Enumerates the words within the threshold of an edit distance
+         * from a word.
+         */
+        public PostingIterator enumFuzzy(char[] word, DLEditDistance distance)
+        {
+            return new TermIterator(findFuzzy(word, distance), start, end);
+        }
+
+        public PostingIterator enumDocElements()
+        {
+            return null;
+        }
+
+        public PostingIterator enumDocNodes()
+        {
+            return null;
+        }
+
+        public PostingIterator singleNodeIterator(FONINode node)
+        {
+            return null;
+        }
+    }
+
+    // ------------ term lookup ----------------------------------------------
+
+    Term[] findWord(char[] word, MatchOptions matchOptions)
+    {
+        WordQuery query = new WordQuery(factory, word, matchOptions);
+        ArrayList found = new ArrayList();
+        if (query.stemmer != null) {
+            // words of the document have to be stemmed:
+            for (Iterator iter = terms.values().iterator(); iter.hasNext();) {
+                Term term = (Term) iter.next();
+                if (query.matches(term.chars))
+                    found.add(term);
+            }
+        }
+        else if (query.caseSense && query.diacriticSense) {
+            Term term = (Term) terms.get(new String(query.word));
+            if (term != null)
+                found.add(term);
+        }
+        else {
+            Term[] same = (Term[]) foldedTerms.get(fold(query.word));
+            if (same != null)
+                for (int t = 0; t < same.length; t++)
+                    if (query.matches(same[t].chars))
+                        found.add(same[t]);
+        }
+        return (Term[]) found.toArray(new Term[found.size()]);
+    }
+
+    /**
+     * A word searched with match options: same matching rules as
+     * TokenStream.TokenIterator.
+     */
+    static final class WordQuery
+    {
+        Stemmer stemmer;
+        char[] word;
+        boolean caseSense;
+        boolean diacriticSense;
+
+        WordQuery(FullTextFactory factory, char[] word,
+                  MatchOptions matchOptions)
+        {
+            if (matchOptions.stemming == MatchOptions.WITH) {
+                stemmer = factory.getStemmer(matchOptions.language);
+                if (stemmer != null)
+                    word = stemmer.stem(word);
+            }
+            int cs = MatchOptions.caseMode(matchOptions);
+            caseSense = cs != MatchOptions.INSENSITIVE;
+            diacriticSense = MatchOptions.diacMode(matchOptions);
+            if (cs == MatchOptions.UPPERCASE || cs == MatchOptions.LOWERCASE)
+                word = MatchOptions.mapPattern(word, cs, diacriticSense);
+            this.word = word;
+        }
+
+        boolean matches(char[] token)
+        {
+            if (stemmer != null)
+                token = stemmer.stem(token);
+            if (token.length != word.length)
+                return false;
+            if (caseSense && diacriticSense)
+                return Arrays.equals(token, word);
+            return Util.prefixCompare(token, word, word.length,
+                                      caseSense, diacriticSense) == 0;
+        }
+    }
+
+    Term[] findMatches(StringPattern pattern)
+    {
+        Dictionary dict = getDictionary();
+        return dict.getTerms(dict.expand(pattern));
+    }
+
+    Term[] findFuzzy(char[] word, DLEditDistance distance)
+    {
+        Dictionary dict = getDictionary();
+        return dict.getTerms(dict.expandFuzzy(word, distance));
+    }
+
+    private Dictionary getDictionary()
+    {
+        Dictionary dict = dictionary;
+        if (dict == null) {
+            Term[] sorted =
+                (Term[]) terms.values().toArray(new Term[terms.size()]);
+            Arrays.sort(sorted, new Comparator() {
+                public int compare(Object o1, Object o2)
+                {
+                    return TermDictionary.ORDER.compare(((Term) o1).chars,
+                                                        ((Term) o2).chars);
+                }
+            });
+            dictionary = dict = new Dictionary(sorted);
+        }
+        return dict;
+    }
+
+    /**
+     * Terms of the document in the order of the dictionary of their words.
+     */
+    private static final class Dictionary extends TermDictionary
+    {
+        Term[] sorted;
+
+        Dictionary(Term[] sorted)
+        {
+            super(charsOf(sorted));
+            this.sorted = sorted;
+        }
+
+        private static char[][] charsOf(Term[] terms)
+        {
+            char[][] words = new char[terms.length][];
+            for (int t = 0; t < terms.length; t++)
+                words[t] = terms[t].chars;
+            return words;
+        }
+
+        Term[] getTerms(int[] indexes)
+        {
+            Term[] found = new Term[indexes.length];
+            for (int i = 0; i < indexes.length; i++)
+                found[i] = sorted[indexes[i]];
+            return found;
+        }
+    }
+
+    /**
+     * Identifies the tokenizer configuration of an index: a factory and a
+     * language. Distinct instances of the default factory, which is
+     * stateless, are equivalent; other factories are compared by identity.
+     */
+    static final class Key
+    {
+        private Class factoryClass;
+        private FullTextFactory factory;    // null if default
+        String language;
+
+        Key(FullTextFactory factory, String language)
+        {
+            factoryClass = factory.getClass();
+            if (factoryClass != DefaultFullTextFactory.class)
+                this.factory = factory;
+            this.language = language;
+        }
+
+        public boolean equals(Object obj)
+        {
+            if (!(obj instanceof Key))
+                return false;
+            Key k = (Key) obj;
+            return factoryClass == k.factoryClass && factory == k.factory
+                   && (language == null ? k.language == null
+                                        : language.equals(k.language));
+        }
+
+        public int hashCode()
+        {
+            return factoryClass.hashCode() * 31
+                   + (language == null ? 0 : language.hashCode());
+        }
+    }
+
+    // ------------ postings -------------------------------------------------
+
+    /**
+     * A distinct word and its postings.
+     */
+    static final class Term
+    {
+        char[] chars;
+        int count;          // number of postings
+        int last = -1;      // last position added
+        byte[] postings = new byte[4];
+        int size;           // in bytes
+        // position and offset of the next posting, for each posting at the
+        // end of a run of SKIP_INTERVAL postings:
+        int[] skips;
+
+        Term(char[] chars)
+        {
+            this.chars = chars;
+        }
+
+        void add(int position)
+        {
+            if (size + 5 > postings.length) {
+                byte[] old = postings;
+                postings = new byte[2 * old.length + 5];
+                System.arraycopy(old, 0, postings, 0, size);
+            }
+            int delta = position - last;
+            for (; delta >= 0x80; delta >>>= 7)
+                postings[size++] = (byte) (delta | 0x80);
+            postings[size++] = (byte) delta;
+            last = position;
+            if (++count % SKIP_INTERVAL == 0) {
+                int skip = 2 * (count / SKIP_INTERVAL - 1);
+                if (skips == null)
+                    skips = new int[8];
+                else if (skip + 2 > skips.length) {
+                    int[] old = skips;
+                    skips = new int[2 * old.length];
+                    System.arraycopy(old, 0, skips, 0, skip);
+                }
+                skips[skip] = position;
+                skips[skip + 1] = size;
+            }
+        }
+
+        void trim()
+        {
+            if (size < postings.length) {
+                byte[] old = postings;
+                postings = new byte[size];
+                System.arraycopy(old, 0, postings, 0, size);
+            }
+            int skipCount = 2 * (count / SKIP_INTERVAL);
+            if (skips != null && skipCount < skips.length) {
+                int[] old = skips;
+                skips = new int[skipCount];
+                System.arraycopy(old, 0, skips, 0, skipCount);
+            }
+        }
+    }
+
+    /**
+     * Reads the postings of a Term.
+     */
+    static final class Cursor
+    {
+        Term term;
+        int index;      // rank of current posting, -1 before first
+        int value;      // current posting, MAX_NODEID after last
+        int previous;   // lower bound of previous posting
+        int offset;     // of next posting
+
+        Cursor(Term term)
+        {
+            this.term = term;
+            reset();
+        }
+
+        void reset()
+        {
+            index = -1;
+            value = previous = -1;
+            offset = 0;
+        }
+
+        /**
+         * Moves to the first posting greater or equal to a position and
+         * returns it, or MAX_NODEID if there is none.
+         */
+        int seek(int position)
+        {
+            if (position <= previous)
+                reset();
+            else if (position <= value)
+                return value;
+            // skip whole runs of postings:
+            int[] skips = term.skips;
+            if (skips != null) {
+                int lo = 0, hi = skips.length / 2 - 1, run = -1;
+                while (lo <= hi) {
+                    int mid = (lo + hi) >>> 1;
+                    if (skips[2 * mid] < position) {
+                        run = mid;
+                        lo = mid + 1;
+                    }
+                    else
+                        hi = mid - 1;
+                }
+                int rank = (run + 1) * SKIP_INTERVAL - 1;
+                if (run >= 0 && rank > index) {
+                    index = rank;
+                    value = skips[2 * run];
+                    previous = value - 1;
+                    offset = skips[2 * run + 1];
+                }
+            }
+            byte[] postings = term.postings;
+            while (value < position) {
+                if (index + 1 >= term.count) {
+                    index = term.count;
+                    previous = value;
+                    return value = PostingIterator.MAX_NODEID;
+                }
+                int delta = 0;
+                for (int shift = 0;; shift += 7) {
+                    byte b = postings[offset++];
+                    delta |= (b & 0x7f) << shift;
+                    if (b >= 0)
+                        break;
+                }
+                previous = value;
+                value += delta;
+                ++index;
+            }
+            return value;
+        }
+    }
+
+    /**
+     * Iterates on the positions of a set of words within a range, relatively
+     * to the start of the range.
+     */
+    protected static class TermIterator extends PostingIteratorBase
+    {
+        Term[] terms;
+        Cursor[] cursors;
+        int start;
+        int end;
+
+        TermIterator(Term[] terms, int start, int end)
+        {
+            this.terms = terms;
+            this.start = start;
+            this.end = end;
+            cursors = new Cursor[terms.length];
+            for (int t = 0; t < terms.length; t++)
+                cursors[t] = new Cursor(terms[t]);
+            curNodeId = -1;
+        }
+
+        public PostingIterator bornAgain()
+        {
+            return copyFilters(new TermIterator(terms, start, end));
+        }
+
+        public boolean skipToDoc(int/*DId*/ docId)
+        {
+            changeDoc(docId);
+            if (docId >= 1) // one doc by definition
+                return noMoreDocs();
+            return true;
+        }
+
+        protected boolean basicSkipToNode(int/*NId*/ pos, int/*NId*/ limit)
+        {
+            int/*NId*/ next = end;
+            for (int c = cursors.length; --c >= 0;) {
+                int/*NId*/ p = cursors[c].seek(start + pos);
+                if (p < next)
+                    next = p;
+            }
+            if (next >= end)
+                return noMoreNodes();
+            curNodeId = next - start;
+            return true;
+        }
+
+        public void resetToNode(int/*NId*/ pos)
+        {
+            if (pos < 0)
+                curNodeId = -1;
+            else
+                curNodeId = pos - 1;
+        }
+
+        public boolean checkWordDistance(int/*NId*/ posting1,
+                                         int/*NId*/ posting2,
+                                         int offset, int min, int max)
+        {
+            int/*NId*/ d = Math.abs(posting2 - posting1) + offset;
+            return d >= min && (max < 0 || d <= max);
+        }
+
+        public boolean checkBoundary(int posting, int boundary,
+                                     boolean atStart)
+        {
+            if (atStart)
+                return posting <= 0;
+            else
+                return posting >= end - start - 1;
+        }
+
+        public int computeWordDistance(int/*NId*/ posting1,
+                                       int/*NId*/ posting2)
+        {
+            return (int) Math.abs(posting2 - posting1); // cast NId!
+        }
+    }
+}
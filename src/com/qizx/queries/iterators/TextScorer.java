@@ -0,0 +1,287 @@
+/*
+ *    Qizx/open 4.1
+ *
+ * This code is the open-source version of Qizx.
+ * Copyright (C) 2004-2009 Axyana Software -- All rights reserved.
+ *
+ * The contents of this file are subject to the Mozilla Public License
+ *  Version 1.1 (the "License"); you may not use this file except in
+ *  compliance with the License. You may obtain a copy of the License at
+ *  http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ *  WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ *  for the specific language governing rights and limitations under the
+ *  License.
+ *
+ * The Initial Developer of the Original Code is Xavier Franc - Axyana Software.
+ *
+ */
+package com.qizx.queries.iterators;
+
+import com.qizx.api.DataModelException;
+import com.qizx.api.Node;
+import com.qizx.api.fulltext.FullTextFactory;
+import com.qizx.api.fulltext.Scorer;
+import com.qizx.api.util.fulltext.BM25Scorer;
+import com.qizx.queries.FullText;
+import com.qizx.queries.Query;
+import com.qizx.queries.FullText.MatchOptions;
+import com.qizx.util.StringPattern;
+import com.qizx.xdm.FONIDataModel;
+import com.qizx.xdm.FONIDocument;
+import com.qizx.xdm.FONIDataModel.FONINode;
+
+import java.util.ArrayList;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Computes the full-text scores of nodes of parsed documents for a
+ * full-text selection, using the {@link TextIndex} of their document and
+ * the {@link TextStatistics} of their collection.
+ * <p>
+ * The score is the sum of the scores of the words (or wildcards) of the
+ * selection, each multiplied by its weight, then normalized by the
+ * {@link Scorer}. With a {@link BM25Scorer}, word scores follow BM25, with
+ * the optional weights of fields; with another Scorer, they are
+ * <code>scoreWord(normWord(N / n) * weight, tf)</code>.
+ * <p>
+ * A TextScorer keeps the terms and the statistics of the last document,
+ * so that scoring nodes in sequence does not allocate memory. It must not
+ * be used by several threads.
+ */
+public class TextScorer
+{
+    private FullTextFactory factory;
+    private String language;
+    private Scorer scorer;
+    private BM25Scorer bm25;
+    private Word[] words;
+
+    // current document and statistics:
+    private FONIDocument dom;
+    private TextIndex index;
+    private float[] fieldWeights;   // by element name id, or null
+    private int statsNameId = -2;
+    private TextStatistics stats;
+    private TextStatistics.Collections collections;
+    private TextStatistics.Collection collection;
+
+    /**
+     * @param collections collections of the documents loaded by the query,
+     *        or null if each document is scored alone
+     */
+    public TextScorer(FullText.Selection selection, FullTextFactory factory,
+                      TextStatistics.Collections collections)
+    {
+        this.factory = factory;
+        this.collections = collections;
+        MatchOptions options = selection.getMatchOptions();
+        language = (options == null) ? null : options.language;
+        scorer = factory.createScorer();
+        if (scorer instanceof BM25Scorer)
+            bm25 = (BM25Scorer) scorer;
+        // the words of the selection are recorded by realizing it:
+        Recorder recorder = new Recorder();
+        selection.realize(recorder);
+        words = (Word[]) recorder.words.toArray(new Word[recorder.words.size()]);
+    }
+
+    /**
+     * Returns the score of a node between 0 and 1, or -1 if the node
+     * does not belong to a parsed document.
+     */
+    public double score(Node node)
+        throws DataModelException
+    {
+        TextIndex nodeIndex = TextIndex.get(node, factory, language);
+        if (nodeIndex == null)
+            return -1;
+        FONINode fnode = (FONINode) node;
+        FONIDocument nodeDom = fnode.getDom();
+        int/*NId*/ id = fnode.getNodeId();
+        if (node.getNodeNature() == Node.TEXT)  // scored as its parent
+            id = nodeDom.getParent(id);
+        if (nodeDom != dom || nodeIndex != index)
+            changeDocument(fnode.getDM(), nodeIndex);
+        int nameId = (nodeDom.getKind(id) == Node.ELEMENT)
+                         ? nodeDom.getNameId(id) : -1;
+        if (nameId != statsNameId) {
+            TextStatistics nodeStats =
+                TextStatistics.get(collection, fnode.getDM(), id, factory,
+                                   language);
+            statsNameId = nameId;
+            if (nodeStats != stats) {
+                stats = nodeStats;
+                for (int w = 0; w < words.length; w++)
+                    words[w].computeIdf();
+            }
+        }
+
+        int start = index.startOf(id), end = index.endOf(dom, id);
+        float length = end - start;
+        float averageLength = stats.getAverageLength();
+        float raw = 0;
+        for (int w = 0; w < words.length; w++) {
+            Word word = words[w];
+            float tf = word.frequency(start, end);
+            if (tf <= 0)
+                continue;
+            if (bm25 != null)
+                raw += word.weight
+                       * bm25.scoreTerm(word.idf, tf, length, averageLength);
+            else
+                raw += scorer.scoreWord(word.idf * word.weight, tf);
+        }
+        return scorer.normalizeScore(raw);
+    }
+
+    private void changeDocument(FONIDataModel dm, TextIndex index)
+        throws DataModelException
+    {
+        dom = dm.getDom();
+        this.index = index;
+        collection = (collections == null) ? null : collections.get(dm);
+        statsNameId = -2;
+        fieldWeights = null;
+        if (bm25 != null && bm25.hasFieldWeights()) {
+            fieldWeights = new float[dom.getElementNameCount()];
+            for (int n = fieldWeights.length; --n >= 0;)
+                fieldWeights[n] = bm25.getFieldWeight(dom.getElementName(n));
+        }
+        for (int w = 0; w < words.length; w++)
+            words[w].findTerms();
+    }
+
+    /**
+     * A word or a wildcard of the selection.
+     */
+    private class Word extends TextIndex.TermIterator
+    {
+        char[] word;
+        char[] pattern;
+        MatchOptions options;
+        float idf;
+        // terms of the current document
+        TextIndex.Cursor[] termCursors;
+
+        Word(char[] word, char[] pattern, MatchOptions options)
+        {
+            super(new TextIndex.Term[0], 0, 0);
+            this.word = word;
+            this.pattern = pattern;
+            this.options = options;
+        }
+
+        void findTerms()
+        {
+            TextIndex.Term[] found;
+            if (word != null)
+                found = index.findWord(word, options);
+            else {
+                StringPattern pat = compile();
+                found = (pat == null) ? new TextIndex.Term[0]
+                                      : index.findMatches(pat);
+            }
+            termCursors = new TextIndex.Cursor[found.length];
+            for (int t = 0; t < found.length; t++)
+                termCursors[t] = new TextIndex.Cursor(found[t]);
+        }
+
+        void computeIdf()
+        {
+            int count;
+            if (word != null)
+                count = stats.getNodeCount(word, options);
+            else {
+                StringPattern pat = compile();
+                count = (pat == null) ? 0 : stats.getNodeCount(pat);
+            }
+            int nodeCount = Math.max(stats.getNodeCount(), count);
+            if (bm25 != null)
+                idf = bm25.idf(nodeCount, count);
+            else
+                idf = scorer.normWord((float) nodeCount / Math.max(count, 1));
+        }
+
+        private StringPattern compile()
+        {
+            try {
+                return MatchOptions.compilePattern(pattern,
+                                                   MatchOptions.caseMode(options),
+                                                   MatchOptions.diacMode(options));
+            }
+            catch (PatternSyntaxException e) {
+                return null;
+            }
+        }
+
+        // number of occurrences in a range, weighted by fields
+        float frequency(int start, int end)
+            throws DataModelException
+        {
+            float tf = 0;
+            for (int t = termCursors.length; --t >= 0;) {
+                TextIndex.Cursor cursor = termCursors[t];
+                for (int pos = cursor.seek(start); pos < end;
+                     pos = cursor.seek(pos + 1)) {
+                    if (fieldWeights == null)
+                        ++tf;
+                    else {
+                        int/*NId*/ parent =
+                            dom.getParent(index.getTextNode(pos));
+                        tf += (dom.getKind(parent) == Node.ELEMENT)
+                                  ? fieldWeights[dom.getNameId(parent)] : 1;
+                    }
+                }
+            }
+            return tf;
+        }
+    }
+
+    /**
+     * Records the words of a selection: their weight is set on their
+     * iterator when the selection is realized.
+     */
+    private class Recorder
+        implements Query.Instantiator
+    {
+        ArrayList words = new ArrayList();
+
+        public PostingIterator enumWord(char[] word,
+                                        MatchOptions matchOptions)
+        {
+            Word w = new Word(word, null, matchOptions);
+            words.add(w);
+            return w;
+        }
+
+        public PostingIterator enumWildcard(char[] pattern,
+                                            MatchOptions matchOptions)
+        {
+            Word w = new Word(null, pattern, matchOptions);
+            words.add(w);
+            return w;
+        }
+
+        public FullTextFactory getScoringFactory()
+        {
+            return null;
+        }
+
+        public PostingIterator enumDocElements()
+        {
+            return null;
+        }
+
+        public PostingIterator enumDocNodes()
+        {
+            return null;
+        }
+
+        public PostingIterator singleNodeIterator(FONINode node)
+        {
+            return null;
+        }
+    }
+}
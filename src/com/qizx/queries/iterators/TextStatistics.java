@@ -0,0 +1,401 @@
+/*
+ *    Qizx/open 4.1
+ *
+ * This code is the open-source version of Qizx.
+ * Copyright (C) 2004-2009 Axyana Software -- All rights reserved.
+ *
+ * The contents of this file are subject to the Mozilla Public License
+ *  Version 1.1 (the "License"); you may not use this file except in
+ *  compliance with the License. You may obtain a copy of the License at
+ *  http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ *  WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ *  for the specific language governing rights and limitations under the
+ *  License.
+ *
+ * The Initial Developer of the Original Code is Xavier Franc - Axyana Software.
+ *
+ */
+package com.qizx.queries.iterators;
+
+import com.qizx.api.DataModelException;
+import com.qizx.api.Node;
+import com.qizx.api.QName;
+import com.qizx.api.fulltext.FullTextFactory;
+import com.qizx.queries.FullText.MatchOptions;
+import com.qizx.util.StringPattern;
+import com.qizx.xdm.FONIDataModel;
+import com.qizx.xdm.FONIDocument;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Full-text statistics of a collection of parsed documents, used for
+ * scoring: number of scored nodes, their average number of words, and for
+ * each word the number of scored nodes that contain it.
+ * <p>
+ * Scored nodes are the elements of a given name (or the documents
+ * themselves) in all the documents of the collection. An element nested in
+ * an element of the same name counts as part of the outer one.
+ * <p>
+ * The collection of a document is the one it was loaded with by the query
+ * (see {@link Collections}), or else the document alone. Statistics are
+ * computed once, from the {@link TextIndex} of each document, and kept with
+ * the collection: evaluating the same collection again reuses them, as long
+ * as its documents stay in the document cache. At most
+ * {@link #MAX_COLLECTIONS} collections are kept, the least recently used is
+ * discarded.
+ */
+public class TextStatistics
+{
+    /**
+     * Maximum number of collections whose statistics are kept.
+     */
+    public static final int MAX_COLLECTIONS = 64;
+
+    // collections by the URIs of their documents:
+    private static final LinkedHashMap<String, Collection> collections =
+        new LinkedHashMap<String, Collection>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry eldest) {
+                return size() > MAX_COLLECTIONS;
+            }
+        };
+
+    private FullTextFactory factory;
+    private TextIndex.Key tokenizer;
+    private QName nodeName;     // null for documents
+
+    private int nodeCount;
+    private long totalLength;
+    // word -> int[] { number of nodes containing the word }
+    private HashMap counts = new HashMap();
+    // word folded for case and diacritics -> String or String[] of words
+    private HashMap foldedWords = new HashMap();
+    // sorted words and their counts, for patterns:
+    private TermDictionary dictionary;
+    private int[] dictionaryCounts;
+
+    private TextStatistics(FullTextFactory factory, String language,
+                           QName nodeName)
+    {
+        this.factory = factory;
+        tokenizer = new TextIndex.Key(factory, language);
+        this.nodeName = nodeName;
+    }
+
+    /**
+     * Returns the collection of these documents, with the statistics already
+     * computed if it has been used before.
+     * @param uris URIs of the documents, identifying the collection
+     * @param documents documents parallel to the URIs
+     */
+    public static Collection getCollection(String[] uris,
+                                           FONIDataModel[] documents)
+    {
+        StringBuffer key = new StringBuffer();
+        for (int d = 0; d < uris.length; d++)
+            key.append(uris[d]).append('\n');
+        synchronized (collections) {
+            Collection collection = collections.get(key.toString());
+            // documents reloaded since are indexed again:
+            if (collection == null || !collection.hasDocuments(documents)) {
+                collection = new Collection(documents);
+                collections.put(key.toString(), collection);
+            }
+            return collection;
+        }
+    }
+
+    /**
+     * Returns the statistics of the nodes of same name as a node, over a
+     * collection of its document, computed on first use.
+     * @param collection collection of the document, or null for the
+     *        document alone
+     * @param dm document of the node
+     * @param nodeId id of an element or of the document node
+     */
+    public static TextStatistics get(Collection collection, FONIDataModel dm,
+                                     int/*NId*/ nodeId,
+                                     FullTextFactory factory, String language)
+        throws DataModelException
+    {
+        FONIDocument dom = dm.getDom();
+        QName name = (dom.getKind(nodeId) == Node.ELEMENT)
+                         ? dom.getName(nodeId) : null;
+        if (collection == null) {
+            String uri = dom.getBaseURI();
+            if (uri == null)
+                uri = "#" + System.identityHashCode(dm);
+            collection = getCollection(new String[] { uri },
+                                       new FONIDataModel[] { dm });
+        }
+        return collection.getStatistics(factory, language, name);
+    }
+
+    /**
+     * Returns the number of scored nodes in the collection.
+     */
+    public int getNodeCount()
+    {
+        return nodeCount;
+    }
+
+    /**
+     * Returns the average number of words of the scored nodes.
+     */
+    public float getAverageLength()
+    {
+        return (nodeCount == 0) ? 0 : (float) totalLength / nodeCount;
+    }
+
+    /**
+     * Returns the number of scored nodes containing a word, or one of the
+     * words equivalent to it according to match options. For equivalent
+     * words, this is approximated by the sum of their counts.
+     */
+    public int getNodeCount(char[] word, MatchOptions matchOptions)
+    {
+        TextIndex.WordQuery query =
+            new TextIndex.WordQuery(factory, word, matchOptions);
+        long count = 0;
+        if (query.stemmer != null) {
+            for (Iterator iter = counts.entrySet().iterator(); iter.hasNext();) {
+                Map.Entry e = (Map.Entry) iter.next();
+                if (query.matches(((String) e.getKey()).toCharArray()))
+                    count += ((int[]) e.getValue())[0];
+            }
+        }
+        else if (query.caseSense && query.diacriticSense) {
+            int[] c = (int[]) counts.get(new String(query.word));
+            if (c != null)
+                count = c[0];
+        }
+        else {
+            Object same = foldedWords.get(TextIndex.fold(query.word));
+            if (same instanceof String)
+                same = new String[] { (String) same };
+            if (same != null) {
+                String[] words = (String[]) same;
+                for (int w = 0; w < words.length; w++)
+                    if (query.matches(words[w].toCharArray()))
+                        count += ((int[]) counts.get(words[w]))[0];
+            }
+        }
+        return (int) Math.min(count, nodeCount);
+    }
+
+    /**
+     * Returns the number of scored nodes containing a word that matches a
+     * pattern, approximated by the sum of the counts of matching words.
+     */
+    public int getNodeCount(StringPattern pattern)
+    {
+        int[] found = dictionary.expand(pattern);
+        long count = 0;
+        for (int w = 0; w < found.length; w++)
+            count += dictionaryCounts[found[w]];
+        return (int) Math.min(count, nodeCount);
+    }
+
+    private void sortWords()
+    {
+        char[][] words = new char[counts.size()][];
+        int w = 0;
+        for (Iterator iter = counts.keySet().iterator(); iter.hasNext();)
+            words[w++] = ((String) iter.next()).toCharArray();
+        Arrays.sort(words, TermDictionary.ORDER);
+        dictionary = new TermDictionary(words);
+        dictionaryCounts = new int[words.length];
+        for (w = 0; w < words.length; w++)
+            dictionaryCounts[w] = ((int[]) counts.get(new String(words[w])))[0];
+    }
+
+    private void add(FONIDataModel dm)
+        throws DataModelException
+    {
+        TextIndex index = TextIndex.get(dm, factory, tokenizer.language);
+        FONIDocument dom = dm.getDom();
+        // ranges of words of the scored nodes:
+        int[] starts, ends;
+        int count = 0;
+        if (nodeName == null) {
+            starts = new int[] { 0 };
+            ends = new int[] { index.getTokenCount() };
+            count = 1;
+        }
+        else {
+            int nameId = -1;
+            for (int n = dom.getElementNameCount(); --n >= 0;)
+                if (nodeName.equals(dom.getElementName(n)))
+                    nameId = n;
+            if (nameId < 0)
+                return;
+            starts = new int[16];
+            ends = new int[16];
+            for (int/*NId*/ id = dom.getRootNode(); id != 0;) {
+                if (dom.getKind(id) != Node.ELEMENT
+                    || dom.getNameId(id) != nameId) {
+                    id = dom.getNodeNext(id);
+                    continue;
+                }
+                if (count == starts.length) {
+                    int[] old = starts;
+                    starts = new int[2 * count];
+                    System.arraycopy(old, 0, starts, 0, count);
+                    old = ends;
+                    ends = new int[2 * count];
+                    System.arraycopy(old, 0, ends, 0, count);
+                }
+                starts[count] = index.startOf(id);
+                ends[count] = index.endOf(dom, id);
+                ++count;
+                id = dom.getNodeAfter(id); // nested ones are part of it
+            }
+        }
+        nodeCount += count;
+        for (int u = 0; u < count; u++)
+            totalLength += ends[u] - starts[u];
+        if (count == 0)
+            return;
+
+        for (Iterator iter = index.termIterator(); iter.hasNext();) {
+            TextIndex.Term term = (TextIndex.Term) iter.next();
+            // count the nodes having a posting, skipping to the next node
+            // after a hit:
+            TextIndex.Cursor cursor = new TextIndex.Cursor(term);
+            int hits = 0;
+            int u = 0;
+            for (int pos = cursor.seek(starts[0]);
+                 pos != PostingIterator.MAX_NODEID;) {
+                while (u < count && ends[u] <= pos)
+                    ++u;
+                if (u == count)
+                    break;
+                if (pos >= starts[u]) {
+                    ++hits;
+                    pos = cursor.seek(ends[u]);
+                }
+                else
+                    pos = cursor.seek(starts[u]);
+            }
+            if (hits > 0)
+                addCount(term.chars, hits);
+        }
+    }
+
+    private void addCount(char[] chars, int hits)
+    {
+        String word = new String(chars);
+        int[] c = (int[]) counts.get(word);
+        if (c != null) {
+            c[0] += hits;
+            return;
+        }
+        counts.put(word, new int[] { hits });
+        String key = TextIndex.fold(chars);
+        Object same = foldedWords.get(key);
+        if (same == null)
+            foldedWords.put(key, word);
+        else if (same instanceof String)
+            foldedWords.put(key, new String[] { (String) same, word });
+        else {
+            String[] old = (String[]) same;
+            String[] words = new String[old.length + 1];
+            System.arraycopy(old, 0, words, 0, old.length);
+            words[old.length] = word;
+            foldedWords.put(key, words);
+        }
+    }
+
+    /**
+     * Collections of the documents loaded by a query: a document that
+     * belongs to several collections is scored within the last one.
+     */
+    public static class Collections
+    {
+        private HashMap<FONIDataModel, Collection> collections =
+            new HashMap<FONIDataModel, Collection>();
+
+        /**
+         * Declares documents loaded together, like by fn:collection.
+         * @param uris URIs of the documents
+         * @param documents documents parallel to the URIs
+         */
+        public synchronized void declare(String[] uris,
+                                         FONIDataModel[] documents)
+        {
+            Collection collection = getCollection(uris, documents);
+            for (int d = 0; d < documents.length; d++)
+                collections.put(documents[d], collection);
+        }
+
+        /**
+         * Returns the collection of a document, or null if the document
+         * was not loaded with others.
+         */
+        public synchronized Collection get(FONIDataModel document)
+        {
+            return collections.get(document);
+        }
+    }
+
+    /**
+     * Documents of a collection and their statistics.
+     */
+    public static class Collection
+    {
+        private WeakReference[] documents;
+        private ArrayList statistics = new ArrayList(1);
+
+        Collection(FONIDataModel[] documents)
+        {
+            this.documents = new WeakReference[documents.length];
+            for (int d = 0; d < documents.length; d++)
+                this.documents[d] = new WeakReference(documents[d]);
+        }
+
+        // true if the documents are the same instances
+        boolean hasDocuments(FONIDataModel[] documents)
+        {
+            if (documents.length != this.documents.length)
+                return false;
+            for (int d = 0; d < documents.length; d++)
+                if (this.documents[d].get() != documents[d])
+                    return false;
+            return true;
+        }
+
+        synchronized TextStatistics getStatistics(FullTextFactory factory,
+                                                  String language,
+                                                  QName nodeName)
+            throws DataModelException
+        {
+            TextIndex.Key tokenizer = new TextIndex.Key(factory, language);
+            for (int i = 0, size = statistics.size(); i < size; i++) {
+                TextStatistics stats = (TextStatistics) statistics.get(i);
+                if (stats.tokenizer.equals(tokenizer)
+                    && (nodeName == null ? stats.nodeName == null
+                                         : nodeName.equals(stats.nodeName)))
+                    return stats;
+            }
+            TextStatistics stats =
+                new TextStatistics(factory, language, nodeName);
+            // documents evicted from the document cache are ignored
+            for (int d = 0; d < documents.length; d++) {
+                FONIDataModel dm = (FONIDataModel) documents[d].get();
+                if (dm != null)
+                    stats.add(dm);
+            }
+            stats.sortWords();
+            statistics.add(stats);
+            return stats;
+        }
+    }
+}
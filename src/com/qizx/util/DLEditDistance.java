@@ -36,6 +36,14 @@ public class DLEditDistance
     private int[] costs;   // current column of size word2.len
     private int[] costs_1;   // previous column
     private int[] costs_2;
+
+    // incremental computation: reference word, column for each prefix of
+    // the compared word and its minimum
+    private char[] reference;
+    private int[][] columns;
+    private int[] minima;
+    private int computed;   // columns valid for the previous word
+    private int rejectedLength;
        
     public DLEditDistance(int insertCost, int transposeCost,
                           int substituteCost, int caseDiacCost)
@@ -138,7 +146,108 @@ public class DLEditDistance
         
         return costs_1[len2];   // beware shift above
     }
-    
+
+    /**
+     * Sets the word compared with other words by {@link #distanceFrom}.
+     */
+    public void setReference(char[] word)
+    {
+        reference = word;
+        columns = new int[Math.max(word.length, 16) + 1][];
+        minima = new int[columns.length];
+        int[] first = columns[0] = new int[word.length + 1];
+        for (int y = 0; y <= word.length; y++)
+            first[y] = y * insertCost;
+        minima[0] = 0;
+        computed = 0;
+    }
+
+    /**
+     * Computes the distance of a word to the reference word, like
+     * {@link #distance}, reusing the computation done on the previous word
+     * for their common prefix. This allows comparing words in sorted order
+     * efficiently.
+     * <p>
+     * Returns a value greater than the threshold if the distance exceeds it:
+     * then {@link #getRejectedLength()} tells whether all the words starting
+     * with the same characters are rejected too.
+     * @param word compared word
+     * @param shared length of the prefix common to this word and the word
+     *        previously compared (0 for the first word)
+     */
+    public int distanceFrom(char[] word, int shared)
+    {
+        char[] word2 = reference;
+        int len1 = word.length, len2 = word2.length;
+        rejectedLength = Integer.MAX_VALUE;
+        if (shared > computed)
+            shared = computed;
+        computed = shared;
+        if (Math.abs(len2 - len1) * insertCost > threshold)
+            return threshold + 1;
+        if (len1 >= columns.length) {
+            int[][] old = columns;
+            columns = new int[len1 + 8][];
+            System.arraycopy(old, 0, columns, 0, old.length);
+            int[] oldMinima = minima;
+            minima = new int[columns.length];
+            System.arraycopy(oldMinima, 0, minima, 0, oldMinima.length);
+        }
+        // same recurrence as distance(): column x + 1 is the cost after
+        // x + 1 characters of the word
+        for (int x = shared; x < len1; x++)
+        {
+            int[] prev = columns[x];
+            int[] prev2 = (x > 0) ? columns[x - 1] : null;
+            int[] col = columns[x + 1];
+            if (col == null)
+                col = columns[x + 1] = new int[len2 + 1];
+            int min = col[0] = prev[0] + insertCost;
+            for (int y = 0; y < len2; y++) {
+                int cost = prev[y + 1] + insertCost;
+                int insCost = col[y] + insertCost;
+                if (insCost < cost)
+                    cost = insCost;
+                int subCost = prev[y];
+                char ch2 = word2[y];
+                if (word[x] != ch2) {
+                    if (Unicode.collapse(word[x]) == Unicode.collapse(ch2))
+                        subCost += caseDiacCost;
+                    else
+                        subCost += substituteCost;
+                    if (subCost < cost)
+                        cost = subCost;
+                    if (x > 1 && y > 1 && word[x] == word2[y - 1]
+                                     && word[x - 1] == ch2)
+                        cost = Math.min(cost, prev2[y - 1] + transposeCost);
+                }
+                else if (subCost < cost)
+                    cost = subCost;
+                col[y + 1] = cost;
+                if (cost < min)
+                    min = cost;
+            }
+            minima[x + 1] = min;
+            computed = x + 1;
+            // costs never decrease from a column, or from the one before it
+            // by a transposition:
+            if (min > threshold && minima[x] + transposeCost > threshold) {
+                rejectedLength = x + 1;
+                return threshold + 1;
+            }
+        }
+        return columns[len1][len2];
+    }
+
+    /**
+     * After {@link #distanceFrom} rejected a word, returns the length of its
+     * prefix such that all the words starting with it are rejected, or
+     * Integer.MAX_VALUE.
+     */
+    public int getRejectedLength()
+    {
+        return rejectedLength;
+    }
   
 //    public static void main(String[] args)
 //    {
@@ -0,0 +1,125 @@
+/*
+ *    Qizx/open 4.1
+ *
+ * This code is the open-source version of Qizx.
+ * Copyright (C) 2004-2009 Axyana Software -- All rights reserved.
+ *
+ * The contents of this file are subject to the Mozilla Public License 
+ *  Version 1.1 (the "License"); you may not use this file except in 
+ *  compliance with the License. You may obtain a copy of the License at
+ *  http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ *  WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ *  for the specific language governing rights and limitations under the
+ *  License.
+ *
+ * The Initial Developer of the Original Code is Xavier Franc - Axyana Software.
+ *
+ */
+package com.qizx.util.basic;
+
+import java.util.Arrays;
+
+/**
+ * A hash set of long values, with open addressing: no object is allocated
+ * for members.
+ */
+public class LongSet
+{
+    // marks a free slot; membership of this value is held apart:
+    private static final long FREE = Long.MIN_VALUE;
+
+    private long[] keys;
+    private int size;
+    private int shift;          // 64 - log2(keys.length)
+    private boolean hasFree;    // FREE itself is a member
+
+    /**
+     * Builds an empty set.
+     */
+    public LongSet()
+    {
+        allocate(16);
+    }
+
+    /**
+     * Returns the number of members.
+     */
+    public int size()
+    {
+        return hasFree ? size + 1 : size;
+    }
+
+    public boolean test(long value)
+    {
+        if (value == FREE)
+            return hasFree;
+        for (int h = slot(value);; h = (h + 1) & (keys.length - 1)) {
+            long k = keys[h];
+            if (k == value)
+                return true;
+            if (k == FREE)
+                return false;
+        }
+    }
+
+    /**
+     * Adds a value, returns false if it was already a member.
+     */
+    public boolean add(long value)
+    {
+        if (value == FREE) {
+            if (hasFree)
+                return false;
+            return hasFree = true;
+        }
+        int h = slot(value);
+        for (;; h = (h + 1) & (keys.length - 1)) {
+            long k = keys[h];
+            if (k == value)
+                return false;
+            if (k == FREE)
+                break;
+        }
+        keys[h] = value;
+        if (++size > (keys.length >> 1) + (keys.length >> 2)) // 3/4 full
+            rehash();
+        return true;
+    }
+
+    public void clear()
+    {
+        Arrays.fill(keys, FREE);
+        size = 0;
+        hasFree = false;
+    }
+
+    // Fibonacci hashing: the high bits of the product are well mixed
+    private int slot(long value)
+    {
+        return (int) ((value * 0x9E3779B97F4A7C15L) >>> shift);
+    }
+
+    private void allocate(int capacity)
+    {
+        keys = new long[capacity];
+        Arrays.fill(keys, FREE);
+        shift = 64 - Integer.numberOfTrailingZeros(capacity);
+    }
+
+    private void rehash()
+    {
+        long[] old = keys;
+        allocate(old.length * 2);
+        for (int i = 0; i < old.length; i++) {
+            long k = old[i];
+            if (k == FREE)
+                continue;
+            int h = slot(k);
+            while (keys[h] != FREE)
+                h = (h + 1) & (keys.length - 1);
+            keys[h] = k;
+        }
+    }
+}
@@ -277,6 +277,23 @@ public class Util
         return null;
     }
 
+    /**
+     * Returns the value of a system property as a long integer, or the
+     * default value if the property is not defined or not a valid number.
+     */
+    public static long getLongProperty(String name, long defaultValue)
+    {
+        String value = System.getProperty(name);
+        if (value != null) {
+            try {
+                return Long.parseLong(value);
+            }
+            catch (NumberFormatException ignored) { // ignored
+            }
+        }
+        return defaultValue;
+    }
+
     public static RuntimeException unimplemented()
     {
         return new RuntimeException("unimplemented");
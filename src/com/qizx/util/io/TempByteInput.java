@@ -62,12 +62,26 @@ public class TempByteInput extends ByteInputBase
     public void close()
         throws IOException
     {
+        release();
         if(tempFile != null) {
             tempFile.delete();
             tempFile = null;
         }
     }
 
+    /**
+     * Stops reading but keeps the temporary file, which can then be read
+     * again by another TempByteInput on the same source.
+     */
+    public void release()
+        throws IOException
+    {
+        if(input != null) {
+            input.close();
+            input = null;
+        }
+    }
+
     protected int readBuffer() throws IOException
     {
         return (input == null)? -1 : input.read(data, 0, data.length);
@@ -64,10 +64,12 @@ public class TempByteOutput extends ByteOutputBase
     public void close()  throws IOException
     {
         // flush only if file used
-        if(bufPtr > 0 && out != null) {
-            flushBuffer();
+        if(out != null) {
+            if(bufPtr > 0)
+                flushBuffer();
             bufPtr = 0;
             out.close();
+            out = null;
         }
     }
 
@@ -22,18 +22,25 @@ package com.qizx.xdm;
 import com.qizx.api.EvaluationException;
 import com.qizx.api.Item;
 import com.qizx.api.Node;
+import com.qizx.util.basic.LongSet;
 import com.qizx.xquery.XQValue;
 
 import java.util.HashSet;
 
 /**
  * Node Filter removing duplicates.
+ * <p>
+ * The element and text nodes of the document of the first node are
+ * identified by their integer id in a primitive set; other nodes are
+ * hashed.
  */
 public class DistinctNodeSequence extends NodeSequenceBase
 {
     XQValue source;
     BasicNode node;
-    HashSet seenSet = new HashSet();
+    HashSet seenSet;
+    FONIDocument dom;       // of the first node
+    LongSet seenIds;
 
     public DistinctNodeSequence(XQValue source)
     {
@@ -54,11 +61,24 @@ public class DistinctNodeSequence extends NodeSequenceBase
     {
         for (; source.next();) {
             node = source.basicNode();
+            // not attributes, which have the id of their owner:
+            if (node.getClass() == FONIDataModel.FONINode.class) {
+                FONIDataModel.FONINode fnode = (FONIDataModel.FONINode) node;
+                if (dom == null) {
+                    dom = fnode.getDom();
+                    seenIds = new LongSet();
+                }
+                if (fnode.getDom() == dom) {
+                    if (seenIds.add(fnode.getNodeId()))
+                        return true;
+                    continue;
+                }
+            }
             // equals and HashCode on Node are based on identity.
-            if (!seenSet.contains(node)) {
-                seenSet.add(node);
+            if (seenSet == null)
+                seenSet = new HashSet();
+            if (seenSet.add(node))
                 return true;
-            }
         }
         return false;
     }
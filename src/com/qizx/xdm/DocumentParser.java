@@ -146,6 +146,15 @@ public class DocumentParser
      */
     public XMLReader newParser(Map saxProperties)
         throws SAXException
+    {
+        // a SAXParserFactory is not guaranteed to be thread-safe:
+        synchronized (factory) {
+            return createParser(saxProperties);
+        }
+    }
+
+    private XMLReader createParser(Map saxProperties)
+        throws SAXException
     {
         try {
             if(saxProperties != null) {
@@ -22,11 +22,22 @@ package com.qizx.xdm;
 import com.qizx.api.DataModelException;
 import com.qizx.api.Node;
 import com.qizx.util.basic.FileUtil;
+import com.qizx.util.basic.Util;
 
 import org.xml.sax.InputSource;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Provides access to the data-model of XML documents.
@@ -35,16 +46,73 @@ import java.util.ArrayList;
  * <p>
  * Parsed documents are managed in a cache with configurable size (see
  * {@link #setCacheSize}).
+ * <p>
+ * Implementation: documents are found by URI in a concurrent hash map, so
+ * that lookups do not need a lock. Recency is tracked in a doubly-linked
+ * list guarded by a separate lock: a hit moves the entry at head of the list
+ * only if this lock is free (under contention, recency is approximate).
+ * Eviction removes entries from the tail until the cumulated size, as given by
+ * {@link FONIDocument#estimateMemorySize()}, fits in the cache size.
+ * The indexes that a cached document may build later ({@link NameIndex},
+ * {@link ValueIndex}) are kept with it, and accounted at the next lookup of
+ * the document.
+ * <p>
+ * If a snapshot directory is defined (see {@link #setSnapshotDirectory}),
+ * each parsed local file is saved there as a {@link DocumentSnapshot}. Later,
+ * in this JVM or another one, the document is reopened from its snapshot
+ * rather than parsed again, provided the snapshot is newer than the file.
+ * <p>
+ * Parsed documents bigger than a threshold (see {@link #setOffHeapThreshold})
+ * are copied outside of the Java heap, so that big cached documents do not
+ * weigh on garbage collection.
+ * <p>
+ * Local files bigger than another threshold (see
+ * {@link #setStreamingThreshold}) can be queried by simple paths without
+ * being loaded: the path is matched while parsing and only matching
+ * subtrees are built (see {@link FragmentStream}).
  */
 public class DocumentPool extends DocumentParser
 {
     private static final int MIN_CACHE_SIZE = 128 * 1024;
     private static final String CACHE_SIZE_PROP =
         "com.qizx.docpool.maxsize";
+    private static final String SNAPSHOT_DIR_PROP =
+        "com.qizx.docpool.snapshots";
+    private static final String SNAPSHOT_EXT = ".foni";
+    private static final String OFFHEAP_PROP =
+        "com.qizx.docpool.offheap";
+    private static final String STREAMING_PROP =
+        "com.qizx.docpool.streaming";
     // default size in Mb, configurable by system prop:
     private long cacheSize = 12 * 1048576L;
-    protected ArrayList<FONIDataModel> cache = new ArrayList<FONIDataModel>();
-    private ArrayList timeCache = new ArrayList(); // parse time for files
+
+    protected ConcurrentHashMap<String, Entry> cache =
+        new ConcurrentHashMap<String, Entry>();
+    // LRU list: head is most recently used
+    private final ReentrantLock lruLock = new ReentrantLock();
+    private Entry lruHead;
+    private Entry lruTail;
+    private long cumulatedSize;  // guarded by lruLock
+
+    // parses in progress, so that concurrent requests parse only once:
+    private ConcurrentHashMap<String, ParseTask> pending =
+        new ConcurrentHashMap<String, ParseTask>();
+
+    // used for parallel loading of collections, created on demand:
+    private ForkJoinPool loaderPool;
+    // where parsed documents are saved, if not null:
+    private volatile File snapshotDir;
+    // minimum size of documents stored off-heap, disabled if < 0:
+    private volatile long offHeapThreshold = -1;
+    // minimum file size of documents streamed by paths, disabled if < 0:
+    private volatile long streamingThreshold = -1;
+
+    private AtomicLong hitCount = new AtomicLong();
+    private AtomicLong missCount = new AtomicLong();
+    private AtomicLong evictionCount = new AtomicLong();
+    private AtomicLong loadCount = new AtomicLong();
+    private AtomicLong snapshotCount = new AtomicLong();
+    private AtomicLong streamCount = new AtomicLong();
 
     /**
      * Creates an empty document pool.
@@ -52,6 +120,12 @@ public class DocumentPool extends DocumentParser
     public DocumentPool()
     {
         initSize();
+        String dir = System.getProperty(SNAPSHOT_DIR_PROP);
+        if (dir != null)
+            snapshotDir = new File(dir);
+        offHeapThreshold = Util.getLongProperty(OFFHEAP_PROP, offHeapThreshold);
+        streamingThreshold =
+            Util.getLongProperty(STREAMING_PROP, streamingThreshold);
     }
 
     public long getCacheSize()
@@ -66,9 +140,16 @@ public class DocumentPool extends DocumentParser
      * 
      * @param size in bytes (hint).
      */
-    public synchronized void setCacheSize(long size)
+    public void setCacheSize(long size)
     {
-        cacheSize = Math.max(size, MIN_CACHE_SIZE);
+        lruLock.lock();
+        try {
+            cacheSize = Math.max(size, MIN_CACHE_SIZE);
+            evict(null);
+        }
+        finally {
+            lruLock.unlock();
+        }
     }
 
     private void initSize()
@@ -83,12 +164,199 @@ public class DocumentPool extends DocumentParser
         }
     }
     
-    public synchronized void clearCache()
+    public File getSnapshotDirectory()
+    {
+        return snapshotDir;
+    }
+
+    /**
+     * Defines a directory where parsed documents are saved as snapshots, and
+     * from which they are reopened without parsing. This directory is
+     * otherwise defined by the system property "com.qizx.docpool.snapshots".
+     * Only documents that are local files are concerned.
+     * @param directory a directory, created if needed; null disables
+     *        snapshots.
+     */
+    public void setSnapshotDirectory(File directory)
+    {
+        snapshotDir = directory;
+    }
+
+    public long getOffHeapThreshold()
+    {
+        return offHeapThreshold;
+    }
+
+    /**
+     * Defines the size above which a parsed document is stored outside of
+     * the Java heap (see {@link MappedDocument#copyOffHeap}). This size is
+     * otherwise defined by the system property "com.qizx.docpool.offheap".
+     * <p>Off-heap documents are still accounted in the cache size.
+     * @param size estimated memory size in bytes; a negative value disables
+     *        off-heap storage (the default).
+     */
+    public void setOffHeapThreshold(long size)
+    {
+        offHeapThreshold = size;
+    }
+
+    public long getStreamingThreshold()
     {
-        cache = new ArrayList();
-        timeCache = new ArrayList();
+        return streamingThreshold;
+    }
+
+    /**
+     * Defines the file size above which a document queried by a simple path
+     * is streamed instead of being loaded (see {@link #streamDocument}). This
+     * size is otherwise defined by the system property
+     * "com.qizx.docpool.streaming".
+     * <p>Nodes returned by a streamed path are not connected to the rest of
+     * the document, and are not identical to the nodes of the same document
+     * accessed otherwise. So a path is streamed only if the query does not
+     * navigate outside the matched subtrees nor compare node identities:
+     * when the path is the result of the query, when it is atomized, or
+     * when it is iterated by a 'for' clause whose other parts do not.
+     * @param size in bytes; a negative value disables streaming (the
+     *        default).
+     */
+    public void setStreamingThreshold(long size)
+    {
+        streamingThreshold = size;
+    }
+
+    public void clearCache()
+    {
+        lruLock.lock();
+        try {
+            cache.clear();
+            lruHead = lruTail = null;
+            cumulatedSize = 0;
+        }
+        finally {
+            lruLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of cached documents.
+     */
+    public int getCachedCount()
+    {
+        return cache.size();
+    }
+
+    /**
+     * Returns the cumulated estimated memory size of cached documents.
+     */
+    public long getCachedSize()
+    {
+        lruLock.lock();
+        try {
+            return cumulatedSize;
+        }
+        finally {
+            lruLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of successful lookups since creation or the latest
+     * call to {@link #resetStatistics()}.
+     */
+    public long getHitCount()
+    {
+        return hitCount.get();
+    }
+
+    /**
+     * Returns the number of lookups that did not find an up-to-date document
+     * in the cache. Concurrent misses on the same URI share a single parse
+     * (see {@link #getLoadCount()}).
+     */
+    public long getMissCount()
+    {
+        return missCount.get();
+    }
+
+    /**
+     * Returns the number of documents actually parsed.
+     */
+    public long getLoadCount()
+    {
+        return loadCount.get();
+    }
+
+    /**
+     * Returns the number of documents reopened from a snapshot instead of
+     * being parsed.
+     */
+    public long getSnapshotLoadCount()
+    {
+        return snapshotCount.get();
+    }
+
+    /**
+     * Returns the number of documents streamed instead of being loaded.
+     */
+    public long getStreamCount()
+    {
+        return streamCount.get();
+    }
+
+    /**
+     * Returns the number of documents discarded from the cache to make room
+     * for other documents.
+     */
+    public long getEvictionCount()
+    {
+        return evictionCount.get();
+    }
+
+    /**
+     * Resets hit, miss and eviction counters.
+     */
+    public void resetStatistics()
+    {
+        hitCount.set(0);
+        missCount.set(0);
+        evictionCount.set(0);
+        loadCount.set(0);
+        snapshotCount.set(0);
+        streamCount.set(0);
     }
     
+    /**
+     * Returns a stream of the elements of a document matching a simple path,
+     * if the document is better streamed than loaded: the document must be
+     * a local file bigger than the streaming threshold, neither in cache nor
+     * available as a snapshot.
+     * @param uri a resolved uri with protocol, correctly escaped
+     * @param steps element tests of the steps of the path
+     * @param descendant for each step, true for axis descendant::, false for
+     *        child::
+     * @return an unstarted stream, or null if the document should be
+     *         accessed by {@link #findDocument}
+     */
+    public FragmentStream streamDocument(String uri, NodeFilter[] steps,
+                                         boolean[] descendant)
+    {
+        long threshold = streamingThreshold;
+        if (threshold < 0 || steps.length > FragmentStream.MAX_STEPS)
+            return null;
+        Long fileDate = getFileDate(uri);
+        if (fileDate == null || pending.containsKey(uri)
+            || peekCachedDocument(uri) != null)
+            return null;
+        File file = FileUtil.urlToFile(uri);
+        if (!file.isFile() || file.length() < threshold)
+            return null;
+        File snapshot = getSnapshotFile(uri, fileDate);
+        if (snapshot != null && snapshot.lastModified() > fileDate.longValue())
+            return null;
+        streamCount.incrementAndGet();
+        return new FragmentStream(this, uri, steps, descendant);
+    }
+
     /**
      * Cached access by URI.
      * 
@@ -104,18 +372,146 @@ public class DocumentPool extends DocumentParser
     
     /**
      * Cached access by URI.
+     * <p>
+     * If several threads request the same document which is not in cache,
+     * only one of them parses it while the others wait for the result.
      * @param uri now a resolved uri with protocol, correctly escaped
      * @throws DataModelException
      */
     public FONIDataModel findDocument(String uri)
         throws DataModelException
     {
+        FONIDataModel dm = getCachedDocument(uri);
+        if (dm != null)
+            return dm;
+
+        ParseTask task = new ParseTask(uri);
+        ParseTask running = pending.putIfAbsent(uri, task);
+        if (running != null)
+            return running.waitResult();
         try {
-            FONIDataModel dm = getCachedDocument(uri);
-            if (dm != null)
-                return dm;
-            dm = new FONIDataModel(parseDocument(new InputSource(uri)));
-            cacheDocument(dm, getFileDate(uri));
+            // parsed meanwhile by another thread?
+            dm = peekCachedDocument(uri);
+            if (dm == null)
+                dm = loadDocument(uri);
+            task.setResult(dm, null);
+            return dm;
+        }
+        catch (DataModelException e) {
+            task.setResult(null, e);
+            throw e;
+        }
+        catch (RuntimeException e) {
+            task.setResult(null, new DataModelException(
+                        "Document access error in " + uri
+                        + ": " + e.getMessage(), e));
+            throw e;
+        }
+        catch (Error e) {
+            // waiting threads must not block forever (OutOfMemoryError...)
+            task.setResult(null, new DataModelException(
+                        "Document access error in " + uri
+                        + ": " + e, e));
+            throw e;
+        }
+        finally {
+            pending.remove(uri, task);
+        }
+    }
+
+    /**
+     * Cached access to several documents, parsed in parallel if needed.
+     * <p>
+     * Documents that are not cached are parsed by a fork-join pool owned by
+     * this document pool. The result is in the order of the URIs, whatever
+     * the order of completion of parsing. If several documents fail, the
+     * error raised is the one of the first of them in URI order.
+     * @param uris resolved URIs with protocol, correctly escaped
+     * @param parallelism maximum number of documents parsed concurrently. A
+     *        value lower than 2 means sequential loading.
+     * @return an array of documents, parallel to the uris
+     * @throws DataModelException
+     */
+    public FONIDataModel[] findDocuments(String[] uris, int parallelism)
+        throws DataModelException
+    {
+        FONIDataModel[] docs = new FONIDataModel[uris.length];
+        if (parallelism < 2 || uris.length < 2) {
+            for (int i = 0; i < uris.length; i++)
+                docs[i] = findDocument(uris[i]);
+            return docs;
+        }
+
+        List<Callable<FONIDataModel>> tasks =
+            new ArrayList<Callable<FONIDataModel>>(uris.length);
+        for (int i = 0; i < uris.length; i++) {
+            final String uri = uris[i];
+            tasks.add(new Callable<FONIDataModel>() {
+                public FONIDataModel call() throws DataModelException {
+                    return findDocument(uri);
+                }
+            });
+        }
+        List<Future<FONIDataModel>> results =
+            getLoaderPool(parallelism).invokeAll(tasks);
+        for (int i = 0; i < docs.length; i++) {
+            try {
+                docs[i] = results.get(i).get();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new DataModelException("interrupted while loading "
+                                             + uris[i], e);
+            }
+            catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof DataModelException)
+                    throw (DataModelException) cause;
+                throw new DataModelException("Document access error in "
+                                             + uris[i] + ": "
+                                             + cause.getMessage(), cause);
+            }
+        }
+        return docs;
+    }
+
+    private synchronized ForkJoinPool getLoaderPool(int parallelism)
+    {
+        if (loaderPool == null || loaderPool.getParallelism() != parallelism) {
+            if (loaderPool != null)
+                loaderPool.shutdown(); // running tasks are completed
+            loaderPool = new ForkJoinPool(parallelism);
+        }
+        return loaderPool;
+    }
+
+    /**
+     * Returns the number of documents currently being parsed.
+     */
+    public int getPendingCount()
+    {
+        return pending.size();
+    }
+
+    private FONIDataModel loadDocument(String uri)
+        throws DataModelException
+    {
+        try {
+            Long fileDate = getFileDate(uri);
+            File snapshot = getSnapshotFile(uri, fileDate);
+            FONIDocument dom = null;
+            if (snapshot != null
+                && snapshot.lastModified() > fileDate.longValue())
+                dom = openSnapshot(snapshot, uri);
+            if (dom == null) {
+                loadCount.incrementAndGet();
+                dom = parseDocument(new InputSource(uri));
+                if (snapshot != null && dom instanceof IDocument)
+                    saveSnapshot((IDocument) dom, snapshot);
+                dom = toOffHeap(dom);
+            }
+            FONIDataModel dm = new FONIDataModel(dom);
+            cacheDocument(uri, dm, fileDate);
             return dm;
         }
         catch (org.xml.sax.SAXException sax) {
@@ -123,53 +519,125 @@ public class DocumentPool extends DocumentParser
                                          + ": " + sax.getMessage(),
                                          sax.getException());
         }
+        catch (DataModelException e) {
+            throw e;
+        }
         catch (Exception e) {
             //e.printStackTrace();
             throw new DataModelException("Document access error in " + uri
                                          + ": " + e.getMessage(), e);
         }
+    }
+
+    // snapshot of a local file, null if no snapshot directory
+    private File getSnapshotFile(String uri, Long fileDate)
+    {
+        File dir = snapshotDir;
+        if (dir == null || fileDate == null)
+            return null;
+        File file = FileUtil.urlToFile(uri);
+        if (file == null)
+            return null;
+        // name + hash of URI, distinguished by whitespace stripping:
+        String name = file.getName() + "-"
+                      + Integer.toHexString(uri.hashCode())
+                      + (stripWhiteSpace ? "-s" : "") + SNAPSHOT_EXT;
+        return new File(dir, name);
+    }
+
+    private FONIDocument openSnapshot(File snapshot, String uri)
+    {
+        try {
+            MappedDocument doc = DocumentSnapshot.open(snapshot);
+            if (!uri.equals(doc.getBaseURI()))
+                return null; // hash collision
+            snapshotCount.incrementAndGet();
+            return doc;
+        }
+        catch (Exception e) {
+            return null; // obsolete or damaged: parse again
+        }
+    }
+
+    private FONIDocument toOffHeap(FONIDocument dom)
+        throws DataModelException
+    {
+        long threshold = offHeapThreshold;
+        if (threshold < 0 || !(dom instanceof IDocument)
+            || dom.estimateMemorySize() < threshold)
+            return dom;
+        try {
+            return MappedDocument.copyOffHeap((IDocument) dom);
+        }
+        catch (OutOfMemoryError e) {
+            return dom; // direct memory exhausted: keep it in the heap
+        }
+    }
+
+    private void saveSnapshot(IDocument doc, File snapshot)
+    {
+        try {
+            File dir = snapshot.getParentFile();
+            if (!dir.isDirectory() && !dir.mkdirs())
+                return;
+            DocumentSnapshot.save(doc, snapshot);
+        }
+        catch (IOException e) {
+            // not fatal: the document is parsed again next time
+        }
+    }
 
-        // 	long T0 = System.currentTimeMillis();
-        // 	System.err.println("load, start encoding");
-        // 	CoreByteOutput out = new CoreByteOutput();
-        // 	new TreeEncoder().encode(new FONIDataModel(dm).documentNode(), out);
-        // 	out.close();
-        // 	long T1 = System.currentTimeMillis();
-        // 	System.err.println("ENCODED in "+(T1-T0)+" ms");
-        // 	XMLSerializer handler = new XMLSerializer();
-        // 	new TreeDecoder(new CoreByteInput(out)).decode(handler);
-        // 	long T2 = System.currentTimeMillis();
-        // 	System.err.println("DECODED in "+(T2-T1)+" ms");
+    // lookup without statistics nor recency update
+    private FONIDataModel peekCachedDocument(String uri)
+    {
+        Entry e = cache.get(uri);
+        if (e == null)
+            return null;
+        Long fileDate = getFileDate(uri);
+        if (fileDate != null && e.readTime != null
+            && fileDate.longValue() > e.readTime.longValue())
+            return null;
+        return e.doc;
     }
     
     // returns null if not found OR stale
-    protected synchronized FONIDataModel getCachedDocument(String uri)
+    protected FONIDataModel getCachedDocument(String uri)
     {
-        // linear search: never mind!
-        for (int d = 0; d < cache.size(); d++) {
-            FONIDataModel doc = (FONIDataModel) cache.get(d);
-
+        Entry e = cache.get(uri);
+        if (e != null) {
+            Long fileDate = getFileDate(uri);
+            if (fileDate != null && e.readTime != null
+                && fileDate.longValue() > e.readTime.longValue()) {
+                remove(e);
+                e = null;
+            }
+        }
+        if (e == null) {
+            missCount.incrementAndGet();
+            return null;
+        }
+        hitCount.incrementAndGet();
+        // indexes of the document may have been built since the previous
+        // lookup: they are then accounted in the cache size
+        long indexSize = e.doc.getIndexMemorySize();
+        // put at head, unless somebody else is busy with the list:
+        if ((lruHead != e || indexSize != e.indexSize) && lruLock.tryLock()) {
             try {
-                String baseURI = doc.getDom().getBaseURI();
-                if (uri.equals(baseURI)) {
-                    cache.remove(d);
-                    Long readTime = (Long) timeCache.remove(d);
-                    Long fileDate = getFileDate(baseURI);
-                    if (fileDate != null && readTime != null
-                        && fileDate.longValue() > readTime.longValue()) {
-                        return null; // already removed
+                if (e.cached) {
+                    unlink(e);
+                    linkAtHead(e);
+                    if (indexSize != e.indexSize) {
+                        cumulatedSize += indexSize - e.indexSize;
+                        e.indexSize = indexSize;
+                        evict(e);
                     }
-                    // put at head:
-                    cache.add(0, doc);
-                    timeCache.add(0, readTime);
-                    return doc;
                 }
             }
-            catch (DataModelException shouldNotHappen) {
-                shouldNotHappen.printStackTrace();
+            finally {
+                lruLock.unlock();
             }
         }
-        return null;
+        return e.doc;
     }
     
     private Long getFileDate(String baseURI)
@@ -183,31 +651,148 @@ public class DocumentPool extends DocumentParser
         return new Long(file.lastModified());
     }
 
-    protected synchronized void cacheDocument(FONIDataModel doc, Long fileDate)
+    protected void cacheDocument(FONIDataModel doc, Long fileDate)
+        throws DataModelException
+    {
+        cacheDocument(doc.getDom().getBaseURI(), doc, fileDate);
+    }
+
+    protected void cacheDocument(String uri, FONIDataModel doc, Long fileDate)
         throws DataModelException   // should not happen
     {
-        int pos = cache.indexOf(doc);
-        if (pos > 0) {
-            cache.remove(pos);
-            timeCache.remove(pos);
-        }
-        cache.add(0, doc);
-        timeCache.add(0, fileDate);
-        int/*NId*/ cumulatedSize = doc.getDom().estimateMemorySize();
-
-        for (int d = 1, D = cache.size(); d < D; d++) {
-            FONIDataModel doc2 = (FONIDataModel) cache.get(d);
-
-            int/*NId*/ size = doc2.getDom().estimateMemorySize();
-            cumulatedSize += size;
-                
-            if (cumulatedSize > cacheSize) {
-                for( ; d < cache.size(); d++)
-                    cache.remove(d);
-                cache.trimToSize();
-                break;
+        Entry e = new Entry(uri, doc, fileDate,
+                            doc.getDom().estimateMemorySize());
+        lruLock.lock();
+        try {
+            Entry old = cache.put(uri, e);
+            if (old != null && old.cached) {
+                unlink(old);
+                cumulatedSize -= old.size + old.indexSize;
+            }
+            linkAtHead(e);
+            cumulatedSize += e.size;
+            evict(e);
+        }
+        finally {
+            lruLock.unlock();
+        }
+    }
+
+    private void remove(Entry e)
+    {
+        lruLock.lock();
+        try {
+            if (e.cached) {
+                cache.remove(e.uri, e);
+                unlink(e);
+                cumulatedSize -= e.size + e.indexSize;
+            }
+        }
+        finally {
+            lruLock.unlock();
+        }
+    }
+
+    // Removes least recently used entries until size fits, but always
+    // keeps the most recent entry 'keep'. Caller holds lruLock.
+    private void evict(Entry keep)
+    {
+        while (cumulatedSize > cacheSize && lruTail != null
+               && lruTail != keep) {
+            Entry victim = lruTail;
+            cache.remove(victim.uri, victim);
+            unlink(victim);
+            cumulatedSize -= victim.size + victim.indexSize;
+            evictionCount.incrementAndGet();
+        }
+    }
+
+    private void linkAtHead(Entry e)
+    {
+        e.prev = null;
+        e.next = lruHead;
+        if (lruHead != null)
+            lruHead.prev = e;
+        lruHead = e;
+        if (lruTail == null)
+            lruTail = e;
+        e.cached = true;
+    }
+
+    private void unlink(Entry e)
+    {
+        if (e.prev != null)
+            e.prev.next = e.next;
+        else
+            lruHead = e.next;
+        if (e.next != null)
+            e.next.prev = e.prev;
+        else
+            lruTail = e.prev;
+        e.prev = e.next = null;
+        e.cached = false;
+    }
+
+    /**
+     * Cached document, linked in the LRU list.
+     */
+    protected static class Entry
+    {
+        final String uri;
+        final FONIDataModel doc;
+        final Long readTime;
+        final long size;
+        // size of the indexes once accounted, guarded by lruLock:
+        volatile long indexSize;
+        // LRU links, guarded by lruLock:
+        Entry prev, next;
+        volatile boolean cached;
+
+        Entry(String uri, FONIDataModel doc, Long readTime, long size)
+        {
+            this.uri = uri;
+            this.doc = doc;
+            this.readTime = readTime;
+            this.size = size;
+        }
+    }
+
+    /**
+     * A parse in progress, on which other requesting threads wait.
+     */
+    private static class ParseTask
+    {
+        private final String uri;
+        private final CountDownLatch done = new CountDownLatch(1);
+        private FONIDataModel result;
+        private DataModelException error;
+
+        ParseTask(String uri)
+        {
+            this.uri = uri;
+        }
+
+        void setResult(FONIDataModel result, DataModelException error)
+        {
+            this.result = result;
+            this.error = error;
+            done.countDown();
+        }
+
+        FONIDataModel waitResult()
+            throws DataModelException
+        {
+            try {
+                done.await();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new DataModelException("interrupted while waiting for "
+                                             + uri, e);
             }
+            if (error != null)
+                throw new DataModelException(error.getMessage(), error);
+            return result;
         }
-        
     }
 }
@@ -0,0 +1,387 @@
+/*
+ *    Qizx/open 4.1
+ *
+ * This code is the open-source version of Qizx.
+ * Copyright (C) 2004-2009 Axyana Software -- All rights reserved.
+ *
+ * The contents of this file are subject to the Mozilla Public License
+ *  Version 1.1 (the "License"); you may not use this file except in
+ *  compliance with the License. You may obtain a copy of the License at
+ *  http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ *  WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ *  for the specific language governing rights and limitations under the
+ *  License.
+ *
+ * The Initial Developer of the Original Code is Xavier Franc - Axyana Software.
+ *
+ */
+package com.qizx.xdm;
+
+import com.qizx.util.QNameTable;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Binary snapshot of a parsed document, reopened without parsing as a
+ * {@link MappedDocument}.
+ * <p>
+ * A snapshot file contains a fixed header, a description part (names, DTD
+ * information, ID tables, location of string blocks and big strings), then
+ * the table of nodes, the table of chars and the table of Latin-1 bytes of
+ * the {@link IDocument}, as is. When a snapshot is
+ * opened, only the description is read: nodes and chars are mapped in memory,
+ * so the cost of opening a document is proportional to the pages actually
+ * accessed.
+ */
+public final class DocumentSnapshot
+{
+    private static final int MAGIC = 0x51464e49; // "QFNI"
+    private static final int VERSION = 2;
+    // magic, version, docSize, description length, char count, byte count:
+    private static final int HEADER_SIZE = 32;
+
+    private DocumentSnapshot() { }
+
+    /**
+     * Writes a snapshot of a parsed document. The file is written under a
+     * temporary name then renamed, so that a reader never sees a partial
+     * snapshot.
+     * @param doc a document built by parsing
+     * @param file destination, replaced if it exists
+     * @throws IOException
+     */
+    public static void save(IDocument doc, File file)
+        throws IOException
+    {
+        int docSize = doc.getDocSize();
+        int[] blockMap = MappedDocument.blockMap(doc);
+        long smallChars = MappedDocument.tableSize(doc, blockMap, true);
+        long byteCount = MappedDocument.tableSize(doc, blockMap, false);
+        ArrayList bigStrings = doc.getBigStrings();
+
+        // description:
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream desc = new DataOutputStream(bytes);
+        desc.writeUTF(doc.getBaseURI() == null ? "" : doc.getBaseURI());
+        String[] dtd = doc.getDTDInfo();
+        desc.writeBoolean(dtd != null);
+        if (dtd != null)
+            for (int i = 0; i < 3; i++)
+                desc.writeUTF(dtd[i] == null ? "" : dtd[i]);
+        writeNames(doc.getElementNames(), desc);
+        writeNames(doc.getOtherNames(), desc);
+        desc.writeInt(blockMap.length);
+        for (int b = 0; b < blockMap.length; b++)
+            desc.writeInt(blockMap[b]);
+        // big strings are stored after short strings:
+        long charCount = smallChars;
+        desc.writeInt(bigStrings.size());
+        for (int s = 0, S = bigStrings.size(); s < S; s++) {
+            int length = ((String) bigStrings.get(s)).length();
+            desc.writeLong(charCount);
+            desc.writeInt(length);
+            charCount += length;
+        }
+        writeIds(doc.getIdTable(false), desc);
+        writeIds(doc.getIdTable(true), desc);
+        desc.close();
+
+        File tmp = new File(file.getPath() + ".tmp");
+        RandomAccessFile out = new RandomAccessFile(tmp, "rw");
+        boolean done = false;
+        try {
+            out.setLength(0);
+            FileChannel channel = out.getChannel();
+            ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 16);
+            buffer.putInt(MAGIC);
+            buffer.putInt(VERSION);
+            buffer.putInt(docSize);
+            buffer.putInt(bytes.size());
+            buffer.putLong(charCount);
+            buffer.putLong(byteCount);
+            buffer = put(bytes.toByteArray(), bytes.size(), buffer, channel);
+            buffer = pad(buffer, channel);
+
+            int[][] blocks = doc.getNodeBlocks();
+            for (int b = 0, rest = docSize; rest > 0; b++) {
+                int[] block = blocks[b];
+                int count = Math.min(rest, block.length);
+                for (int i = 0; i < count; i++) {
+                    if (buffer.remaining() < 4)
+                        buffer = flush(buffer, channel);
+                    buffer.putInt(block[i]);
+                }
+                rest -= count;
+            }
+            buffer = pad(buffer, channel);
+
+            for (int b = 0; b < blockMap.length; b++) {
+                char[] block = doc.getCharBlock(b);
+                if (block == null)
+                    continue;
+                for (int i = 0, count = doc.getStringBlockFill(b);
+                     i < count; i++) {
+                    if (buffer.remaining() < 2)
+                        buffer = flush(buffer, channel);
+                    buffer.putChar(block[i]);
+                }
+            }
+            for (int s = 0, S = bigStrings.size(); s < S; s++) {
+                String str = (String) bigStrings.get(s);
+                for (int i = 0, L = str.length(); i < L; i++) {
+                    if (buffer.remaining() < 2)
+                        buffer = flush(buffer, channel);
+                    buffer.putChar(str.charAt(i));
+                }
+            }
+            buffer = pad(buffer, channel);
+            for (int b = 0; b < blockMap.length; b++) {
+                byte[] block = doc.getByteBlock(b);
+                if (block != null)
+                    buffer = put(block, doc.getStringBlockFill(b),
+                                 buffer, channel);
+            }
+            flush(buffer, channel);
+            channel.force(false);
+            done = true;
+        }
+        finally {
+            out.close();
+            if (!done)
+                tmp.delete();
+        }
+        try {
+            Files.move(tmp.toPath(), file.toPath(),
+                       StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp.toPath(), file.toPath(),
+                       StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Opens a snapshot written by {@link #save}.
+     * @param file a snapshot file
+     * @return a read-only document whose nodes and chars are mapped from the
+     *         file
+     * @throws IOException if the file cannot be read or is not a valid
+     *         snapshot
+     */
+    public static MappedDocument open(File file)
+        throws IOException
+    {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = in.getChannel();
+            ByteBuffer header = read(channel, 0, HEADER_SIZE);
+            if (header.getInt() != MAGIC || header.getInt() != VERSION)
+                throw new IOException("not a document snapshot: " + file);
+            int docSize = header.getInt();
+            int descSize = header.getInt();
+            long charCount = header.getLong();
+            long byteCount = header.getLong();
+            long nodeStart = align(HEADER_SIZE + descSize);
+            long charStart = align(nodeStart + docSize * 4L);
+            long byteStart = align(charStart + 2 * charCount);
+            if (docSize < IDocument.CONTENT_OFFSET || descSize < 0
+                || charCount < 0 || byteCount < 0
+                || channel.size() != byteStart + byteCount)
+                throw new IOException("corrupted document snapshot: " + file);
+
+            ByteBuffer descBytes = read(channel, HEADER_SIZE, descSize);
+            DataInputStream desc = new DataInputStream(
+                    new ByteArrayInputStream(descBytes.array()));
+            String baseURI = desc.readUTF();
+            String[] dtd = null;
+            if (desc.readBoolean())
+                dtd = new String[] {
+                    desc.readUTF(), desc.readUTF(), desc.readUTF()
+                };
+            QNameTable elementNames = readNames(desc);
+            QNameTable otherNames = readNames(desc);
+            int[] blockMap = new int[desc.readInt()];
+            for (int b = 0; b < blockMap.length; b++)
+                blockMap[b] = desc.readInt();
+            int bigCount = desc.readInt();
+            long[] bigStart = new long[bigCount];
+            int[] bigLength = new int[bigCount];
+            for (int s = 0; s < bigCount; s++) {
+                bigStart[s] = desc.readLong();
+                bigLength[s] = desc.readInt();
+            }
+            HashMap idTable = readIds(desc);
+            HashMap idrefTable = readIds(desc);
+
+            IntBuffer[] nodes = new IntBuffer[MappedDocument.segmentCount(docSize)];
+            for (int s = 0; s < nodes.length; s++) {
+                long first = (long) s << MappedDocument.SEGMENT_SHIFT;
+                long count = Math.min(docSize - first,
+                                      MappedDocument.SEGMENT_SIZE);
+                nodes[s] = channel.map(FileChannel.MapMode.READ_ONLY,
+                                       nodeStart + 4 * first, 4 * count)
+                                  .asIntBuffer();
+            }
+            CharBuffer[] chars = new CharBuffer[MappedDocument.segmentCount(charCount)];
+            for (int s = 0; s < chars.length; s++) {
+                long first = (long) s << MappedDocument.SEGMENT_SHIFT;
+                long count = Math.min(charCount - first,
+                                      MappedDocument.SEGMENT_SIZE);
+                chars[s] = channel.map(FileChannel.MapMode.READ_ONLY,
+                                       charStart + 2 * first, 2 * count)
+                                  .asCharBuffer();
+            }
+            ByteBuffer[] bytes = new ByteBuffer[MappedDocument.segmentCount(byteCount)];
+            for (int s = 0; s < bytes.length; s++) {
+                long first = (long) s << MappedDocument.SEGMENT_SHIFT;
+                long count = Math.min(byteCount - first,
+                                      MappedDocument.SEGMENT_SIZE);
+                bytes[s] = channel.map(FileChannel.MapMode.READ_ONLY,
+                                       byteStart + first, count);
+            }
+            MappedDocument doc =
+                new MappedDocument(nodes, chars, bytes, blockMap, docSize,
+                                   bigStart, bigLength,
+                                   elementNames, otherNames,
+                                   idTable, idrefTable, dtd, false);
+            if (baseURI.length() > 0)
+                doc.setBaseURI(baseURI);
+            return doc;
+        }
+        catch (EOFException e) {
+            throw new IOException("corrupted document snapshot: " + file);
+        }
+        finally {
+            in.close(); // mappings stay valid
+        }
+    }
+
+    private static long align(long offset)
+    {
+        return (offset + 7) & ~7L;
+    }
+
+    private static void writeNames(QNameTable names, DataOutputStream out)
+        throws IOException
+    {
+        out.writeInt(names.size());
+        for (int n = 0, N = names.size(); n < N; n++) {
+            IQName name = names.getName(n);
+            out.writeUTF(name.getNamespaceURI());
+            out.writeUTF(name.getLocalPart());
+        }
+    }
+
+    private static QNameTable readNames(DataInputStream in)
+        throws IOException
+    {
+        QNameTable names = new QNameTable();
+        for (int n = in.readInt(); --n >= 0;)
+            names.addName(in.readUTF(), in.readUTF());
+        return names;
+    }
+
+    private static void writeIds(HashMap table, DataOutputStream out)
+        throws IOException
+    {
+        if (table == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(table.size());
+        for (Iterator iter = table.entrySet().iterator(); iter.hasNext();) {
+            Map.Entry e = (Map.Entry) iter.next();
+            int[] nodes = (int[]) e.getValue();
+            out.writeUTF((String) e.getKey());
+            out.writeInt(nodes.length);
+            for (int i = 0; i < nodes.length; i++)
+                out.writeInt(nodes[i]);
+        }
+    }
+
+    private static HashMap readIds(DataInputStream in)
+        throws IOException
+    {
+        int count = in.readInt();
+        if (count < 0)
+            return null;
+        HashMap table = new HashMap(count + count / 2);
+        for (; --count >= 0;) {
+            String id = in.readUTF();
+            int[] nodes = new int[in.readInt()];
+            for (int i = 0; i < nodes.length; i++)
+                nodes[i] = in.readInt();
+            table.put(id, nodes);
+        }
+        return table;
+    }
+
+    private static ByteBuffer read(FileChannel channel, long position,
+                                   int size)
+        throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        while (buffer.hasRemaining())
+            if (channel.read(buffer, position + buffer.position()) < 0)
+                throw new EOFException();
+        buffer.flip();
+        return buffer;
+    }
+
+    private static ByteBuffer put(byte[] data, int length, ByteBuffer buffer,
+                                  FileChannel channel)
+        throws IOException
+    {
+        for (int pos = 0; pos < length;) {
+            if (!buffer.hasRemaining())
+                buffer = flush(buffer, channel);
+            int count = Math.min(buffer.remaining(), length - pos);
+            buffer.put(data, pos, count);
+            pos += count;
+        }
+        return buffer;
+    }
+
+    // aligns the file position on 8 bytes
+    private static ByteBuffer pad(ByteBuffer buffer, FileChannel channel)
+        throws IOException
+    {
+        long position = channel.position() + buffer.position();
+        for (long p = position; p < align(position); p++) {
+            if (!buffer.hasRemaining())
+                buffer = flush(buffer, channel);
+            buffer.put((byte) 0);
+        }
+        return buffer;
+    }
+
+    private static ByteBuffer flush(ByteBuffer buffer, FileChannel channel)
+        throws IOException
+    {
+        buffer.flip();
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+        buffer.clear();
+        return buffer;
+    }
+}
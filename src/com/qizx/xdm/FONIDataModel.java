@@ -45,6 +45,9 @@ import java.math.BigDecimal;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.text.Collator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Implementation of XQuery Data Model on top of Fully-Ordered documents. 
@@ -58,6 +61,17 @@ public class FONIDataModel
     private FONIDocument dom;
     private FONINode root;
     private DataConversion dataConversion;
+    // built when scans by name have cumulated the size of the document:
+    private volatile NameIndex nameIndex;
+    private long scannedSize;   // approximate, not synchronized
+    private int/*NId*/ documentSpan = -1;
+    // value indexes, or number of requests for an index not built yet:
+    private ConcurrentHashMap<ValueKey, Object> valueIndexes =
+        new ConcurrentHashMap<ValueKey, Object>();
+    // objects computed from the document by queries, least recently used
+    // first, guarded by this:
+    private LinkedHashMap<Object, Derived> derivedObjects;
+    private volatile int indexSize;   // modified under lock on this
 
     public FONIDataModel(FONIDocument dom)
     {
@@ -91,6 +105,178 @@ public class FONIDataModel
         return newNode(id);
     }
 
+    /**
+     * Returns the index of nodes by name, or null if not built yet.
+     */
+    public NameIndex getNameIndex()
+    {
+        return nameIndex;
+    }
+
+    /**
+     * Returns the sorted identifiers of the elements matched by a node test
+     * that is a simple element name, or null if the index cannot be used.
+     * <p>
+     * The index is built on demand, once the scans it could have avoided
+     * cover the size of the document: so building it costs at most as much
+     * as the scans already performed.
+     * @param span number of node slots a scan would visit
+     */
+    int/*NId*/[] getElementPostings(NodeFilter nodeTest, int/*NId*/ span)
+        throws DataModelException
+    {
+        if (!(nodeTest instanceof BaseNodeFilter))
+            return null;
+        BaseNodeFilter test = (BaseNodeFilter) nodeTest;
+        if (test.kind != Node.ELEMENT || test.qname == null)
+            return null;
+        NameIndex index = nameIndex;
+        if (index == null) {
+            if (documentSpan < 0)
+                documentSpan = dom.getNodeSpan(dom.getRootNode());
+            scannedSize += span;
+            if (scannedSize < documentSpan)
+                return null;
+            index = buildNameIndex();
+        }
+        return index.getElements(test.qname);
+    }
+
+    private synchronized NameIndex buildNameIndex()
+        throws DataModelException
+    {
+        if (nameIndex == null) {
+            nameIndex = NameIndex.build(dom);
+            indexSize += nameIndex.memorySize();
+        }
+        return nameIndex;
+    }
+
+    /**
+     * Returns the index of the elements of a given name by the value of a
+     * key, or null if it is not built. The index is built on the second
+     * request for the same element and key: a single lookup is better
+     * served by a scan.
+     * @param element name of indexed elements
+     * @param key name of an attribute or child element of indexed elements
+     * @param attribute true if the key is an attribute
+     */
+    public ValueIndex getValueIndex(QName element, QName key,
+                                    boolean attribute)
+        throws DataModelException
+    {
+        ValueKey vkey = new ValueKey(element, key, attribute);
+        Object index = valueIndexes.get(vkey);
+        if (index instanceof ValueIndex)
+            return (ValueIndex) index;
+        synchronized (this) {
+            index = valueIndexes.get(vkey);
+            if (index instanceof ValueIndex)
+                return (ValueIndex) index;
+            if (index == null) {
+                valueIndexes.put(vkey, Boolean.TRUE);
+                return null;
+            }
+            int/*NId*/[] elements = buildNameIndex().getElements(element);
+            ValueIndex vindex = ValueIndex.build(dom, elements, key, attribute);
+            valueIndexes.put(vkey, vindex);
+            indexSize += vindex.memorySize();
+            return vindex;
+        }
+    }
+
+    /**
+     * Returns an object computed from this document and registered by
+     * {@link #putDerivedObject}, or null if not found.
+     */
+    public synchronized Object getDerivedObject(Object key)
+    {
+        Derived d = (derivedObjects == null) ? null : derivedObjects.get(key);
+        return d == null ? null : d.value;
+    }
+
+    /**
+     * Keeps an object computed from this document, like a join table, as
+     * long as the document is in use. At most {@link #MAX_DERIVED_OBJECTS}
+     * objects are kept, the least recently used is discarded.
+     * @param key identifies the computation
+     * @param value the computed object
+     * @param size estimated memory size of the object in bytes
+     */
+    public synchronized void putDerivedObject(Object key, Object value,
+                                              int size)
+    {
+        if (derivedObjects == null)
+            derivedObjects = new LinkedHashMap<Object, Derived>(16, 0.75f,
+                                                                true) {
+                protected boolean removeEldestEntry(Map.Entry<Object,
+                                                    Derived> eldest)
+                {
+                    if (size() <= MAX_DERIVED_OBJECTS)
+                        return false;
+                    indexSize -= eldest.getValue().size;
+                    return true;
+                }
+            };
+        Derived old = derivedObjects.put(key, new Derived(value, size));
+        indexSize += size - (old == null ? 0 : old.size);
+    }
+
+    /**
+     * Maximum number of derived objects kept by a document.
+     */
+    public static final int MAX_DERIVED_OBJECTS = 32;
+
+    private static class Derived
+    {
+        Object value;
+        int size;
+
+        Derived(Object value, int size)
+        {
+            this.value = value;
+            this.size = size;
+        }
+    }
+
+    /**
+     * Estimated memory size in bytes of the indexes and derived objects
+     * built so far.
+     */
+    public int getIndexMemorySize()
+    {
+        return indexSize;
+    }
+
+    private static class ValueKey
+    {
+        QName element;
+        QName key;
+        boolean attribute;
+
+        ValueKey(QName element, QName key, boolean attribute)
+        {
+            this.element = element;
+            this.key = key;
+            this.attribute = attribute;
+        }
+
+        public boolean equals(Object obj)
+        {
+            if (!(obj instanceof ValueKey))
+                return false;
+            ValueKey other = (ValueKey) obj;
+            return element.equals(other.element) && key.equals(other.key)
+                   && attribute == other.attribute;
+        }
+
+        public int hashCode()
+        {
+            return element.hashCode() * 31 + key.hashCode()
+                   + (attribute ? 1 : 0);
+        }
+    }
+
     public boolean equals(Object obj)
     {
         if (!(obj instanceof FONIDataModel))
@@ -400,10 +586,21 @@ public class FONIDataModel
             else if (kind == Node.ELEMENT)
                 return attributesEq(id, that, collator)
                        && contentEq(id, that, collator);
-            else { // TODO OPTIM
-                return Collations.compare(getDom().getStringValue(id),
-                                          that.getStringValue(), collator) == 0;
-            }
+            else
+                return compareValue(id, that.getStringValue(), collator) == 0;
+        }
+
+        // compares the value of a node of this document with a string:
+        // stored strings are compared in place when collation allows
+        private int compareValue(int/*NId*/ id, String value,
+                                 Collator collator)
+            throws DataModelException
+        {
+            FONIDocument dom = getDom();
+            if (dom instanceof IDocument && (collator == null
+                    || collator == Collations.CODEPOINT_COLLATOR))
+                return ((IDocument) dom).compareStringValue(id, value);
+            return Collations.compare(dom.getStringValue(id), value, collator);
         }
 
         boolean attributesEq(int/*NId*/ id, Node that, Collator collator)
@@ -423,8 +620,7 @@ public class FONIDataModel
                 int onameId = dom.internOtherName(oattr.getNodeName());
                 int/*NId*/ attr = dom.getAttribute(id, onameId);
                 if (attr == 0
-                    || Collations.compare(dom.pnGetStringValue(attr),
-                                          oattr.getStringValue(), collator) != 0)
+                    || compareValue(attr, oattr.getStringValue(), collator) != 0)
                     return false;
             }
             return dom.getAttrCount(id) == oattrs.length;
@@ -460,9 +656,7 @@ public class FONIDataModel
         public int compareStringValues(Node node, Collator collator)
             throws DataModelException
         {
-            String s1 = this.getStringValue(), s2 = node.getStringValue();
-            return collator != null ? collator.compare(s1, s2)
-                    : s1.compareTo(s2);
+            return compareValue(id, node.getStringValue(), collator);
         }
 
         /**
@@ -590,6 +784,19 @@ public class FONIDataModel
             return new Attributes(id, nodeTest, dm);
         }
 
+        /**
+         * Evaluates consecutive child:: steps, the last step being possibly
+         * descendant:: instead: intermediate nodes are only visited through
+         * their ids. The result is the same as with the steps evaluated one
+         * after the other.
+         */
+        public NodeSequenceBase getStepPath(NodeFilter[] nodeTests,
+                                            boolean lastDescendant)
+            throws DataModelException
+        {
+            return new StepPath(id, nodeTests, lastDescendant, dm);
+        }
+
         public NodeSequenceBase getFollowingSiblings(NodeFilter nodeTest)
         {
             return new FollowingSiblings(id, nodeTest, dm);
@@ -1154,31 +1361,57 @@ public class FONIDataModel
     static class DescendantsOrSelf extends TypedSequence
     {
         int/*NId*/ lastNode;
+        // candidate elements from the name index, if used:
+        int/*NId*/[] postings;
+        int postingPos = -1;
 
         DescendantsOrSelf(int/*NId*/ id, NodeFilter nodeTest, FONIDataModel dm)
             throws DataModelException
         {
             super(id, nodeTest, dm);
-            lastNode = getDom().getNodeAfter(Math.abs(id));
+            int/*NId*/ first = Math.abs(id);
+            lastNode = getDom().getNodeAfter(first);
+            postings = dm.getElementPostings(nodeTest,
+                            (lastNode == 0 ? getDom().getNodeSpan(first)
+                                           : lastNode - first));
             if (lastNode == 0)
                 lastNode = PostingIterator.MAX_NODEID;
         }
 
         DescendantsOrSelf(int/*NId*/ startId, NodeFilter nodeTest, FONIDataModel dm,
-                          int/*NId*/ lastNode)
+                          int/*NId*/ lastNode, int/*NId*/[] postings)
         {
             super(startId, nodeTest, dm);
             this.lastNode = lastNode;
+            this.postings = postings;
         }
 
         public XQValue bornAgain()
         {
-            return new DescendantsOrSelf(startId, nodeTest, dm, lastNode);
+            return new DescendantsOrSelf(startId, nodeTest, dm, lastNode,
+                                         postings);
         }
 
         public boolean next()
             throws EvaluationException
         {
+            if (postings != null) {
+                // started means that self is excluded:
+                if (postingPos < 0)
+                    postingPos = NameIndex.lowerBound(postings,
+                                   Math.abs(startId) + (started ? 1 : 0));
+                started = true;
+                for (; postingPos < postings.length;) {
+                    curId = postings[postingPos++];
+                    if (curId >= lastNode)
+                        break;
+                    if (checkNode())
+                        return true;
+                }
+                postingPos = postings.length;
+                curId = 0;
+                return false;
+            }
             for (; curId != 0;) {
                 if (started)
                     try {
@@ -1219,6 +1452,71 @@ public class FONIDataModel
     }
 
 
+    static class StepPath extends ISequence
+    {
+        NodeFilter[] nodeTests;
+        boolean lastDescendant;
+        // iterators on each step, from the current node of the previous one:
+        TypedSequence[] steps;
+        int level;
+
+        StepPath(int/*NId*/ id, NodeFilter[] nodeTests, boolean lastDescendant,
+                 FONIDataModel dm)
+            throws DataModelException
+        {
+            super(id, dm);
+            this.nodeTests = nodeTests;
+            this.lastDescendant = lastDescendant;
+            steps = new TypedSequence[nodeTests.length];
+            steps[0] = newStep(0, id);
+        }
+
+        public XQValue bornAgain()
+        {
+            try {
+                return new StepPath(startId, nodeTests, lastDescendant, dm);
+            }
+            catch (DataModelException e) {
+                return XQValue.empty;
+            }
+        }
+
+        private TypedSequence newStep(int rank, int/*NId*/ id)
+            throws DataModelException
+        {
+            if (lastDescendant && rank == nodeTests.length - 1)
+                return new Descendants(id, nodeTests[rank], dm);
+            return new Children(id, nodeTests[rank], dm);
+        }
+
+        public boolean next()
+            throws EvaluationException
+        {
+            int last = steps.length - 1;
+            for (; level >= 0;) {
+                TypedSequence step = steps[level];
+                if (!step.next()) {
+                    --level;
+                    continue;
+                }
+                if (level == last) {
+                    curId = step.curId;
+                    return true;
+                }
+                try {
+                    ++level;
+                    steps[level] = newStep(level, step.curId);
+                }
+                catch (DataModelException e) {
+                    throw BasicNode.wrapDMException(e);
+                }
+            }
+            curId = 0;
+            return false;
+        }
+    }
+
+
     static class FollowingSiblings extends TypedSequence
     {
         FollowingSiblings(int/*NId*/ id, NodeFilter nodeTest, FONIDataModel dm)
@@ -1251,12 +1549,21 @@ public class FONIDataModel
 
     static class Following extends TypedSequence
     {
+        // candidate elements from the name index, if used:
+        int/*NId*/[] postings;
+        int postingPos = -1;
+
         Following(int/*NId*/ id, NodeFilter nodeTest, FONIDataModel dm)
         {
             super(id, nodeTest, dm);
             // FIX: dont take descendants! (very old bug)
             try {
                 curId = getDom().getNodeAfter(id);
+                if (curId != 0) {
+                    int/*NId*/ root = getDom().getRootNode();
+                    postings = dm.getElementPostings(nodeTest,
+                                    root + getDom().getNodeSpan(root) - curId);
+                }
             }
             catch (DataModelException ignored) { ; }
         }
@@ -1269,6 +1576,17 @@ public class FONIDataModel
         public boolean next()
             throws EvaluationException
         {
+            if (postings != null) {
+                if (postingPos < 0)
+                    postingPos = NameIndex.lowerBound(postings, curId);
+                for (; postingPos < postings.length;) {
+                    curId = postings[postingPos++];
+                    if (checkNode())
+                        return true;
+                }
+                curId = 0;
+                return false;
+            }
             for (; curId != 0;) {
                 try {
                     if(started)
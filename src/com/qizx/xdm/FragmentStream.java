@@ -0,0 +1,398 @@
+/*
+ *    Qizx/open 4.1
+ *
+ * This code is the open-source version of Qizx.
+ * Copyright (C) 2004-2009 Axyana Software -- All rights reserved.
+ *
+ * The contents of this file are subject to the Mozilla Public License
+ *  Version 1.1 (the "License"); you may not use this file except in
+ *  compliance with the License. You may obtain a copy of the License at
+ *  http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ *  WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ *  for the specific language governing rights and limitations under the
+ *  License.
+ *
+ * The Initial Developer of the Original Code is Xavier Franc - Axyana Software.
+ *
+ */
+package com.qizx.xdm;
+
+import com.qizx.api.DataModelException;
+import com.qizx.api.Node;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Streaming evaluation of a simple path over a document, without building
+ * the tree of the whole document.
+ * <p>
+ * The path is a sequence of child:: or descendant:: steps with element
+ * tests, starting from the document node. The document is parsed by SAX in
+ * a separate thread: the elements matching the path are copied with their
+ * subtree into small {@link IDocument}s, the rest of the document is only
+ * scanned. Several consecutive matches are grouped in one fragment document,
+ * as children of its document node. Matches nested within a match belong to
+ * the same fragment.
+ * <p>
+ * Memory is thus bounded by the size of the largest matched subtree (or of
+ * a batch of matches), plus a few batches waiting to be consumed.
+ * <p>
+ * Nodes returned are not attached to the original document: their parent
+ * is the document node of a fragment, and the following siblings or the
+ * ancestors of a matched element are not accessible. In-scope namespaces
+ * of a matched element are copied on it.
+ * <p>
+ * Implementation: matching uses, for each open element, the set of steps
+ * that can be applied to its children, as a bit set of at most
+ * {@link #MAX_STEPS} bits.
+ */
+public class FragmentStream extends XDefaultHandler
+    implements Runnable
+{
+    /**
+     * Maximum number of steps in a streamed path.
+     */
+    public static final int MAX_STEPS = 63;
+
+    // size (in node table entries) above which a batch is handed over:
+    private static final int BATCH_SIZE = 1 << 16;
+    // number of batches waiting to be consumed:
+    private static final int QUEUE_SIZE = 4;
+    // period of checking that the consumer is alive, in ms:
+    private static final int CHECK_PERIOD = 200;
+
+    private static final Object END = new Object();
+
+    private DocumentParser parser;
+    private String uri;
+    private NodeFilter[] steps;
+    private boolean[] descendant;
+    private long matchBit;
+
+    private BlockingQueue<Object> queue;
+    private WeakReference<Object> consumer;
+    private volatile boolean closed;
+    private boolean finished;
+
+    // ---- parsing state (producer thread):
+    // for each open element, steps applicable to its children:
+    private long[] states = new long[32];
+    private int depth;
+    // namespace declarations in scope, as prefix/uri pairs:
+    private ArrayList<String> namespaces = new ArrayList<String>();
+    private int[] nsMarks = new int[32];
+    private int nsBase;
+    // current batch:
+    private IDocument fragment;
+    private int fragmentDepth = -1;
+    private int/*NId*/[] matches = new int[16];
+    private int matchCount;
+
+    /**
+     * Creates a stream on a document. The stream is started by
+     * {@link #start}.
+     * @param parser provides SAX parsers and parsing options
+     * @param uri resolved URI of the document
+     * @param steps element tests of the steps of the path
+     * @param descendant for each step, true if its axis is descendant::,
+     *        false for child::
+     */
+    public FragmentStream(DocumentParser parser, String uri,
+                          NodeFilter[] steps, boolean[] descendant)
+    {
+        if (steps.length == 0 || steps.length > MAX_STEPS)
+            throw new IllegalArgumentException("invalid path length "
+                                               + steps.length);
+        this.parser = parser;
+        this.uri = uri;
+        this.steps = steps;
+        this.descendant = descendant;
+        matchBit = 1L << steps.length;
+        states[0] = 1; // the first step applies to the document node
+        setWhitespaceStripped(parser.getStripWhiteSpace());
+    }
+
+    /**
+     * Returns a new unstarted stream on the same document and path.
+     */
+    public FragmentStream reopen()
+    {
+        return new FragmentStream(parser, uri, steps, descendant);
+    }
+
+    public String getURI()
+    {
+        return uri;
+    }
+
+    /**
+     * Starts parsing in a new daemon thread.
+     * @param owner object using this stream: if it is garbage-collected
+     *        before the end of the document, parsing is stopped.
+     */
+    public synchronized void start(Object owner)
+    {
+        if (queue != null)
+            throw new IllegalStateException("stream already started");
+        queue = new ArrayBlockingQueue<Object>(QUEUE_SIZE);
+        consumer = new WeakReference<Object>(owner);
+        Thread thread = new Thread(this, "qizx-stream " + uri);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Returns the elements matching the path in the next fragment, in
+     * document order.
+     * @return an array of nodes, or null at the end of the document
+     * @throws DataModelException on parsing error
+     */
+    public BasicNode[] nextMatches()
+        throws DataModelException
+    {
+        if (finished)
+            return null;
+        Object next;
+        try {
+            next = queue.take();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            close();
+            throw new DataModelException("interrupted while streaming " + uri);
+        }
+        if (next instanceof BasicNode[])
+            return (BasicNode[]) next;
+        finished = true;
+        if (next instanceof DataModelException)
+            throw (DataModelException) next;
+        return null;
+    }
+
+    /**
+     * Stops parsing. Batches not yet consumed are discarded.
+     */
+    public void close()
+    {
+        closed = true;
+        finished = true;
+        if (queue != null)
+            queue.clear();
+    }
+
+    // ---- producer side:
+
+    public void run()
+    {
+        Object last = END;
+        try {
+            parser.parseDocument(new InputSource(uri), this,
+                                 parser.newParser());
+        }
+        catch (StopException e) {
+            return;
+        }
+        catch (SAXException e) {
+            last = new DataModelException("XML parsing error in " + uri
+                                          + ": " + e.getMessage(),
+                                          e.getException());
+        }
+        catch (Exception e) {
+            last = new DataModelException("Document access error in " + uri
+                                          + ": " + e.getMessage(), e);
+        }
+        try {
+            handOver(last);
+        }
+        catch (StopException ignored) { // nobody listens
+        }
+    }
+
+    // waits for room in the queue, unless the consumer is gone
+    private void handOver(Object batch)
+        throws StopException
+    {
+        try {
+            while (!closed) {
+                if (queue.offer(batch, CHECK_PERIOD, TimeUnit.MILLISECONDS))
+                    return;
+                if (consumer.get() == null)
+                    break;
+            }
+        }
+        catch (InterruptedException e) { // stop
+        }
+        throw new StopException();
+    }
+
+    private void flushBatch()
+        throws StopException
+    {
+        if (fragment == null)
+            return;
+        FONIDataModel dm = new FONIDataModel(fragment);
+        BasicNode[] nodes = new BasicNode[matchCount];
+        for (int m = 0; m < matchCount; m++)
+            nodes[m] = dm.newNode(matches[m]);
+        fragment = null;
+        matchCount = 0;
+        handOver(nodes);
+    }
+
+    public void startPrefixMapping(String prefix, String nsuri)
+        throws SAXException
+    {
+        namespaces.add(prefix);
+        namespaces.add(nsuri);
+        if (fragmentDepth >= 0)
+            fragment.startPrefixMapping(prefix, nsuri);
+    }
+
+    public void startElement(String namespaceURI, String localName,
+                             String qName, Attributes attrs)
+        throws SAXException
+    {
+        long parentState = states[depth];
+        if (++depth == states.length) {
+            long[] old = states;
+            states = new long[old.length * 2];
+            System.arraycopy(old, 0, states, 0, old.length);
+            int[] oldMarks = nsMarks;
+            nsMarks = new int[states.length];
+            System.arraycopy(oldMarks, 0, nsMarks, 0, oldMarks.length);
+        }
+        nsMarks[depth] = nsBase;
+        nsBase = namespaces.size();
+
+        long state = 0;
+        if (parentState != 0) {
+            if (localName == null || localName.length() == 0) {
+                namespaceURI = "";
+                localName = qName;
+            }
+            IQName name = IQName.get(namespaceURI, localName);
+            for (int s = 0; s < steps.length; s++)
+                if ((parentState & (1L << s)) != 0) {
+                    if (steps[s].accepts(Node.ELEMENT, name))
+                        state |= 1L << (s + 1);
+                    if (descendant[s])
+                        state |= 1L << s;
+                }
+        }
+        states[depth] = state & ~matchBit;
+
+        if (fragmentDepth < 0) {
+            if ((state & matchBit) == 0)
+                return;
+            if (fragment == null) {
+                fragment = new IDocument();
+                fragment.setBaseURI(uri);
+                fragment.setWhitespaceStripped(whitespaceStripped);
+            }
+            fragmentDepth = depth;
+            declareInScopeNamespaces();
+        }
+        fragment.startElement(namespaceURI, localName, qName, attrs);
+        if ((state & matchBit) != 0) {
+            if (matchCount == matches.length) {
+                int[] old = matches;
+                matches = new int[old.length * 2];
+                System.arraycopy(old, 0, matches, 0, old.length);
+            }
+            matches[matchCount++] = fragment.getCurrentNode();
+        }
+    }
+
+    // namespaces declared on ancestors are declared again on a matched root
+    private void declareInScopeNamespaces()
+        throws SAXException
+    {
+        HashMap<String, String> inScope = new HashMap<String, String>();
+        for (int i = 0; i < namespaces.size(); i += 2)
+            inScope.put(namespaces.get(i), namespaces.get(i + 1));
+        for (int i = 0; i < namespaces.size(); i += 2) {
+            String prefix = namespaces.get(i);
+            String nsuri = inScope.remove(prefix);
+            if (nsuri != null && (nsuri.length() > 0 || prefix.length() > 0))
+                fragment.startPrefixMapping(prefix, nsuri);
+        }
+    }
+
+    public void endElement(String namespaceURI, String localName,
+                           String qName)
+        throws SAXException
+    {
+        if (fragmentDepth >= 0) {
+            fragment.endElement(namespaceURI, localName, qName);
+            if (depth == fragmentDepth) {
+                fragmentDepth = -1;
+                if (fragment.getDocSize() >= BATCH_SIZE)
+                    flushBatch();
+            }
+        }
+        nsBase = nsMarks[depth];
+        for (int n = namespaces.size(); n > nsBase;)
+            namespaces.remove(--n);
+        --depth;
+    }
+
+    public void endDocument()
+        throws SAXException
+    {
+        flushBatch();
+    }
+
+    public void characters(char[] ch, int start, int length)
+    {
+        if (fragmentDepth >= 0)
+            fragment.characters(ch, start, length);
+    }
+
+    public void characters(String chars)
+    {
+        if (fragmentDepth >= 0)
+            fragment.characters(chars);
+    }
+
+    public void ignorableWhitespace(char[] ch, int start, int length)
+        throws SAXException
+    {
+        if (fragmentDepth >= 0)
+            fragment.ignorableWhitespace(ch, start, length);
+    }
+
+    public void processingInstruction(String target, String data)
+        throws SAXException
+    {
+        if (fragmentDepth >= 0)
+            fragment.processingInstruction(target, data);
+    }
+
+    public void comment(char[] ch, int start, int length)
+    {
+        if (fragmentDepth >= 0)
+            fragment.comment(ch, start, length);
+    }
+
+    // aborts parsing when the consumer is gone
+    private static class StopException extends SAXException
+    {
+        private static final long serialVersionUID = 1L;
+
+        StopException()
+        {
+            super("stream closed");
+        }
+    }
+}
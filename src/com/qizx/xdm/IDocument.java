@@ -28,6 +28,7 @@ import org.xml.sax.Attributes;
 import org.xml.sax.SAXException;
 
 import java.io.IOException;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.HashMap;
 
@@ -61,9 +62,14 @@ import java.util.HashMap;
  * pointer (LSbit==0) is the index of the string object in the vector.
  * </ul>
  * Storing short strings this way saves a lot of space (overhead of a
- * String object: at least 40 bytes.) For most languages (except CJK)
- * it would be possible to compress characters on one byte, but
- * Java lacks efficient interfaces.
+ * String object: at least 40 bytes.)
+ * <p>
+ * Blocks are of two kinds: strings made only of Latin-1 characters (the
+ * vast majority for most languages except CJK) are stored one byte per
+ * character in byte blocks, with a length on 2 bytes; other strings are
+ * stored in char blocks. A block index denotes either a byte block or a char
+ * block, so that the pointer of a short string need not tell its kind.
+ * Strings of both kinds are decoded and compared directly from their blocks.
  */
 public class IDocument extends XDefaultHandler 
     implements FONIDocument
@@ -95,6 +101,8 @@ public class IDocument extends XDefaultHandler
     final static int CHARBLOCK_SHIFT = 12;	// 4K chars. must stay <= 15
     final static int CHARBLOCK_SIZE = 1 << CHARBLOCK_SHIFT;
     final static int CHARBLOCK_MASK = CHARBLOCK_SIZE - 1;
+
+    private static final Charset LATIN1 = Charset.forName("ISO-8859-1");
     
     private QNameTable elementNames = new QNameTable();
     private QNameTable otherNames = new QNameTable();
@@ -124,10 +132,15 @@ public class IDocument extends XDefaultHandler
     private int charPtr;
     private boolean textIsWhite;
     
-    // storage blocks for small strings
+    // storage blocks for small strings: for a given index, one of
+    // charBlocks[index] or byteBlocks[index] is not null
     private char[][] charBlocks;
+    private byte[][] byteBlocks;
+    private int stringBlockCnt;
     private int lastCharBlock;	// index of current char block
     private int charBlockPtr;	// ptr inside current block
+    private int lastByteBlock = -1;	// index of current byte block
+    private int byteBlockPtr = CHARBLOCK_SIZE;
     // Big strings (directly stored in the ArrayList)
     private ArrayList bigStrings = new ArrayList();
     private boolean exported;
@@ -149,7 +162,9 @@ public class IDocument extends XDefaultHandler
 //        }
         
         charBlocks = new char[8][];
+        byteBlocks = new byte[8][];
         charBlocks[0] = new char[CHARBLOCK_SIZE];
+        stringBlockCnt = 1;
         lastCharBlock = 0;
         charBlockPtr = 1;
         docSize = CONTENT_OFFSET; // dummy node at 0
@@ -336,6 +351,25 @@ public class IDocument extends XDefaultHandler
         return decodeChars(intDataAt(nodeId + 1), reserve);
     }
 
+    /**
+     * Compares the string value of a node with a string, in the manner of
+     * String.compareTo, without decoding the value if the node is not an
+     * element or document.
+     */
+    public int compareStringValue(int/*NId*/ nodeId, String value)
+    {
+        switch (getKind(nodeId)) {
+        case Node.ELEMENT:
+        case Node.DOCUMENT:
+            return getStringValue(nodeId).compareTo(value);
+        case Node.ATTRIBUTE:
+        case Node.NAMESPACE:
+            return compareString(intDataAt(nodeId + 1), value);
+        default:
+            return compareString(intDataAt(nodeId + CONTENT_OFFSET), value);
+        }
+    }
+
     public int getDefinedNSCount(int/*NId*/ nodeId)
     {
         return getNamespaceCount(nodeId);
@@ -706,7 +740,10 @@ public class IDocument extends XDefaultHandler
     public int/*NId*/ estimateMemorySize()
     {
         int/*NId*/ sizeNodes = blockCnt * (int/*NId*/) BLOCK_SIZE * 4;
-        int/*NId*/ sizeChars = lastCharBlock * (int/*NId*/) CHARBLOCK_SIZE * 2;
+        int/*NId*/ sizeChars = 0;
+        for (int b = 0; b < stringBlockCnt; b++)
+            sizeChars += (charBlocks[b] != null) ? CHARBLOCK_SIZE * 2
+                                                 : CHARBLOCK_SIZE;
         int/*NId*/ sizeBigStrings = bigStrings.size() * CHARBLOCK_SIZE; // minimum
         if(stats)
             System.err.println("sizes nodes="+sizeNodes + " chars="+sizeChars + " bigst="+sizeBigStrings);
@@ -790,14 +827,15 @@ public class IDocument extends XDefaultHandler
         if (charPtr > CHARBLOCK_SIZE / 2) {
             return storeBigString(new String(charBuffer, 0, charPtr));
         }
+        int i = charPtr;
+        while (--i >= 0 && charBuffer[i] <= 0xff)
+            ;
+        if (i < 0)
+            return storeLatin1String();
         int rlen = charPtr + 1; // required length
         if (charBlockPtr + rlen > CHARBLOCK_SIZE) {
             // spanning blocks is not allowed: allocate a new block
-            if (++lastCharBlock >= charBlocks.length) {
-                char[][] old = charBlocks;
-                charBlocks = new char[old.length + 100][];
-                System.arraycopy(old, 0, charBlocks, 0, old.length);
-            }
+            lastCharBlock = newStringBlock();
             charBlocks[lastCharBlock] = new char[CHARBLOCK_SIZE];
             charBlockPtr = 0;
         }
@@ -808,6 +846,38 @@ public class IDocument extends XDefaultHandler
         charBlockPtr += rlen;
         return index << 1;
     }
+
+    // stores the (Latin-1) buffer in a byte block, prefixed by the length
+    private int storeLatin1String()
+    {
+        int rlen = charPtr + 2; // required length
+        if (byteBlockPtr + rlen > CHARBLOCK_SIZE) {
+            lastByteBlock = newStringBlock();
+            byteBlocks[lastByteBlock] = new byte[CHARBLOCK_SIZE];
+            byteBlockPtr = 0;
+        }
+        int index = lastByteBlock * CHARBLOCK_SIZE + byteBlockPtr;
+        byte[] block = byteBlocks[lastByteBlock];
+        block[byteBlockPtr] = (byte) (charPtr >> 8);
+        block[byteBlockPtr + 1] = (byte) charPtr;
+        for (int i = 0, pos = byteBlockPtr + 2; i < charPtr; i++)
+            block[pos + i] = (byte) charBuffer[i];
+        byteBlockPtr += rlen;
+        return index << 1;
+    }
+
+    private int newStringBlock()
+    {
+        if (stringBlockCnt >= charBlocks.length) {
+            char[][] old = charBlocks;
+            charBlocks = new char[old.length + 100][];
+            System.arraycopy(old, 0, charBlocks, 0, old.length);
+            byte[][] oldb = byteBlocks;
+            byteBlocks = new byte[charBlocks.length][];
+            System.arraycopy(oldb, 0, byteBlocks, 0, oldb.length);
+        }
+        return stringBlockCnt++;
+    }
     
     private int storeBigString(String s)
     {
@@ -822,9 +892,13 @@ public class IDocument extends XDefaultHandler
             // big string:
             return (String) bigStrings.get(code >> 1);
         else {
-            code >>= 1;
-            char[] block = charBlocks[code >> CHARBLOCK_SHIFT];
+            code >>>= 1;
             int pos = code & CHARBLOCK_MASK;
+            byte[] bytes = byteBlocks[code >> CHARBLOCK_SHIFT];
+            if (bytes != null)
+                return new String(bytes, pos + 2, byteLength(bytes, pos),
+                                  LATIN1);
+            char[] block = charBlocks[code >> CHARBLOCK_SHIFT];
             // the first char is the length of the string
             return new String(block, pos + 1, (int) block[pos]);
         }
@@ -836,9 +910,16 @@ public class IDocument extends XDefaultHandler
             // big string:
             buffer.append((String) bigStrings.get(code >> 1));
         else {
-            code >>= 1;
-            char[] block = charBlocks[code >> CHARBLOCK_SHIFT];
+            code >>>= 1;
             int pos = code & CHARBLOCK_MASK;
+            byte[] bytes = byteBlocks[code >> CHARBLOCK_SHIFT];
+            if (bytes != null) {
+                for (int i = pos + 2, end = i + byteLength(bytes, pos);
+                     i < end; i++)
+                    buffer.append((char) (bytes[i] & 0xff));
+                return;
+            }
+            char[] block = charBlocks[code >> CHARBLOCK_SHIFT];
             // the first char is the length of the string
             buffer.append(block, pos + 1, (int) block[pos]);
         }
@@ -854,9 +935,17 @@ public class IDocument extends XDefaultHandler
             return res;
         }
         else {
-            code >>= 1;
-            char[] block = charBlocks[code >> CHARBLOCK_SHIFT];
+            code >>>= 1;
             int pos = code & CHARBLOCK_MASK;
+            byte[] bytes = byteBlocks[code >> CHARBLOCK_SHIFT];
+            if (bytes != null) {
+                int L = byteLength(bytes, pos);
+                char[] res = new char[L + reserve];
+                for (int i = 0; i < L; i++)
+                    res[reserve + i] = (char) (bytes[pos + 2 + i] & 0xff);
+                return res;
+            }
+            char[] block = charBlocks[code >> CHARBLOCK_SHIFT];
             // the first char is the length of the string
             int L = (int) block[pos];
             char[] res = new char[L + reserve];
@@ -865,6 +954,97 @@ public class IDocument extends XDefaultHandler
         }
     }
 
+    // compares a stored string with a String, like String.compareTo
+    private int compareString(int code, String value)
+    {
+        if ((code & 1) != 0)
+            return ((String) bigStrings.get(code >> 1)).compareTo(value);
+        code >>>= 1;
+        int pos = code & CHARBLOCK_MASK, L, VL = value.length();
+        byte[] bytes = byteBlocks[code >> CHARBLOCK_SHIFT];
+        if (bytes != null) {
+            L = byteLength(bytes, pos);
+            pos += 2;
+            for (int i = 0, N = Math.min(L, VL); i < N; i++) {
+                int diff = (bytes[pos + i] & 0xff) - value.charAt(i);
+                if (diff != 0)
+                    return diff;
+            }
+        }
+        else {
+            char[] block = charBlocks[code >> CHARBLOCK_SHIFT];
+            L = block[pos];
+            pos += 1;
+            for (int i = 0, N = Math.min(L, VL); i < N; i++) {
+                int diff = block[pos + i] - value.charAt(i);
+                if (diff != 0)
+                    return diff;
+            }
+        }
+        return L - VL;
+    }
+
+    private static int byteLength(byte[] block, int pos)
+    {
+        return ((block[pos] & 0xff) << 8) | (block[pos + 1] & 0xff);
+    }
+
+    // ----- raw access for DocumentSnapshot:
+
+    int getDocSize()
+    {
+        return docSize;
+    }
+
+    int[][] getNodeBlocks()
+    {
+        return blocks;
+    }
+
+    int getStringBlockCount()
+    {
+        return stringBlockCnt;
+    }
+
+    // null if the block is a byte block
+    char[] getCharBlock(int index)
+    {
+        return charBlocks[index];
+    }
+
+    // null if the block is a char block
+    byte[] getByteBlock(int index)
+    {
+        return byteBlocks[index];
+    }
+
+    // number of chars or bytes used in a string block
+    int getStringBlockFill(int index)
+    {
+        return index == lastCharBlock ? charBlockPtr
+             : index == lastByteBlock ? byteBlockPtr : CHARBLOCK_SIZE;
+    }
+
+    ArrayList getBigStrings()
+    {
+        return bigStrings;
+    }
+
+    QNameTable getElementNames()
+    {
+        return elementNames;
+    }
+
+    QNameTable getOtherNames()
+    {
+        return otherNames;
+    }
+
+    HashMap getIdTable(boolean ref)
+    {
+        return ref? idrefTable : idTable;
+    }
+
     public Owner getOwner()
     {
         return owner;
@@ -0,0 +1,615 @@
+/*
+ *    Qizx/open 4.1
+ *
+ * This code is the open-source version of Qizx.
+ * Copyright (C) 2004-2009 Axyana Software -- All rights reserved.
+ *
+ * The contents of this file are subject to the Mozilla Public License
+ *  Version 1.1 (the "License"); you may not use this file except in
+ *  compliance with the License. You may obtain a copy of the License at
+ *  http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ *  WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ *  for the specific language governing rights and limitations under the
+ *  License.
+ *
+ * The Initial Developer of the Original Code is Xavier Franc - Axyana Software.
+ *
+ */
+package com.qizx.xdm;
+
+import com.qizx.api.Node;
+import com.qizx.api.QName;
+import com.qizx.util.QNameTable;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * A read-only FONIDocument whose nodes and characters are stored outside of
+ * the Java heap: either in a file mapped in memory by
+ * {@link DocumentSnapshot}, or in direct buffers (see {@link #copyOffHeap}).
+ * <p>
+ * The layout is exactly that of {@link IDocument}: node handles are offsets
+ * in a table of int, and string codes are offsets in string blocks or indexes
+ * of big strings. Char blocks and big strings are stored in a table of chars,
+ * Latin-1 blocks in a table of bytes. Tables are split into segments of 64M
+ * entries, each one being a view on a buffer. Segments are a multiple of the
+ * string blocks of IDocument, so that a short string never spans two
+ * segments.
+ * <p>
+ * Names, ID tables, the location of string blocks and of big strings are
+ * loaded in memory.
+ * After construction the document is thread safe.
+ */
+public class MappedDocument
+    implements FONIDocument
+{
+    static final int SEGMENT_SHIFT = 26;
+    static final int SEGMENT_SIZE = 1 << SEGMENT_SHIFT;
+    static final int SEGMENT_MASK = SEGMENT_SIZE - 1;
+
+    private final IntBuffer[] nodes;
+    private final CharBuffer[] chars;
+    private final ByteBuffer[] bytes;
+    // for each string block of IDocument: rank of the block in the table
+    // of chars if >= 0, else complement of its rank in the table of bytes
+    private final int[] blockMap;
+    private final int/*NId*/ docSize;
+    // location of big strings in the char table:
+    private final long[] bigStringStart;
+    private final int[] bigStringLength;
+
+    private final QNameTable elementNames;
+    private final QNameTable otherNames;
+    private final HashMap idTable;
+    private final HashMap idrefTable;
+    private final String[] dtdInfo;
+    private final int mappedSize;
+    private final boolean offHeap; // direct buffers, not mapped file
+
+    private int/*DId*/ docId;
+    private String baseURI;
+    private Owner owner;
+
+    MappedDocument(IntBuffer[] nodes, CharBuffer[] chars, ByteBuffer[] bytes,
+                   int[] blockMap, int docSize,
+                   long[] bigStringStart, int[] bigStringLength,
+                   QNameTable elementNames, QNameTable otherNames,
+                   HashMap idTable, HashMap idrefTable, String[] dtdInfo,
+                   boolean offHeap)
+    {
+        this.offHeap = offHeap;
+        this.nodes = nodes;
+        this.chars = chars;
+        this.bytes = bytes;
+        this.blockMap = blockMap;
+        this.docSize = docSize;
+        this.bigStringStart = bigStringStart;
+        this.bigStringLength = bigStringLength;
+        this.elementNames = elementNames;
+        this.otherNames = otherNames;
+        this.idTable = idTable;
+        this.idrefTable = idrefTable;
+        this.dtdInfo = dtdInfo;
+        long size = docSize * 4L;
+        for (int s = 0; s < chars.length; s++)
+            size += chars[s].capacity() * 2L;
+        for (int s = 0; s < bytes.length; s++)
+            size += bytes[s].capacity();
+        mappedSize = (int) Math.min(size, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Copies a parsed document into direct buffers, outside of the Java heap.
+     * Each table is allocated in slabs of 64M entries at most, so that the
+     * heap only retains a few buffer objects, names and ID tables.
+     * <p>The direct memory is released when the copy is garbage-collected.
+     * Its total size is limited by the JVM option -XX:MaxDirectMemorySize.
+     * @param doc a document built by parsing
+     * @return an equivalent read-only document
+     * @throws OutOfMemoryError if direct memory is exhausted
+     */
+    public static MappedDocument copyOffHeap(IDocument doc)
+    {
+        int docSize = doc.getDocSize();
+        int[][] blocks = doc.getNodeBlocks();
+        IntBuffer[] nodes = new IntBuffer[segmentCount(docSize)];
+        for (int s = 0, b = 0; s < nodes.length; s++) {
+            int count = (int) Math.min(docSize - ((long) s << SEGMENT_SHIFT),
+                                       SEGMENT_SIZE);
+            // blocks of IDocument are a fraction of segments:
+            IntBuffer seg = allocate(4 * count).asIntBuffer();
+            for (; seg.hasRemaining(); b++)
+                seg.put(blocks[b], 0, Math.min(seg.remaining(),
+                                               blocks[b].length));
+            nodes[s] = seg;
+        }
+
+        int[] blockMap = blockMap(doc);
+        ArrayList bigStrings = doc.getBigStrings();
+        long smallChars = tableSize(doc, blockMap, true), charCount = smallChars;
+        long byteCount = tableSize(doc, blockMap, false);
+        long[] bigStringStart = new long[bigStrings.size()];
+        int[] bigStringLength = new int[bigStrings.size()];
+        for (int i = 0; i < bigStringStart.length; i++) {
+            bigStringStart[i] = charCount;
+            bigStringLength[i] = ((String) bigStrings.get(i)).length();
+            charCount += bigStringLength[i];
+        }
+        CharBuffer[] chars = new CharBuffer[segmentCount(charCount)];
+        long pos = 0; // in the char table
+        for (int s = 0, b = 0, big = 0; s < chars.length; s++) {
+            int count = (int) Math.min(charCount - pos, SEGMENT_SIZE);
+            CharBuffer seg = allocate(2 * count).asCharBuffer();
+            for (; pos < smallChars && seg.hasRemaining(); b++) {
+                char[] block = doc.getCharBlock(b);
+                if (block == null)
+                    continue;
+                int n = doc.getStringBlockFill(b);
+                seg.put(block, 0, n);
+                pos += n;
+            }
+            // big strings can span segments:
+            for (; big < bigStringStart.length && seg.hasRemaining();) {
+                String str = (String) bigStrings.get(big);
+                int from = (int) (pos - bigStringStart[big]);
+                int n = Math.min(seg.remaining(), str.length() - from);
+                seg.put(str, from, from + n);
+                pos += n;
+                if (from + n == str.length())
+                    ++big;
+            }
+            chars[s] = seg;
+        }
+        ByteBuffer[] bytes = new ByteBuffer[segmentCount(byteCount)];
+        pos = 0;
+        for (int s = 0, b = 0; s < bytes.length; s++) {
+            int count = (int) Math.min(byteCount - pos, SEGMENT_SIZE);
+            ByteBuffer seg = allocate(count);
+            for (; seg.hasRemaining(); b++) {
+                byte[] block = doc.getByteBlock(b);
+                if (block == null)
+                    continue;
+                int n = doc.getStringBlockFill(b);
+                seg.put(block, 0, n);
+                pos += n;
+            }
+            bytes[s] = seg;
+        }
+
+        MappedDocument copy =
+            new MappedDocument(nodes, chars, bytes, blockMap, docSize,
+                               bigStringStart, bigStringLength, doc.getElementNames(),
+                               doc.getOtherNames(), doc.getIdTable(false),
+                               doc.getIdTable(true), doc.getDTDInfo(), true);
+        copy.setBaseURI(doc.getBaseURI());
+        copy.setDocumentId(doc.getDocumentId());
+        return copy;
+    }
+
+    private static ByteBuffer allocate(int size)
+    {
+        return ByteBuffer.allocateDirect(size).order(ByteOrder.nativeOrder());
+    }
+
+    // ranks of the string blocks of a document in the tables of chars and
+    // bytes (see field blockMap)
+    static int[] blockMap(IDocument doc)
+    {
+        int[] map = new int[doc.getStringBlockCount()];
+        for (int b = 0, charRank = 0, byteRank = 0; b < map.length; b++)
+            map[b] = (doc.getCharBlock(b) != null) ? charRank++ : ~byteRank++;
+        return map;
+    }
+
+    // size used by the string blocks of a document in the table of chars
+    // (or of bytes): only the last block of a kind is partially filled
+    static long tableSize(IDocument doc, int[] blockMap, boolean chars)
+    {
+        long size = 0;
+        for (int b = 0; b < blockMap.length; b++)
+            if ((blockMap[b] >= 0) == chars)
+                size += doc.getStringBlockFill(b);
+        return size;
+    }
+
+    static int segmentCount(long size)
+    {
+        return (int) ((size + SEGMENT_SIZE - 1) >> SEGMENT_SHIFT);
+    }
+
+    /**
+     * Returns true if nodes and chars are in direct buffers allocated by
+     * {@link #copyOffHeap}, false if they are mapped from a file.
+     */
+    public boolean isOffHeap()
+    {
+        return offHeap;
+    }
+
+    // -------- FONIDocument interface: -------------
+
+    public String[] getDTDInfo()
+    {
+        return dtdInfo;
+    }
+
+    public int/*NId*/ getRootNode()
+    {
+        return IDocument.CONTENT_OFFSET;
+    }
+
+    public int getKind(int/*NId*/ nodeId)
+    {
+        return dataAt(nodeId) & IDocument.KIND_MASK;
+    }
+
+    public IQName getName(int/*NId*/ nodeId)
+    {
+        switch (getKind(nodeId)) {
+        case Node.ELEMENT:
+            return elementNames.getName(getNameId(nodeId));
+        case Node.PROCESSING_INSTRUCTION:
+            return otherNames.getName(getNameId(nodeId));
+        default:
+            return null;
+        }
+    }
+
+    public int getNameId(int/*NId*/ nodeId)
+    {
+        return (dataAt(nodeId) >> IDocument.NAME_SHIFT) & IDocument.NAME_MASK;
+    }
+
+    public IQName pnGetName(int/*NId*/ nodeId)
+    {
+        return otherNames.getName(pnGetNameId(nodeId));
+    }
+
+    public int pnGetNameId(int/*NId*/ nodeId)
+    {
+        return (dataAt(nodeId) >> IDocument.NAME_SHIFT) & IDocument.NAME_MASK;
+    }
+
+    public int/*NId*/ getParent(int/*NId*/ nodeId)
+    {
+        return dataAt(nodeId + IDocument.PARENT_OFFSET);
+    }
+
+    public int/*NId*/ getNextSibling(int/*NId*/ nodeId)
+    {
+        return dataAt(nodeId + IDocument.NEXT_OFFSET);
+    }
+
+    public int/*NId*/ getNodeNext(int/*NId*/ nodeId)
+    {
+        int/*NId*/ kid = getFirstChild(nodeId);
+        return (kid != 0) ? kid : getNodeAfter(nodeId);
+    }
+
+    public int/*NId*/ getNodeAfter(int/*NId*/ nodeId)
+    {
+        int/*NId*/ nxt;
+        while ((nxt = getNextSibling(nodeId)) == 0) {
+            int/*NId*/ parent = getParent(nodeId);
+            if (parent == 0)
+                return 0;
+            nodeId = parent;
+        }
+        return nxt;
+    }
+
+    public int/*NId*/ getNodeSpan(int/*NId*/ nodeId)
+    {
+        int/*NId*/ nxt = getNodeAfter(nodeId);
+        if (nxt == 0)
+            nxt = docSize;
+        return nxt - nodeId;
+    }
+
+    public int/*NId*/ getFirstChild(int/*NId*/ nodeId)
+    {
+        int header = dataAt(nodeId), kind = header & IDocument.KIND_MASK;
+        if (kind != Node.ELEMENT && kind != Node.DOCUMENT
+            || (header & IDocument.HAS_CHILDREN) == 0)
+            return 0;
+        return nodeId + IDocument.ATTR_OFFSET
+               + 2 * (hAttrCount(header) + hNamespaceCount(header));
+    }
+
+    public String getStringValue(int/*NId*/ nodeId)
+    {
+        switch (getKind(nodeId)) {
+        case Node.ELEMENT:
+        case Node.DOCUMENT:
+            StringBuffer sb = new StringBuffer(getNodeSpan(nodeId));
+            int/*NId*/ kid = getFirstChild(nodeId);
+            for (; kid != 0; kid = getNextSibling(kid))
+                recStringValue(kid, sb);
+            return sb.toString();
+        case Node.ATTRIBUTE:
+        case Node.NAMESPACE:
+            return decodeString(dataAt(nodeId + 1));
+        default:
+            return decodeString(dataAt(nodeId + IDocument.CONTENT_OFFSET));
+        }
+    }
+
+    private void recStringValue(int/*NId*/ nodeId, StringBuffer sb)
+    {
+        switch (getKind(nodeId)) {
+        case Node.ELEMENT:
+        case Node.DOCUMENT:
+            int/*NId*/ kid = getFirstChild(nodeId);
+            for (; kid != 0; kid = getNextSibling(kid))
+                recStringValue(kid, sb);
+            break;
+        case Node.TEXT:
+            decodeString(dataAt(nodeId + IDocument.CONTENT_OFFSET), sb);
+            break;
+        }
+    }
+
+    public int getAttrCount(int/*NId*/ nodeId)
+    {
+        return hAttrCount(dataAt(nodeId));
+    }
+
+    public int/*NId*/ getAttribute(int/*NId*/ nodeId, int nameId)
+    {
+        int/*NId*/ off = nodeId + IDocument.ATTR_OFFSET
+                         + 2 * hNamespaceCount(dataAt(nodeId));
+        int cnt = getAttrCount(nodeId);
+        if (nameId < 0 && cnt > 0)
+            return off;
+        for (; cnt > 0; --cnt, off += 2)
+            if (getNameId(off) == nameId)
+                return off;
+        return 0;
+    }
+
+    public int/*NId*/ pnGetNext(int/*NId*/ nodeId)
+    {
+        if (nodeId == 0)
+            return 0;
+        return ((dataAt(nodeId) & IDocument.PN_LAST) != 0) ? 0 : nodeId + 2;
+    }
+
+    public String pnGetStringValue(int/*NId*/ nodeId)
+    {
+        return decodeString(dataAt(nodeId + 1));
+    }
+
+    public char[] getCharValue(int/*NId*/ nodeId, int reserve)
+    {
+        switch (getKind(nodeId)) {
+        case Node.ELEMENT:
+        case Node.DOCUMENT:
+            throw new RuntimeException("not allowed on non-atoms");
+        case Node.ATTRIBUTE:
+        case Node.NAMESPACE:
+            return decodeChars(dataAt(nodeId + 1), reserve);
+        default:
+            return decodeChars(dataAt(nodeId + IDocument.CONTENT_OFFSET),
+                               reserve);
+        }
+    }
+
+    public char[] pnGetCharValue(int/*NId*/ nodeId, int reserve)
+    {
+        return decodeChars(dataAt(nodeId + 1), reserve);
+    }
+
+    public int getDefinedNSCount(int/*NId*/ nodeId)
+    {
+        return hNamespaceCount(dataAt(nodeId));
+    }
+
+    public int/*NId*/ getFirstNSNode(int/*NId*/ nodeId)
+    {
+        if (nodeId == 0 || getDefinedNSCount(nodeId) == 0)
+            return 0;
+        return nodeId + IDocument.ATTR_OFFSET;
+    }
+
+    public Object getValue(int/*NId*/ nodeId)
+    {
+        return null;
+    }
+
+    public long getIntegerValue(int/*NId*/ nodeId)
+    {
+        return -1;
+    }
+
+    public int/*NId*/[] getIdMatchingNodes(String id, boolean ref)
+    {
+        HashMap table = ref ? idrefTable : idTable;
+        return table == null ? null : (int/*NId*/[]) table.get(id);
+    }
+
+    public int getElementNameCount()
+    {
+        return elementNames.size();
+    }
+
+    public IQName getElementName(int nameId)
+    {
+        return elementNames.getName(nameId);
+    }
+
+    public int internElementName(QName name)
+    {
+        synchronized (elementNames) { // the probe of the table is shared
+            return elementNames.find(name);
+        }
+    }
+
+    public int getOtherNameCount()
+    {
+        return otherNames.size();
+    }
+
+    public IQName getOtherName(int nameId)
+    {
+        return otherNames.getName(nameId);
+    }
+
+    public int internOtherName(QName name)
+    {
+        synchronized (otherNames) {
+            return otherNames.find(name);
+        }
+    }
+
+    /**
+     * Returns the size of the structures loaded in the heap, plus the size
+     * of direct buffers if any: mapped pages are managed by the operating
+     * system.
+     */
+    public int/*NId*/ estimateMemorySize()
+    {
+        return (offHeap ? mappedSize : 0)
+               + 1024 + 64 * (elementNames.size() + otherNames.size())
+               + 12 * bigStringStart.length
+               + (idTable == null ? 0 : 64 * idTable.size())
+               + (idrefTable == null ? 0 : 64 * idrefTable.size());
+    }
+
+    /**
+     * Returns the size of the nodes and characters.
+     */
+    public int/*NId*/ virtualSize()
+    {
+        return mappedSize;
+    }
+
+    public int/*DId*/ getDocumentId()
+    {
+        return docId;
+    }
+
+    public void setDocumentId(int/*DId*/ docId)
+    {
+        this.docId = docId;
+    }
+
+    public String getBaseURI()
+    {
+        return baseURI;
+    }
+
+    public void setBaseURI(String uri)
+    {
+        baseURI = uri;
+    }
+
+    public Owner getOwner()
+    {
+        return owner;
+    }
+
+    public void setOwner(Owner owner)
+    {
+        this.owner = owner;
+    }
+
+    // ----- implementation:
+
+    private int dataAt(int/*NId*/ offset)
+    {
+        return nodes[offset >>> SEGMENT_SHIFT].get(offset & SEGMENT_MASK);
+    }
+
+    private char charAt(long index)
+    {
+        return chars[(int) (index >>> SEGMENT_SHIFT)]
+                   .get((int) index & SEGMENT_MASK);
+    }
+
+    private int byteAt(long index)
+    {
+        return bytes[(int) (index >>> SEGMENT_SHIFT)]
+                   .get((int) index & SEGMENT_MASK) & 0xff;
+    }
+
+    private static int hNamespaceCount(int header)
+    {
+        return header >> IDocument.NS_SHIFT;
+    }
+
+    private static int hAttrCount(int header)
+    {
+        return (header >> IDocument.ATTR_SHIFT) & IDocument.ATTR_MASK;
+    }
+
+    // position of a short string in the table of chars (if >= 0) or
+    // complement of its position in the table of bytes
+    private long stringPosition(int code)
+    {
+        code >>>= 1;
+        int rank = blockMap[code >> IDocument.CHARBLOCK_SHIFT];
+        long pos = code & IDocument.CHARBLOCK_MASK;
+        return (rank >= 0) ? ((long) rank << IDocument.CHARBLOCK_SHIFT) + pos
+                           : ~(((long) ~rank << IDocument.CHARBLOCK_SHIFT) + pos);
+    }
+
+    private char[] decodeChars(int code, int reserve)
+    {
+        char[] res;
+        if ((code & 1) != 0) {
+            long start = bigStringStart[code >> 1];
+            res = new char[bigStringLength[code >> 1] + reserve];
+            for (int i = reserve; i < res.length; i++)
+                res[i] = charAt(start++);
+            return res;
+        }
+        long pos = stringPosition(code);
+        if (pos >= 0) {
+            // the first char is the length of the string
+            res = new char[charAt(pos) + reserve];
+            for (int i = reserve; i < res.length; i++)
+                res[i] = charAt(++pos);
+        }
+        else {
+            pos = ~pos;
+            res = new char[((byteAt(pos) << 8) | byteAt(pos + 1)) + reserve];
+            pos += 2;
+            for (int i = reserve; i < res.length; i++)
+                res[i] = (char) byteAt(pos++);
+        }
+        return res;
+    }
+
+    private String decodeString(int code)
+    {
+        return new String(decodeChars(code, 0));
+    }
+
+    private void decodeString(int code, StringBuffer buffer)
+    {
+        if ((code & 1) != 0) {
+            long start = bigStringStart[code >> 1];
+            for (int i = bigStringLength[code >> 1]; --i >= 0;)
+                buffer.append(charAt(start++));
+            return;
+        }
+        long pos = stringPosition(code);
+        if (pos >= 0) {
+            for (int i = charAt(pos); --i >= 0;)
+                buffer.append(charAt(++pos));
+        }
+        else {
+            pos = ~pos;
+            int length = (byteAt(pos) << 8) | byteAt(pos + 1);
+            for (pos += 2; --length >= 0;)
+                buffer.append((char) byteAt(pos++));
+        }
+    }
+}
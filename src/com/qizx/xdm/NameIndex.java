@@ -0,0 +1,137 @@
+/*
+ *    Qizx/open 4.1
+ *
+ * This code is the open-source version of Qizx.
+ * Copyright (C) 2004-2009 Axyana Software -- All rights reserved.
+ *
+ * The contents of this file are subject to the Mozilla Public License
+ *  Version 1.1 (the "License"); you may not use this file except in
+ *  compliance with the License. You may obtain a copy of the License at
+ *  http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ *  WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ *  for the specific language governing rights and limitations under the
+ *  License.
+ *
+ * The Initial Developer of the Original Code is Xavier Franc - Axyana Software.
+ *
+ */
+package com.qizx.xdm;
+
+import com.qizx.api.DataModelException;
+import com.qizx.api.Node;
+import com.qizx.api.QName;
+
+import java.util.HashMap;
+
+/**
+ * Index of the elements of a {@link FONIDocument} by name: for each element
+ * name, the sorted array of the identifiers of the elements bearing this
+ * name.
+ * <p>
+ * Since node identifiers are in document order, the elements of a given
+ * name that are descendants of a node N are a contiguous slice of a
+ * posting array, found by binary search between N and the node after N.
+ * <p>
+ * The index is built by a single scan of the document, and is immutable
+ * afterwards.
+ */
+public class NameIndex
+{
+    private static final int[] NO_NODES = new int[0];
+
+    private HashMap<QName, int[]> elements;
+    private int memorySize;
+
+    private NameIndex()
+    {
+    }
+
+    /**
+     * Builds the index of a document.
+     */
+    public static NameIndex build(FONIDocument dom)
+        throws DataModelException
+    {
+        int[][] elemIds = new int[dom.getElementNameCount()][];
+        int[] elemCounts = new int[elemIds.length];
+
+        for (int/*NId*/ id = dom.getRootNode(); id != 0;
+             id = dom.getNodeNext(id)) {
+            if (dom.getKind(id) != Node.ELEMENT)
+                continue;
+            add(elemIds, elemCounts, dom.getNameId(id), id);
+        }
+
+        NameIndex index = new NameIndex();
+        index.elements = new HashMap<QName, int[]>();
+        for (int n = 0; n < elemIds.length; n++)
+            index.enter(index.elements, dom.getElementName(n),
+                        elemIds[n], elemCounts[n]);
+        return index;
+    }
+
+    private static void add(int[][] postings, int[] counts,
+                            int nameId, int/*NId*/ id)
+    {
+        int[] ids = postings[nameId];
+        if (ids == null)
+            ids = postings[nameId] = new int[8];
+        else if (counts[nameId] == ids.length) {
+            int[] old = ids;
+            ids = postings[nameId] = new int[old.length * 2];
+            System.arraycopy(old, 0, ids, 0, old.length);
+        }
+        ids[counts[nameId]++] = id;
+    }
+
+    private void enter(HashMap<QName, int[]> map, QName name,
+                       int[] ids, int count)
+    {
+        if (ids == null || name == null)
+            return;
+        if (count < ids.length) {
+            int[] old = ids;
+            ids = new int[count];
+            System.arraycopy(old, 0, ids, 0, count);
+        }
+        map.put(name, ids);
+        memorySize += 4 * count + 48;
+    }
+
+    /**
+     * Returns the sorted identifiers of the elements of this name. The
+     * returned array must not be modified.
+     */
+    public int/*NId*/[] getElements(QName name)
+    {
+        int[] ids = elements.get(name);
+        return ids == null ? NO_NODES : ids;
+    }
+
+    /**
+     * Returns the position of the first identifier not less than id in a
+     * sorted array of identifiers (array length if none).
+     */
+    public static int lowerBound(int/*NId*/[] ids, int/*NId*/ id)
+    {
+        int lo = 0, hi = ids.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (ids[mid] < id)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    /**
+     * Estimated memory size of the index in bytes.
+     */
+    public int memorySize()
+    {
+        return memorySize;
+    }
+}
@@ -0,0 +1,314 @@
+/*
+ *    Qizx/open 4.1
+ *
+ * This code is the open-source version of Qizx.
+ * Copyright (C) 2004-2009 Axyana Software -- All rights reserved.
+ *
+ * The contents of this file are subject to the Mozilla Public License
+ *  Version 1.1 (the "License"); you may not use this file except in
+ *  compliance with the License. You may obtain a copy of the License at
+ *  http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ *  WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ *  for the specific language governing rights and limitations under the
+ *  License.
+ *
+ * The Initial Developer of the Original Code is Xavier Franc - Axyana Software.
+ *
+ */
+package com.qizx.xdm;
+
+import com.qizx.api.DataModelException;
+import com.qizx.api.Node;
+import com.qizx.api.QName;
+import com.qizx.xquery.XQTypeException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+
+/**
+ * Index of the elements of a given name in a {@link FONIDocument} by the
+ * value of a key, which is either an attribute or a child element of a
+ * given name. For example, the index of <code>product</code> elements by
+ * attribute <code>id</code>.
+ * <p>
+ * Each distinct string value of the key is associated with the sorted
+ * identifiers of the elements that have this value (an element can have
+ * several values if it has several key children). Values castable to
+ * xs:double are also indexed by numeric value.
+ * <p>
+ * Lookups return a superset of the elements whose key satisfies an
+ * equality or range condition: the condition itself is expected to be
+ * checked again on each element.
+ * <p>
+ * The index is built by a single pass on the elements, and is immutable
+ * afterwards.
+ */
+public class ValueIndex
+{
+    private static final int[][] NO_POSTINGS = new int[0][];
+
+    // distinct values in String.compareTo order, with their elements:
+    private String[] strings;
+    private int[][] stringIds;
+    // distinct numeric values in ascending order, with their elements:
+    private double[] numbers;
+    private int[][] numberIds;
+    // elements with a NaN value (order comparisons are not consistent):
+    private int[] nanIds;
+    // false if some value is not castable to xs:double:
+    private boolean numeric = true;
+    private int memorySize;
+
+    private ValueIndex()
+    {
+    }
+
+    /**
+     * Builds an index.
+     * @param dom a document
+     * @param elements sorted identifiers of the elements to index
+     * @param key name of the key attribute or child element
+     * @param attribute true if the key is an attribute, false if it is a
+     *        child element
+     */
+    public static ValueIndex build(FONIDocument dom, int/*NId*/[] elements,
+                                   QName key, boolean attribute)
+        throws DataModelException
+    {
+        int keyId = attribute ? findName(dom, key, false)
+                              : findName(dom, key, true);
+        HashMap<String, int[]> map = new HashMap<String, int[]>();
+        if (keyId >= 0)
+            for (int e = 0; e < elements.length; e++) {
+                int/*NId*/ id = elements[e];
+                if (attribute) {
+                    int/*NId*/ attr = dom.getAttribute(id, keyId);
+                    if (attr != 0)
+                        add(map, dom.pnGetStringValue(attr), id);
+                    continue;
+                }
+                int/*NId*/ kid = dom.getFirstChild(id);
+                for (; kid != 0; kid = dom.getNextSibling(kid))
+                    if (dom.getKind(kid) == Node.ELEMENT
+                        && dom.getNameId(kid) == keyId)
+                        add(map, dom.getStringValue(kid), id);
+            }
+
+        ValueIndex index = new ValueIndex();
+        int count = map.size();
+        index.strings = map.keySet().toArray(new String[count]);
+        Arrays.sort(index.strings);
+        index.stringIds = new int[count][];
+        for (int s = 0; s < count; s++) {
+            String value = index.strings[s];
+            index.stringIds[s] = trim(map.get(value));
+            index.memorySize += 64 + 2 * value.length()
+                                + 4 * index.stringIds[s].length;
+        }
+        index.buildNumbers();
+        return index;
+    }
+
+    // does not use the name tables of the document, which are not
+    // thread-safe for lookup
+    private static int findName(FONIDocument dom, QName name,
+                                boolean element)
+        throws DataModelException
+    {
+        int count = element ? dom.getElementNameCount()
+                            : dom.getOtherNameCount();
+        for (int n = 0; n < count; n++)
+            if (name.equals(element ? dom.getElementName(n)
+                                    : dom.getOtherName(n)))
+                return n;
+        return -1;
+    }
+
+    // elements are added in increasing order: ids[0] is the count
+    private static void add(HashMap<String, int[]> map, String value,
+                            int/*NId*/ id)
+    {
+        int[] ids = map.get(value);
+        if (ids == null) {
+            map.put(value, new int[] { 1, id });
+            return;
+        }
+        int cnt = ids[0];
+        if (ids[cnt] == id) // several children with the same value
+            return;
+        if (cnt + 1 == ids.length) {
+            int[] old = ids;
+            ids = new int[old.length * 2];
+            System.arraycopy(old, 0, ids, 0, old.length);
+            map.put(value, ids);
+        }
+        ids[++cnt] = id;
+        ids[0] = cnt;
+    }
+
+    private static int[] trim(int[] ids)
+    {
+        int[] res = new int[ids[0]];
+        System.arraycopy(ids, 1, res, 0, res.length);
+        return res;
+    }
+
+    private void buildNumbers()
+    {
+        int count = strings.length;
+        double[] values = new double[count];
+        Integer[] order = new Integer[count];
+        ArrayList<int[]> nans = new ArrayList<int[]>();
+        int numCount = 0;
+        for (int s = 0; s < count; s++) {
+            try {
+                values[s] = Conversion.toDouble(strings[s]);
+            }
+            catch (XQTypeException e) {
+                numeric = false;
+                return;
+            }
+            if (values[s] != values[s])
+                nans.add(stringIds[s]);
+            else
+                order[numCount++] = Integer.valueOf(s);
+        }
+        final double[] sortValues = values;
+        Arrays.sort(order, 0, numCount, new Comparator<Integer>() {
+            public int compare(Integer s1, Integer s2)
+            {
+                return Double.compare(sortValues[s1.intValue()],
+                                      sortValues[s2.intValue()]);
+            }
+        });
+        // strings with equal numeric values are merged:
+        double[] nums = new double[numCount];
+        int[][] ids = new int[numCount][];
+        int n = 0;
+        for (int i = 0; i < numCount; i++) {
+            int s = order[i].intValue();
+            if (n > 0 && nums[n - 1] == values[s])
+                ids[n - 1] = union(ids[n - 1], stringIds[s]);
+            else {
+                nums[n] = values[s];
+                ids[n++] = stringIds[s];
+            }
+        }
+        numbers = new double[n];
+        System.arraycopy(nums, 0, numbers, 0, n);
+        numberIds = new int[n][];
+        System.arraycopy(ids, 0, numberIds, 0, n);
+        memorySize += 12 * n;
+        int[] nanSet = new int[0];
+        for (int i = 0; i < nans.size(); i++)
+            nanSet = union(nanSet, nans.get(i));
+        nanIds = nanSet;
+    }
+
+    /**
+     * Returns the union of two sorted arrays of identifiers.
+     */
+    public static int[] union(int[] ids1, int[] ids2)
+    {
+        int[] res = new int[ids1.length + ids2.length];
+        int i1 = 0, i2 = 0, n = 0;
+        while (i1 < ids1.length && i2 < ids2.length) {
+            int id1 = ids1[i1], id2 = ids2[i2];
+            if (id1 <= id2) {
+                res[n++] = id1;
+                ++i1;
+                if (id1 == id2)
+                    ++i2;
+            }
+            else {
+                res[n++] = id2;
+                ++i2;
+            }
+        }
+        while (i1 < ids1.length)
+            res[n++] = ids1[i1++];
+        while (i2 < ids2.length)
+            res[n++] = ids2[i2++];
+        if (n < res.length) {
+            int[] old = res;
+            res = new int[n];
+            System.arraycopy(old, 0, res, 0, n);
+        }
+        return res;
+    }
+
+    /**
+     * Returns the elements whose key has a string value in a range, as a
+     * list of sorted arrays of identifiers.
+     * @param low lower bound, or null if none
+     * @param lowIncluded true if the lower bound is included
+     * @param high upper bound, or null if none
+     * @param highIncluded true if the upper bound is included
+     */
+    public int[][] stringRange(String low, boolean lowIncluded,
+                               String high, boolean highIncluded)
+    {
+        int lo = 0, hi = strings.length;
+        if (low != null) {
+            lo = Arrays.binarySearch(strings, low);
+            lo = (lo < 0) ? -lo - 1 : lowIncluded ? lo : lo + 1;
+        }
+        if (high != null) {
+            hi = Arrays.binarySearch(strings, high);
+            hi = (hi < 0) ? -hi - 1 : highIncluded ? hi + 1 : hi;
+        }
+        if (lo >= hi)
+            return NO_POSTINGS;
+        int[][] res = new int[hi - lo][];
+        System.arraycopy(stringIds, lo, res, 0, res.length);
+        return res;
+    }
+
+    /**
+     * Returns the elements whose key has a numeric value between two
+     * bounds (included), plus the elements whose key is NaN, as a list of
+     * sorted arrays of identifiers; or null if some values of the key are
+     * not numeric.
+     */
+    public int[][] numberRange(double low, double high)
+    {
+        if (!numeric)
+            return null;
+        int lo = lowerBound(numbers, low);
+        int hi = lowerBound(numbers, high);
+        if (hi < numbers.length && numbers[hi] == high)
+            ++hi;
+        int size = Math.max(hi - lo, 0);
+        int[][] res = new int[size + (nanIds.length > 0 ? 1 : 0)][];
+        if (size > 0)
+            System.arraycopy(numberIds, lo, res, 0, size);
+        if (nanIds.length > 0)
+            res[size] = nanIds;
+        return res;
+    }
+
+    private static int lowerBound(double[] values, double value)
+    {
+        int lo = 0, hi = values.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (values[mid] < value)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    /**
+     * Estimated memory size of the index in bytes.
+     */
+    public int memorySize()
+    {
+        return memorySize;
+    }
+}
@@ -33,9 +33,11 @@ import com.qizx.xquery.op.GlobalVariable;
 
 import java.net.URI;
 import java.text.Collator;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.TimeZone;
+import java.util.TreeMap;
 
 public class BasicStaticContext
     implements XQueryContext
@@ -390,9 +392,60 @@ public class BasicStaticContext
     {
         Check.nonNull(qname, "qname");
         GlobalVariable g = new GlobalVariable(qname, type, null);
-        globalMap.put(qname, g);
+        // copy on write: the map can be iterated by evaluations of a
+        // compiled query shared through a CompiledQueryCache
+        HashMap<QName, GlobalVariable> map =
+            (HashMap<QName, GlobalVariable>) globalMap.clone();
+        map.put(qname, g);
+        globalMap = map;
         return g;
     }
+
+    /**
+     * Returns a string that identifies all the settings of this context
+     * which influence the compilation of a query. Two contexts with the same
+     * key compile a query text into equivalent expressions.
+     */
+    public String getCompilationKey()
+    {
+        StringBuffer key = new StringBuffer();
+        key.append(baseURI).append('|');
+        key.append(defaultFunctionNS).append('|');
+        key.append(defaultElementNS).append('|');
+        key.append(preserveBoundarySpace ? 'B' : 'b');
+        key.append(preserveSchemaTypes ? 'S' : 's');
+        key.append(preserveNamespaces ? 'P' : 'p');
+        key.append(inheritNamespaces ? 'I' : 'i');
+        key.append(emptyGreatest ? 'G' : 'g');
+        key.append(ordered ? 'O' : 'o');
+        key.append(sobs ? 'C' : 'c');
+        key.append(strictTyping ? 'T' : 't').append('|');
+        key.append(defaultCollation).append('|');
+        if (registeredCollations != null)
+            key.append(new TreeMap<String, Collator>(registeredCollations)
+                           .keySet()).append('|');
+        key.append(timezone == null ? null : timezone.getID()).append('|');
+        key.append(forcedDate == null ? 0 : forcedDate.getTime()).append('|');
+        String[] prefixes = getInScopePrefixes();
+        Arrays.sort(prefixes);
+        for (int i = 0; i < prefixes.length; i++)
+            key.append(prefixes[i]).append('=')
+               .append(getNamespaceURI(prefixes[i])).append(' ');
+        key.append('|');
+        TreeMap<String, String> globals = new TreeMap<String, String>();
+        for (GlobalVariable g : globalMap.values())
+            globals.put(g.name.toString(), String.valueOf(g.declaredType));
+        key.append(globals).append('|');
+        if (optionMap != null) {
+            TreeMap<String, String> options = new TreeMap<String, String>();
+            for (QName name : optionMap.keySet())
+                options.put(name.toString(), optionMap.get(name));
+            key.append(options).append('|');
+        }
+        if (predefined != null)
+            key.append(predefined.getJavaBindingKey());
+        return key.toString();
+    }
     
     public NamespaceContext getInScopeNS()
     {
@@ -0,0 +1,245 @@
+/*
+ *    Qizx/open 4.1
+ *
+ * This code is the open-source version of Qizx.
+ * Copyright (C) 2004-2009 Axyana Software -- All rights reserved.
+ *
+ * The contents of this file are subject to the Mozilla Public License 
+ *  Version 1.1 (the "License"); you may not use this file except in 
+ *  compliance with the License. You may obtain a copy of the License at
+ *  http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ *  WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ *  for the specific language governing rights and limitations under the
+ *  License.
+ *
+ * The Initial Developer of the Original Code is Xavier Franc - Axyana Software.
+ *
+ */
+package com.qizx.xquery;
+
+import com.qizx.api.Message;
+import com.qizx.util.basic.FileUtil;
+import com.qizx.xquery.op.ModuleImport;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Cache of compiled main queries, shared by the sessions of a session
+ * manager.
+ * <p>
+ * A compiled query is found by a key made of its source text and of the
+ * settings of the static context that influence compilation (see
+ * {@link BasicStaticContext#getCompilationKey()}). Entries are discarded in
+ * LRU order when the maximum number of entries is reached.
+ * <p>
+ * A compiled query depends on the modules it imports: it is discarded when
+ * the modules of the ModuleManager are unloaded, or when the file of an
+ * imported module has been modified since compilation (in that case all
+ * modules are unloaded, because they cannot be unloaded selectively).
+ * <p>
+ * A cached query is never modified: each expression created from it has its
+ * own copy of the context settings (see {@link ExpressionContext}). The
+ * maximum number of entries can be set by
+ * {@link com.qizx.api.XQuerySessionManager#setCompiledQueryCacheSize} or by
+ * the system property <code>com.qizx.querycache.size</code>.
+ */
+public class CompiledQueryCache
+{
+    private static final String CACHE_SIZE_PROP = "com.qizx.querycache.size";
+    private static final int DEFAULT_SIZE = 128;
+
+    private int maxSize = DEFAULT_SIZE;
+    private LinkedHashMap<String, Entry> entries;
+    private long hitCount;
+    private long missCount;
+
+    public CompiledQueryCache()
+    {
+        entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> e)
+            {
+                return size() > maxSize;
+            }
+        };
+        String sysp = System.getProperty(CACHE_SIZE_PROP);
+        if (sysp != null) {
+            try {
+                setMaxSize(Integer.parseInt(sysp));
+            }
+            catch (Exception ignored) { // ignored
+            }
+        }
+    }
+
+    public synchronized int getMaxSize()
+    {
+        return maxSize;
+    }
+
+    /**
+     * Defines the maximum number of compiled queries kept in the cache.
+     * @param size a number of queries; 0 disables the cache.
+     */
+    public synchronized void setMaxSize(int size)
+    {
+        maxSize = Math.max(size, 0);
+        if (entries.size() > maxSize) {
+            Iterator<String> iter = entries.keySet().iterator();
+            for (int count = entries.size() - maxSize; count > 0; --count) {
+                iter.next();
+                iter.remove();
+            }
+        }
+    }
+
+    public synchronized int getSize()
+    {
+        return entries.size();
+    }
+
+    public synchronized void clear()
+    {
+        entries.clear();
+    }
+
+    public synchronized long getHitCount()
+    {
+        return hitCount;
+    }
+
+    public synchronized long getMissCount()
+    {
+        return missCount;
+    }
+
+    /**
+     * Returns the ratio of successful lookups, 0 if no lookup yet.
+     */
+    public synchronized double getHitRatio()
+    {
+        long total = hitCount + missCount;
+        return total == 0 ? 0 : hitCount / (double) total;
+    }
+
+    public synchronized void resetStatistics()
+    {
+        hitCount = missCount = 0;
+    }
+
+    /**
+     * Looks for a compiled query.
+     * @param key compilation key (source and static settings)
+     * @param modMan the module manager used for compiling
+     * @param messages receives the compilation warnings of a found query
+     * @return a compiled query or null if not found or obsolete
+     */
+    public MainQuery get(String key, ModuleManager modMan, List messages)
+    {
+        Entry e;
+        synchronized (this) {
+            if (maxSize == 0)
+                return null;
+            e = entries.get(key);
+            if (e != null && e.moduleGeneration != modMan.getGeneration()) {
+                entries.remove(key);
+                e = null;
+            }
+            if (e == null) {
+                ++missCount;
+                return null;
+            }
+        }
+        // check module files outside of the lock:
+        if (e.modifiedModules()) {
+            modMan.unloadAllModules();
+            synchronized (this) {
+                entries.remove(key);
+                ++missCount;
+            }
+            return null;
+        }
+        synchronized (this) {
+            ++hitCount;
+        }
+        for (int m = 0; m < e.messages.length; m++)
+            messages.add(e.messages[m]);
+        return e.query;
+    }
+
+    /**
+     * Stores a compiled query.
+     * @param messages compilation warnings, returned again on each hit
+     */
+    public void put(String key, MainQuery query, List messages,
+                    ModuleManager modMan)
+    {
+        if (getMaxSize() == 0)
+            return;
+        // the generation must be taken before the modules are inspected
+        Entry e = new Entry(query, modMan.getGeneration());
+        e.messages = (Message[]) messages.toArray(new Message[messages.size()]);
+        synchronized (this) {
+            entries.put(key, e);
+        }
+    }
+
+    private static class Entry
+    {
+        MainQuery query;
+        Message[] messages;     // warnings
+        int moduleGeneration;
+        String[] moduleFiles;   // imported modules stored as files
+        long[] moduleDates;
+
+        Entry(MainQuery query, int moduleGeneration)
+        {
+            this.query = query;
+            this.moduleGeneration = moduleGeneration;
+
+            ArrayList<File> files = new ArrayList<File>();
+            collectModuleFiles(query, files, new HashSet<ModuleContext>());
+            moduleFiles = new String[files.size()];
+            moduleDates = new long[files.size()];
+            for (int f = 0; f < moduleFiles.length; f++) {
+                moduleFiles[f] = files.get(f).getPath();
+                moduleDates[f] = files.get(f).lastModified();
+            }
+        }
+
+        boolean modifiedModules()
+        {
+            for (int f = 0; f < moduleFiles.length; f++)
+                if (new File(moduleFiles[f]).lastModified() != moduleDates[f])
+                    return true;
+            return false;
+        }
+
+        private static void collectModuleFiles(ModuleContext module,
+                                               ArrayList<File> files,
+                                               HashSet<ModuleContext> seen)
+        {
+            for (int d = 0, D = module.declarations.size(); d < D; d++) {
+                Object decl = module.declarations.get(d);
+                if (!(decl instanceof ModuleImport))
+                    continue;
+                ModuleContext imported = ((ModuleImport) decl).imported;
+                if (imported == null || !seen.add(imported))
+                    continue;
+                String uri = imported.getPhysicalURI();
+                File file = (uri == null || !uri.startsWith("file:"))
+                                ? null : FileUtil.urlToFile(uri);
+                if (file != null)
+                    files.add(file);
+                collectModuleFiles(imported, files, seen);
+            }
+        }
+    }
+}
@@ -26,17 +26,23 @@ import com.qizx.api.util.NodeSource;
 import com.qizx.api.util.PushStreamToSAX;
 import com.qizx.api.util.time.DateTime;
 import com.qizx.queries.FullText;
+import com.qizx.queries.SelectionCache;
+import com.qizx.queries.iterators.TextStatistics;
 import com.qizx.util.basic.FileUtil;
 import com.qizx.util.basic.PlatformUtil;
 import com.qizx.util.basic.Util;
 import com.qizx.xdm.BasicNode;
+import com.qizx.xdm.FONIDataModel;
+import com.qizx.xdm.FragmentStream;
 import com.qizx.xdm.IDocument;
+import com.qizx.xdm.NodeFilter;
 import com.qizx.xdm.XMLPushStreamBase;
 import com.qizx.xquery.dt.ArraySequence;
 import com.qizx.xquery.op.Expression;
 import com.qizx.xquery.op.GlobalVariable;
 import com.qizx.xquery.op.PathExpr;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
@@ -44,12 +50,14 @@ import java.io.StringWriter;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.text.Collator;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Properties;
 import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.xml.transform.Result;
 import javax.xml.transform.Source;
@@ -70,12 +78,17 @@ public class DynamicContext implements UpdaterFactory
     protected XQuerySessionImpl session;
     // Access to static context: readonly, potentially shared
     protected MainQuery mainQuery;
+    // settings of the evaluated expression (by default those of the query)
+    protected BasicStaticContext settings;
     protected URI baseURI;
 
     // provides access to values of global variables
     protected HashMap globals;
+    // global variable being initialized (kept here, not in the shared query)
+    protected GlobalVariable initVar;
     // pool of already loaded documents: guarantees doc("X") is doc("X")
-    protected HashMap<String, BasicNode> documents;
+    // (concurrent: accessed by parallel FLWOR iterations)
+    protected ConcurrentHashMap<String, BasicNode> documents;
     protected XQValue defaultCollection;
 
     protected TraceObserver traceListener;
@@ -100,13 +113,20 @@ public class DynamicContext implements UpdaterFactory
     protected Updates updateStack;
     protected UpdaterFactory updaterFactory = this;
 
+    // resources held until the end of the evaluation (temporary files)
+    private volatile EvaluationResources resources = new EvaluationResources();
+    // collections loaded, for full-text scoring
+    private TextStatistics.Collections textCollections =
+        new TextStatistics.Collections();
+
 
     DynamicContext(MainQuery query, XQuerySessionImpl session)
     {
         this.session = session;
         mainQuery = query;
+        settings = query;
         globals = new HashMap();
-        documents = new HashMap<String, BasicNode>();
+        documents = new ConcurrentHashMap<String, BasicNode>();
         if(session != null) {
             moduleMan = session.getModuleManager();
         }
@@ -114,7 +134,7 @@ public class DynamicContext implements UpdaterFactory
     
     public Collator getCollator(String uri)
     {
-        return mainQuery.getCollator(uri);
+        return settings.getCollator(uri);
     }
 
     public PrintWriter getTraceOutput()
@@ -144,6 +164,28 @@ public class DynamicContext implements UpdaterFactory
         session.setProperty(name, value);
     }
     
+    /**
+     * Returns the number of threads evaluating the iterations of FLWOR
+     * expressions, as defined by the session property
+     * {@link XQuerySessionImpl#PARALLEL_FOR}: 0 if not defined.
+     */
+    public int getForParallelism()
+    {
+        return session == null ? 0
+                    : session.getIntProperty(XQuerySessionImpl.PARALLEL_FOR);
+    }
+
+    /**
+     * Returns true if full-text selections use in-memory indexes of parsed
+     * documents, as defined by the session property
+     * {@link XQuerySessionImpl#FULLTEXT_INDEX}.
+     */
+    public boolean usesFulltextIndex()
+    {
+        return session != null
+               && session.getBooleanProperty(XQuerySessionImpl.FULLTEXT_INDEX);
+    }
+
     public int getCopyNSMode()
     {
         return mainQuery.getCopyNSMode();
@@ -159,6 +201,14 @@ public class DynamicContext implements UpdaterFactory
         return session.getFullTextFactory();
     }
 
+    /**
+     * Returns the session cache of compiled full-text selections, or null.
+     */
+    public SelectionCache getSelectionCache()
+    {
+        return session == null ? null : session.getSelectionCache();
+    }
+
     public TextTokenizer getTextTokenizer()
     {
         if(tokenizer == null)
@@ -185,45 +235,140 @@ public class DynamicContext implements UpdaterFactory
         throws DataModelException
     {
         String[] paths = pathPattern.split("[;,]");
-        ArraySequence coll = new ArraySequence(paths.length, null);
+        ArrayList<String> docPaths = new ArrayList<String>(paths.length);
         for (int i = 0; i < paths.length; i++) {
             String docPath = paths[i];
             String name = FileUtil.fileBaseName(docPath);
             if(name.indexOf('*') < 0 && name.indexOf('?') < 0) {
-                coll.addItem(getDocument(docPath));
+                docPaths.add(docPath);
             }
             else {  // simple expansion
                 File[] files = FileUtil.expandPathPattern(new File(docPath));
                 for (int j = 0; j < files.length; j++) {
-                    coll.addItem(getDocument(files[j].getAbsolutePath()));
+                    docPaths.add(files[j].getAbsolutePath());
                 }
             }
         }
-        if(coll.getSize() == 0)
+        if(docPaths.size() == 0)
             throw new DataModelException("empty collection " + pathPattern);
+        BasicNode[] docs = getDocuments(docPaths.toArray(new String[0]));
+        ArraySequence coll = new ArraySequence(docs.length, null);
+        for (int i = 0; i < docs.length; i++)
+            coll.addItem(docs[i]);
         return coll;
     }
 
     // manage a cache of documents, get documents from session/lib
     public BasicNode getDocument(String uri) throws DataModelException
+    {
+        String ruri = resolveDocumentURI(uri);
+        BasicNode docRoot = documents.get(ruri);
+        // if not found, ask to static context
+        if (docRoot == null) {
+            docRoot = session.getDocument(ruri);
+
+            if(docRoot == null)
+                throw new DataModelException("document " + uri + " not found");
+            BasicNode previous = documents.putIfAbsent(ruri, docRoot);
+            if (previous != null)
+                docRoot = previous;
+        }
+        return docRoot;
+    }
+
+    /**
+     * Returns true if documents can be streamed (see {@link #streamDocument}).
+     */
+    public boolean isStreamingEnabled()
+    {
+        return session != null && session.isStreamingEnabled();
+    }
+
+    /**
+     * Returns a stream of the elements of a document matching a simple path,
+     * or null if the document should rather be loaded by
+     * {@link #getDocument}: in particular if it has already been accessed
+     * in this context.
+     */
+    public FragmentStream streamDocument(String uri, NodeFilter[] steps,
+                                         boolean[] descendant)
+        throws DataModelException
+    {
+        String ruri = resolveDocumentURI(uri);
+        if (session == null || documents.get(ruri) != null)
+            return null;
+        return session.streamDocument(ruri, steps, descendant);
+    }
+
+    /**
+     * Gets several documents, in order. Documents not yet accessed by this
+     * context are requested from the session in one batch, which can load
+     * them in parallel. With the full-text index, the documents form a
+     * collection for the statistics of scoring in this context (see
+     * {@link #getTextCollections}).
+     */
+    public BasicNode[] getDocuments(String[] uris) throws DataModelException
+    {
+        BasicNode[] roots = new BasicNode[uris.length];
+        String[] resolved = new String[uris.length];
+        ArrayList<String> missing = new ArrayList<String>();
+        for (int i = 0; i < uris.length; i++) {
+            resolved[i] = resolveDocumentURI(uris[i]);
+            roots[i] = documents.get(resolved[i]);
+            if (roots[i] == null)
+                missing.add(resolved[i]);
+        }
+        if (missing.size() > 0) {
+            BasicNode[] loaded = session.getDocuments(
+                             missing.toArray(new String[missing.size()]));
+            for (int m = 0; m < loaded.length; m++)
+                if (loaded[m] != null)
+                    documents.putIfAbsent(missing.get(m), loaded[m]);
+            for (int i = 0; i < uris.length; i++) {
+                if (roots[i] == null)
+                    roots[i] = documents.get(resolved[i]);
+                if (roots[i] == null)
+                    throw new DataModelException("document " + uris[i]
+                                                 + " not found");
+            }
+        }
+        if (usesFulltextIndex())
+            declareCollection(resolved, roots);
+        return roots;
+    }
+
+    // all the documents, including those already accessed by this context
+    private void declareCollection(String[] uris, BasicNode[] roots)
+    {
+        ArrayList<String> docUris = new ArrayList<String>();
+        ArrayList<FONIDataModel> docs = new ArrayList<FONIDataModel>();
+        for (int i = 0; i < roots.length; i++)
+            if (roots[i] instanceof FONIDataModel.FONINode) {
+                docUris.add(uris[i]);
+                docs.add(((FONIDataModel.FONINode) roots[i]).getDM());
+            }
+        if (docs.size() > 1)
+            textCollections.declare(
+                           docUris.toArray(new String[docUris.size()]),
+                           docs.toArray(new FONIDataModel[docs.size()]));
+    }
+
+    /**
+     * Returns the collections of documents loaded by this context, used for
+     * the statistics of full-text scoring.
+     */
+    public TextStatistics.Collections getTextCollections()
+    {
+        return textCollections;
+    }
+
+    private String resolveDocumentURI(String uri) throws DataModelException
     {
         try {
             // On windows, normalize
             if(PlatformUtil.IS_WINDOWS)
                 uri = uri.replace('\\', '/');
-            String ruri = resolveURI(uri);
-            
-            BasicNode docRoot = documents.get(ruri);
-            // if not found, ask to static context
-            if (docRoot == null) {
-                docRoot = session.getDocument(ruri);
-
-                if(docRoot != null)
-                    documents.put(ruri, docRoot);
-                else
-                    throw new DataModelException("document " + uri + " not found");
-            }
-            return docRoot;
+            return resolveURI(uri);
         }
         catch (URISyntaxException e) {
             throw new DataModelException("invalid document URI: " + uri);
@@ -237,7 +382,7 @@ public class DynamicContext implements UpdaterFactory
     protected String resolveURI(String uri) throws URISyntaxException
     {
         if(baseURI == null) {
-            String buri = mainQuery.getBaseURI();
+            String buri = settings.getBaseURI();
             if(buri == null)
                 try {
                     buri = FileUtil.fileToSystemId(new File(".")) + "/";
@@ -301,6 +446,24 @@ public class DynamicContext implements UpdaterFactory
         }
     }
 
+    /**
+     * Registers a resource to be released when the current evaluation is
+     * over, i.e when its result sequence is closed.
+     */
+    public void addResource(Closeable resource)
+    {
+        resources.add(resource);
+    }
+
+    /**
+     * Starts the set of resources of a new evaluation.
+     */
+    EvaluationResources startResources()
+    {
+        resources = new EvaluationResources();
+        return resources;
+    }
+
     // Basic implementation, without Libraries.
     public XQValue eval(PathExpr path, Focus focus, EvalContext context)
         throws EvaluationException
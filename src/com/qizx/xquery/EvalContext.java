@@ -24,6 +24,7 @@ import com.qizx.api.util.time.DateTime;
 import com.qizx.util.NamespaceContext;
 import com.qizx.xdm.Conversion;
 import com.qizx.xdm.IQName;
+import com.qizx.xquery.dt.ArraySequence;
 import com.qizx.xquery.dt.SingleDouble;
 import com.qizx.xquery.dt.SingleInteger;
 import com.qizx.xquery.dt.SingleItem;
@@ -136,6 +137,68 @@ public class EvalContext implements ComparisonContext
         return ctx;
     }
 
+    /**
+     * Copies this frame, with its own registers and local variables, for the
+     * evaluation of a FLWOR iteration by another thread. Values of local
+     * variables are shared: lazy values used by the other thread must be
+     * expanded before (see {@link #expandLocal}).
+     */
+    public EvalContext copy()
+    {
+        EvalContext ctx = new EvalContext(0);
+        ctx.upContext = upContext;
+        ctx.dynCtx = dynCtx;
+        ctx.called = called;
+        ctx.depth = depth;
+        ctx.closure = closure;
+        ctx.point = point;
+        ctx.constructorNS = constructorNS;
+        ctx.traceExec = traceExec;
+        ctx.defaultCollator = defaultCollator;
+        if (locals != null)
+            ctx.locals = (XQValue[]) locals.clone();
+
+        ctx.registerInt0 = registerInt0;
+        ctx.registerInt1 = registerInt1;
+        ctx.registerInt2 = registerInt2;
+        ctx.registerInt3 = registerInt3;
+        ctx.registerDouble0 = registerDouble0;
+        ctx.registerDouble1 = registerDouble1;
+        ctx.registerDouble2 = registerDouble2;
+        ctx.registerDouble3 = registerDouble3;
+        ctx.registerString0 = registerString0;
+        ctx.registerString1 = registerString1;
+        ctx.registerString2 = registerString2;
+        ctx.registerString3 = registerString3;
+        ctx.registerItem0 = registerItem0;
+        ctx.registerItem1 = registerItem1;
+        ctx.registerItem2 = registerItem2;
+        ctx.registerItem3 = registerItem3;
+        ctx.registerItem4 = registerItem4;
+        ctx.registerItem5 = registerItem5;
+        ctx.registerItem6 = registerItem6;
+        ctx.registerItem7 = registerItem7;
+        return ctx;
+    }
+
+    /**
+     * Replaces the lazy value of a local variable by its items, so that it
+     * no longer depends on the state of this context. Registers hold plain
+     * values and are left as is.
+     */
+    public void expandLocal(int address)
+        throws EvaluationException
+    {
+        if (address < LAST_REGISTER)
+            return;
+        XQValue value = locals[address - LAST_REGISTER];
+        if (value == null || value instanceof ArraySequence
+            || value instanceof SingleItem)
+            return;
+        locals[address - LAST_REGISTER] =
+            value.bornAgain().checkTypeExpand(null, this, false, true);
+    }
+
     public EvalContext getCallerContext()
     {
         return upContext;
@@ -156,6 +219,15 @@ public class EvalContext implements ComparisonContext
         return dynCtx.mainQuery;
     }
 
+    /**
+     * Settings of the evaluated expression (base URI, default collation...),
+     * which can be modified without affecting the compiled query.
+     */
+    public final BasicStaticContext getExpressionContext()
+    {
+        return dynCtx.settings;
+    }
+
     // --------------------------------------------------------------------
 
     public XQValue error(String errCode, Expression expression)
@@ -351,15 +423,12 @@ public class EvalContext implements ComparisonContext
         throws EvaluationException
     {
         ModuleContext staticContext = getStaticContext();
-        GlobalVariable curInitVar = null;
         if(staticContext == null)   // constant reduction
             error("XPDY0002", var, "variable in constant expression");
-        else
-            curInitVar = staticContext.getCurInitVar();
         
         XQValue v = (XQValue) dynCtx.globals.get(var);
         if (v == null) {
-//            if(var == curInitVar)
+//            if(var == dynCtx.initVar)
 //                error("XQST0054", var,
 //                      "variable $" + staticContext.prefixedName(var.name)
 //                      + " depends on itself");
@@ -0,0 +1,172 @@
+/*
+ *    Qizx/open 4.1
+ *
+ * This code is the open-source version of Qizx.
+ * Copyright (C) 2004-2009 Axyana Software -- All rights reserved.
+ *
+ * The contents of this file are subject to the Mozilla Public License 
+ *  Version 1.1 (the "License"); you may not use this file except in 
+ *  compliance with the License. You may obtain a copy of the License at
+ *  http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ *  WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ *  for the specific language governing rights and limitations under the
+ *  License.
+ *
+ * The Initial Developer of the Original Code is Xavier Franc - Axyana Software.
+ *
+ */
+package com.qizx.xquery;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time limit of an evaluation. When the limit is reached, the dynamic context
+ * is put in time-out mode, which aborts the evaluation at the next check.
+ * <p>
+ * All deadlines are managed by a single shared daemon thread. A deadline must
+ * be cancelled when the evaluation is over, so that the scheduler does not
+ * keep a reference on the context.
+ * <p>
+ * Two modes are supported: elapsed (wall-clock) time, or CPU time consumed by
+ * the thread that started the evaluation. In CPU mode, the consumption is
+ * checked when the budget could possibly be exhausted, then re-scheduled
+ * according to the remaining budget.
+ */
+public class EvaluationDeadline
+    implements Runnable
+{
+    /**
+     * Value of the session property
+     * {@link XQuerySessionImpl#TIME_LIMIT_MODE}: the time limit applies to
+     * the elapsed time (default).
+     */
+    public static final String WALL_CLOCK = "wall-clock";
+    /**
+     * Value of the session property
+     * {@link XQuerySessionImpl#TIME_LIMIT_MODE}: the time limit applies to
+     * the CPU time of the evaluating thread.
+     */
+    public static final String CPU_TIME = "cpu-time";
+
+    private static final long MIN_CHECK_DELAY = 10; // ms
+    private static ScheduledThreadPoolExecutor scheduler;
+
+    private DynamicContext context;
+    private long cpuBudget; // ns, 0 if wall-clock
+    private long threadId;
+    private long cpuStart;
+    private volatile boolean cancelled;
+    private ScheduledFuture<?> task;
+
+    private EvaluationDeadline(DynamicContext context)
+    {
+        this.context = context;
+    }
+
+    /**
+     * Starts a time limit on an evaluation.
+     * @param context dynamic context of the evaluation
+     * @param maxTime maximum time in milliseconds
+     * @param cpuTime if true, measure the CPU time of the current thread
+     * instead of the elapsed time. Ignored if the JVM does not support
+     * thread CPU time measurement.
+     * @return a deadline to cancel when the evaluation is over
+     */
+    public static EvaluationDeadline start(DynamicContext context,
+                                           int maxTime, boolean cpuTime)
+    {
+        EvaluationDeadline deadline = new EvaluationDeadline(context);
+        if (cpuTime) {
+            ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+            if (threads.isCurrentThreadCpuTimeSupported()
+                && threads.isThreadCpuTimeEnabled()) {
+                deadline.threadId = Thread.currentThread().getId();
+                deadline.cpuStart = threads.getCurrentThreadCpuTime();
+                deadline.cpuBudget = maxTime * 1000000L;
+            }
+        }
+        // CPU time cannot be exhausted before elapsed time: same first delay
+        deadline.schedule(maxTime);
+        return deadline;
+    }
+
+    /**
+     * Stops monitoring the evaluation. Can be called several times.
+     */
+    public void cancel()
+    {
+        cancelled = true;
+        ScheduledFuture<?> t;
+        synchronized (this) {
+            t = task;
+            task = null;
+            context = null;
+        }
+        if (t != null)
+            t.cancel(false);
+    }
+
+    public boolean isCancelled()
+    {
+        return cancelled;
+    }
+
+    public void run()
+    {
+        DynamicContext ctx;
+        synchronized (this) {
+            ctx = context;
+            task = null;
+        }
+        if (cancelled || ctx == null)
+            return;
+        if (cpuBudget > 0) {
+            long used = ManagementFactory.getThreadMXBean()
+                            .getThreadCpuTime(threadId) - cpuStart;
+            // used < 0: thread is dead, evaluation is over
+            if (used >= 0 && used < cpuBudget) {
+                schedule(Math.max(MIN_CHECK_DELAY,
+                                  (cpuBudget - used) / 1000000L));
+                return;
+            }
+            if (used < 0)
+                return;
+        }
+        // under the lock, so that once cancel() returns the context is no
+        // longer touched, even if it is reset for a new evaluation
+        synchronized (this) {
+            if (!cancelled)
+                ctx.setTimedOut();
+        }
+    }
+
+    private synchronized void schedule(long delay)
+    {
+        if (!cancelled)
+            task = getScheduler().schedule(this, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private static synchronized ScheduledThreadPoolExecutor getScheduler()
+    {
+        if (scheduler == null) {
+            scheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                public Thread newThread(Runnable r)
+                {
+                    Thread thread = new Thread(r, "Qizx evaluation deadlines");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            // cancelled deadlines must not accumulate in the queue:
+            scheduler.setRemoveOnCancelPolicy(true);
+        }
+        return scheduler;
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ *    Qizx/open 4.1
+ *
+ * This code is the open-source version of Qizx.
+ * Copyright (C) 2004-2009 Axyana Software -- All rights reserved.
+ *
+ * The contents of this file are subject to the Mozilla Public License 
+ *  Version 1.1 (the "License"); you may not use this file except in 
+ *  compliance with the License. You may obtain a copy of the License at
+ *  http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ *  WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ *  for the specific language governing rights and limitations under the
+ *  License.
+ *
+ * The Initial Developer of the Original Code is Xavier Franc - Axyana Software.
+ *
+ */
+package com.qizx.xquery;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * Resources held by an evaluation until it is over (for example temporary
+ * files of a sort), released when the result sequence is closed, or for a
+ * raw evaluation, when the expression is evaluated again.
+ * <p>
+ * Resources may be added by parallel workers of the evaluation. A resource
+ * added after the release is released immediately.
+ */
+class EvaluationResources
+    implements Closeable
+{
+    private ArrayList<Closeable> resources = new ArrayList<Closeable>();
+    private boolean released;
+
+    void add(Closeable resource)
+    {
+        synchronized (this) {
+            if (!released) {
+                resources.add(resource);
+                return;
+            }
+        }
+        release(resource);
+    }
+
+    public void close()
+    {
+        Closeable[] list;
+        synchronized (this) {
+            released = true;
+            list = resources.toArray(new Closeable[resources.size()]);
+            resources.clear();
+        }
+        for (int r = 0; r < list.length; r++)
+            release(list[r]);
+    }
+
+    private static void release(Closeable resource)
+    {
+        try {
+            resource.close();
+        }
+        catch (IOException e) {
+            // ignored
+        }
+    }
+}
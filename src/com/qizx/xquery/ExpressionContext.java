@@ -0,0 +1,49 @@
+/*
+ *    Qizx/open 4.1
+ *
+ * This code is the open-source version of Qizx.
+ * Copyright (C) 2004-2009 Axyana Software -- All rights reserved.
+ *
+ * The contents of this file are subject to the Mozilla Public License 
+ *  Version 1.1 (the "License"); you may not use this file except in 
+ *  compliance with the License. You may obtain a copy of the License at
+ *  http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ *  WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ *  for the specific language governing rights and limitations under the
+ *  License.
+ *
+ * The Initial Developer of the Original Code is Xavier Franc - Axyana Software.
+ *
+ */
+package com.qizx.xquery;
+
+import com.qizx.xquery.op.GlobalVariable;
+
+import java.util.Collection;
+
+/**
+ * Context returned by {@link ExpressionImpl#getContext()}: a copy of the
+ * settings of the compiled query, owned by one expression.
+ * <p>
+ * The compiled query can be shared by several expressions (see
+ * {@link CompiledQueryCache}): the settings used at evaluation time (current
+ * date, implicit timezone, default collation, base URI, declared variables)
+ * are read from this copy, so changing them affects only this expression.
+ */
+class ExpressionContext extends BasicStaticContext
+{
+    ExpressionContext(BasicStaticContext template)
+    {
+        copy(template);
+    }
+
+    /**
+     * Global variables declared in the query or through this context.
+     */
+    Collection<GlobalVariable> getGlobals()
+    {
+        return globalMap.values();
+    }
+}
@@ -32,31 +32,40 @@ import org.xml.sax.InputSource;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.HashMap;
-import java.util.Timer;
-import java.util.TimerTask;
 
 public class ExpressionImpl
     implements Expression, Focus
 {
     private ItemFactory itemMaker;
     private MainQuery query;
+    private ExpressionContext context;
     private DynamicContext dynCtx;
     private EvalContext evalContext;
     protected HashMap externGlobals;
     private XQItem currentItem;
     private int timeOut;
+    private EvaluationDeadline deadline;
+    private EvaluationResources resources;
     
-    ExpressionImpl(DynamicContext context, MainQuery query)
+    /**
+     * @param settings initial settings of the expression context: those of
+     * the query or of another expression
+     */
+    ExpressionImpl(DynamicContext dynContext, MainQuery query,
+                   BasicStaticContext settings)
     {
         this.query = query;
         itemMaker = new ItemFactoryImpl();
-        dynCtx = context;
+        // the query can be shared: settings are modified in a copy
+        context = new ExpressionContext(settings);
+        dynCtx = dynContext;
+        dynCtx.settings = context;
         externGlobals = new HashMap();
     }
     
     public XQueryContext getContext()
     {
-        return query;
+        return context;
     }
 
     public SequenceType getStaticType()
@@ -73,7 +82,8 @@ public class ExpressionImpl
         throws CompilationException
     {
         Check.nonNull(varName, "varName");
-        if(query.getStrictCompliance() && 
+        if(context.getStrictCompliance() && 
+             context.getVariableType(varName) == null &&
              query.lookforGlobalVariable(varName) == null)
                 throw new CompilationException("undefined global variable " + varName);
         externGlobals.put(varName, value);
@@ -156,45 +166,73 @@ public class ExpressionImpl
     {
         XQValue result = rawEval();
         // wrap raw result
-        return new ResultSequence(result);
+        ResultSequence seq = new ResultSequence(result);
+        // time limit stops when results are closed or exhausted
+        seq.setDeadline(deadline);
+        // the sequence owns the resources of this evaluation:
+        seq.setResources(resources);
+        resources = null;
+        return seq;
     }
 
     public XQValue rawEval()
         throws EvaluationException
     {
+        // the deadline of the previous evaluation must not stop this one:
+        stopDeadline();
+        // temporary files of a previous raw result are no longer used:
+        if (resources != null)
+            resources.close();
+        resources = dynCtx.startResources();
         // if current date not set explicitly in ctx, it is computed here
-        dynCtx.setDate(query.getCurrentDate(), query.getImplicitTimeZone());
+        dynCtx.setDate(context.getCurrentDate(),
+                       context.getImplicitTimeZone());
         // Create a new eval context with the runtime (dyn) context:
         evalContext = new EvalContext(dynCtx);
         dynCtx.resume(true);    // reset
 
         if (timeOut > 0) {
             // manage timeout
-            Timer timer = new Timer();
-            timer.schedule(new TimerTask() {
-                    public void run()
-                    {
-                        dynCtx.setTimedOut();
-                    }
-                }, 
-                timeOut);
+            Object mode = dynCtx.getSessionProperty(
+                                      XQuerySessionImpl.TIME_LIMIT_MODE);
+            deadline = EvaluationDeadline.start(dynCtx, timeOut,
+                                 EvaluationDeadline.CPU_TIME.equals(mode));
         }
 
-        // Init globals from bound values and/or from init expressions
-        query.initGlobals(evalContext, externGlobals);
-        // actually evaluate compiled expression:
-        XQValue results = query.eval(this, evalContext);
-        if(query.body.isUpdating()) {
-            // need to expand: otherwise updates are not generated
-            try {
-                results = results.checkTypeExpand(null, evalContext, false, true);
-            }
-            catch(EmptyException ignored) { 
-                results = XQValue.empty;
+        try {
+            // Init globals from bound values and/or from init expressions
+            query.initGlobals(evalContext, externGlobals,
+                              context.getGlobals());
+            // actually evaluate compiled expression:
+            XQValue results = query.eval(this, evalContext);
+            if(query.body.isUpdating()) {
+                // need to expand: otherwise updates are not generated
+                try {
+                    results = results.checkTypeExpand(null, evalContext,
+                                                      false, true);
+                }
+                catch(EmptyException ignored) { 
+                    results = XQValue.empty;
+                }
+                dynCtx.applyUpdates();
             }
-            dynCtx.applyUpdates();
+            return results;
         }
-        return results;
+        catch (EvaluationException e) {
+            stopDeadline();
+            throw e;
+        }
+        catch (RuntimeException e) {
+            stopDeadline();
+            throw e;
+        }
+    }
+
+    private void stopDeadline()
+    {
+        if (deadline != null)
+            deadline.cancel();
+        deadline = null;
     }
 
     public void cancelEvaluation()
@@ -310,6 +348,14 @@ public class ExpressionImpl
         return dynCtx;
     }
 
+    /**
+     * Returns the compiled query. 
+     */
+    public MainQuery getMainQuery()
+    {
+        return query;
+    }
+
     // --------------- implement Focus ------------------------------------
 
     public XQItem currentItem()
@@ -25,10 +25,17 @@ import com.qizx.xdm.XMLPushStreamBase;
 import com.qizx.xquery.impl.EmptyException;
 import com.qizx.xquery.op.ExitException;
 import com.qizx.xquery.op.Expression;
+import com.qizx.xquery.op.StreamingPath;
 
 /**
  * A compiled main Query.
  * This is essentially a module plus a main expression.
+ * <p>
+ * After static checking, a MainQuery and its expression tree are not modified
+ * by evaluation: all the state of an execution is held by a
+ * {@link DynamicContext} and its {@link EvalContext}s, and by the sequences
+ * returned by the expressions. Therefore one compiled query can be evaluated
+ * concurrently by several {@link ExpressionImpl}, one per thread.
  */
 public class MainQuery extends ModuleContext
 {
@@ -64,6 +71,7 @@ public class MainQuery extends ModuleContext
         resetLocals(); // twice is better
         if (body != null) {
             body = simpleStaticCheck(body, 0);
+            StreamingPath.markConsumers(body);
             allocateLocalAddress(lastLocal);
             // dumpLocals2("locals after allocation");
         }
@@ -36,6 +36,7 @@ import com.qizx.xquery.op.*;
 import com.qizx.xquery.op.VarReference.Local;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.Iterator;
 
@@ -68,7 +69,6 @@ public class ModuleContext extends BasicStaticContext
     protected HashMap functionMap = new HashMap(); // quick access
     protected HashMap importedFunctions = new HashMap();
     protected HashMap importedGlobals = new HashMap();
-    private GlobalVariable curInitVar;
 
     protected MatchOptions defaultFTOptions;
     
@@ -262,6 +262,17 @@ public class ModuleContext extends BasicStaticContext
      */
     void initGlobals(EvalContext context, HashMap globals)
         throws EvaluationException
+    {
+        initGlobals(context, globals, globalMap.values());
+    }
+
+    /**
+     * Initializes global variables.
+     * @param declared global variables of this module, plus those declared
+     * through the API in the context of the evaluated expression
+     */
+    void initGlobals(EvalContext context, HashMap globals, Collection declared)
+        throws EvaluationException
     {
         if (predefined != null)
             predefined.initGlobals(context, globals);
@@ -283,7 +294,7 @@ public class ModuleContext extends BasicStaticContext
         }
         
         // Globals added by API in context are not declared: do it first
-        for (Iterator iter = globalMap.values().iterator(); iter.hasNext();) {
+        for (Iterator iter = declared.iterator(); iter.hasNext();) {
             GlobalVariable var = (GlobalVariable) iter.next();
             XQValue init = (XQValue) globals.get(var.name);
             
@@ -305,7 +316,7 @@ public class ModuleContext extends BasicStaticContext
                 continue;
             GlobalVariable var = (GlobalVariable) declarations.get(g);
             XQType declaredType = var.declaredType;
-            curInitVar = var;
+            context.dynCtx.initVar = var;
             if (var.init != null) {
                 XQValue v = var.init.eval(null, context);
                 try { // expand with type checking
@@ -319,7 +330,7 @@ public class ModuleContext extends BasicStaticContext
                     context.error(var, tex);
                 }
                 context.setGlobal(var, v);
-                curInitVar = null;
+                context.dynCtx.initVar = null;
             }
 
             QName gname = var.name;
@@ -363,7 +374,7 @@ public class ModuleContext extends BasicStaticContext
         }
     }
 
-    public EvalContext getConstantEvalContext()
+    public synchronized EvalContext getConstantEvalContext()
     {
         if(cstEvalContext == null) {
             MainQuery main = this instanceof MainQuery? (MainQuery) this : null;
@@ -1086,9 +1097,4 @@ public class ModuleContext extends BasicStaticContext
             optionMap = new HashMap<QName, String>();
         optionMap.put(optionName, value);
     }
-
-    protected GlobalVariable getCurInitVar()
-    {
-        return curInitVar;
-    }
 }
@@ -54,6 +54,8 @@ public class ModuleManager
 
     private ModuleResolver resolver;
     private HashMap modules = new HashMap();
+    // incremented when modules are unloaded:
+    private volatile int generation;
 
     private URL xslBaseURL;
     private TransformerFactory xsltFactory;
@@ -96,6 +98,16 @@ public class ModuleManager
     public synchronized void unloadAllModules()
     {
         modules = new HashMap();
+        ++generation;
+    }
+
+    /**
+     * Returns a number that changes each time modules are unloaded. Compiled
+     * queries that import modules are obsolete when this number changes.
+     */
+    public int getGeneration()
+    {
+        return generation;
     }
 
     public synchronized boolean alreadyLoadedModule(String uri)
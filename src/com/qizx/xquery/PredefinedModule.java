@@ -123,6 +123,14 @@ public class PredefinedModule extends ModuleContext
         javaPlugger.authorizeClass(className);
     }
 
+    /**
+     * Returns a description of the Java classes authorized as extensions.
+     */
+    public String getJavaBindingKey()
+    {
+        return javaPlugger.getAuthorizationKey();
+    }
+
     public Function localFunctionLookup(QName name)
         throws SecurityException
     {
@@ -30,6 +30,8 @@ public class ResultSequence
 {
     private XQValue values;
     long position;
+    private EvaluationDeadline deadline;
+    private EvaluationResources resources;
     
     /**
      * Builds an in-memory sequence. This sequence supports adding items.
@@ -44,6 +46,24 @@ public class ResultSequence
         this.values = seq;
     }
 
+    /**
+     * Attaches the time limit of the evaluation that produced this sequence:
+     * it is cancelled when the sequence is closed or exhausted.
+     */
+    void setDeadline(EvaluationDeadline deadline)
+    {
+        this.deadline = deadline;
+    }
+
+    /**
+     * Attaches the resources of the evaluation that produced this sequence:
+     * they are released when the sequence is closed.
+     */
+    void setResources(EvaluationResources resources)
+    {
+        this.resources = resources;
+    }
+
     /**
      * Adds an item at the end of the sequence. This is supported only if the
      * sequence was built with the default constructor (in-memory sequence).
@@ -102,8 +122,11 @@ public class ResultSequence
         throws EvaluationException
     {
         checkStatus();
-        if(!values.next())
+        if(!values.next()) {
+            if(deadline != null)
+                deadline.cancel();
             return false;
+        }
         ++position;
         return true;
     }
@@ -222,6 +245,10 @@ public class ResultSequence
          if(values != null)
              values.close();
          values = null;
+         if(deadline != null)
+             deadline.cancel();
+         if(resources != null)
+             resources.close();
     }
 
     protected void finalize()   // fool proofing
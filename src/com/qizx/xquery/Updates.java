@@ -527,10 +527,9 @@ public class Updates
                 BasicNode root = dm.getDocumentNode();
 
                 // output appropriate for the doc:
-                if (doc instanceof IDocument) {
-                    IDocument idoc = (IDocument) doc;
+                if (doc instanceof IDocument || doc instanceof MappedDocument) {
                     XMLPushStreamBase pdoc =
-                        updaterFactory.newParsedDocument(idoc.getBaseURI());
+                        updaterFactory.newParsedDocument(doc.getBaseURI());
                     pdoc.setCheckNS(true);
                     rebuild(root, pdoc);
                     updaterFactory.endParsedDocument();
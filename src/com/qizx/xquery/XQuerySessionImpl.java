@@ -25,8 +25,12 @@ import com.qizx.api.Indexing.WordSieve;
 import com.qizx.api.fulltext.FullTextFactory;
 import com.qizx.api.util.XMLSerializer;
 import com.qizx.api.util.fulltext.DefaultFullTextFactory;
+import com.qizx.queries.SelectionCache;
+import com.qizx.util.basic.Check;
 import com.qizx.xdm.BasicNode;
 import com.qizx.xdm.FONIDataModel;
+import com.qizx.xdm.FragmentStream;
+import com.qizx.xdm.NodeFilter;
 import com.qizx.xquery.PredefinedModule.BasicFunctionPlugger;
 import com.qizx.xquery.ext.ExtensionFunction;
 import com.qizx.xquery.ext.SqlConnection;
@@ -42,6 +46,36 @@ import java.util.HashMap;
 public class XQuerySessionImpl
     implements XQuerySession, MessageReceiver
 {
+    /**
+     * Session property: maximum number of documents of a collection parsed
+     * concurrently by fn:collection (an Integer or a String). Values lower
+     * than 2 (the default) mean sequential loading.
+     */
+    public static final String COLLECTION_LOADING_THREADS =
+        "collection-loading-threads";
+    /**
+     * Session property: how the time limit of expressions is measured,
+     * either {@link EvaluationDeadline#WALL_CLOCK} (the default) or
+     * {@link EvaluationDeadline#CPU_TIME}.
+     */
+    public static final String TIME_LIMIT_MODE = "time-limit-mode";
+    /**
+     * Session property: number of threads evaluating the iterations of FLWOR
+     * expressions that have no side effects (an Integer or a String). Values
+     * lower than 2 (the default) mean sequential evaluation, except for
+     * expressions marked by the pragma <code>(# x:parallel #)</code>.
+     * Larger values are limited to the number of processors.
+     */
+    public static final String PARALLEL_FOR = "parallel-for";
+    /**
+     * Session property: if true (a Boolean or a String), full-text
+     * selections are evaluated on parsed documents through an in-memory index
+     * of the words of each document, built on first use and kept while the
+     * document is cached. Scores of nodes of parsed documents are then
+     * computed by BM25 on the statistics of their collection.
+     */
+    public static final String FULLTEXT_INDEX = "fulltext-index";
+
     private XQuerySessionManager manager;
     private BasicStaticContext xqContext;
     private ItemFactory itemMaker;
@@ -53,6 +87,8 @@ public class XQuerySessionImpl
     private HashMap properties;
     
     protected FullTextFactory fulltextProvider;
+    // simple full-text queries compiled by ft:contains:
+    private SelectionCache selectionCache = new SelectionCache();
     
     public XQuerySessionImpl(XQuerySessionManager manager)
     {
@@ -122,7 +158,71 @@ public class XQuerySessionImpl
     public Expression compileExpression(String xquerySource)
         throws CompilationException
     {
-        return compile(xquerySource, xqContext);
+        CompiledQueryCache queryCache = manager.getCompiledQueryCache();
+        if (queryCache == null || queryCache.getMaxSize() == 0)
+            return compile(xquerySource, xqContext);
+
+        ModuleManager modMan = manager.getModuleManager();
+        String key = getCompilationKey(xquerySource);
+        messages.clear();
+        MainQuery query = queryCache.get(key, modMan, messages);
+        if (query != null) {
+            errorCount = 0;
+            firstErrorCode = latestErrorCode = null;
+            return newExpression(query, query);
+        }
+        ExpressionImpl expr = compile(xquerySource, xqContext);
+        queryCache.put(key, expr.getMainQuery(), messages, modMan);
+        return expr;
+    }
+
+    /**
+     * Creates an Expression of this session which shares the compiled plan of
+     * an Expression compiled by this session or by another session of the
+     * same manager, without compiling again.
+     * <p>The compiled plan is immutable and can be evaluated concurrently by
+     * several threads, while each Expression holds the state of its own
+     * evaluations (bound variables, dynamic and evaluation contexts). So the
+     * typical usage is: one session and one Expression per thread, all
+     * created from a single compiled Expression.
+     * <p>The settings of the context of the compiled Expression (current
+     * date, implicit timezone...) are copied. Variable bindings, implicit
+     * collection, time-out etc. are not copied.
+     * @param compiled an Expression returned by {@link #compileExpression}
+     * @return a new Expression ready for binding and evaluation in this
+     * session
+     */
+    public Expression newExpression(Expression compiled)
+    {
+        Check.implementation(compiled, ExpressionImpl.class, Expression.class);
+        ExpressionImpl expr = (ExpressionImpl) compiled;
+        return newExpression(expr.getMainQuery(),
+                             (BasicStaticContext) expr.getContext());
+    }
+
+    private ExpressionImpl newExpression(MainQuery query,
+                                         BasicStaticContext settings)
+    {
+        return new ExpressionImpl(new DynamicContext(query, this), query,
+                                  settings);
+    }
+
+    // source + settings of static context and of this session
+    private String getCompilationKey(String xquerySource)
+    {
+        StringBuffer key = new StringBuffer(xquerySource.length() + 200);
+        key.append(xqContext.getCompilationKey());
+        if (moduleResolver != null)
+            key.append("|mr").append(System.identityHashCode(moduleResolver));
+        if (fulltextProvider != null) {
+            key.append("|ft").append(fulltextProvider.getClass().getName());
+            // a stateless default factory is equivalent to any other one
+            if (fulltextProvider.getClass() != DefaultFullTextFactory.class)
+                key.append('@').append(
+                                 System.identityHashCode(fulltextProvider));
+        }
+        key.append('\n').append(xquerySource);
+        return key.toString();
     }
 
     ExpressionImpl compile(String xquerySource, BasicStaticContext context)
@@ -174,9 +274,7 @@ public class XQuerySessionImpl
             compilError();
         }
         
-        ExpressionImpl expr = 
-            new ExpressionImpl(new DynamicContext(query, this), query);
-        return expr;
+        return newExpression(query, query);
     }
 
     private void compilError()
@@ -286,6 +384,38 @@ public class XQuerySessionImpl
         return doc == null? null : doc.getDocumentNode();
     }
 
+    public boolean isStreamingEnabled()
+    {
+        return manager.getDocumentCache().getStreamingThreshold() >= 0;
+    }
+
+    /**
+     * Returns a stream of the elements of a document matching a simple path,
+     * or null if the document should rather be loaded.
+     * @see com.qizx.xdm.DocumentPool#streamDocument
+     */
+    public FragmentStream streamDocument(String uri, NodeFilter[] steps,
+                                         boolean[] descendant)
+    {
+        return manager.getDocumentCache().streamDocument(uri, steps,
+                                                         descendant);
+    }
+
+    /**
+     * Gets several documents, in the order of the URIs. Documents not yet
+     * parsed are loaded in parallel according to the session property
+     * {@link #COLLECTION_LOADING_THREADS}.
+     */
+    public BasicNode[] getDocuments(String[] uris) throws DataModelException
+    {
+        FONIDataModel[] docs = manager.getDocumentCache()
+                  .findDocuments(uris, getIntProperty(COLLECTION_LOADING_THREADS));
+        BasicNode[] roots = new BasicNode[docs.length];
+        for (int i = 0; i < docs.length; i++)
+            roots[i] = docs[i] == null? null : docs[i].getDocumentNode();
+        return roots;
+    }
+
     public ModuleResolver getModuleResolver()
     {
         return moduleResolver;
@@ -318,6 +448,15 @@ public class XQuerySessionImpl
     public void setFullTextFactory(FullTextFactory fulltextProvider)
     {
         this.fulltextProvider = fulltextProvider;
+        selectionCache.clear();   // tokenizers and thesauri may differ
+    }
+
+    /**
+     * Returns the cache of full-text selections compiled in this session.
+     */
+    public SelectionCache getSelectionCache()
+    {
+        return selectionCache;
     }
 
     public Object getProperty(String name)
@@ -331,4 +470,32 @@ public class XQuerySessionImpl
             properties = new HashMap();
         properties.put(name, value);
     }
+
+    /**
+     * Returns the value of a numeric property, or 0 if not defined or not
+     * numeric.
+     */
+    public int getIntProperty(String name)
+    {
+        Object value = getProperty(name);
+        if (value instanceof Number)
+            return ((Number) value).intValue();
+        if (value != null)
+            try {
+                return Integer.parseInt(value.toString().trim());
+            }
+            catch (NumberFormatException ignored) { ; }
+        return 0;
+    }
+
+    /**
+     * Returns the value of a boolean property, false if not defined.
+     */
+    public boolean getBooleanProperty(String name)
+    {
+        Object value = getProperty(name);
+        if (value instanceof Boolean)
+            return ((Boolean) value).booleanValue();
+        return value != null && "true".equalsIgnoreCase(value.toString().trim());
+    }
 }
@@ -23,21 +23,38 @@ import com.qizx.api.EvaluationException;
 import com.qizx.util.basic.Comparison;
 import com.qizx.util.basic.HTable;
 import com.qizx.util.basic.HTable.Key;
+import com.qizx.util.basic.LongSet;
 import com.qizx.xquery.XQItem;
+import com.qizx.xquery.XQType;
 import com.qizx.xquery.XQValue;
 
 import java.text.Collator;
+import java.util.ArrayList;
+import java.util.HashSet;
 
 /**
  * Removes duplicate items from a source value.
+ * <p>
+ * As long as items are all integers, all doubles or all strings, their
+ * primitive values are stored in a specialized set. At the first item of
+ * another kind, the items seen so far are moved to a generic table.
  */
 public class DistinctValueSequence extends SingleSourceSequence
 {
+    private static final int INTEGER = 1;
+    private static final int DOUBLE = 2;
+    private static final int STRING = 3;
+
     private Collator collator;
-    private HTable seenSet = new HTable();
+    private HTable seenSet;     // generic, if not null
     private HashedItem probe = new HashedItem(null);
     private Atomizer atoms;
 
+    private int kind;           // of all items so far
+    private LongSet numbers;    // longs, or bits of doubles
+    private HashSet<String> strings;
+    private ArrayList<XQItem> seen; // distinct items, for moving them
+
     public DistinctValueSequence(XQValue source, Collator collator)
     {
         super(source);
@@ -50,6 +67,19 @@ public class DistinctValueSequence extends SingleSourceSequence
     {
         for (; atoms.next();) {
             item = atoms.getItem();
+            if (seenSet == null) {
+                int k = kind(item);
+                if (kind == 0 && k != 0)
+                    start(k);
+                if (k != 0 && k == kind) {
+                    if (addPrimitive(item)) {
+                        seen.add(item);
+                        return true;
+                    }
+                    continue;
+                }
+                toGeneric();
+            }
             probe.item = item;
             if (seenSet.hasPut(probe)) {
                 return true;
@@ -58,6 +88,58 @@ public class DistinctValueSequence extends SingleSourceSequence
         return false;
     }
 
+    private static int kind(XQItem item)
+        throws EvaluationException
+    {
+        int code = item.getItemType().quickCode();
+        if (item instanceof IntegerValue)
+            return (code == XQType.QT_INT) ? INTEGER : 0;
+        if (item instanceof DoubleValue)
+            return (code == XQType.QT_DOUBLE) ? DOUBLE : 0;
+        if (item instanceof StringValue)
+            return (code == XQType.QT_STRING || code == XQType.QT_UNTYPED
+                    || code == XQType.QT_ANYURI) ? STRING : 0;
+        return 0;
+    }
+
+    private void start(int k)
+    {
+        kind = k;
+        if (k == STRING)
+            strings = new HashSet<String>();
+        else
+            numbers = new LongSet();
+        seen = new ArrayList<XQItem>();
+    }
+
+    private boolean addPrimitive(XQItem item)
+        throws EvaluationException
+    {
+        switch (kind) {
+        case INTEGER:
+            return numbers.add(item.getInteger());
+        case DOUBLE:
+            double d = item.getDouble();
+            // 0 = -0, and all NaN are equal:
+            return numbers.add(d == 0 ? 0 : Double.doubleToLongBits(d));
+        default:
+            return strings.add(item.getString());
+        }
+    }
+
+    private void toGeneric()
+    {
+        seenSet = new HTable();
+        if (seen != null)
+            for (int i = 0, size = seen.size(); i < size; i++) {
+                probe.item = seen.get(i);
+                seenSet.hasPut(probe);
+            }
+        seen = null;
+        numbers = null;
+        strings = null;
+    }
+
     public XQValue bornAgain()
     {
         return new DistinctValueSequence(source.bornAgain(), collator);
@@ -27,6 +27,7 @@ import com.qizx.api.fulltext.FullTextFactory;
 import com.qizx.api.fulltext.TextTokenizer;
 import com.qizx.api.fulltext.Thesaurus;
 import com.qizx.queries.FullText;
+import com.qizx.queries.SelectionCache;
 import com.qizx.queries.SimpleFullText;
 import com.qizx.queries.FullText.MatchOptions;
 import com.qizx.queries.FullText.Selection;
@@ -73,13 +74,48 @@ public class FT_Contains extends ExtensionFunction
         throws EvaluationException
     {
         DynamicContext dynCtx = context.dynamicContext();
-        FullTextFactory ftf = dynCtx.getFulltextFactory();
-        MatchOptions defaultOptions = dynCtx.getDefaultFTOptions();
-        TextTokenizer tokenizer =
-            ftf.getTokenizer(defaultOptions.language);
+        return compileQuery(query, dynCtx.getDefaultFTOptions(), context);
+    }
+
+    /**
+     * Compiles a query in the simple syntax, or returns the selection
+     * cached in the session for the same query and options. The returned
+     * selection must not be modified.
+     * @param optionArg optional element specifying options, or null
+     * @param expand true if the selection is to be expanded by thesauri
+     */
+    public static Selection compileQuery(String query, Expression optionArg,
+                                         boolean expand,
+                                         Focus focus, EvalContext context)
+        throws EvaluationException, DataModelException
+    {
+        DynamicContext dynCtx = context.dynamicContext();
+        MatchOptions options = dynCtx.getDefaultFTOptions();
+        if(optionArg != null) {
+            options = new MatchOptions(options);
+            parseOptions(focus, context, optionArg, options);
+        }
+        SelectionCache cache = dynCtx.getSelectionCache();
+        Selection q = (cache == null)? null : cache.get(query, options, expand);
+        if(q == null) {
+            q = compileQuery(query, options, context);
+            if(expand)
+                q = q.applyThesauri();
+            if(cache != null)
+                cache.put(query, options, expand, q);
+        }
+        return q;
+    }
+
+    private static Selection compileQuery(String query, MatchOptions options,
+                                          EvalContext context)
+        throws EvaluationException
+    {
+        FullTextFactory ftf = context.dynamicContext().getFulltextFactory();
+        TextTokenizer tokenizer = ftf.getTokenizer(options.language);
         try {
             SimpleFullText parser = new SimpleFullText(tokenizer);
-            return parser.parseQuery(query, defaultOptions);
+            return parser.parseQuery(query, options);
         }
         catch (DataModelException e) {
             throw new EvaluationException(e.getErrorCode(), e.getMessage());
@@ -163,24 +199,25 @@ public class FT_Contains extends ExtensionFunction
             FT_Contains.Exec ftc = (FT_Contains.Exec) queryArg;
 
             String querySrc = ftc.args[0].evalAsString(focus, context);
-            query = FT_Contains.compileQuery(querySrc, context);
-            
-            // options: just modify the matchOptions of the Selection
-            if(ftc.args.length > 1) {
-                Expression opArg = ftc.args[ftc.args.length - 1];
-                try {
-                    FT_Contains.parseOptions(focus, context, opArg,
-                                             query.getMatchOptions());
-                }
-                catch (DataModelException e) {
-                    context.error(e.getErrorCode(), queryArg, e.getMessage());
-                }
+            Expression opArg = (ftc.args.length > 1)
+                                   ? ftc.args[ftc.args.length - 1] : null;
+            try {
+                return FT_Contains.compileQuery(querySrc, opArg, true,
+                                                focus, context);
+            }
+            catch (DataModelException e) {
+                context.error(e.getErrorCode(), queryArg, e.getMessage());
             }
         }
         else if(XQType.STRING.isSuperType(queryArg.getType().itemType())) {
             // simple query:
             String qs = queryArg.evalAsString(focus, context);
-            query = FT_Contains.compileQuery(qs, context);
+            try {
+                return FT_Contains.compileQuery(qs, null, true, focus, context);
+            }
+            catch (DataModelException e) { // not thrown without options
+                context.error(e.getErrorCode(), queryArg, e.getMessage());
+            }
         }
         else 
             context.error("XQFT0100", queryArg,
@@ -196,8 +233,9 @@ public class FT_Contains extends ExtensionFunction
     public static class Exec extends Function.BoolCall
     {
         boolean isConstant;
-        // initialized on first call if constant
-        FullText.Selection cachedQuery;
+        // initialized on first call if constant; may be computed twice by
+        // concurrent executions, which is harmless
+        volatile FullText.Selection cachedQuery;
         
         
         // detect constant query/options and precompile
@@ -211,21 +249,18 @@ public class FT_Contains extends ExtensionFunction
             }
         }
         
-        public synchronized Selection prepareQuery(Focus focus, EvalContext context)
+        public Selection prepareQuery(Focus focus, EvalContext context)
             throws EvaluationException
         {
-            if(cachedQuery != null)
-                return cachedQuery;
+            Selection cached = cachedQuery;
+            if(cached != null)
+                return cached;
             try {
                 String query = args[0].evalAsString(focus, context);
-                Selection q = compileQuery(query, context);
-                
-                // options: just modify the matchOptions of the Selection
-                if(args.length > 1) {
-                    Expression opArg = args[args.length - 1];
-                    parseOptions(focus, context, opArg, q.getMatchOptions());
-                }
-                
+                Expression opArg = (args.length > 1)? args[args.length - 1]
+                                                    : null;
+                Selection q = compileQuery(query, opArg, false,
+                                           focus, context);
                 if(isConstant)
                     cachedQuery = q;
                 return q;
@@ -236,21 +271,35 @@ public class FT_Contains extends ExtensionFunction
             }
         }
 
+        /**
+         * Returns the query if it is constant and applies to the context
+         * item, otherwise null.
+         */
+        public Selection getConstantQuery(EvalContext context)
+            throws EvaluationException
+        {
+            if(!isConstant || args.length == 3)
+                return null;
+            return prepareQuery(null, context);
+        }
+
         public boolean evalAsBoolean(Focus focus, EvalContext context)
             throws EvaluationException
         {
             Selection query = prepareQuery(focus, context);
-            FullTextFactory ff = context.dynamicContext().getFulltextFactory();
+            DynamicContext dynCtx = context.dynamicContext();
+            FullTextFactory ff = dynCtx.getFulltextFactory();
+            boolean indexed = dynCtx.usesFulltextIndex();
             try {
                 if(args.length == 3) {
                     XQValue seq = args[1].eval(focus, context);
                     // stop on first matching node:
-                    return query.matches(seq, null, ff);
+                    return query.matches(seq, null, ff, indexed);
                 }
                 else {
                     XQItem curItem = checkFocus(focus, context);
                     return query.matches(new SingleNode(curItem.basicNode()),
-                                         null, ff);
+                                         null, ff, indexed);
                 }
             }
             catch (DataModelException e) {
@@ -115,7 +115,8 @@ public class XfnInteractiveEval extends ExtensionFunction
             StringWriter out = null;
             PrintWriter pwout = null;
             CorePushBuilder builder =
-                new CorePushBuilder(context.getStaticContext().getBaseURI());
+                new CorePushBuilder(
+                    context.getExpressionContext().getBaseURI());
             
             ArraySequence rseq = new ArraySequence(4, null);
             try {
@@ -40,7 +40,7 @@ public class DefaultCollation extends Function
             throws EvaluationException
         {
             context.at(this);
-            return context.getStaticContext().getDefaultCollation();
+            return context.getExpressionContext().getDefaultCollation();
         }
     }
 }
@@ -414,7 +414,8 @@ public abstract class Function
             throws EvaluationException
         {
             CorePushBuilder builder =
-                new CorePushBuilder(context.getStaticContext().getBaseURI());
+                new CorePushBuilder(
+                    context.getExpressionContext().getBaseURI());
             evalAsEvents(builder, focus, context);
             return builder.harvest();
         }
@@ -31,6 +31,7 @@ import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
+import java.util.Arrays;
 import java.util.HashSet;
 
 /**
@@ -70,6 +71,19 @@ public class JavaFunction extends Function
             }
         }
 
+        /**
+         * Returns a description of authorized classes, which identifies
+         * the Java binding configuration for caching compiled queries.
+         */
+        public String getAuthorizationKey()
+        {
+            if (allowedClasses == null)
+                return "*";
+            String[] names = allowedClasses.toArray(new String[0]);
+            Arrays.sort(names);
+            return Arrays.asList(names).toString();
+        }
+
         public Function plug(com.qizx.api.QName qname, PredefinedModule target)
             throws SecurityException
         {
@@ -69,11 +69,11 @@ public class ResolveUri extends Function
                     else
                         base = baseUri.getString();
                 if (base != null && base.length() == 0) {
-                    base = context.getStaticContext().getBaseURI();
+                    base = context.getExpressionContext().getBaseURI();
                 }
             }
             else
-                base = context.getStaticContext().getBaseURI();
+                base = context.getExpressionContext().getBaseURI();
             if (base == null) {
                 if (!relUri.isAbsolute())
                     context.error("FONS0005", this, "undefined base URI");
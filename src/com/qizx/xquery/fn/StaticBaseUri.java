@@ -41,7 +41,7 @@ public class StaticBaseUri extends Function
             throws EvaluationException
         {
             context.at(this);
-            return context.getStaticContext().getBaseURI();
+            return context.getExpressionContext().getBaseURI();
         }
     }
 }
@@ -1342,15 +1342,19 @@ public class NewParser extends NewLexer
         else if (eat("validate %? %N") || eat("validate %? {"))
             return parseValidateExpr();
         else if (eatPragma()) {
+            boolean parallel = false;
             do {
                 QName extName = checkPragma();
-                // for the moment, ignore all pragmas...
-                  
+                // other pragmas are ignored
+                if (extName == FLWRExpr.PARALLEL_PRAGMA)
+                    parallel = true;
             }
             while (eatPragma());
             want("{");
             Expression e = parseExpr();
             want("}");
+            if (parallel && e instanceof FLWRExpr)
+                ((FLWRExpr) e).parallelRequested = true;
             return e;
         }
         else
@@ -63,7 +63,7 @@ public class AttributeConstructor extends NamedConstructor
             context.error("XQDY0044", this,
                           "invalid name 'xmlns' for attribute");
         CoreDataModel dm =
-            new CoreDataModel(context.getStaticContext().getBaseURI());
+            new CoreDataModel(context.getExpressionContext().getBaseURI());
         CoreNode node = dm.newAttribute(qname);
         evalContents(node, focus, context);
         return node;
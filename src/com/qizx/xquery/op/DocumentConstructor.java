@@ -47,7 +47,7 @@ public class DocumentConstructor extends NodeConstructor
         throws EvaluationException
     {
         CorePushBuilder builder =
-            new CorePushBuilder(context.getStaticContext().getBaseURI());
+            new CorePushBuilder(context.getExpressionContext().getBaseURI());
         evalAsEvents(builder, focus, context);
         return builder.harvest();
     }
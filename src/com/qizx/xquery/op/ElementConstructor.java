@@ -110,7 +110,7 @@ public class ElementConstructor extends NamedConstructor
         BasicStaticContext staticContext = context.getStaticContext();
         // we arrive here if building nodes is really wanted
         CorePushBuilder builder =
-            new CorePushBuilder(staticContext.getBaseURI(), 
+            new CorePushBuilder(context.getExpressionContext().getBaseURI(),
                                  staticContext.getInScopeNS());
         // for dynamic qname evaluation: make inscope ns visible
         context.setInScopeNS(builder.getNamespaceContext());
@@ -36,6 +36,12 @@ import java.math.BigDecimal;
 
 /**
  * Superclass of all compiled language constructs: operators, function calls.
+ * <p>
+ * Expressions can be modified only during static analysis. Evaluation methods
+ * must not modify the expression tree, since a compiled query can be shared
+ * by concurrent executions: the state of an evaluation belongs to the
+ * EvalContext and to the sequences returned, which may only read the
+ * expression.
  */
 public abstract class Expression
 {
@@ -21,18 +21,37 @@ package com.qizx.xquery.op;
 
 import com.qizx.api.EvaluationException;
 import com.qizx.api.QName;
+import com.qizx.util.Collations;
+import com.qizx.util.basic.HTable;
+import com.qizx.xdm.BaseNodeFilter;
+import com.qizx.xdm.IQName;
+import com.qizx.xdm.NodeFilter;
 import com.qizx.xdm.XMLPushStreamBase;
 import com.qizx.xquery.*;
 import com.qizx.xquery.dt.*;
 import com.qizx.xquery.dt.StringValue;
+import com.qizx.xquery.ext.*;
+import com.qizx.xquery.fn.Function;
+import com.qizx.xquery.fn.JavaFunction;
+import com.qizx.xquery.fn.Trace;
+import com.qizx.xquery.fn.UserFunction;
 import com.qizx.xquery.impl.EmptyException;
 
+import java.io.Closeable;
+import java.text.Collator;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
 
 /**
  * The FLOWER expression. Features detection and optimization of joins.
@@ -51,6 +70,8 @@ public class FLWRExpr extends Expression
     public boolean stableOrder;
     public boolean checked;
     protected boolean hasScore;
+    // true if sorted on a single key which is a full-text score, descending
+    private boolean rankedByScore;
     
     public GroupingVariable[] groupingKeys;
     public LetClause[] postGroupingLets;
@@ -61,6 +82,22 @@ public class FLWRExpr extends Expression
     // redeclared local variables (after group-by)
     private LocalVariable[] outGroupingVars;
     private LocalVariable[] outNonGroupingVars; // other vars used
+
+    /**
+     * Pragma <code>(# x:parallel #)</code> requesting the parallel
+     * evaluation of iterations, see {@link ParallelSequence}.
+     */
+    public static final QName PARALLEL_PRAGMA =
+        IQName.get(ExtensionFunction.EXTENSION_NS, "parallel");
+    // pools of threads for parallel iterations, by parallelism:
+    private static HashMap<Integer, ForkJoinPool> forPools =
+        new HashMap<Integer, ForkJoinPool>();
+
+    public boolean parallelRequested;   // by pragma
+    // first clause evaluated by parallel iterations, or 0 if not possible:
+    private int parallelFrom;
+    // variables declared before parallel iterations and used by them:
+    private LocalVariable[] parallelOuterVars;
     
 
     public FLWRExpr()
@@ -202,6 +239,7 @@ public class FLWRExpr extends Expression
             for (int os = 0; os < orderSpecs.length; os++) {
                 context.staticCheck(orderSpecs[os], 0);
             }
+        rankedByScore = isRankedByScore();
         
         // returned expression:
         expr = context.simpleStaticCheck(expr, 0);
@@ -265,14 +303,18 @@ public class FLWRExpr extends Expression
 
                 // 3- transform the source expression of the inner loop into
                 // an access to the join table: join-get(join-table, outer-key)
-                inner.expr = new Join.Get(jinfo.outerExpr, joinVar,
-                                     jinfo.comparison);
+                Join.Get get = new Join.Get(jinfo.outerExpr, joinVar,
+                                            jinfo.comparison);
+                if (jinfo.boundExpr != null)
+                    get.setBound(jinfo.boundExpr, jinfo.boundComparison);
+                inner.expr = get;
             }
         }
         context.popLocalVariables(mark);
         // try to transform a where clause into a predicate
         // (implies that this is not a join)
         FLWRExpr reduced = tryToRemoveWhere(this);
+        reduced.checkParallel();
         // simplify dummy loop?
         return tryToRemoveLoop(reduced);
     }
@@ -361,25 +403,38 @@ public class FLWRExpr extends Expression
             AndExpr and = (AndExpr) pred;
             int argc = and.args.length;
             // look for an AND member that is "joinable":
-            // TODO: select best (eg equality is better than inequality)
-            for (int a = 0; a < argc; a++) {
-                JoinInfo info = joinablePredicate(and.args[a]);
-                if (info != null) {
-                    // remove first operand:
-                    if (argc == 2)
-                        info.remainder = and.args[1 - a];
-                    else {
-                        AndExpr nand = new AndExpr();
-                        nand.args = new Expression[argc - 1];
-                        System.arraycopy(and.args, 0, nand.args, 0, a);
-                        System.arraycopy(and.args, a + 1, nand.args, a,
-                                         argc - a - 1);
-                        info.remainder = nand;
-                    }
-                    return info;
-                }
+            // equality is better than order comparison
+            JoinInfo[] infos = new JoinInfo[argc];
+            int a = -1;
+            for (int m = 0; m < argc; m++) {
+                infos[m] = joinablePredicate(and.args[m]);
+                if (infos[m] != null
+                    && (a < 0 || infos[m].comparison == ValueEqOp.TEST
+                                 && infos[a].comparison != ValueEqOp.TEST))
+                    a = m;
             }
-            return null;
+            if (a < 0)
+                return null;
+            JoinInfo info = infos[a];
+            // an order comparison can be bounded by another one on the
+            // same key, like $a/start <= $b/t and $b/t < $a/end:
+            for (int m = 0; m < argc && info.comparison != ValueEqOp.TEST
+                            && info.boundExpr == null; m++)
+                if (m != a && infos[m] != null && infos[m].remainder == null)
+                    info.addBound(infos[m]);
+            // remove first operand (a bound is also kept in the remainder
+            // because it cannot always be used):
+            if (argc == 2)
+                info.remainder = and.args[1 - a];
+            else {
+                AndExpr nand = new AndExpr();
+                nand.args = new Expression[argc - 1];
+                System.arraycopy(and.args, 0, nand.args, 0, a);
+                System.arraycopy(and.args, a + 1, nand.args, a,
+                                 argc - a - 1);
+                info.remainder = nand;
+            }
+            return info;
         }
         if (!(pred instanceof Comparison.Exec))
             return null;
@@ -469,8 +524,70 @@ public class FLWRExpr extends Expression
         Expression innerExpr; // comparison member containing inner var
         Expression remainder; // non optimised remainder of a predicate
         Comparison.Test comparison;
+        // optional comparison of the inner key with another outer value, in
+        // the opposite direction:
+        Expression boundExpr;
+        Comparison.Test boundComparison;
 
         XQType type; // type of keys in join table (NUMERIC, STRING or default)
+
+        // uses the other join predicate as a bound if it compares the same
+        // key to the same outer variable in the opposite direction
+        void addBound(JoinInfo other)
+        {
+            if (other.outerVar != outerVar || other.innerVar != innerVar
+                || other.type != type
+                || lowerBound(other.comparison) == lowerBound(comparison)
+                || !sameKey(other.innerExpr, innerExpr))
+                return;
+            boundExpr = other.outerExpr;
+            boundComparison = other.comparison;
+        }
+
+        // outer < inner or outer <= inner
+        private static boolean lowerBound(Comparison.Test test)
+        {
+            return test == ValueLtOp.TEST || test == ValueLeOp.TEST;
+        }
+
+        // simple paths like $v/a/@b
+        private static boolean sameKey(Expression e1, Expression e2)
+        {
+            if (e1 instanceof NodeSortExpr)
+                e1 = ((NodeSortExpr) e1).expr;
+            if (e2 instanceof NodeSortExpr)
+                e2 = ((NodeSortExpr) e2).expr;
+            if (e1 instanceof VarReference.Local)
+                return e2 instanceof VarReference.Local
+                       && ((VarReference.Local) e1).decl
+                           == ((VarReference.Local) e2).decl;
+            if (e1 instanceof BasicStep) {
+                if (e1.getClass() != e2.getClass())
+                    return false;
+                NodeFilter t1 = ((BasicStep) e1).nodeTest;
+                NodeFilter t2 = ((BasicStep) e2).nodeTest;
+                if (!(t1 instanceof BaseNodeFilter)
+                    || !(t2 instanceof BaseNodeFilter))
+                    return t1 == null && t2 == null;
+                BaseNodeFilter f1 = (BaseNodeFilter) t1;
+                BaseNodeFilter f2 = (BaseNodeFilter) t2;
+                return f1.kind == f2.kind && f1.schemaType == null
+                       && f2.schemaType == null
+                       && (f1.namespace == null ? f2.namespace == null
+                               : f1.namespace.equals(f2.namespace))
+                       && (f1.name == null ? f2.name == null
+                               : f1.name.equals(f2.name));
+            }
+            if (!(e1 instanceof PathExpr) || !(e2 instanceof PathExpr))
+                return false;
+            PathExpr p1 = (PathExpr) e1, p2 = (PathExpr) e2;
+            if (p1.getStepCount() != p2.getStepCount())
+                return false;
+            for (int s = 0; s < p1.getStepCount(); s++)
+                if (!sameKey(p1.getStep(s), p2.getStep(s)))
+                    return false;
+            return true;
+        }
     }
 
     // in a simple FOR, try to transform a WHERE into a predicate of the source
@@ -531,19 +648,145 @@ public class FLWRExpr extends Expression
         return clause.expr;
     }
 
+    // Parallel iterations: the clauses up to the first 'for' are evaluated
+    // sequentially; each of their tuples starts an iteration that evaluates
+    // the next clauses, 'where' and 'return' in another thread. This requires
+    // that these parts have no side effect and do not depend on a state that
+    // is shared between iterations (closures, full-text tokenizer).
+    private void checkParallel()
+    {
+        parallelFrom = 0;
+        if (orderSpecs != null || groupingKeys != null || hasScore)
+            return;
+        int f = 0;
+        for (; f < clauses.length; f++)
+            if (clauses[f] instanceof ForClause)
+                break;
+        if (f == clauses.length)
+            return;
+        ParallelChecker checker = new ParallelChecker();
+        for (int c = f + 1; c < clauses.length; c++)
+            if (!checker.visit(clauses[c]))
+                return;
+        if (where != null && !checker.visit(where) || !checker.visit(expr))
+            return;
+        // used variables that are in scope before the iterations:
+        ForClause first = (ForClause) clauses[f];
+        ArrayList outer = new ArrayList();
+        LocalVariable last =
+            (first.posDecl != null) ? first.posDecl : first.varDecl;
+        for (LocalVariable v = last; v != null; v = v.pred)
+            if (checker.vars.contains(v)) {
+                outer.add(v);
+                // used in a loop: expand the value when it is bound, rather
+                // than later by ParallelSequence (see EvalContext.storeLocal)
+                v.use();
+            }
+        parallelOuterVars = (LocalVariable[])
+            outer.toArray(new LocalVariable[outer.size()]);
+        parallelFrom = f + 1;
+    }
+
+    // Number of threads for parallel iterations, or 0. At most the number
+    // of processors, which also bounds the number of pools.
+    private int parallelism(EvalContext context)
+    {
+        // no nested parallelism
+        if (inForPool())
+            return 0;
+        int processors = Runtime.getRuntime().availableProcessors();
+        int threads = context.dynamicContext().getForParallelism();
+        if (threads < 2 && parallelRequested)
+            threads = processors;
+        return Math.min(threads, processors);
+    }
+
+    // true if called by an iteration running in a pool of parallel 'for'
+    // (other pools, like the common pool, do not prevent parallelism)
+    private static synchronized boolean inForPool()
+    {
+        ForkJoinPool current = ForkJoinTask.getPool();
+        return current != null && forPools.containsValue(current);
+    }
+
+    private static synchronized ForkJoinPool forPool(int parallelism)
+    {
+        ForkJoinPool pool = forPools.get(parallelism);
+        if (pool == null) {
+            pool = new ForkJoinPool(parallelism);
+            forPools.put(parallelism, pool);
+        }
+        return pool;
+    }
+
+    /**
+     * Shuts down the pools of threads used by parallel iterations, for
+     * example when an application stops using the query engine. Must not be
+     * called while queries are evaluated. Pools are created again when
+     * needed.
+     */
+    public static synchronized void shutdownPools()
+    {
+        for (ForkJoinPool pool : forPools.values())
+            pool.shutdown();
+        forPools.clear();
+    }
+
     // -----------------------------------------------------------------------------
 
     public XQValue eval(Focus focus, EvalContext context)
         throws EvaluationException
     {
-        // pipe the iterators of the different clauses to get source seq:
-        VarClause.SingleDummy src = new VarClause.SingleDummy(focus, context);// dummy
+        return evalFirst(focus, context, -1);
+    }
+
+    // order by $s descending, where $s is the score variable of a clause
+    private boolean isRankedByScore()
+    {
+        if (orderSpecs == null || orderSpecs.length != 1
+            || !orderSpecs[0].descending || groupingKeys != null
+            || !(orderSpecs[0].key instanceof VarReference.Local))
+            return false;
+        LocalVariable key = ((VarReference.Local) orderSpecs[0].key).decl;
         for (int c = 0; c < clauses.length; c++) {
-            VarClause.SingleDummy newSrc =
-                (VarClause.SingleDummy) clauses[c].eval(focus, context);
-            newSrc.setSource(src);
-            src = newSrc;
+            if (clauses[c] instanceof ForClause
+                && ((ForClause) clauses[c]).scoreDecl == key)
+                return true;
+            if (clauses[c] instanceof LetClause
+                && ((LetClause) clauses[c]).score
+                && ((LetClause) clauses[c]).varDecl == key)
+                return true;
         }
+        return false;
+    }
+
+    /**
+     * Returns true if the expression has an 'order by' clause.
+     */
+    boolean isSorted()
+    {
+        return orderSpecs != null;
+    }
+
+    /**
+     * Evaluation when only the first items of the result are needed: with
+     * an 'order by' clause, the result is the sorted sequence truncated
+     * at count items (if not too big).
+     * @param count number of items needed, or -1 for all
+     */
+    XQValue evalFirst(Focus focus, EvalContext context, long count)
+        throws EvaluationException
+    {
+        if (parallelFrom > 0) {
+            int threads = parallelism(context);
+            if (threads > 1)
+                return new ParallelSequence(this,
+                                            pipe(0, parallelFrom, focus, context),
+                                            focus, context, forPool(threads),
+                                            2 * threads);
+        }
+        // pipe the iterators of the different clauses to get source seq:
+        VarClause.SingleDummy src = pipe(0, clauses.length, focus, context);
         // optimization by specialized sequences:
         if (orderSpecs == null && groupingKeys == null
             && !(src instanceof WindowClause.Sequence))
@@ -551,19 +794,22 @@ public class FLWRExpr extends Expression
             XQItemType itemType = expr.getType().itemType();
             int occ = expr.getType().getOccurrence();
             if (itemType == XQType.INTEGER && !XQType.isRepeatable(occ))
-                return new IntSequence(src, focus, context);
+                return new IntSequence(this, src, focus, context);
             else if (itemType == XQType.STRING && !XQType.isRepeatable(occ))
-                return new StringSequence(src, focus, context);
+                return new StringSequence(this, src, focus, context);
             else if (occ == com.qizx.api.SequenceType.OCC_EXACTLY_ONE)
-                return new ItemSequence(src, focus, context);
+                return new ItemSequence(this, src, focus, context);
         }
         
+        if (rankedByScore && count > 0 && count <= TupleSort.MAX_TOP_COUNT)
+            return ranked(src, focus, context, (int) count);
+
         // grouping: handles first 'where'
         Expression finalWhere = where;
         if(groupingKeys != null) {
             // TODO OPTIM if no post-grouping let/where, and if order-by equiv
             // to group-by then we can use a TreeMap + order comparator 
-            GroupBySequence gs = new GroupBySequence(src, where, context, null);
+            GroupBySequence gs = new GroupBySequence(this, src, where, context, null);
             src = gs;
             for (int c = 0; c < postGroupingLets.length; c++) {
                 VarClause.SingleDummy newSrc =
@@ -578,10 +824,10 @@ public class FLWRExpr extends Expression
 //            System.err.println("updating flower");
         
         // final sequence (handles 'return' and final where):
-        XQValue v = new Sequence(src, finalWhere, focus, context);
+        XQValue v = new Sequence(this, src, finalWhere, focus, context);
         if (orderSpecs != null)
             // TODO lazier: sort only when required
-            return sorted(v, focus, context);
+            return sorted(v, focus, context, count);
         return v;
     }
 
@@ -592,18 +838,14 @@ public class FLWRExpr extends Expression
         context.at(this);
         // if sorted or grouped, there is no gain to recursively evalAsEvents:
         // use std method
-        if (orderSpecs != null || groupingKeys != null) {
+        // same if iterations are evaluated in parallel:
+        if (orderSpecs != null || groupingKeys != null
+            || parallelFrom > 0 && parallelism(context) > 1) {
             super.evalAsEvents(output, focus, context);
             return;
         }
 
-        VarClause.SingleDummy src = new VarClause.SingleDummy(focus, context);// dummy
-        for (int c = 0; c < clauses.length; c++) {
-            VarClause.SingleDummy newSrc =
-                (VarClause.SingleDummy) clauses[c].eval(focus, context);
-            newSrc.setSource(src);
-            src = newSrc;
-        }
+        VarClause.SingleDummy src = pipe(0, clauses.length, focus, context);
 
         for (; src.next();) {
             if (where != null
@@ -614,22 +856,43 @@ public class FLWRExpr extends Expression
         }
     }
 
+    // pipes the iterators of clauses [from, to)
+    private VarClause.SingleDummy pipe(int from, int to, Focus focus,
+                                       EvalContext context)
+        throws EvaluationException
+    {
+        VarClause.SingleDummy src = new VarClause.SingleDummy(focus, context);// dummy
+        for (int c = from; c < to; c++) {
+            VarClause.SingleDummy newSrc =
+                (VarClause.SingleDummy) clauses[c].eval(focus, context);
+            newSrc.setSource(src);
+            src = newSrc;
+        }
+        return src;
+    }
+
     /**
      * Final stage of the pipeline: handles the evaluation of 'return' and the
      * preceding 'where'. Can be followed by a sort (order by).
+     * <p>
+     * Like the other sequences below, this is a static class which holds the
+     * state of one evaluation and only reads the compiled FLWOR expression,
+     * so that a compiled query can be evaluated by several threads at a time.
      */
-    public class Sequence extends SingleSourceSequence
+    public static class Sequence extends SingleSourceSequence
     {
+        final FLWRExpr flower;
         Focus focus;
         EvalContext context;
         Expression whereFilter;
 
         XQValue current; // evaluated 'return' expression
 
-        Sequence(XQValue source, Expression whereFilter,
+        Sequence(FLWRExpr flower, XQValue source, Expression whereFilter,
                  Focus focus, EvalContext context)
         {
             super(source);
+            this.flower = flower;
             this.whereFilter = whereFilter;
             this.focus = focus;
             this.context = context;
@@ -638,7 +901,8 @@ public class FLWRExpr extends Expression
 
         public XQValue bornAgain()
         {
-            return new Sequence(source.bornAgain(), whereFilter, focus, context);
+            return new Sequence(flower, source.bornAgain(), whereFilter,
+                                focus, context);
         }
 
         public boolean next()
@@ -659,31 +923,35 @@ public class FLWRExpr extends Expression
                         break;
                 }
                 // use item from source as current item to eval 'return'
-                current = expr.eval(focus, context);
+                current = flower.expr.eval(focus, context);
             }
         }
     }
 
-    public class ItemSequence extends SingleSourceSequence
+    public static class ItemSequence extends SingleSourceSequence
     {
+        final FLWRExpr flower;
         Focus focus;
         EvalContext context;
 
-        ItemSequence(XQValue source, Focus focus, EvalContext context)
+        ItemSequence(FLWRExpr flower, XQValue source,
+                     Focus focus, EvalContext context)
         {
             super(source);
+            this.flower = flower;
             this.focus = focus;
             this.context = context;
         }
 
         public XQValue bornAgain()
         {
-            return new ItemSequence(source.bornAgain(), focus, context);
+            return new ItemSequence(flower, source.bornAgain(), focus, context);
         }
 
         public boolean next()
             throws EvaluationException
         {
+            Expression where = flower.where, expr = flower.expr;
             for (;;) {
                 if (!source.next())
                     return false;
@@ -701,6 +969,7 @@ public class FLWRExpr extends Expression
         public boolean nextCollection()
             throws EvaluationException
         {
+            Expression where = flower.where, expr = flower.expr;
             for (;;) {
                 if (!source.nextCollection())
                     return false;
@@ -714,16 +983,19 @@ public class FLWRExpr extends Expression
         }
     }
 
-    public class IntSequence extends IntegerValue
+    public static class IntSequence extends IntegerValue
     {
+        final FLWRExpr flower;
         Focus focus;
         EvalContext context;
         XQValue source; // innermost clause
 
         long curItem;
 
-        IntSequence(XQValue source, Focus focus, EvalContext context)
+        IntSequence(FLWRExpr flower, XQValue source,
+                    Focus focus, EvalContext context)
         {
+            this.flower = flower;
             this.source = source;
             this.focus = focus;
             this.context = context;
@@ -731,7 +1003,7 @@ public class FLWRExpr extends Expression
 
         public XQValue bornAgain()
         {
-            return new IntSequence(source.bornAgain(), focus, context);
+            return new IntSequence(flower, source.bornAgain(), focus, context);
         }
 
         public long getInteger()
@@ -747,6 +1019,7 @@ public class FLWRExpr extends Expression
         public boolean next()
             throws EvaluationException
         {
+            Expression where = flower.where, expr = flower.expr;
             for (;;) {
                 for (;;) {
                     if (!source.next())
@@ -768,15 +1041,18 @@ public class FLWRExpr extends Expression
         }
     }
 
-    protected class StringSequence extends StringValue
+    protected static class StringSequence extends StringValue
     {
+        final FLWRExpr flower;
         Focus focus;
         EvalContext context;
         XQValue source; // innermost clause
         String curItem;
 
-        StringSequence(XQValue source, Focus focus, EvalContext context)
+        StringSequence(FLWRExpr flower, XQValue source,
+                       Focus focus, EvalContext context)
         {
+            this.flower = flower;
             this.source = source;
             this.focus = focus;
             this.context = context;
@@ -784,7 +1060,8 @@ public class FLWRExpr extends Expression
 
         public XQValue bornAgain()
         {
-            return new StringSequence(source.bornAgain(), focus, context);
+            return new StringSequence(flower, source.bornAgain(), focus,
+                                      context);
         }
 
         public String getString()
@@ -800,6 +1077,7 @@ public class FLWRExpr extends Expression
         public boolean next()
             throws EvaluationException
         {
+            Expression where = flower.where, expr = flower.expr;
             for (;;) {
                 for (;;) {
                     if (!source.next())
@@ -821,13 +1099,169 @@ public class FLWRExpr extends Expression
         }
     }
 
-    private final class OrderComparator
+    /**
+     * Evaluation of iterations by a pool of threads. The clauses up to the
+     * first 'for' are evaluated by the calling thread, which submits an
+     * iteration for each tuple, with a copy of the context. Results are
+     * returned in the order of the tuples; at most 'window' iterations are
+     * evaluated in advance.
+     * <p>
+     * Iterations not yet started are cancelled on error, and when the
+     * sequence is closed or the evaluation is over (for example when only
+     * the first item is used).
+     */
+    private static class ParallelSequence extends SingleSourceSequence
+        implements Closeable
+    {
+        final FLWRExpr flower;
+        Focus focus;
+        EvalContext context;
+        ForkJoinPool pool;
+        int window;
+        ArrayDeque<Future<XQValue>> pending = new ArrayDeque<Future<XQValue>>();
+        boolean exhausted;
+        boolean registered;
+
+        XQValue current; // result of an iteration
+
+        ParallelSequence(FLWRExpr flower, XQValue source, Focus focus,
+                         EvalContext context, ForkJoinPool pool, int window)
+        {
+            super(source);
+            this.flower = flower;
+            this.focus = focus;
+            this.context = context;
+            this.pool = pool;
+            this.window = window;
+            current = XQValue.empty;
+        }
+
+        public XQValue bornAgain()
+        {
+            return new ParallelSequence(flower, source.bornAgain(), focus,
+                                        context, pool, window);
+        }
+
+        public boolean next()
+            throws EvaluationException
+        {
+            for (;;) {
+                if (current.next()) {
+                    item = current.getItem();
+                    return true;
+                }
+                submit();
+                Future<XQValue> iteration = pending.poll();
+                if (iteration == null)
+                    return false;
+                current = result(iteration);
+            }
+        }
+
+        private void submit()
+            throws EvaluationException
+        {
+            try {
+                while (!exhausted && pending.size() < window) {
+                    if (!source.next()) {
+                        exhausted = true;
+                        break;
+                    }
+                    context.at(flower); // for timeout
+                    // lazy values of variables used by the iteration would
+                    // be evaluated in this context by the other thread:
+                    LocalVariable[] outer = flower.parallelOuterVars;
+                    for (int v = 0; v < outer.length; v++)
+                        context.expandLocal(outer[v].address);
+                    pending.add(pool.submit(new Iteration(flower, focus,
+                                                          context.copy())));
+                    if (!registered) {
+                        // abandoned sequences are closed with the evaluation
+                        context.dynamicContext().addResource(this);
+                        registered = true;
+                    }
+                }
+            }
+            catch (EvaluationException e) {
+                cancel();
+                throw e;
+            }
+        }
+
+        private XQValue result(Future<XQValue> iteration)
+            throws EvaluationException
+        {
+            try {
+                return iteration.get();
+            }
+            catch (InterruptedException e) {
+                cancel();
+                Thread.currentThread().interrupt();
+                throw new EvaluationException("interrupted", e);
+            }
+            catch (ExecutionException e) {
+                cancel();
+                // the pool can wrap the error of the iteration:
+                for (Throwable c = e.getCause(); c != null; c = c.getCause())
+                    if (c instanceof EvaluationException)
+                        throw (EvaluationException) c;
+                Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException)
+                    throw (RuntimeException) cause;
+                if (cause instanceof Error)
+                    throw (Error) cause;
+                throw new EvaluationException(cause.getMessage(), cause);
+            }
+        }
+
+        public void close()
+        {
+            cancel();
+        }
+
+        private void cancel()
+        {
+            for (Future<XQValue> f : pending)
+                f.cancel(false);
+            pending.clear();
+            exhausted = true;
+        }
+    }
+
+    // One iteration of a ParallelSequence: evaluates the clauses after the
+    // first 'for', 'where' and 'return' in its own context
+    private static class Iteration implements Callable<XQValue>
+    {
+        private FLWRExpr flower;
+        private Focus focus;
+        private EvalContext context;
+
+        Iteration(FLWRExpr flower, Focus focus, EvalContext context)
+        {
+            this.flower = flower;
+            this.focus = focus;
+            this.context = context;
+        }
+
+        public XQValue call()
+            throws EvaluationException
+        {
+            XQValue src = flower.pipe(flower.parallelFrom,
+                                      flower.clauses.length, focus, context);
+            return ArraySequence.copy(new Sequence(flower, src, flower.where,
+                                                   focus, context));
+        }
+    }
+
+    private static final class OrderComparator
         implements Comparator
     {
+        private final OrderSpec[] orderSpecs;
         private final EvalContext context;
     
-        private OrderComparator(EvalContext context)
+        private OrderComparator(OrderSpec[] orderSpecs, EvalContext context)
         {
+            this.orderSpecs = orderSpecs;
             this.context = context;
         }
     
@@ -850,19 +1284,23 @@ public class FLWRExpr extends Expression
         }
     }
 
-    // Acquire all items from the source and sort them in an array.
+    // Acquire all items from the source and sort them.
     // Make each tuple - formed with the return value and the K sort keys -
-    // as an array of size 1+K, gather the tuples into the big array,
-    // then sort the array and return it.
-    private ArraySequence sorted(XQValue source, Focus focus,
-                                 final EvalContext context)
+    // as an array of size 1+K, and gather the tuples into a TupleSort, which
+    // can spill sorted runs to disk or keep only the first tuples.
+    private XQValue sorted(XQValue source, Focus focus,
+                           final EvalContext context, long count)
         throws EvaluationException
     {
-        Object[] items = new Object[8];
-        int size = 0;
         int nonKeys = hasScore? 2 : 1;
         
         int K = orderSpecs.length;
+        TupleSort sort =
+            new TupleSort(new OrderComparator(orderSpecs, context),
+                          K + nonKeys, hasScore ? K + 1 : -1, count);
+        if (K == 1)
+            sort.setSingleKey(orderSpecs[0]);
+        sort.setContext(context.dynamicContext());
         // System.err.println("sort "+source);
         for (; source.next();) {
             XQItem[] tuple = new XQItem[K + nonKeys];
@@ -882,37 +1320,37 @@ public class FLWRExpr extends Expression
             }
             if(hasScore) // OPTIM detect if a key is the score (typical)
                 tuple[K + 1] = new SingleDouble(source.getFulltextScore(tuple[0]));
-            
-            // add to items:
-            if (size >= items.length) {
-                Object[] old = items;
-                items = new Object[old.length * 2];
-                System.arraycopy(old, 0, items, 0, old.length);
-            }
-            items[size++] = tuple;
+            sort.add(tuple);
         }
-        try {
-            if (size > 1)
-                Arrays.sort(items, 0, size, new OrderComparator(context));
-        }
-        catch (RuntimeException e) {
-            if (e.getCause() instanceof EvaluationException)
-                throw (EvaluationException) e.getCause();
-            throw e;
+        return sort.getResult(source);
+    }
+
+    // Selection of the first items in descending order of a full-text score.
+    // The score of an iteration is known before its 'where' and 'return'
+    // are evaluated: they are skipped if the score cannot enter the first
+    // items. All the iterations are scored: scorers have no reachable upper
+    // bound, so the first items are never known to be final.
+    private XQValue ranked(VarClause.SingleDummy source, Focus focus,
+                           EvalContext context, int count)
+        throws EvaluationException
+    {
+        TopScores top = new TopScores(count, hasScore);
+        Expression key = orderSpecs[0].key;
+        for (; source.next();) {
+            double score = key.evalAsDouble(focus, context);
+            if (!top.accepts(score))
+                continue;
+            if (where != null
+                && !where.evalEffectiveBooleanValue(focus, context))
+                continue;
+            XQValue v = expr.eval(focus, context);
+            for (; v.next();) {
+                XQItem item = v.getItem();
+                top.add(item, score,
+                        hasScore ? source.getFulltextScore(item) : 0);
+            }
         }
-        
-        // replace tuples by the main item:
-        double[] scores = hasScore ? new double[size] : null;
-        for (int v = size; --v >= 0;) {
-            XQItem[] tuple = (XQItem[]) items[v];
-            items[v] = tuple[0];
-            if(hasScore)
-                scores[v] = tuple[K + 1].getDouble();
-        }
-        ArraySequence asq = new ArraySequence(items, size);
-        asq.setOrigin(source);
-        asq.setScores(scores);
-        return asq;
+        return top.getResult(source);
     }
 
     /**
@@ -920,27 +1358,39 @@ public class FLWRExpr extends Expression
      * Handles the *preceding* 'where': the post-grouping where is handled by 
      * the normal 'return' sequence.
      */
-    private class GroupBySequence extends VarClause.SingleDummy
+    private static class GroupBySequence extends VarClause.SingleDummy
     {        
+        private final GroupingVariable[] groupingKeys;
+        private final LocalVariable[] nonGroupingVars;
+        private final LocalVariable[] outGroupingVars;
+        private final LocalVariable[] outNonGroupingVars;
+        private final FLWRExpr flower;
         private XQValue input;
         private Expression where;
-        private HashMap groups;
+        private ArrayList groups;   // in order of first appearance
         private Iterator groupIterator;
 
-        public GroupBySequence(XQValue input, Expression where,
-                               EvalContext context, HashMap groups)
+        public GroupBySequence(FLWRExpr flower, XQValue input,
+                               Expression where, EvalContext context,
+                               ArrayList groups)
         {
             super(null, context);
+            this.flower = flower;
+            this.groupingKeys = flower.groupingKeys;
+            this.nonGroupingVars = flower.nonGroupingVars;
+            this.outGroupingVars = flower.outGroupingVars;
+            this.outNonGroupingVars = flower.outNonGroupingVars;
             this.input = input;
             this.where = where;
             this.groups = groups;
             if(groups != null)
-                groupIterator = groups.keySet().iterator();
+                groupIterator = groups.iterator();
         }
 
         public XQValue bornAgain()
         {
-            return new GroupBySequence(input.bornAgain(), where, context, groups);
+            return new GroupBySequence(flower, input.bornAgain(), where,
+                                       context, groups);
         }
 
         public boolean next()
@@ -948,7 +1398,7 @@ public class FLWRExpr extends Expression
         {
             if (groups == null) {
                 expandAndGroup();
-                groupIterator = groups.keySet().iterator();
+                groupIterator = groups.iterator();
             }
             if (!groupIterator.hasNext())
                 return false;
@@ -971,10 +1421,21 @@ public class FLWRExpr extends Expression
 
         private void expandAndGroup() throws EvaluationException
         {
-            groups = new HashMap();
+            groups = new ArrayList();
             int grKeyCount = groupingKeys.length;
             int ngCount = nonGroupingVars.length;
             Group probe = new Group(grKeyCount, ngCount);
+            // a single key is first looked up by its primitive value:
+            KeyedGroups keyed = null;
+            HashMap generic = null;
+            if (grKeyCount == 1)
+                keyed = new KeyedGroups(groupingKeys[0].getCollator());
+            else
+                generic = new HashMap();
+            // beyond the parallel threshold, tuples are only collected:
+            int count = 0;
+            ForkJoinPool pool = null;
+            ArrayList rows = null;
             
             for(; input.next(); ) {
                 // get grouping var values into probe
@@ -987,15 +1448,35 @@ public class FLWRExpr extends Expression
                     probe.keys[i] = Atomizer.toSingleAtom(it);
                     
                 }
+                if (rows != null) {
+                    rows.add(new Row(probe, nonGroupingVars, context));
+                    continue;
+                }
                 // lookup in groups
-                Group g = (Group) groups.get(probe);
+                Group g = null;
+                if (keyed != null && !keyed.accepts(probe.keys[0])) {
+                    // another kind of key: back to generic comparisons
+                    keyed = null;
+                    generic = new HashMap();
+                    for (int i = 0, size = groups.size(); i < size; i++)
+                        generic.put(groups.get(i), groups.get(i));
+                }
+                if (keyed != null)
+                    g = (Group) keyed.find();
+                else
+                    g = (Group) generic.get(probe);
                 if(g == null) {
                     g = new Group(grKeyCount, ngCount);
                     for(int i = 0; i < grKeyCount; i++) {
                         g.keys[i] = probe.keys[i];
                         g.keyValues[i] = probe.keyValues[i];
                     }
-                    groups.put(g, g);   // AFTER copying keys
+                    if (keyed != null)
+                        keyed.add(g);
+                    else
+                        generic.put(g, g);   // AFTER copying keys
+                    g.first = groups.size();
+                    groups.add(g);
                 }
                 // get values of other vars and append to group
                 for (int i = 0; i < ngCount; i++) {
@@ -1004,7 +1485,170 @@ public class FLWRExpr extends Expression
                         g.values[i] = new ArraySequence(4, v);
                     g.values[i].append(v);
                 }
+                if (++count == TupleSort.getParallelThreshold()) {
+                    pool = TupleSort.parallelPool(count);
+                    if (pool != null)
+                        rows = new ArrayList();
+                }
             }
+            if (rows != null && rows.size() > 0)
+                groupInParallel(rows, keyed != null, pool);
+        }
+
+        // Groups collected tuples by partitions, in parallel: tuples are
+        // dispatched according to the hash code of their key, so that all
+        // the tuples of a group, and the group if already found, go to the
+        // same partition. Groups are then merged in order of appearance.
+        private void groupInParallel(ArrayList rows, boolean keyedSoFar,
+                                     ForkJoinPool pool)
+            throws EvaluationException
+        {
+            int groupCount = groups.size(), rowCount = rows.size();
+            int[] groupHashes = new int[groupCount];
+            int[] rowHashes = new int[rowCount];
+            // keys can be compared on primitive values if they are all of
+            // the same kind:
+            KeyedGroups scan = keyedSoFar
+                ? new KeyedGroups(groupingKeys[0].getCollator()) : null;
+            boolean keyed = scan != null;
+            for (int g = 0; keyed && g < groupCount; g++) {
+                keyed = scan.accepts(((Group) groups.get(g)).keys[0]);
+                groupHashes[g] = scan.keyHash();
+            }
+            for (int r = 0; keyed && r < rowCount; r++) {
+                keyed = scan.accepts(((Row) rows.get(r)).keys[0]);
+                rowHashes[r] = scan.keyHash();
+            }
+            if (!keyed) {
+                for (int g = 0; g < groupCount; g++)
+                    groupHashes[g] = keyHash(((Group) groups.get(g)).keys);
+                for (int r = 0; r < rowCount; r++)
+                    rowHashes[r] = keyHash(((Row) rows.get(r)).keys);
+            }
+
+            int parts = pool.getParallelism();
+            ArrayList<Partition> tasks = new ArrayList<Partition>(parts);
+            for (int p = 0; p < parts; p++)
+                tasks.add(new Partition(p, parts, keyed, groupHashes, rows,
+                                        rowHashes));
+            List<Future<ArrayList>> results = pool.invokeAll(tasks);
+            ArrayList merged = new ArrayList(groupCount);
+            for (int p = 0; p < parts; p++) {
+                try {
+                    merged.addAll(results.get(p).get());
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new EvaluationException("interrupted grouping", e);
+                }
+                catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof EvaluationException)
+                        throw (EvaluationException) cause;
+                    throw new EvaluationException("grouping error: "
+                                                  + cause, cause);
+                }
+            }
+            Collections.sort(merged, new Comparator() {
+                public int compare(Object o1, Object o2)
+                {
+                    int f1 = ((Group) o1).first, f2 = ((Group) o2).first;
+                    return (f1 < f2) ? -1 : (f1 > f2) ? 1 : 0;
+                }
+            });
+            groups = merged;
+        }
+
+        // groups the tuples of a partition
+        private class Partition implements Callable<ArrayList>
+        {
+            private int part;
+            private int parts;
+            private boolean keyed;
+            private int[] groupHashes;
+            private ArrayList rows;
+            private int[] rowHashes;
+
+            Partition(int part, int parts, boolean keyed, int[] groupHashes,
+                      ArrayList rows, int[] rowHashes)
+            {
+                this.part = part;
+                this.parts = parts;
+                this.keyed = keyed;
+                this.groupHashes = groupHashes;
+                this.rows = rows;
+                this.rowHashes = rowHashes;
+            }
+
+            private boolean mine(int hash)
+            {
+                return (hash & 0x7fffffff) % parts == part;
+            }
+
+            public ArrayList call()
+                throws EvaluationException
+            {
+                KeyedGroups table = keyed
+                    ? new KeyedGroups(groupingKeys[0].getCollator()) : null;
+                HashMap map = keyed ? null : new HashMap();
+                ArrayList found = new ArrayList();
+                for (int g = 0; g < groupHashes.length; g++) {
+                    if (!mine(groupHashes[g]))
+                        continue;
+                    Group group = (Group) groups.get(g);
+                    if (keyed) {
+                        table.accepts(group.keys[0]);
+                        table.add(group);
+                    }
+                    else
+                        map.put(group, group);
+                    found.add(group);
+                }
+                int keyCount = groupingKeys.length;
+                int valueCount = nonGroupingVars.length;
+                Group probe = new Group(keyCount, valueCount);
+                for (int r = 0; r < rowHashes.length; r++) {
+                    if (!mine(rowHashes[r]))
+                        continue;
+                    Row row = (Row) rows.get(r);
+                    Group g;
+                    if (keyed) {
+                        table.accepts(row.keys[0]);
+                        g = (Group) table.find();
+                    }
+                    else {
+                        probe.keys = row.keys;
+                        g = (Group) map.get(probe);
+                    }
+                    if (g == null) {
+                        g = new Group(keyCount, valueCount);
+                        g.keys = row.keys;
+                        g.keyValues = row.keyValues;
+                        g.first = groupHashes.length + r;
+                        if (keyed)
+                            table.add(g);
+                        else
+                            map.put(g, g);
+                        found.add(g);
+                    }
+                    for (int i = 0; i < valueCount; i++) {
+                        if (g.values[i] == null)
+                            g.values[i] = new ArraySequence(4, row.origins[i]);
+                        XQItem[] items = row.values[i];
+                        g.values[i].addItems(items, items.length);
+                    }
+                }
+                return found;
+            }
+        }
+        
+        private static int keyHash(XQItem[] keys)
+        {
+            int h = 0;
+            for (int k = keys.length; --k >= 0; ) {
+                h ^= keys[k].hashCode();
+            }
+            return h;
         }
         
         private class Group
@@ -1016,6 +1660,8 @@ public class FLWRExpr extends Expression
             XQItem[] keyValues;
             // value: list of sequences, same order as nonGroupingVars
             ArraySequence[] values;
+            // rank of appearance
+            int first;
             
             Group(int keyCount, int valueCount) {
                 keys = new XQItem[keyCount];
@@ -1025,11 +1671,7 @@ public class FLWRExpr extends Expression
             
             public int hashCode()
             {
-                int h = 0;
-                for (int k = keys.length; --k >= 0; ) {
-                    h ^= keys[k].hashCode();
-                }
-                return h;
+                return keyHash(keys);
             }
             
             public boolean equals(Object obj)
@@ -1050,8 +1692,207 @@ public class FLWRExpr extends Expression
                 return true;
             }
         }
+
+        // a tuple collected for parallel grouping: values of the
+        // non-grouping variables are expanded in the evaluation thread
+        private static class Row
+        {
+            XQItem[] keys;
+            XQItem[] keyValues;
+            XQValue[] origins;
+            XQItem[][] values;
+
+            Row(Group probe, LocalVariable[] vars, EvalContext context)
+                throws EvaluationException
+            {
+                keys = (XQItem[]) probe.keys.clone();
+                keyValues = (XQItem[]) probe.keyValues.clone();
+                origins = new XQValue[vars.length];
+                values = new XQItem[vars.length][];
+                ArrayList<XQItem> items = new ArrayList<XQItem>();
+                for (int i = 0; i < vars.length; i++) {
+                    XQValue v = context.loadLocal(vars[i].address);
+                    origins[i] = v;
+                    items.clear();
+                    for (; v.next();)
+                        items.add(v.getItem());
+                    values[i] = items.toArray(new XQItem[items.size()]);
+                }
+            }
+        }
     }
     
+    /**
+     * Groups by a single key which is an integer or a string compared by
+     * codepoints: values are hashed and compared directly, instead of
+     * through generic item comparisons. All the keys must be of the same
+     * kind, which is decided by the first key.
+     */
+    private static class KeyedGroups extends HTable
+    {
+        private boolean codepoints;
+        private boolean started;
+        private boolean strings;
+        private Entry probe = new Entry();
+
+        KeyedGroups(Collator collator)
+        {
+            codepoints = collator == null
+                         || collator == Collations.CODEPOINT_COLLATOR;
+        }
+
+        /**
+         * Sets the key to find or add: returns false if the key is not of
+         * the kind of the previous keys.
+         */
+        boolean accepts(XQItem key)
+            throws EvaluationException
+        {
+            if (key == null)
+                return false;
+            int code = key.getItemType().quickCode();
+            boolean isString = key instanceof StringValue && codepoints
+                               && (code == XQType.QT_STRING
+                                   || code == XQType.QT_UNTYPED
+                                   || code == XQType.QT_ANYURI);
+            boolean isInteger =
+                key instanceof IntegerValue && code == XQType.QT_INT;
+            if (!started) {
+                if (!isString && !isInteger)
+                    return false;
+                strings = isString;
+                started = true;
+            }
+            if (strings) {
+                if (!isString)
+                    return false;
+                probe.string = key.getString();
+            }
+            else {
+                if (!isInteger)
+                    return false;
+                probe.number = key.getInteger();
+            }
+            return true;
+        }
+
+        /**
+         * Hash code of the key set by accepts().
+         */
+        int keyHash()
+        {
+            return probe.hashCode();
+        }
+
+        Object find()
+        {
+            Entry e = (Entry) get(probe);
+            return (e == null) ? null : e.group;
+        }
+
+        void add(Object group)
+        {
+            Entry e = (Entry) probe.duplicate();
+            e.group = group;
+            directPut(e);
+        }
+
+        static class Entry extends HTable.Key
+        {
+            long number;
+            String string;
+            Object group;
+
+            public int hashCode()
+            {
+                return (string != null) ? string.hashCode()
+                                        : (int) (number ^ (number >>> 32));
+            }
+
+            public boolean equals(Object that)
+            {
+                Entry e = (Entry) that;
+                return (string != null) ? string.equals(e.string)
+                                        : number == e.number;
+            }
+
+            public HTable.Key duplicate()
+            {
+                Entry e = new Entry();
+                e.number = number;
+                e.string = string;
+                return e;
+            }
+        }
+    }
+
+    // Checks that expressions can be evaluated by parallel iterations, and
+    // collects the local variables they use
+    private static class ParallelChecker extends Visitor
+    {
+        HashSet vars = new HashSet();
+        HashSet functions = new HashSet();  // bodies already checked
+
+        public boolean preTest(Expression e)
+        {
+            if (e.isUpdating())
+                return false;
+            if (e instanceof VarReference.Local) {
+                VarReference.Local local = (VarReference.Local) e;
+                if (local.decl != null)
+                    vars.add(local.decl);
+                return local.upLevel == 0; // not in a closure
+            }
+            if (e instanceof FunctionCall // not resolved
+                || e instanceof FunctionItemCall
+                || e instanceof InlineFunction
+                || e instanceof FunctionLiteral
+                || e instanceof FTContainsOp
+                || e instanceof TransformExpr)
+                return false;
+            if (e instanceof Function.Call) {
+                Function.Call call = (Function.Call) e;
+                if (call.prototype instanceof UserFunction.Signature) {
+                    Expression body =
+                        ((UserFunction.Signature) call.prototype).body;
+                    if (body != null && functions.add(body))
+                        return visit(body);
+                }
+                else if (!pureFunction(e.getClass()))
+                    return false;
+            }
+            // parts that are not children:
+            if (e instanceof FLWRExpr) {
+                FLWRExpr flower = (FLWRExpr) e;
+                if (flower.postGroupingLets != null)
+                    for (int i = 0; i < flower.postGroupingLets.length; i++)
+                        if (!visit(flower.postGroupingLets[i]))
+                            return false;
+                if (flower.postGroupingWhere != null)
+                    return visit(flower.postGroupingWhere);
+            }
+            if (e instanceof Join.Maker) {
+                Join.Maker maker = (Join.Maker) e;
+                return visit(maker.source) && visit(maker.key);
+            }
+            return true;
+        }
+
+        // predefined functions without side effects: excludes eval, trace,
+        // sql, full-text, and Java extensions
+        private static boolean pureFunction(Class call)
+        {
+            Class fun = call.getEnclosingClass();
+            if (fun == Trace.class || fun == JavaFunction.class)
+                return false;
+            if (fun == null || !ExtensionFunction.class.isAssignableFrom(fun))
+                return true;
+            return fun == XfnCatchError.class || fun == XfnInRange.class
+                   || fun == XfnLike.class || fun == XfnUlike.class
+                   || fun == XfnParse.class || fun == XfnSyntaxColoring.class;
+        }
+    }
+
     // Collects used variables (only the name)
     private static class VarRefCollector extends Visitor
     {
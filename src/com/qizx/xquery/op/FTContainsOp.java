@@ -22,15 +22,18 @@ package com.qizx.xquery.op;
 import com.qizx.api.DataModelException;
 import com.qizx.api.EvaluationException;
 import com.qizx.api.Node;
+import com.qizx.api.fulltext.Scorer;
 import com.qizx.queries.FullText;
 import com.qizx.queries.FullText.MatchOptions;
 import com.qizx.queries.FullText.Selection;
+import com.qizx.queries.iterators.TextScorer;
 import com.qizx.util.basic.Check;
 import com.qizx.xquery.DynamicContext;
 import com.qizx.xquery.EvalContext;
 import com.qizx.xquery.Focus;
 import com.qizx.xquery.ModuleContext;
 import com.qizx.xquery.XQValue;
+import com.qizx.xquery.ext.FT_Contains;
 
 import java.util.HashSet;
 
@@ -124,7 +127,8 @@ public class FTContainsOp extends BooleanExpression
         }
         // stop on first match of a context node:
         try {
-            return query.matches(ctx, withoutNodes, sctx.getFulltextFactory());
+            return query.matches(ctx, withoutNodes, sctx.getFulltextFactory(),
+                                 sctx.usesFulltextIndex());
         }
         catch (DataModelException e) {
             context.error(e.getErrorCode(), this,
@@ -133,4 +137,92 @@ public class FTContainsOp extends BooleanExpression
         return false;
     }
 
+    /**
+     * Returns true if the selection does not depend on the evaluation
+     * context, so that its scorer can be reused.
+     */
+    public boolean hasConstantQuery()
+    {
+        return cachedQuery != null;
+    }
+
+    /**
+     * Creates a scorer for the selection.
+     */
+    public TextScorer createScorer(Focus focus, EvalContext context)
+        throws EvaluationException
+    {
+        DynamicContext sctx = context.dynamicContext();
+        Selection query = cachedQuery;
+        if(query == null) {
+            query = selection.expand(focus, context, sctx.getDefaultFTOptions(), 1);
+            query = query.applyThesauri();
+        }
+        return new TextScorer(query, sctx.getFulltextFactory(),
+                              sctx.getTextCollections());
+    }
+
+    /**
+     * Full-text score of this expression: 0 if false, otherwise the best
+     * score of the items of the container. Nodes of parsed documents are
+     * scored by a TextScorer, other items get {@link Scorer#CORE_SCORE}.
+     * @param scorer a scorer of the selection, see {@link #createScorer}
+     */
+    public double evalScore(Focus focus, EvalContext context,
+                            TextScorer scorer)
+        throws EvaluationException
+    {
+        if(!evalAsBoolean(focus, context))
+            return 0;
+        double best = -1;
+        try {
+            XQValue ctx = container.eval(focus, context);
+            for(; ctx.next(); ) {
+                if(ctx.isNode()) {
+                    double score = scorer.score(ctx.getNode());
+                    if(score > best)
+                        best = score;
+                }
+            }
+        }
+        catch (DataModelException e) {
+            context.error(e.getErrorCode(), this,
+                          "data model error" + e.getMessage());
+        }
+        return best < 0 ? Scorer.CORE_SCORE : best;
+    }
+
+    /**
+     * Returns the constant full-text selection of an expression filtered by
+     * a full-text predicate on the context item, like
+     * <code>//p[. ftcontains 'word']</code> or
+     * <code>//p[ft:contains('word')]</code>: the items of the expression
+     * can be scored with this selection. Otherwise returns null.
+     */
+    public static Selection scoringSelection(Expression expr,
+                                             EvalContext context)
+        throws EvaluationException
+    {
+        if(expr instanceof NodeSortExpr)
+            expr = ((NodeSortExpr) expr).expr;
+        if(expr instanceof PathExpr) {
+            PathExpr path = (PathExpr) expr;
+            expr = path.getStep(path.getStepCount() - 1);
+        }
+        if(!(expr instanceof FilterExpr))
+            return null;
+        FilterExpr filter = (FilterExpr) expr;
+        if(filter.predicates.length == 0)
+            return null;
+        Expression pred = filter.predicates[filter.predicates.length - 1];
+        if(pred instanceof FTContainsOp) {
+            FTContainsOp ft = (FTContainsOp) pred;
+            if(ft.ignore == null && ft.container instanceof SelfStep
+               && ((SelfStep) ft.container).nodeTest == null)
+                return ft.cachedQuery;
+        }
+        else if(pred instanceof FT_Contains.Exec)
+            return ((FT_Contains.Exec) pred).getConstantQuery(context);
+        return null;
+    }
 }
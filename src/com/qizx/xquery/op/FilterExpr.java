@@ -43,6 +43,12 @@ public class FilterExpr extends Expression
     
     public Expression source;
     public Expression[] predicates;
+    // index lookup for the first predicate, if possible:
+    private ValueLookup lookup;
+    // for a sorted FLWOR source, the first predicate can limit the sort to
+    // the first items: position() <= limit, or [limit]
+    private Expression limit;
+    private Comparison.Test limitTest;
 
 
     public FilterExpr(Expression source)
@@ -117,6 +123,8 @@ public class FilterExpr extends Expression
         // manage naturalStepOrder:
         if (source instanceof BasicStep)
             ((BasicStep) source).naturalStepOrder = true;
+        planLookup();
+        planLimit();
         context.popDotType();
         type = source.getType();
         // filtering can make a sequence empty:
@@ -129,6 +137,71 @@ public class FilterExpr extends Expression
         return this;
     }
 
+    // called again when the source is changed by a rewriting of the path
+    void planLookup()
+    {
+        lookup = (predicates.length == 0) ? null
+                 : ValueLookup.analyze(source, predicates[0]);
+    }
+
+    private void planLimit()
+    {
+        limit = null;
+        if (!(source instanceof FLWRExpr) || !((FLWRExpr) source).isSorted()
+            || predicates.length == 0)
+            return;
+        Expression pred = predicates[0];
+        if (pred instanceof PosTest) {
+            limit = ((PosTest) pred).index;
+            limitTest = ValueEqOp.TEST;
+            return;
+        }
+        if (!(pred instanceof Comparison.Exec))
+            return;
+        Comparison.Exec comp = (Comparison.Exec) pred;
+        Comparison.Test test = comp.test;
+        Expression value = comp.args[1];
+        if (comp.args[1] instanceof Position.Exec) {
+            value = comp.args[0];
+            test = test.reverse();
+        }
+        else if (!(comp.args[0] instanceof Position.Exec))
+            return;
+        if ((test == ValueEqOp.TEST || test == ValueLtOp.TEST
+             || test == ValueLeOp.TEST)
+            && (value instanceof IntegerLiteral
+                || value instanceof DoubleLiteral
+                || value instanceof DecimalLiteral
+                || value instanceof VarReference)) {
+            limit = value;
+            limitTest = test;
+        }
+    }
+
+    // number of first items of the source needed by the first predicate,
+    // or -1 if not known
+    private long evalLimit(Focus focus, EvalContext context)
+        throws EvaluationException
+    {
+        XQValue v = limit.eval(focus, context);
+        if (!v.next())
+            return -1;
+        XQItem item = v.getItem();
+        if (v.next() || item.isNode())
+            return -1;
+        int quickCode = item.getItemType().quickCode();
+        if (quickCode != XQType.QT_INT && quickCode != XQType.QT_DEC
+            && quickCode != XQType.QT_FLOAT && quickCode != XQType.QT_DOUBLE)
+            return -1;
+        double value = item.getDouble();
+        if (value != value || value >= Long.MAX_VALUE)
+            return -1;
+        long count = (long) Math.floor(value);
+        if (limitTest == ValueLtOp.TEST && count == value)
+            --count;
+        return Math.max(count, 0);
+    }
+
     private boolean containsCallTo(Class function, int argc, Expression pred)
     {
         Function.Call call = (Call) pred.findSubExpression(function);
@@ -140,7 +213,17 @@ public class FilterExpr extends Expression
     public XQValue eval(Focus focus, EvalContext context)
         throws EvaluationException
     {
-        XQValue src = source.eval(focus, context);
+        XQValue src = null;
+        // candidates from an index: predicates are still applied
+        if (lookup != null)
+            src = lookup.eval(focus, context);
+        if (src == null && limit != null) {
+            long count = evalLimit(focus, context);
+            if (count > 0)
+                src = ((FLWRExpr) source).evalFirst(focus, context, count);
+        }
+        if (src == null)
+            src = source.eval(focus, context);
         for (int p = 0; p < predicates.length; p++) {
             Expression pred = predicates[p];
             if (pred instanceof PosTest) {
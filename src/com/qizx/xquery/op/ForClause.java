@@ -19,9 +19,14 @@
  */
 package com.qizx.xquery.op;
 
+import com.qizx.api.DataModelException;
 import com.qizx.api.EvaluationException;
 import com.qizx.api.Item;
+import com.qizx.api.Node;
 import com.qizx.api.QName;
+import com.qizx.api.fulltext.Scorer;
+import com.qizx.queries.FullText;
+import com.qizx.queries.iterators.TextScorer;
 import com.qizx.xquery.*;
 
 /**
@@ -108,6 +113,9 @@ public class ForClause extends VarClause
     {
         XQValue current; // evaluated expression
         int curPos;
+        // scores items filtered by a full-text predicate, if any:
+        TextScorer scorer;
+        boolean scorerChecked;
 
         Sequence(Focus focus, EvalContext context)
         {
@@ -161,9 +169,40 @@ public class ForClause extends VarClause
             ++curPos;
             if (position != null)
                 context.storeLocalInteger(posDecl.address, curPos);
-            if (scoreDecl != null)
-                context.storeScore(scoreDecl.address,
-                                   current.getFulltextScore(null));
+            if (scoreDecl != null) {
+                double score = current.getFulltextScore(null);
+                if (score < 0 && current.isNode())
+                    score = predicateScore(current.getNode());
+                context.storeScore(scoreDecl.address, score);
+            }
+        }
+
+        // score of an item selected by a full-text predicate, or -1
+        private double predicateScore(Node node)
+            throws EvaluationException
+        {
+            if (!scorerChecked) {
+                scorerChecked = true;
+                // statistics of collections are built from the text indexes
+                FullText.Selection query =
+                    context.dynamicContext().usesFulltextIndex()
+                        ? FTContainsOp.scoringSelection(expr, context) : null;
+                if (query != null)
+                    scorer = new TextScorer(query,
+                           context.dynamicContext().getFulltextFactory(),
+                           context.dynamicContext().getTextCollections());
+            }
+            if (scorer == null)
+                return -1;
+            try {
+                double score = scorer.score(node);
+                return score < 0 ? Scorer.CORE_SCORE : score;
+            }
+            catch (DataModelException e) {
+                context.error(e.getErrorCode(), ForClause.this,
+                              "data model error: " + e.getMessage());
+                return -1;
+            }
         }
 
         public XQValue bornAgain()
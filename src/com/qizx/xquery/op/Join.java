@@ -22,6 +22,7 @@ package com.qizx.xquery.op;
 import com.qizx.api.EvaluationException;
 import com.qizx.util.basic.HTable;
 import com.qizx.xdm.BasicNode;
+import com.qizx.xdm.FONIDataModel;
 import com.qizx.xquery.EvalContext;
 import com.qizx.xquery.ExprDisplay;
 import com.qizx.xquery.Focus;
@@ -30,6 +31,19 @@ import com.qizx.xquery.XQType;
 import com.qizx.xquery.XQValue;
 import com.qizx.xquery.dt.SingleWrappedObject;
 import com.qizx.xquery.dt.StringValue;
+import com.qizx.xquery.fn.Collection;
+import com.qizx.xquery.fn.CurrentDate;
+import com.qizx.xquery.fn.CurrentDateTime;
+import com.qizx.xquery.fn.CurrentTime;
+import com.qizx.xquery.fn.Doc;
+import com.qizx.xquery.fn.DocAvailable;
+import com.qizx.xquery.fn.Error;
+import com.qizx.xquery.fn.Function;
+import com.qizx.xquery.fn.ImplicitTimezone;
+import com.qizx.xquery.fn.Input;
+import com.qizx.xquery.fn.JavaFunction;
+import com.qizx.xquery.fn.Trace;
+import com.qizx.xquery.fn.UserFunction;
 
 import java.text.Collator;
 import java.util.Arrays;
@@ -44,6 +58,12 @@ public class Join
      * Builds a join hash table from a node sequence and an expression relative
      * to each node (i.e. computed with the node as focus). Value of a LET
      * expression inserted before the outer loop of the join.
+     * <p>
+     * When the node sequence is a path from fn:doc() that depends on nothing
+     * else than the document, the table is kept by the document (see
+     * {@link FONIDataModel#putDerivedObject}) and reused by further
+     * evaluations of the same compiled query. It is dropped with the document
+     * when the document is evicted from the pool or reloaded.
      */
     protected static class Maker extends Expression
     {
@@ -55,6 +75,9 @@ public class Join
 
         XQType keyType;
 
+        // source path if the table can be kept by its document:
+        PathExpr docPath;
+
         Maker(Expression source, Expression key, LocalVariable tmpVar,
               XQType keyType)
         {
@@ -62,6 +85,60 @@ public class Join
             this.key = key;
             this.tmpVar = tmpVar;
             this.keyType = keyType;
+            if (keyType == XQType.NUMERIC || keyType == XQType.STRING)
+                docPath = documentPath(source, key, tmpVar);
+        }
+
+        // returns the source if it is a path like doc("uri")//a[@b = "c"]
+        // and if the key is a path like $tmp/@id
+        private static PathExpr documentPath(Expression source,
+                                             Expression key,
+                                             final LocalVariable tmpVar)
+        {
+            if (source instanceof NodeSortExpr)
+                source = ((NodeSortExpr) source).expr;
+            if (!(source instanceof PathExpr))
+                return null;
+            PathExpr path = (PathExpr) source;
+            if (!(path.getStep(0) instanceof Doc.Exec))
+                return null;
+            Expression.Visitor pure = new Expression.Visitor() {
+                public boolean preTest(Expression e)
+                {
+                    if (e instanceof VarReference)
+                        return e instanceof VarReference.Local
+                               && ((VarReference.Local) e).decl == tmpVar;
+                    if (e instanceof Function.Call)
+                        return contextFree((Function.Call) e);
+                    return !(e instanceof NodeConstructor
+                             || e instanceof FunctionCall
+                             || e instanceof FunctionItemCall);
+                }
+            };
+            for (int s = 1; s < path.getStepCount(); s++)
+                if (path.getStep(s) instanceof VarReference
+                    || !pure.visit(path.getStep(s)))
+                    return null;
+            return pure.visit(key) ? path : null;
+        }
+
+        // standard functions whose result depends only on their arguments
+        // and on the focus
+        private static boolean contextFree(Function.Call call)
+        {
+            return call.getClass().getPackage() == Doc.class.getPackage()
+                   && !(call instanceof Doc.Exec
+                        || call instanceof Collection.Exec
+                        || call instanceof Input.Exec
+                        || call instanceof DocAvailable.Exec
+                        || call instanceof CurrentDate.Exec
+                        || call instanceof CurrentDateTime.Exec
+                        || call instanceof CurrentTime.Exec
+                        || call instanceof ImplicitTimezone.Exec
+                        || call instanceof Trace.Exec
+                        || call instanceof Error.Exec
+                        || call instanceof JavaFunction.Call
+                        || call instanceof UserFunction.Call);
         }
 
         public Expression child(int rank)
@@ -72,41 +149,65 @@ public class Join
         public XQValue eval(Focus focus, EvalContext context)
             throws EvaluationException
         {
+            FONIDataModel dm = null;
+            TableKey cacheKey = null;
+            if (docPath != null) {
+                BasicNode doc = docPath.getStep(0).evalAsOptNode(focus, context);
+                if (doc instanceof FONIDataModel.FONINode) {
+                    dm = ((FONIDataModel.FONINode) doc).getDM();
+                    cacheKey = new TableKey(this, context.getCollator(null));
+                    Object table = dm.getDerivedObject(cacheKey);
+                    if (table != null)
+                        return new SingleWrappedObject(table);
+                }
+            }
             XQValue src = source.eval(focus, context);
             // -long t0 = System.currentTimeMillis();
             // -System.err.println("start join "+keyType);
             Table table = null;
+            int nodeCount = 0;
             for (; src.next();) {
                 BasicNode curNode = src.basicNode();
+                ++nodeCount;
+                // a streamed source yields nodes of other documents:
+                if (dm != null && (!(curNode instanceof FONIDataModel.FONINode)
+                       || ((FONIDataModel.FONINode) curNode).getDM() != dm))
+                    dm = null;
                 // store to tmp variable:
                 context.storeLocal(tmpVar.address, src, true, null);
                 XQValue keys = key.eval(focus, context);
+                int keyCount = 0;
                 // optimize string and numeric cases:
                 if (keyType == XQType.NUMERIC) {
                     if (table == null)
                         table = new NTable();
                     NTable tbl = (NTable) table;
-                    for (; keys.next();)
+                    for (; keys.next(); ++keyCount)
                         tbl.put(keys.getDouble(), curNode);
                 }
                 else if (keyType == XQType.STRING) {
                     if (table == null)
                         table = new STable(context.getCollator(null));
                     STable tbl = (STable) table;
-                    for (; keys.next();)
+                    for (; keys.next(); ++keyCount)
                         tbl.put(keys.getString(), curNode);
                 }
                 else { // general case
                     if (table == null)
                         table = new ITable(context);
                     ITable tbl = (ITable) table;
-                    for (; keys.next();)
+                    for (; keys.next(); ++keyCount)
                         tbl.put(keys.getItem(), curNode);
                 }
+                if (keyCount > 1)
+                    table.multiKeys = true;
             }
             // -System.err.println(table+" join built");
             // if(table == null) // protection (empty input sequence)
             // table = new ITable();
+            if (dm != null && table != null)
+                dm.putDerivedObject(cacheKey, table,
+                                    64 * table.getSize() + 24 * nodeCount);
             return new SingleWrappedObject(table);
         }
 
@@ -114,11 +215,42 @@ public class Join
         {
             d.header(this);
             d.property("key-type", keyType);
+            if (docPath != null)
+                d.property("cached", "true");
             d.child("key", key);
             d.child("source", source);
         }
     }
 
+    // identifies a table kept by a document: the collation may change
+    // between evaluations
+    private static class TableKey
+    {
+        Maker maker;
+        Collator collator;
+
+        TableKey(Maker maker, Collator collator)
+        {
+            this.maker = maker;
+            this.collator = collator;
+        }
+
+        public int hashCode()
+        {
+            return System.identityHashCode(maker);
+        }
+
+        public boolean equals(Object obj)
+        {
+            if (!(obj instanceof TableKey))
+                return false;
+            TableKey other = (TableKey) obj;
+            return other.maker == maker && (collator == null
+                       ? other.collator == null
+                       : collator.equals(other.collator));
+        }
+    }
+
     /**
      * Gets a node sequence from a key expression. 
      * References the key expression to evaluate, and the local variable 
@@ -129,6 +261,9 @@ public class Join
         Expression key;
         LocalVariable joinVar;
         Comparison.Test mode;   // e.g get(for key < value)
+        // optional opposite bound (band join), e.g. key <= value < bound:
+        Expression bound;
+        Comparison.Test boundMode;
 
         Get(Expression key, LocalVariable joinVar, Comparison.Test mode)
         {
@@ -138,9 +273,20 @@ public class Join
             this.type = XQType.NODE.star;
         }
 
+        /**
+         * Restricts an order comparison by a comparison in the opposite
+         * direction. The bound is used only when both keys and the values
+         * in the table are single: it must also be checked by the caller.
+         */
+        void setBound(Expression bound, Comparison.Test boundMode)
+        {
+            this.bound = bound;
+            this.boundMode = boundMode;
+        }
+
         public Expression child(int rank)
         {
-            return rank == 0 ? key : null;
+            return rank == 0 ? key : rank == 1 ? bound : null;
         }
 
         public void dump(ExprDisplay d)
@@ -149,6 +295,10 @@ public class Join
             d.property("join", joinVar.address);
             d.property("comp", mode.getName());
             d.child("key", key);
+            if (bound != null) {
+                d.property("bound-comp", boundMode.getName());
+                d.child("bound", bound);
+            }
         }
 
         public XQValue eval(Focus focus, EvalContext context)
@@ -160,6 +310,14 @@ public class Join
                 context.error("OOPS", this, "not a join table in $"
                                             + joinVar.name + " " + tbl);
             Table table = (Table) ((SingleWrappedObject) tbl).getObject();
+            if (table == null) // empty input sequence
+                return XQValue.empty;
+            if (bound != null && !table.multiKeys
+                && !(table instanceof ITable)) {
+                XQValue res = evalRange(table, focus, context);
+                if (res != null)
+                    return res;
+            }
             NodeSortExpr.Sequence seq = null;
             // evaluate key:
             int keyCnt = 0;
@@ -168,37 +326,103 @@ public class Join
             for (; kval.next();)
             {
                 Table.Entry entry = null;
-                // -System.err.println("--- find entries for "+kval);
-                if (table instanceof STable)
-                    entry = ((STable) table).findEntries(kval.getString(), mode);
-                else if (table instanceof NTable)
-                    entry = ((NTable) table).findEntries(kval.getDouble(), mode);
-                else if (table instanceof ITable)
-                    entry = ((ITable) table).findEntries(kval.getItem(), mode);
+                // a table kept by a document can be shared by several
+                // threads, and the iteration state is in the table:
+                synchronized (table) {
+                    // -System.err.println("--- find entries for "+kval);
+                    if (table instanceof STable)
+                        entry = ((STable) table).findEntries(kval.getString(),
+                                                             mode);
+                    else if (table instanceof NTable)
+                        entry = ((NTable) table).findEntries(kval.getDouble(),
+                                                             mode);
+                    else if (table instanceof ITable)
+                        entry = ((ITable) table).findEntries(kval.getItem(),
+                                                             mode);
+
+                    for (; entry != null; entry = table.nextEntry()) {
+                        // really something: create an array sequence (maybe
+                        // to sort) if needed
+                        // -System.err.println(" entry "+entry);
+                        ++keyCnt;
+                        if (seq == null) {
+                            seq = new NodeSortExpr.Sequence(entry.nodes,
+                                                            entry.nodeCount);
+                        }
+                        else {
+                            seq.addItems(entry.nodes, entry.nodeCount);
+                        }
+                    }
+                }
+            }
+            
+            if(seq == null) 
+                return XQValue.empty;
+            
+            if (keyCnt == 1)
+                seq.needsSort = false;
+            seq.isDistinct = true;  // by construction
+            return seq;
+        }
 
+        // entries between the key and the bound, or null if the key or the
+        // bound is not a single value
+        private XQValue evalRange(Table table, Focus focus,
+                                  EvalContext context)
+            throws EvaluationException
+        {
+            XQItem low = single(key.eval(focus, context));
+            XQItem high = (low == null) ? null
+                          : single(bound.eval(focus, context));
+            if (high == null)
+                return null;
+            Comparison.Test lowMode = mode, highMode = boundMode;
+            if (mode == ValueGtOp.TEST || mode == ValueGeOp.TEST) {
+                XQItem tmp = low;
+                low = high;
+                high = tmp;
+                lowMode = boundMode;
+                highMode = mode;
+            }
+            NodeSortExpr.Sequence seq = null;
+            int keyCnt = 0;
+            synchronized (table) {
+                Table.Entry entry;
+                if (table instanceof STable)
+                    entry = ((STable) table).findRange(low.getString(),
+                                                       lowMode,
+                                                       high.getString(),
+                                                       highMode);
+                else
+                    entry = ((NTable) table).findRange(low.getDouble(),
+                                                       lowMode,
+                                                       high.getDouble(),
+                                                       highMode);
                 for (; entry != null; entry = table.nextEntry()) {
-                    // really something: create an array sequence (maybe to
-                    // sort) if needed
-                    // -System.err.println(" entry "+entry);
                     ++keyCnt;
-                    if (seq == null) {
+                    if (seq == null)
                         seq = new NodeSortExpr.Sequence(entry.nodes,
                                                         entry.nodeCount);
-                    }
-                    else {
+                    else
                         seq.addItems(entry.nodes, entry.nodeCount);
-                    }
                 }
             }
-            
-            if(seq == null) 
+            if (seq == null)
                 return XQValue.empty;
-            
             if (keyCnt == 1)
                 seq.needsSort = false;
-            seq.isDistinct = true;  // by construction
+            seq.isDistinct = true;  // single key per node
             return seq;
         }
+
+        private static XQItem single(XQValue value)
+            throws EvaluationException
+        {
+            if (!value.next())
+                return null;
+            XQItem item = value.getItem();
+            return value.next() ? null : item;
+        }
     }
 
     // base class for String, Numeric, Generic implementations
@@ -208,6 +432,9 @@ public class Join
 
         Comparator comparator;
 
+        // true if some node has several keys:
+        boolean multiKeys;
+
         // iteration:
         int index, lastIndex;
 
@@ -271,34 +498,38 @@ public class Join
             index = lastIndex = 0;
             if (mode == ValueEqOp.TEST)
                 return (Entry) get(probe);
-            int ix = locate(probe); // binary search
+            int ix = boundary(probe, mode); // binary search
 
-            if (mode == ValueGtOp.TEST) { // ie probe > keys 
-                lastIndex = ix; // probe/key excluded in all cases
+            if (mode == ValueGtOp.TEST || mode == ValueGeOp.TEST) {
+                lastIndex = ix; // ie keys < probe or keys <= probe
             }
-            else if (mode == ValueGeOp.TEST) { // ie keys <= probe
-                if (ix < keys.length
-                    && comparator.compare(keys[ix], probe) == 0)
-                    ++ix; // probe/key included if equality
-                lastIndex = ix;
-            }
-            else if (mode == ValueLtOp.TEST) { // ie probe < keys 
-                if (ix < keys.length
-                    && comparator.compare(keys[ix], probe) == 0)
-                    ++ix; // exclude if equal
-                index = ix;
-                lastIndex = keys.length;
-            }
-            else { // Le: // ie keys >= probe
+            else { // ie keys > probe or keys >= probe
                 index = ix;
                 lastIndex = keys.length;
             }
+            return nextEntry();
+        }
 
-            Entry res =
-                index < Math.min(lastIndex, keys.length)
-                    ? keys[index++] : null;
+        // iterates on keys such that (low lowMode key) and (high highMode
+        // key), for example low <= key < high
+        Entry findRange(Entry low, Comparison.Test lowMode,
+                        Entry high, Comparison.Test highMode)
+        {
+            index = boundary(low, lowMode);
+            lastIndex = Math.max(index, boundary(high, highMode));
+            return nextEntry();
+        }
 
-            return res;
+        // position of the first key after the keys k such that
+        // (probe mode k) is false for Lt or Le, true for Gt or Ge
+        private int boundary(Entry probe, Comparison.Test mode)
+        {
+            int ix = locate(probe);
+            if ((mode == ValueGeOp.TEST || mode == ValueLtOp.TEST)
+                && ix < keys.length
+                && comparator.compare(keys[ix], probe) == 0)
+                ++ix; // included if Ge, excluded if Lt
+            return ix;
         }
 
         // returns the position of the smallest entry >= probe
@@ -327,6 +558,7 @@ public class Join
     public static class STable extends Table
     {
         Entry probe = new Entry("", null);
+        Entry highProbe = new Entry("", null);
 
         Collator collator;
 
@@ -385,6 +617,14 @@ public class Join
             probe.key = key;
             return findEntries(probe, mode);
         }
+
+        Table.Entry findRange(String low, Comparison.Test lowMode,
+                              String high, Comparison.Test highMode)
+        {
+            probe.key = low;
+            highProbe.key = high;
+            return findRange(probe, lowMode, highProbe, highMode);
+        }
     } // end of class STable
 
     //
@@ -393,6 +633,7 @@ public class Join
     public static class NTable extends Table
     {
         Entry probe = new Entry(0, null);
+        Entry highProbe = new Entry(0, null);
 
         NTable()
         {
@@ -442,6 +683,7 @@ public class Join
                 entry.add(node);
             else
                 directPut(new Entry(key, node));
+            keys = null;
         }
 
         Table.Entry findEntries(double key, Comparison.Test mode)
@@ -449,6 +691,14 @@ public class Join
             probe.key = key;
             return findEntries(probe, mode);
         }
+
+        Table.Entry findRange(double low, Comparison.Test lowMode,
+                              double high, Comparison.Test highMode)
+        {
+            probe.key = low;
+            highProbe.key = high;
+            return findRange(probe, lowMode, highProbe, highMode);
+        }
     }
 
     //
@@ -0,0 +1,306 @@
+/*
+ *    Qizx/open 4.1
+ *
+ * This code is the open-source version of Qizx.
+ * Copyright (C) 2004-2009 Axyana Software -- All rights reserved.
+ *
+ * The contents of this file are subject to the Mozilla Public License
+ *  Version 1.1 (the "License"); you may not use this file except in
+ *  compliance with the License. You may obtain a copy of the License at
+ *  http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ *  WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ *  for the specific language governing rights and limitations under the
+ *  License.
+ *
+ * The Initial Developer of the Original Code is Xavier Franc - Axyana Software.
+ *
+ */
+package com.qizx.xquery.op;
+
+import com.qizx.api.EvaluationException;
+import com.qizx.util.Collations;
+import com.qizx.xquery.XQItem;
+import com.qizx.xquery.XQType;
+import com.qizx.xquery.dt.DoubleValue;
+import com.qizx.xquery.dt.IntegerValue;
+import com.qizx.xquery.dt.StringValue;
+
+import java.text.Collator;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Stable merge sort of tuples, possibly in parallel.
+ * <p>
+ * When tuples are sorted on a single key (at position 1 in tuples), the
+ * primitive values of the key are used if possible: longs for xs:integer,
+ * doubles for xs:double, strings or collation keys for strings and untyped
+ * values. The order is the same as with {@link OrderSpec#compare}. Keys of
+ * other types, or of mixed types, are left to the generic comparison.
+ */
+final class KeySort
+{
+    // below this size, runs are sorted by insertion:
+    private static final int INSERTION_SIZE = 8;
+    // minimum size of the runs sorted by parallel tasks:
+    private static final int MIN_TASK_SIZE = 8192;
+
+    private static final int INTEGER = 1;
+    private static final int DOUBLE = 2;
+    private static final int STRING = 3;
+
+    private long[] longs;
+    private double[] doubles;
+    private Comparable[] strings;
+    private boolean descending;
+    // tuples sorted directly with a comparator, if not null:
+    private Comparator comparator;
+    private Object[] tuples;
+    private Object[] work;
+
+    private KeySort(boolean descending)
+    {
+        this.descending = descending;
+    }
+
+    /**
+     * Sorts tuples with a comparator, in parallel.
+     */
+    static void sort(Object[] tuples, int count, Comparator comparator,
+                     ForkJoinPool pool)
+    {
+        KeySort sort = new KeySort(false);
+        sort.tuples = tuples;
+        sort.comparator = comparator;
+        if (count < 2 * MIN_TASK_SIZE) {
+            Arrays.sort(tuples, 0, count, comparator);
+            return;
+        }
+        sort.work = new Object[count];
+        pool.invoke(sort.new SortTask(null, null, 0, count,
+                                      taskSize(count, pool)));
+    }
+
+    /**
+     * Sorts tuples on the primitive values of a single key. Returns false,
+     * leaving the tuples unchanged, if the key values are not suitable.
+     * @param pool threads used for sorting, or null for the current thread
+     */
+    static boolean sort(Object[] tuples, int count, OrderSpec spec,
+                        ForkJoinPool pool)
+        throws EvaluationException
+    {
+        int kind = 0;
+        int[] keyed = new int[count];
+        int keyedCount = 0;
+        int[] empty = null;
+        int emptyCount = 0;
+        for (int t = 0; t < count; t++) {
+            XQItem key = ((XQItem[]) tuples[t])[1];
+            if (key == null) {
+                if (empty == null)
+                    empty = new int[count];
+                empty[emptyCount++] = t;
+                continue;
+            }
+            int k = kind(key);
+            if (k == 0 || (kind != 0 && k != kind))
+                return false;
+            kind = k;
+            keyed[keyedCount++] = t;
+        }
+
+        KeySort sort = new KeySort(spec.descending);
+        Collator collator = spec.getCollator();
+        if (collator == Collations.CODEPOINT_COLLATOR)
+            collator = null;
+        switch (kind) {
+        case INTEGER:
+            sort.longs = new long[count];
+            break;
+        case DOUBLE:
+            sort.doubles = new double[count];
+            break;
+        case STRING:
+            sort.strings = new Comparable[count];
+            break;
+        }
+        for (int i = 0; i < keyedCount; i++) {
+            int t = keyed[i];
+            XQItem key = ((XQItem[]) tuples[t])[1];
+            switch (kind) {
+            case INTEGER:
+                sort.longs[t] = key.getInteger();
+                break;
+            case DOUBLE:
+                sort.doubles[t] = key.getDouble();
+                break;
+            case STRING:
+                String s = key.getString();
+                sort.strings[t] = (collator == null)
+                                    ? (Comparable) s
+                                    : collator.getCollationKey(s);
+                break;
+            }
+        }
+        sort.sort(keyed, keyedCount, pool);
+
+        // empty keys keep their input order, before or after the others:
+        Object[] result = new Object[count];
+        boolean emptyFirst = spec.emptyGreatest == spec.descending;
+        int r = 0;
+        if (emptyFirst)
+            for (int i = 0; i < emptyCount; i++)
+                result[r++] = tuples[empty[i]];
+        for (int i = 0; i < keyedCount; i++)
+            result[r++] = tuples[keyed[i]];
+        if (!emptyFirst)
+            for (int i = 0; i < emptyCount; i++)
+                result[r++] = tuples[empty[i]];
+        System.arraycopy(result, 0, tuples, 0, count);
+        return true;
+    }
+
+    private static int kind(XQItem key)
+        throws EvaluationException
+    {
+        int code = key.getItemType().quickCode();
+        if (key instanceof IntegerValue)
+            return (code == XQType.QT_INT) ? INTEGER : 0;
+        if (key instanceof DoubleValue) {
+            // NaN is not consistently ordered by the generic comparison
+            double d = key.getDouble();
+            return (code == XQType.QT_DOUBLE && d == d) ? DOUBLE : 0;
+        }
+        if (key instanceof StringValue)
+            return (code == XQType.QT_STRING || code == XQType.QT_UNTYPED
+                    || code == XQType.QT_ANYURI) ? STRING : 0;
+        return 0;
+    }
+
+    private int compare(int t1, int t2)
+    {
+        int cmp;
+        if (longs != null) {
+            long v1 = longs[t1], v2 = longs[t2];
+            cmp = (v1 < v2) ? -1 : (v1 > v2) ? 1 : 0;
+        }
+        else if (doubles != null) {
+            double v1 = doubles[t1], v2 = doubles[t2];
+            cmp = (v1 < v2) ? -1 : (v1 > v2) ? 1 : 0;
+        }
+        else
+            cmp = strings[t1].compareTo(strings[t2]);
+        return descending ? -cmp : cmp;
+    }
+
+    private void sort(int[] order, int count, ForkJoinPool pool)
+    {
+        int[] work = new int[count];
+        if (pool == null || count < 2 * MIN_TASK_SIZE) {
+            mergeSort(order, work, 0, count);
+            return;
+        }
+        pool.invoke(new SortTask(order, work, 0, count,
+                                 taskSize(count, pool)));
+    }
+
+    private static int taskSize(int count, ForkJoinPool pool)
+    {
+        return Math.max(MIN_TASK_SIZE, count / (4 * pool.getParallelism()));
+    }
+
+    // sorts halves in parallel then merges them
+    private class SortTask extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        private int[] order;
+        private int[] work;
+        private int from;
+        private int to;
+        private int taskSize;
+
+        SortTask(int[] order, int[] work, int from, int to, int taskSize)
+        {
+            this.order = order;
+            this.work = work;
+            this.from = from;
+            this.to = to;
+            this.taskSize = taskSize;
+        }
+
+        protected void compute()
+        {
+            if (to - from <= taskSize) {
+                if (comparator != null)
+                    Arrays.sort(tuples, from, to, comparator);
+                else
+                    mergeSort(order, work, from, to);
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new SortTask(order, work, from, mid, taskSize),
+                      new SortTask(order, work, mid, to, taskSize));
+            if (comparator != null)
+                mergeTuples(from, mid, to);
+            else
+                merge(order, work, from, mid, to);
+        }
+    }
+
+    // merges the sorted runs tuples[from..mid) and tuples[mid..to)
+    private void mergeTuples(int from, int mid, int to)
+    {
+        if (comparator.compare(tuples[mid - 1], tuples[mid]) <= 0)
+            return; // already in order
+        System.arraycopy(tuples, from, work, from, to - from);
+        int i = from, j = mid, k = from;
+        while (i < mid && j < to)
+            tuples[k++] = (comparator.compare(work[j], work[i]) < 0)
+                              ? work[j++] : work[i++];
+        while (i < mid)
+            tuples[k++] = work[i++];
+        while (j < to)
+            tuples[k++] = work[j++];
+    }
+
+    // stable sort of order[from..to), using work as temporary storage
+    private void mergeSort(int[] order, int[] work, int from, int to)
+    {
+        if (to - from <= INSERTION_SIZE) {
+            for (int i = from + 1; i < to; i++) {
+                int t = order[i];
+                int j = i;
+                for (; j > from && compare(order[j - 1], t) > 0; j--)
+                    order[j] = order[j - 1];
+                order[j] = t;
+            }
+            return;
+        }
+        int mid = (from + to) >>> 1;
+        mergeSort(order, work, from, mid);
+        mergeSort(order, work, mid, to);
+        merge(order, work, from, mid, to);
+    }
+
+    // merges the sorted runs order[from..mid) and order[mid..to)
+    private void merge(int[] order, int[] work, int from, int mid, int to)
+    {
+        if (compare(order[mid - 1], order[mid]) <= 0)
+            return; // already in order
+        System.arraycopy(order, from, work, from, to - from);
+        int i = from, j = mid, k = from;
+        while (i < mid && j < to)
+            order[k++] = (compare(work[j], work[i]) < 0) ? work[j++]
+                                                         : work[i++];
+        while (i < mid)
+            order[k++] = work[i++];
+        while (j < to)
+            order[k++] = work[j++];
+    }
+}
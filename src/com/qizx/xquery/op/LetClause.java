@@ -22,6 +22,7 @@ package com.qizx.xquery.op;
 import com.qizx.api.EvaluationException;
 import com.qizx.api.Item;
 import com.qizx.api.QName;
+import com.qizx.queries.iterators.TextScorer;
 import com.qizx.xquery.*;
 
 public class LetClause extends VarClause
@@ -78,6 +79,9 @@ public class LetClause extends VarClause
 
     public class Sequence extends VarClause.SingleDummy
     {
+        // scorer of a constant full-text selection:
+        private TextScorer scorer;
+
         Sequence(Focus focus, EvalContext context)
         {
             super(focus, context);
@@ -105,7 +109,15 @@ public class LetClause extends VarClause
             throws EvaluationException
         {
             try {
-                if(score) { // use same var address
+                if(score && expr instanceof FTContainsOp
+                   && context.dynamicContext().usesFulltextIndex()) {
+                    FTContainsOp ft = (FTContainsOp) expr;
+                    if(scorer == null || !ft.hasConstantQuery())
+                        scorer = ft.createScorer(focus, context);
+                    context.storeScore(varDecl.address,
+                                       ft.evalScore(focus, context, scorer));
+                }
+                else if(score) { // use same var address
                     XQValue value = expr.eval(focus, context);
                     context.storeScore(varDecl.address,
                                        value.next()? value.getFulltextScore(null) : 0);
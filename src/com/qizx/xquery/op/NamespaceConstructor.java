@@ -60,7 +60,7 @@ public class NamespaceConstructor extends AttributeConstructor
         throws EvaluationException
     {
         CoreDataModel dm =
-            new CoreDataModel(context.getStaticContext().getBaseURI());
+            new CoreDataModel(context.getExpressionContext().getBaseURI());
         if (prefix != null) { // direct constructor
             CoreNode node = dm.newNSNode(prefix);
             node.addText(value);
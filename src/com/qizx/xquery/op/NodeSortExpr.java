@@ -22,6 +22,8 @@ package com.qizx.xquery.op;
 import com.qizx.api.DataModelException;
 import com.qizx.api.EvaluationException;
 import com.qizx.xdm.BasicNode;
+import com.qizx.xdm.FONIDataModel;
+import com.qizx.xdm.FONIDocument;
 import com.qizx.xquery.EvalContext;
 import com.qizx.xquery.ExprDisplay;
 import com.qizx.xquery.Focus;
@@ -36,6 +38,9 @@ import java.util.Arrays;
  */
 public class NodeSortExpr extends Expression
 {
+    // below this size, nodes are sorted by insertion
+    private static final int RADIX_MIN = 64;
+
     public Expression expr;
 
     public NodeSortExpr(Expression expr)
@@ -94,6 +99,11 @@ public class NodeSortExpr extends Expression
         public void sort()
         {
             pack(); // if necessary
+            if (sortByIds()) {
+                isDistinct = true;
+                needsSort = false;
+                return;
+            }
             Arrays.sort(items, 0, size, new java.util.Comparator() {
                 public int compare(Object o1, Object o2)
                 {
@@ -127,6 +137,91 @@ public class NodeSortExpr extends Expression
             // "+items[i]);
         }
 
+        // Nodes of a single document, except attributes, are sorted on their
+        // integer ids and duplicates removed. Returns false if not possible.
+        private boolean sortByIds()
+        {
+            FONIDocument dom = null;
+            int[] ids = new int[size];
+            boolean ordered = true;
+            for (int i = 0; i < size; i++) {
+                // attributes have the id of their owner:
+                if (items[i].getClass() != FONIDataModel.FONINode.class)
+                    return false;
+                FONIDataModel.FONINode node = (FONIDataModel.FONINode) items[i];
+                if (dom == null)
+                    dom = node.getDom();
+                else if (node.getDom() != dom)
+                    return false;
+                ids[i] = node.getNodeId();
+                if (i > 0 && ids[i] <= ids[i - 1])
+                    ordered = false;
+            }
+            if (ordered) // usual case: already sorted and distinct
+                return true;
+
+            if (size < RADIX_MIN) {
+                for (int i = 1; i < size; i++) {
+                    int id = ids[i];
+                    Object node = items[i];
+                    int j = i;
+                    for (; j > 0 && ids[j - 1] > id; j--) {
+                        ids[j] = ids[j - 1];
+                        items[j] = items[j - 1];
+                    }
+                    ids[j] = id;
+                    items[j] = node;
+                }
+            }
+            else
+                radixSort(ids, items, size);
+
+            int nsize = Math.min(size, 1);
+            for (int i = 1; i < size; i++)
+                if (ids[i] != ids[nsize - 1]) {
+                    ids[nsize] = ids[i];
+                    items[nsize++] = items[i];
+                }
+            for (int i = nsize; i < size; i++)
+                items[i] = null;
+            size = nsize;
+            return true;
+        }
+
+        // LSD radix sort of non-negative keys, with associated values
+        private static void radixSort(int[] keys, Object[] values, int count)
+        {
+            int max = 0;
+            for (int i = 0; i < count; i++)
+                max |= keys[i];
+            int[] keys2 = new int[count];
+            Object[] values2 = new Object[count];
+            int[] counts = new int[257];
+            int shift = 0;
+            for (; shift < 32 && (max >>> shift) != 0; shift += 8) {
+                Arrays.fill(counts, 0);
+                for (int i = 0; i < count; i++)
+                    ++counts[((keys[i] >>> shift) & 0xff) + 1];
+                for (int d = 1; d < 257; d++)
+                    counts[d] += counts[d - 1];
+                for (int i = 0; i < count; i++) {
+                    int pos = counts[(keys[i] >>> shift) & 0xff]++;
+                    keys2[pos] = keys[i];
+                    values2[pos] = values[i];
+                }
+                int[] swapKeys = keys;
+                keys = keys2;
+                keys2 = swapKeys;
+                Object[] swapValues = values;
+                values = values2;
+                values2 = swapValues;
+            }
+            if ((shift / 8) % 2 != 0) { // result is in the work arrays
+                System.arraycopy(keys, 0, keys2, 0, count);
+                System.arraycopy(values, 0, values2, 0, count);
+            }
+        }
+
         public boolean next()
             throws EvaluationException
         {
@@ -19,6 +19,7 @@
  */
 package com.qizx.xquery.op;
 
+import com.qizx.api.DataModelException;
 import com.qizx.api.EvaluationException;
 import com.qizx.api.Item;
 import com.qizx.api.ItemType;
@@ -26,9 +27,11 @@ import com.qizx.api.Node;
 import com.qizx.api.QizxException;
 import com.qizx.xdm.BaseNodeFilter;
 import com.qizx.xdm.BasicNode;
+import com.qizx.xdm.FONIDataModel;
 import com.qizx.xdm.NodeFilter;
 import com.qizx.xdm.XMLPushStreamBase;
 import com.qizx.xquery.*;
+import com.qizx.xquery.dt.SingleItem;
 import com.qizx.xquery.dt.SingleSourceSequence;
 
 import java.math.BigDecimal;
@@ -54,6 +57,14 @@ public class PathExpr extends Expression
     
     public static final int TEXTMODE_CHILD = 1;
     public static final int TEXTMODE_DESC = 2;
+
+    // set when the results are consumed in a way that allows streaming:
+    boolean streamable;
+    // analyzed on first evaluation, after all static rewritings:
+    private volatile Object streaming;
+    private static final Object NOT_STREAMABLE = new Object();
+    // fused steps, indexed by rank of first step; planned on first evaluation
+    private volatile FusedSteps[] fusedSteps;
     
     public PathExpr()
     {
@@ -116,13 +127,20 @@ public class PathExpr extends Expression
     {
         type = context.getDotType() == null ? (XQType) XQType.NODE.star
                                             : context.getDotType();
-        // TODO single node at root for $d in ... return $d//xx
         boolean previousSameDepth = true;
+        // at most one node generated so far (the focus initially):
+        boolean single = true;
         int lastPos = steps.length - 1;
         for (int e = 0; e <= lastPos; e++) {
             context.pushDotType(type);
             Expression step = steps[e] = context.staticCheck(steps[e], 0);
             context.popDotType();
+            if (e > 0 && mergeDescendantStep(e)) {
+                // replaces the previous step, which has the same flags
+                --lastPos;
+                type = steps[--e].getType().itemType().star;
+                continue;
+            }
 
             type = steps[e].getType();
             XQItemType itemType =
@@ -152,16 +170,23 @@ public class PathExpr extends Expression
             // the only case where the composition of 2 steps does not need
             // a sort or a merge is when the first step stays at same depth and
             // the second step stays within the subtree of its origin.
+            // A step applied to a single node needs no sort either, and a
+            // single node is trivially at same depth: for example
+            // $d//a/b with $d bound by a 'for'.
             int stepFlags = steps[e].getFlags();
+            boolean singleStep = atMostOneNode(steps[e], e);
+            if (singleStep)
+                stepFlags |= DOCUMENT_ORDER + SAME_DEPTH;
             // TODO: check the context to see if it can stay unordered
             if (isNodeStep) {
                 if ((stepFlags & DOCUMENT_ORDER) == 0
-                    || e > 0
+                    || e > 0 && !single
                     && !((stepFlags & WITHIN_SUBTREE) != 0
                          && previousSameDepth || (stepFlags & WITHIN_NODE) != 0))
                     needsSort = true;
             }
             previousSameDepth = (stepFlags & SAME_DEPTH) != 0;
+            single = single && singleStep;
             // Extension TODO?: use $obj/memberX as equivalent to
             // getMemberX(obj)
             // if(type instanceof WrappedObjectType) {
@@ -175,6 +200,60 @@ public class PathExpr extends Expression
         return this;
     }
 
+    // true if the step generates at most one node from each origin
+    // (the first step has the focus as origin)
+    private static boolean atMostOneNode(Expression step, int rank)
+    {
+        Class stepClass = step.getClass();
+        if (stepClass == ParentStep.class || stepClass == SelfStep.class
+            || stepClass == RootStep.class)
+            return true;
+        XQType type = step.getType();
+        return rank == 0 && type != null
+               && !XQType.isRepeatable(type.getOccurrence());
+    }
+
+    /**
+     * Rewrites <code>descendant-or-self::node()/child::N[P]</code> into
+     * <code>descendant::N[P]</code> if the predicates P do not depend on
+     * the position: this avoids sorting the result, and allows index
+     * lookups on the predicates.
+     */
+    private boolean mergeDescendantStep(int rank)
+    {
+        Expression prev = steps[rank - 1];
+        if (prev.getClass() != DescendantOrSelfStep.class
+            || ((BasicStep) prev).nodeTest != null
+            || !(steps[rank] instanceof FilterExpr))
+            return false;
+        FilterExpr filter = (FilterExpr) steps[rank];
+        if (filter.source.getClass() != ChildStep.class)
+            return false;
+        NodeFilter test = ((BasicStep) filter.source).nodeTest;
+        if (test == null || test.getNodeKind() != Node.ELEMENT)
+            return false;
+        for (int p = 0; p < filter.predicates.length; p++) {
+            Expression pred = filter.predicates[p];
+            XQItemType type = pred.getType().itemType();
+            if (XQType.NUMERIC.isSuperType(type)
+                || type.isSuperType(XQType.NUMERIC)
+                || Expr.positionalPredicate(pred))
+                return false;
+        }
+        DescendantStep step = new DescendantStep(test);
+        step.atSamePlaceAs(filter.source);
+        step.type = filter.source.getType();
+        step.naturalStepOrder = true;
+        filter.source = step;
+        filter.planLookup();
+
+        Expression[] nsteps = new Expression[steps.length - 1];
+        System.arraycopy(steps, 0, nsteps, 0, rank - 1);
+        System.arraycopy(steps, rank, nsteps, rank - 1, steps.length - rank);
+        steps = nsteps;
+        return true;
+    }
+
     private void staticTypeCheck(Expression prevStep, Expression step, ModuleContext context)
     {
         if(!(prevStep instanceof BasicStep && step instanceof BasicStep))
@@ -224,6 +303,16 @@ public class PathExpr extends Expression
     public XQValue eval(Focus focus, EvalContext context)
         throws EvaluationException
     {
+        Object plan = streamable ? streaming : NOT_STREAMABLE;
+        if (plan == null) {
+            plan = StreamingPath.analyze(this);
+            streaming = plan = (plan == null) ? NOT_STREAMABLE : plan;
+        }
+        if (plan != NOT_STREAMABLE) {
+            XQValue streamed = ((StreamingPath) plan).eval(focus, context);
+            if (streamed != null)
+                return streamed;
+        }
         return context.evalPath(this, focus);
     }
 
@@ -291,8 +380,15 @@ public class PathExpr extends Expression
                                  EvalContext context)
         throws EvaluationException
     {
+        FusedSteps[] fused = fusedSteps;
+        if (fused == null)
+            fusedSteps = fused = planFusion();
         for (int s = startStep, L = steps.length - 1; s <= L; s++) {
             Expression step = getStep(s);
+            if (fused[s] != null) {
+                step = fused[s];
+                s += fused[s].nodeTests.length - 1;
+            }
             if (lastStepNotNode && s == L) {
                 // insert a sort BEFORE last step if needed
                 if (needsSort)
@@ -305,6 +401,80 @@ public class PathExpr extends Expression
         return src;
     }
 
+    /**
+     * Finds runs of child:: steps without predicates, possibly ending with a
+     * descendant:: step, which are evaluated in one go over node ids.
+     */
+    private FusedSteps[] planFusion()
+    {
+        FusedSteps[] fused = new FusedSteps[steps.length];
+        for (int s = 0; s < steps.length; s++) {
+            int end = s;
+            while (end < steps.length
+                   && steps[end].getClass() == ChildStep.class)
+                ++end;
+            if (end < steps.length
+                && steps[end].getClass() == DescendantStep.class)
+                ++end;
+            if (end - s < 2)
+                continue;
+            NodeFilter[] tests = new NodeFilter[end - s];
+            for (int t = s; t < end; t++)
+                tests[t - s] = ((BasicStep) steps[t]).nodeTest;
+            fused[s] = new FusedSteps(s, tests,
+                                      steps[end - 1] instanceof DescendantStep);
+            s = end - 1;
+        }
+        return fused;
+    }
+
+    /**
+     * Consecutive steps evaluated as a single step: on a node of a FONI
+     * document, intermediate nodes are not instantiated; other items go
+     * through the normal composition of steps.
+     */
+    class FusedSteps extends Expression
+    {
+        int first;
+        NodeFilter[] nodeTests;
+        boolean lastDescendant;
+
+        FusedSteps(int first, NodeFilter[] nodeTests, boolean lastDescendant)
+        {
+            this.first = first;
+            this.nodeTests = nodeTests;
+            this.lastDescendant = lastDescendant;
+            atSamePlaceAs(steps[first]);
+            type = steps[first + nodeTests.length - 1].getType();
+        }
+
+        public Expression child(int rank)
+        {
+            return rank < nodeTests.length ? steps[first + rank] : null;
+        }
+
+        public XQValue eval(Focus focus, EvalContext context)
+            throws EvaluationException
+        {
+            XQItem item = focus.currentItem();
+            if (item != null && item.isNode()) {
+                BasicNode node = item.basicNode();
+                if (node.getClass() == FONIDataModel.FONINode.class)
+                    try {
+                        return ((FONIDataModel.FONINode) node)
+                                  .getStepPath(nodeTests, lastDescendant);
+                    }
+                    catch (DataModelException e) {
+                        return dmError(context, e);
+                    }
+            }
+            XQValue src = new SingleItem(item);
+            for (int s = first; s < first + nodeTests.length; s++)
+                src = new Composition(src, steps[s], context);
+            return src;
+        }
+    }
+
     /**
      * Composes a source with a step: from each node of the source, generate
      * new nodes This is for dumb querying, not for collections.
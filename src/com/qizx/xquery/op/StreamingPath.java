@@ -0,0 +1,345 @@
+/*
+ *    Qizx/open 4.1
+ *
+ * This code is the open-source version of Qizx.
+ * Copyright (C) 2004-2009 Axyana Software -- All rights reserved.
+ *
+ * The contents of this file are subject to the Mozilla Public License
+ *  Version 1.1 (the "License"); you may not use this file except in
+ *  compliance with the License. You may obtain a copy of the License at
+ *  http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ *  WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ *  for the specific language governing rights and limitations under the
+ *  License.
+ *
+ * The Initial Developer of the Original Code is Xavier Franc - Axyana Software.
+ *
+ */
+package com.qizx.xquery.op;
+
+import com.qizx.api.DataModelException;
+import com.qizx.api.EvaluationException;
+import com.qizx.api.Node;
+import com.qizx.xdm.BasicNode;
+import com.qizx.xdm.FragmentStream;
+import com.qizx.xdm.NodeFilter;
+import com.qizx.xquery.EvalContext;
+import com.qizx.xquery.Focus;
+import com.qizx.xquery.XQItemType;
+import com.qizx.xquery.XQType;
+import com.qizx.xquery.XQValue;
+import com.qizx.xquery.dt.ArraySequence;
+import com.qizx.xquery.dt.GenericValue;
+import com.qizx.xquery.fn.Avg;
+import com.qizx.xquery.fn.Count;
+import com.qizx.xquery.fn.Data;
+import com.qizx.xquery.fn.DistinctNodes;
+import com.qizx.xquery.fn.DistinctValues;
+import com.qizx.xquery.fn.Doc;
+import com.qizx.xquery.fn.Id;
+import com.qizx.xquery.fn.Idref;
+import com.qizx.xquery.fn.JavaFunction;
+import com.qizx.xquery.fn.Max;
+import com.qizx.xquery.fn.Min;
+import com.qizx.xquery.fn.Root;
+import com.qizx.xquery.fn.SequenceNodeIdentical;
+import com.qizx.xquery.fn.StringJoin;
+import com.qizx.xquery.fn.Sum;
+import com.qizx.xquery.fn.UserFunction;
+import com.qizx.xquery.fn._String;
+
+import java.util.ArrayList;
+
+/**
+ * Plan for the streaming evaluation of a path over a big document, like
+ * <code>doc("big.xml")/feed/entry[price > 10]/id</code>.
+ * <p>
+ * The path must start with fn:doc, followed by child:: or descendant:: steps
+ * with element tests, the last of them possibly having predicates: these
+ * steps are matched while parsing by a {@link FragmentStream}. Predicates
+ * and remaining steps are then evaluated on each matched subtree, so they
+ * must not depend on the position of the matched element, nor leave its
+ * subtree.
+ * <p>
+ * Matched elements are detached from the rest of the document, so the path
+ * is streamed only if its results are consumed in a way that does not leave
+ * their subtrees nor compare their identity: as the result of the query,
+ * when atomized, or as the binding of a 'for' clause whose other parts do
+ * not (see {@link #markConsumers}).
+ * <p>
+ * Whether a document is actually streamed is decided at run time by the
+ * document pool; otherwise the path is evaluated normally.
+ * <p>
+ * The nodes of a streamed document have their own identity: they are not
+ * the nodes returned by a later fn:doc on the same URI in the same query,
+ * nor by another evaluation of the path (see
+ * {@link com.qizx.xdm.DocumentPool#setStreamingThreshold}).
+ */
+public class StreamingPath
+{
+    private PathExpr path;
+    private Expression docURI;
+    private NodeFilter[] steps;
+    private boolean[] descendant;
+    private Expression[] predicates; // of the last streamed step, or null
+    private int nextStep;  // first step evaluated on matches
+
+    private StreamingPath(PathExpr path, Expression docURI,
+                          NodeFilter[] steps, boolean[] descendant,
+                          Expression[] predicates, int nextStep)
+    {
+        this.path = path;
+        this.docURI = docURI;
+        this.steps = steps;
+        this.descendant = descendant;
+        this.predicates = predicates;
+        this.nextStep = nextStep;
+    }
+
+    /**
+     * Marks the paths of a compiled query body whose results are consumed in
+     * a way that allows streaming. Other paths are never streamed.
+     */
+    public static void markConsumers(Expression body)
+    {
+        mark(body, true);
+    }
+
+    // 'safe' if the results of expr are returned by the query or atomized
+    private static void mark(Expression expr, boolean safe)
+    {
+        if (safe && expr instanceof PathExpr)
+            ((PathExpr) expr).streamable = true;
+        else if (safe && expr instanceof SequenceExpr) {
+            Expression kid;
+            for (int rank = 0; (kid = expr.child(rank)) != null; rank++)
+                mark(kid, true);
+            return;
+        }
+        else if (safe && expr instanceof FLWRExpr) {
+            markFLWR((FLWRExpr) expr);
+            return;
+        }
+        boolean atomized = atomizes(expr);
+        Expression kid;
+        for (int rank = 0; (kid = expr.child(rank)) != null; rank++)
+            mark(kid, atomized);
+    }
+
+    // the return clause is consumed like the FLWR expression itself, and
+    // a 'for' binding is safe if no other part can escape from its items
+    private static void markFLWR(FLWRExpr flwr)
+    {
+        Expression kid;
+        for (int rank = 0; (kid = flwr.child(rank)) != null; rank++) {
+            if (kid == flwr.expr)
+                mark(kid, true);
+            else if (kid instanceof ForClause && flwr.groupingKeys == null
+                     && isolatedBinding(flwr, kid))
+                mark(((ForClause) kid).expr, true);
+            else
+                mark(kid, false);
+        }
+    }
+
+    private static boolean isolatedBinding(FLWRExpr flwr, Expression clause)
+    {
+        Expression kid;
+        for (int rank = 0; (kid = flwr.child(rank)) != null; rank++)
+            if (kid != clause && !withinSubtree(kid))
+                return false;
+        return true;
+    }
+
+    // true if the operands of the expression are atomized, or only counted
+    private static boolean atomizes(Expression expr)
+    {
+        if (expr instanceof Comparison.Exec)
+            return true;
+        // compiled arithmetic operators are inner classes of the operator
+        Class<?> operator = expr.getClass().getDeclaringClass();
+        if (operator != null && (NumericOp.class.isAssignableFrom(operator)
+                                 || operator == NegateOp.class))
+            return true;
+        return expr instanceof Data.Exec || expr instanceof _String.Exec
+               || expr instanceof Count.Exec || expr instanceof Sum.Exec
+               || expr instanceof Avg.Exec || expr instanceof Min.RT
+               || expr instanceof Max.RT || expr instanceof DistinctValues.Exec
+               || expr instanceof StringJoin.Exec;
+    }
+
+    /**
+     * Returns a streaming plan for a path, or null if the path cannot be
+     * streamed.
+     */
+    public static StreamingPath analyze(PathExpr path)
+    {
+        Expression[] pathSteps = path.steps;
+        if (pathSteps.length < 2 || !(pathSteps[0] instanceof Doc.Exec))
+            return null;
+        ArrayList<NodeFilter> tests = new ArrayList<NodeFilter>();
+        ArrayList<Boolean> axes = new ArrayList<Boolean>();
+        Expression[] predicates = null;
+        int s = 1;
+        for (; s < pathSteps.length && tests.size() < FragmentStream.MAX_STEPS;
+             s++) {
+            Expression step = pathSteps[s];
+            FilterExpr filter = null;
+            if (step instanceof FilterExpr) {
+                filter = (FilterExpr) step;
+                step = filter.source;
+            }
+            if (!(step instanceof ChildStep || step instanceof DescendantStep)
+                || step instanceof DescendantOrSelfStep)
+                break;
+            NodeFilter test = ((BasicStep) step).nodeTest;
+            if (test == null || test.getNodeKind() != Node.ELEMENT
+                || test.needsNode())
+                break;
+            if (filter != null && !independentPredicates(filter.predicates))
+                break;
+            tests.add(test);
+            axes.add(Boolean.valueOf(step instanceof DescendantStep));
+            if (filter != null) {
+                predicates = filter.predicates;
+                ++s;
+                break;
+            }
+        }
+        if (tests.size() == 0)
+            return null;
+        for (int r = s; r < pathSteps.length; r++)
+            if (!withinSubtree(pathSteps[r]))
+                return null;
+
+        boolean[] descendant = new boolean[axes.size()];
+        for (int i = 0; i < descendant.length; i++)
+            descendant[i] = axes.get(i).booleanValue();
+        return new StreamingPath(path, ((Doc.Exec) pathSteps[0]).args[0],
+                                 tests.toArray(new NodeFilter[tests.size()]),
+                                 descendant, predicates, s);
+    }
+
+    // predicates that can be evaluated on a matched subtree in isolation
+    private static boolean independentPredicates(Expression[] predicates)
+    {
+        for (int p = 0; p < predicates.length; p++) {
+            Expression pred = predicates[p];
+            XQItemType type = pred.getType().itemType();
+            // a numeric value would be compared with the position
+            if (XQType.NUMERIC.isSuperType(type)
+                || type.isSuperType(XQType.NUMERIC)
+                || Expr.positionalPredicate(pred) || !withinSubtree(pred))
+                return false;
+        }
+        return true;
+    }
+
+    // true if the expression cannot access nodes outside the subtree of
+    // its context node, nor compare the identity of nodes. Functions are
+    // not analyzed.
+    private static boolean withinSubtree(Expression expr)
+    {
+        return new Expression.Visitor() {
+            public boolean preTest(Expression e)
+            {
+                return !(e instanceof ParentStep || e instanceof AncestorStep
+                         || e instanceof PrecedingStep
+                         || e instanceof PrecedingSiblingStep
+                         || e instanceof FollowingStep
+                         || e instanceof FollowingSiblingStep
+                         || e instanceof RootStep || e instanceof Root.Exec
+                         || e instanceof Id.Exec || e instanceof Idref.Exec
+                         || e instanceof NodeComparison
+                         || e instanceof UnionOp || e instanceof IntersectOp
+                         || e instanceof ExceptOp
+                         || e instanceof DistinctNodes.Exec
+                         || e instanceof SequenceNodeIdentical.Exec
+                         || e instanceof UserFunction.Call
+                         || e instanceof JavaFunction.Call
+                         || e instanceof FunctionItemCall);
+            }
+        }.visit(expr);
+    }
+
+    /**
+     * Evaluates the path by streaming if the document is big enough, else
+     * returns null.
+     */
+    public XQValue eval(Focus focus, EvalContext context)
+        throws EvaluationException
+    {
+        if (!context.dynamicContext().isStreamingEnabled())
+            return null;    // default: no useless evaluation of the URI
+        String uri = docURI.evalAsOptString(focus, context);
+        if (uri == null)
+            return null;
+        FragmentStream stream;
+        try {
+            stream = context.dynamicContext().streamDocument(uri, steps,
+                                                             descendant);
+        }
+        catch (DataModelException e) {
+            return null; // reported by normal evaluation
+        }
+        return stream == null ? null : new Sequence(stream, context);
+    }
+
+    /**
+     * Sequence of results: for each batch of matches delivered by the
+     * stream, predicates and remaining steps are applied.
+     */
+    class Sequence extends GenericValue
+    {
+        private FragmentStream stream;
+        private EvalContext context;
+        private XQValue current = XQValue.empty;
+        private boolean started;
+
+        Sequence(FragmentStream stream, EvalContext context)
+        {
+            this.stream = stream;
+            this.context = context;
+        }
+
+        public boolean next()
+            throws EvaluationException
+        {
+            if (!started) {
+                started = true;
+                stream.start(this);
+            }
+            for (;;) {
+                if (current.next()) {
+                    item = current.getItem();
+                    return true;
+                }
+                item = null;
+                BasicNode[] matches;
+                try {
+                    matches = stream.nextMatches();
+                }
+                catch (DataModelException e) {
+                    context.error("FODC0002", path,
+                                  new EvaluationException(e.getMessage(), e));
+                    return false;
+                }
+                if (matches == null)
+                    return false;
+                XQValue src = new ArraySequence(matches, matches.length);
+                if (predicates != null)
+                    for (int p = 0; p < predicates.length; p++)
+                        src = new FilterExpr.Sequence(src, predicates[p],
+                                                      context);
+                current = path.evalNextSteps(src, nextStep, context);
+            }
+        }
+
+        public XQValue bornAgain()
+        {
+            return new Sequence(stream.reopen(), context);
+        }
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ *    Qizx/open 4.1
+ *
+ * This code is the open-source version of Qizx.
+ * Copyright (C) 2004-2009 Axyana Software -- All rights reserved.
+ *
+ * The contents of this file are subject to the Mozilla Public License
+ *  Version 1.1 (the "License"); you may not use this file except in
+ *  compliance with the License. You may obtain a copy of the License at
+ *  http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ *  WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ *  for the specific language governing rights and limitations under the
+ *  License.
+ *
+ * The Initial Developer of the Original Code is Xavier Franc - Axyana Software.
+ *
+ */
+package com.qizx.xquery.op;
+
+import com.qizx.xquery.XQItem;
+import com.qizx.xquery.XQValue;
+import com.qizx.xquery.dt.ArraySequence;
+
+/**
+ * Selection of the items with the greatest full-text scores, in a bounded
+ * heap of primitive values.
+ * <p>
+ * Items are kept in the order of a stable descending sort on the score: an
+ * item added later than another one of same score comes after it. Therefore
+ * an item enters the heap only if it is not full or if its score is
+ * strictly greater than the lowest score, which can be checked before the
+ * item is even computed (see {@link #accepts}).
+ */
+final class TopScores
+{
+    private int capacity;
+    private int size;
+    // heap of the kept items, the lowest score with the latest rank on top:
+    private double[] keys;
+    private long[] ranks;
+    private XQItem[] items;
+    private double[] scores;
+    private long rank;
+
+    /**
+     * @param capacity number of items kept
+     * @param withScores true if the full-text scores of items are stored
+     *        with them in the result, see {@link #add}
+     */
+    TopScores(int capacity, boolean withScores)
+    {
+        this.capacity = capacity;
+        keys = new double[capacity];
+        ranks = new long[capacity];
+        items = new XQItem[capacity];
+        if (withScores)
+            scores = new double[capacity];
+    }
+
+    /**
+     * Returns true if an item of this score would be kept.
+     */
+    boolean accepts(double key)
+    {
+        return size < capacity || key(key) > keys[0];
+    }
+
+    /**
+     * Adds an item if its score allows it.
+     * @param key the score used as sort key
+     * @param score full-text score of the item in the result
+     */
+    void add(XQItem item, double key, double score)
+    {
+        key = key(key);
+        long r = rank++;
+        if (size < capacity) {
+            // sift up from the last position
+            int pos = size++;
+            while (pos > 0) {
+                int parent = (pos - 1) >> 1;
+                if (!lower(key, r, keys[parent], ranks[parent]))
+                    break;
+                move(parent, pos);
+                pos = parent;
+            }
+            set(pos, item, key, r, score);
+        }
+        else if (key > keys[0]) {
+            // replace the top, then sift it down
+            int pos = 0;
+            for (;;) {
+                int child = 2 * pos + 1;
+                if (child >= size)
+                    break;
+                if (child + 1 < size
+                    && lower(keys[child + 1], ranks[child + 1],
+                             keys[child], ranks[child]))
+                    ++child;
+                if (!lower(keys[child], ranks[child], key, r))
+                    break;
+                move(child, pos);
+                pos = child;
+            }
+            set(pos, item, key, r, score);
+        }
+    }
+
+    /**
+     * Returns the kept items in descending order of score.
+     * @param origin sequence of the unsorted items
+     */
+    XQValue getResult(XQValue origin)
+    {
+        int count = size;
+        Object[] sorted = new Object[count];
+        double[] sortedScores = (scores == null) ? null : new double[count];
+        // pop the lowest item and put it at the end:
+        for (int t = count; --t >= 0;) {
+            sorted[t] = items[0];
+            if (sortedScores != null)
+                sortedScores[t] = scores[0];
+            --size;
+            if (size > 0) {
+                double key = keys[size];
+                long r = ranks[size];
+                XQItem item = items[size];
+                double score = (scores == null) ? 0 : scores[size];
+                int pos = 0;
+                for (;;) {
+                    int child = 2 * pos + 1;
+                    if (child >= size)
+                        break;
+                    if (child + 1 < size
+                        && lower(keys[child + 1], ranks[child + 1],
+                                 keys[child], ranks[child]))
+                        ++child;
+                    if (!lower(keys[child], ranks[child], key, r))
+                        break;
+                    move(child, pos);
+                    pos = child;
+                }
+                set(pos, item, key, r, score);
+            }
+        }
+        items = null;
+        ArraySequence seq = new ArraySequence(count, sorted, origin);
+        seq.setScores(sortedScores);
+        return seq;
+    }
+
+    // NaN is ordered before all scores, which are never negative
+    private static double key(double key)
+    {
+        return (key == key) ? key : -1;
+    }
+
+    // true if item 1 comes after item 2 in the result
+    private static boolean lower(double key1, long rank1,
+                                 double key2, long rank2)
+    {
+        return key1 < key2 || key1 == key2 && rank1 > rank2;
+    }
+
+    private void move(int from, int to)
+    {
+        keys[to] = keys[from];
+        ranks[to] = ranks[from];
+        items[to] = items[from];
+        if (scores != null)
+            scores[to] = scores[from];
+    }
+
+    private void set(int pos, XQItem item, double key, long r, double score)
+    {
+        keys[pos] = key;
+        ranks[pos] = r;
+        items[pos] = item;
+        if (scores != null)
+            scores[pos] = score;
+    }
+}
@@ -0,0 +1,788 @@
+/*
+ *    Qizx/open 4.1
+ *
+ * This code is the open-source version of Qizx.
+ * Copyright (C) 2004-2009 Axyana Software -- All rights reserved.
+ *
+ * The contents of this file are subject to the Mozilla Public License
+ *  Version 1.1 (the "License"); you may not use this file except in
+ *  compliance with the License. You may obtain a copy of the License at
+ *  http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ *  WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ *  for the specific language governing rights and limitations under the
+ *  License.
+ *
+ * The Initial Developer of the Original Code is Xavier Franc - Axyana Software.
+ *
+ */
+package com.qizx.xquery.op;
+
+import com.qizx.api.EvaluationException;
+import com.qizx.api.Item;
+import com.qizx.util.basic.Util;
+import com.qizx.util.io.ByteInputBase;
+import com.qizx.util.io.ByteOutputBase;
+import com.qizx.util.io.TempByteInput;
+import com.qizx.util.io.TempByteOutput;
+import com.qizx.xdm.FONIDataModel;
+import com.qizx.xquery.DynamicContext;
+import com.qizx.xquery.XQItem;
+import com.qizx.xquery.XQItemType;
+import com.qizx.xquery.XQValue;
+import com.qizx.xquery.dt.ArraySequence;
+import com.qizx.xquery.dt.GenericValue;
+import com.qizx.xquery.dt.SingleBoolean;
+import com.qizx.xquery.dt.SingleDecimal;
+import com.qizx.xquery.dt.SingleDouble;
+import com.qizx.xquery.dt.SingleFloat;
+import com.qizx.xquery.dt.SingleInteger;
+import com.qizx.xquery.dt.SingleString;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.PriorityQueue;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Sort of the tuples of a FLWOR expression with an 'order by' clause.
+ * <p>
+ * A tuple is an array of items: the returned item first, then the sort
+ * keys, then optionally the full-text score. The sort is stable.
+ * <p>
+ * Tuples are kept in memory up to a budget (see {@link #setMemoryBudget}).
+ * Beyond it, tuples are sorted by runs which are written to temporary files,
+ * then merged while the result sequence is iterated. Nodes of parsed
+ * documents and common atomic values are written to the runs, other items
+ * (constructed nodes, dates...) stay in memory and are only referenced: they
+ * still count in the budget. The temporary files are deleted when the
+ * evaluation is over (see {@link #setContext}).
+ * <p>
+ * When only the first N tuples are needed, like in
+ * <code>(for ... order by ... return ...)[position() &lt;= 10]</code>, the
+ * tuples are filtered through a bounded heap instead.
+ * <p>
+ * Sorts of many tuples (see {@link #setParallelThreshold}) are done by a
+ * parallel merge sort on a shared pool of threads.
+ */
+public class TupleSort
+{
+    /**
+     * System property defining the memory budget in bytes.
+     */
+    public static final String MEMORY_PROP = "com.qizx.sort.memory";
+    /**
+     * System property defining the number of tuples above which sorts and
+     * groupings run in parallel; 0 disables parallel execution.
+     */
+    public static final String PARALLEL_PROP = "com.qizx.sort.parallel";
+    /**
+     * Maximum number of first tuples that are selected with a heap.
+     */
+    public static final int MAX_TOP_COUNT = 100000;
+
+    // above this number of runs, runs are merged into one:
+    private static final int MAX_RUNS = 64;
+    private static final int RUN_BUFFER_SIZE = 65536;
+    // minimum size of a run when items kept in memory fill the budget:
+    private static final int MIN_RUN_SIZE = 4096;
+
+    private static volatile long memoryBudget =
+        Runtime.getRuntime().maxMemory() / 4;
+    private static volatile int parallelThreshold = 200000;
+    static {
+        memoryBudget = Util.getLongProperty(MEMORY_PROP, memoryBudget);
+        parallelThreshold =
+            (int) Util.getLongProperty(PARALLEL_PROP, parallelThreshold);
+    }
+    // shared by all sorts, created on demand:
+    private static ForkJoinPool pool;
+
+    // item codes in runs:
+    private static final int EMPTY = 0;
+    private static final int OBJECT = 1;
+    private static final int NODE = 2;
+    private static final int STRING = 3;
+    private static final int INTEGER = 4;
+    private static final int DOUBLE = 5;
+    private static final int FLOAT = 6;
+    private static final int DECIMAL = 7;
+    private static final int BOOLEAN = 8;
+
+    private Comparator comparator;
+    private OrderSpec singleKey;
+    private int width;
+    private int scoreRank;
+    private DynamicContext context;
+
+    private Object[] tuples = new Object[8];
+    private int count;
+    private long memory;
+    private Runs runs;
+
+    // first tuples: the greatest is on top
+    private PriorityQueue<Ranked> top;
+    private RankedComparator topOrder;
+    private long topCount;
+    private long rank;
+
+    /**
+     * Creates a sort.
+     * @param comparator order of the tuples
+     * @param width number of items in a tuple
+     * @param scoreRank position of the full-text score in the tuple, or -1
+     * @param limit number of first tuples needed, or -1 for all
+     */
+    public TupleSort(Comparator comparator, int width, int scoreRank,
+                     long limit)
+    {
+        this.comparator = comparator;
+        this.width = width;
+        this.scoreRank = scoreRank;
+        if (limit > 0 && limit <= MAX_TOP_COUNT) {
+            topCount = limit;
+            topOrder = new RankedComparator(comparator, false);
+            top = new PriorityQueue<Ranked>((int) limit + 1,
+                                            new RankedComparator(comparator,
+                                                                 true));
+        }
+    }
+
+    /**
+     * Declares that tuples are ordered by a single key, at position 1: if
+     * the values of the key are all integers, all doubles or all strings,
+     * tuples are then sorted on the primitive values of the key rather than
+     * through the comparator.
+     */
+    public void setSingleKey(OrderSpec spec)
+    {
+        singleKey = spec;
+    }
+
+    /**
+     * Defines the context of the evaluation, which deletes the temporary
+     * files of the sort when the evaluation is over.
+     */
+    public void setContext(DynamicContext context)
+    {
+        this.context = context;
+    }
+
+    /**
+     * Returns the memory budget in bytes of a sort.
+     */
+    public static long getMemoryBudget()
+    {
+        return memoryBudget;
+    }
+
+    /**
+     * Defines the memory budget in bytes of a sort, above which sorted runs
+     * are written to temporary files. By default a quarter of the maximum
+     * heap size.
+     */
+    public static void setMemoryBudget(long size)
+    {
+        memoryBudget = size;
+    }
+
+    /**
+     * Returns the number of tuples above which sorts and groupings run in
+     * parallel, or 0 if they always run in the calling thread.
+     */
+    public static int getParallelThreshold()
+    {
+        return parallelThreshold;
+    }
+
+    /**
+     * Defines the number of tuples above which sorts and groupings run in
+     * parallel on a shared pool of threads; 0 disables parallel execution.
+     * The results are the same as with sequential execution.
+     */
+    public static void setParallelThreshold(int count)
+    {
+        parallelThreshold = count;
+    }
+
+    /**
+     * Returns the shared pool of threads on which a sort or a grouping of
+     * this number of tuples should run, or null if it should run in the
+     * calling thread.
+     */
+    static ForkJoinPool parallelPool(int tupleCount)
+    {
+        int threshold = parallelThreshold;
+        if (threshold <= 0 || tupleCount < threshold)
+            return null;
+        int processors = Runtime.getRuntime().availableProcessors();
+        if (processors < 2)
+            return null;
+        synchronized (TupleSort.class) {
+            if (pool == null)
+                pool = new ForkJoinPool(processors);
+            return pool;
+        }
+    }
+
+    /**
+     * Adds a tuple.
+     */
+    public void add(XQItem[] tuple)
+        throws EvaluationException
+    {
+        if (top != null) {
+            Ranked r = new Ranked(tuple, rank++);
+            try {
+                if (top.size() < topCount)
+                    top.add(r);
+                else if (topOrder.compare(r, top.peek()) < 0) {
+                    top.poll();
+                    top.add(r);
+                }
+            }
+            catch (RuntimeException e) {
+                throw unwrap(e);
+            }
+            return;
+        }
+        if (count >= tuples.length) {
+            Object[] old = tuples;
+            tuples = new Object[old.length * 2];
+            System.arraycopy(old, 0, tuples, 0, old.length);
+        }
+        tuples[count++] = tuple;
+        memory += 16 + 8 * width;
+        for (int i = 0; i < width; i++)
+            memory += memorySize(tuple[i]);
+        if (count > 1 && (memory > memoryBudget
+                          || runs != null && count >= MIN_RUN_SIZE
+                             && memory + runs.objectMemory > memoryBudget))
+            spill();
+    }
+
+    /**
+     * Returns the sequence of the first items of the sorted tuples.
+     * @param origin sequence of the unsorted items
+     */
+    public XQValue getResult(XQValue origin)
+        throws EvaluationException
+    {
+        if (top != null) {
+            count = top.size();
+            tuples = new Object[count];
+            for (int t = count; --t >= 0;)
+                tuples[t] = top.poll().tuple;
+            top = null;
+        }
+        else
+            sort(tuples, count);
+        if (runs == null) {
+            // replace tuples by the main item:
+            double[] scores = scoreRank > 0 ? new double[count] : null;
+            for (int v = count; --v >= 0;) {
+                XQItem[] tuple = (XQItem[]) tuples[v];
+                tuples[v] = tuple[0];
+                if (scores != null)
+                    scores[v] = tuple[scoreRank].getDouble();
+            }
+            ArraySequence asq = new ArraySequence(tuples, count);
+            asq.setOrigin(origin);
+            asq.setScores(scores);
+            return asq;
+        }
+        // the last run stays in memory:
+        if (count > 0)
+            runs.add(new MemoryRun(tuples, count));
+        tuples = null;
+        Runs all = runs;
+        runs = null;
+        try {
+            if (all.size() > MAX_RUNS)
+                all.mergeFileRuns(comparator);
+        }
+        catch (IOException e) {
+            throw spillError(e);
+        }
+        return new Merge(all, comparator, scoreRank);
+    }
+
+    private void spill()
+        throws EvaluationException
+    {
+        sort(tuples, count);
+        if (runs == null) {
+            runs = new Runs(width);
+            if (context != null)
+                context.addResource(runs);
+        }
+        try {
+            TempByteOutput out = new TempByteOutput(RUN_BUFFER_SIZE);
+            for (int t = 0; t < count; t++)
+                runs.write(out, (XQItem[]) tuples[t]);
+            out.close();
+            runs.add(new FileRun(out, count));
+            if (runs.size() > MAX_RUNS)
+                runs.mergeFileRuns(comparator);
+        }
+        catch (IOException e) {
+            throw spillError(e);
+        }
+        Arrays.fill(tuples, 0, count, null);
+        count = 0;
+        memory = 0;
+    }
+
+    private void sort(Object[] tuples, int count)
+        throws EvaluationException
+    {
+        if (count < 2)
+            return;
+        ForkJoinPool parallel = parallelPool(count);
+        if (singleKey != null
+            && KeySort.sort(tuples, count, singleKey, parallel))
+            return;
+        try {
+            if (parallel != null)
+                KeySort.sort(tuples, count, comparator, parallel);
+            else
+                Arrays.sort(tuples, 0, count, comparator);
+        }
+        catch (RuntimeException e) {
+            throw unwrap(e);
+        }
+    }
+
+    // the comparator wraps evaluation errors (possibly rewrapped by the
+    // thread pool)
+    private static EvaluationException unwrap(RuntimeException e)
+    {
+        for (Throwable c = e.getCause(); c != null; c = c.getCause())
+            if (c instanceof EvaluationException)
+                return (EvaluationException) c;
+        throw e;
+    }
+
+    private static EvaluationException spillError(IOException e)
+    {
+        return new EvaluationException("cannot write sort run: "
+                                       + e.getMessage(), e);
+    }
+
+    // rough estimation of the memory used by an item
+    private static int memorySize(XQItem item)
+        throws EvaluationException
+    {
+        if (item == null)
+            return 0;
+        if (item instanceof SingleString)
+            return 56 + 2 * item.getString().length();
+        return 32;
+    }
+
+    // tuple with its rank of arrival, for a stable selection
+    private static class Ranked
+    {
+        XQItem[] tuple;
+        long rank;
+
+        Ranked(XQItem[] tuple, long rank)
+        {
+            this.tuple = tuple;
+            this.rank = rank;
+        }
+    }
+
+    private static class RankedComparator
+        implements Comparator<Ranked>
+    {
+        private Comparator comparator;
+        private boolean reverse;
+
+        RankedComparator(Comparator comparator, boolean reverse)
+        {
+            this.comparator = comparator;
+            this.reverse = reverse;
+        }
+
+        public int compare(Ranked r1, Ranked r2)
+        {
+            int cmp = comparator.compare(r1.tuple, r2.tuple);
+            if (cmp == 0)
+                cmp = (r1.rank < r2.rank) ? -1 : (r1.rank > r2.rank) ? 1 : 0;
+            return reverse ? -cmp : cmp;
+        }
+    }
+
+    // ---- runs:
+
+    private abstract static class Run
+    {
+        int count;
+
+        abstract Cursor open(Runs runs, int rank)
+            throws IOException;
+
+        void delete()
+        {
+        }
+    }
+
+    private static class MemoryRun extends Run
+    {
+        Object[] tuples;
+
+        MemoryRun(Object[] tuples, int count)
+        {
+            this.tuples = tuples;
+            this.count = count;
+        }
+
+        Cursor open(Runs runs, int rank)
+        {
+            return new Cursor(this, rank, null, runs);
+        }
+    }
+
+    private static class FileRun extends Run
+    {
+        TempByteOutput output;
+
+        FileRun(TempByteOutput output, int count)
+        {
+            this.output = output;
+            this.count = count;
+        }
+
+        Cursor open(Runs runs, int rank)
+            throws IOException
+        {
+            return new Cursor(this, rank, new TempByteInput(output), runs);
+        }
+
+        void delete()
+        {
+            File file = output.getFile();
+            if (file != null)
+                file.delete();
+        }
+    }
+
+    /**
+     * Sorted runs, and the items which are not written in run files. Closing
+     * deletes the run files.
+     */
+    private static class Runs
+        implements Closeable
+    {
+        int width;
+        ArrayList<Run> runs = new ArrayList<Run>();
+        ArrayList<Object> objects = new ArrayList<Object>();
+        IdentityHashMap<Object, Integer> objectIds =
+            new IdentityHashMap<Object, Integer>();
+        // memory used by the items which are not written:
+        long objectMemory;
+        boolean closed;
+
+        Runs(int width)
+        {
+            this.width = width;
+        }
+
+        int size()
+        {
+            return runs.size();
+        }
+
+        void add(Run run)
+        {
+            runs.add(run);
+        }
+
+        // merges the runs in files into one file (the run in memory, if
+        // any, is the last one)
+        void mergeFileRuns(Comparator comparator)
+            throws IOException, EvaluationException
+        {
+            int last = runs.size();
+            if (runs.get(last - 1) instanceof MemoryRun)
+                --last;
+            PriorityQueue<Cursor> queue = openCursors(comparator, last);
+            TempByteOutput out = new TempByteOutput(RUN_BUFFER_SIZE);
+            int total = 0;
+            try {
+                for (; !queue.isEmpty(); ++total) {
+                    Cursor cursor = queue.poll();
+                    write(out, cursor.tuple);
+                    if (cursor.advance())
+                        queue.add(cursor);
+                }
+            }
+            catch (RuntimeException e) {
+                throw unwrap(e);
+            }
+            out.close();
+            for (int r = 0; r < last; r++)
+                runs.get(r).delete();
+            runs.subList(0, last).clear();
+            runs.add(0, new FileRun(out, total));
+        }
+
+        PriorityQueue<Cursor> openCursors(Comparator comparator, int count)
+            throws IOException, EvaluationException
+        {
+            if (closed)
+                throw new IOException("sort runs already deleted");
+            PriorityQueue<Cursor> queue =
+                new PriorityQueue<Cursor>(count + 1,
+                                          new CursorComparator(comparator));
+            try {
+                for (int r = 0; r < count; r++) {
+                    Cursor cursor = runs.get(r).open(this, r);
+                    if (cursor.advance())
+                        queue.add(cursor);
+                }
+            }
+            catch (RuntimeException e) {
+                throw unwrap(e);
+            }
+            return queue;
+        }
+
+        void write(ByteOutputBase out, XQItem[] tuple)
+            throws IOException, EvaluationException
+        {
+            for (int i = 0; i < width; i++)
+                writeItem(out, tuple[i]);
+        }
+
+        private void writeItem(ByteOutputBase out, XQItem item)
+            throws IOException, EvaluationException
+        {
+            if (item == null) {
+                out.putByte(EMPTY);
+                return;
+            }
+            Class<?> c = item.getClass();
+            if (c == FONIDataModel.FONINode.class) {
+                FONIDataModel.FONINode node = (FONIDataModel.FONINode) item;
+                out.putByte(NODE);
+                out.putVint(objectId(node.getDM()));
+                out.putVint(node.getNodeId());
+            }
+            else if (c == SingleString.class) {
+                out.putByte(STRING);
+                out.putVint(objectId(item.getItemType()));
+                out.putString(item.getString());
+            }
+            else if (c == SingleInteger.class) {
+                out.putByte(INTEGER);
+                out.putVint(objectId(item.getItemType()));
+                out.putLong(item.getInteger());
+            }
+            else if (c == SingleDouble.class) {
+                out.putByte(DOUBLE);
+                out.putDouble(item.getDouble());
+            }
+            else if (c == SingleFloat.class) {
+                out.putByte(FLOAT);
+                out.putInt(Float.floatToRawIntBits(item.getFloat()));
+            }
+            else if (c == SingleDecimal.class) {
+                out.putByte(DECIMAL);
+                out.putString(item.getDecimal().toString());
+            }
+            else if (c == SingleBoolean.class) {
+                out.putByte(BOOLEAN);
+                out.putByte(item.getBoolean() ? 1 : 0);
+            }
+            else {
+                out.putByte(OBJECT);
+                int size = objects.size();
+                out.putVint(objectId(item));
+                if (objects.size() > size)
+                    objectMemory += memorySize(item);
+            }
+        }
+
+        private int objectId(Object object)
+        {
+            Integer id = objectIds.get(object);
+            if (id == null) {
+                id = Integer.valueOf(objects.size());
+                objects.add(object);
+                objectIds.put(object, id);
+            }
+            return id.intValue();
+        }
+
+        XQItem[] read(ByteInputBase in)
+            throws IOException
+        {
+            XQItem[] tuple = new XQItem[width];
+            for (int i = 0; i < width; i++)
+                tuple[i] = readItem(in);
+            return tuple;
+        }
+
+        private XQItem readItem(ByteInputBase in)
+            throws IOException
+        {
+            switch (in.getByte()) {
+            case EMPTY:
+                return null;
+            case NODE:
+                FONIDataModel dm = (FONIDataModel) objects.get(in.getVint());
+                return dm.newNode(in.getVint());
+            case STRING:
+                XQItemType type = (XQItemType) objects.get(in.getVint());
+                return new SingleString(in.getString(), type);
+            case INTEGER:
+                type = (XQItemType) objects.get(in.getVint());
+                return new SingleInteger(in.getLong(), type);
+            case DOUBLE:
+                return new SingleDouble(in.getDouble());
+            case FLOAT:
+                return new SingleFloat(Float.intBitsToFloat(in.getInt()));
+            case DECIMAL:
+                return new SingleDecimal(new BigDecimal(in.getString()));
+            case BOOLEAN:
+                return new SingleBoolean(in.getByte() != 0);
+            case OBJECT:
+                return (XQItem) objects.get(in.getVint());
+            default:
+                throw new IOException("corrupted sort run");
+            }
+        }
+
+        public synchronized void close()
+        {
+            closed = true;
+            for (int r = 0; r < runs.size(); r++)
+                runs.get(r).delete();
+        }
+    }
+
+    // reads the tuples of a run
+    private static class Cursor
+    {
+        Run run;
+        int rank;
+        TempByteInput input;
+        Runs runs;
+        int index = -1;
+        XQItem[] tuple;
+
+        Cursor(Run run, int rank, TempByteInput input, Runs runs)
+        {
+            this.run = run;
+            this.rank = rank;
+            this.input = input;
+            this.runs = runs;
+        }
+
+        boolean advance()
+            throws IOException
+        {
+            if (++index >= run.count) {
+                tuple = null;
+                if (input != null)
+                    input.release();
+                return false;
+            }
+            if (input == null)
+                tuple = (XQItem[]) ((MemoryRun) run).tuples[index];
+            else
+                tuple = runs.read(input);
+            return true;
+        }
+    }
+
+    // ties are resolved by the order of runs, for a stable sort
+    private static class CursorComparator
+        implements Comparator<Cursor>
+    {
+        private Comparator comparator;
+
+        CursorComparator(Comparator comparator)
+        {
+            this.comparator = comparator;
+        }
+
+        public int compare(Cursor c1, Cursor c2)
+        {
+            int cmp = comparator.compare(c1.tuple, c2.tuple);
+            return (cmp != 0) ? cmp : (c1.rank - c2.rank);
+        }
+    }
+
+    /**
+     * Merge of sorted runs.
+     */
+    private static class Merge extends GenericValue
+    {
+        private Runs runs;
+        private Comparator comparator;
+        private int scoreRank;
+        private PriorityQueue<Cursor> queue;
+        private double score;
+
+        Merge(Runs runs, Comparator comparator, int scoreRank)
+        {
+            this.runs = runs;
+            this.comparator = comparator;
+            this.scoreRank = scoreRank;
+        }
+
+        public boolean next()
+            throws EvaluationException
+        {
+            try {
+                if (queue == null)
+                    queue = runs.openCursors(comparator, runs.size());
+                Cursor cursor = queue.poll();
+                if (cursor == null)
+                    return false;
+                item = cursor.tuple[0];
+                if (scoreRank > 0)
+                    score = cursor.tuple[scoreRank].getDouble();
+                if (cursor.advance())
+                    queue.add(cursor);
+                return true;
+            }
+            catch (IOException e) {
+                throw new EvaluationException("cannot read sort run: "
+                                              + e.getMessage(), e);
+            }
+            catch (RuntimeException e) {
+                throw unwrap(e);
+            }
+        }
+
+        public XQValue bornAgain()
+        {
+            return new Merge(runs, comparator, scoreRank);
+        }
+
+        // not on exhaustion: copies made by bornAgain() read the runs again
+        public void close()
+        {
+            runs.close();
+        }
+
+        public double getFulltextScore(Item item)
+            throws EvaluationException
+        {
+            if (scoreRank > 0)
+                return score;
+            return super.getFulltextScore(item);
+        }
+    }
+}
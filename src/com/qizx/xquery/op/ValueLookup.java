@@ -0,0 +1,271 @@
+/*
+ *    Qizx/open 4.1
+ *
+ * This code is the open-source version of Qizx.
+ * Copyright (C) 2004-2009 Axyana Software -- All rights reserved.
+ *
+ * The contents of this file are subject to the Mozilla Public License
+ *  Version 1.1 (the "License"); you may not use this file except in
+ *  compliance with the License. You may obtain a copy of the License at
+ *  http://www.mozilla.org/MPL/
+ *
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ *  WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License
+ *  for the specific language governing rights and limitations under the
+ *  License.
+ *
+ * The Initial Developer of the Original Code is Xavier Franc - Axyana Software.
+ *
+ */
+package com.qizx.xquery.op;
+
+import com.qizx.api.DataModelException;
+import com.qizx.api.EvaluationException;
+import com.qizx.api.Node;
+import com.qizx.api.QName;
+import com.qizx.util.Collations;
+import com.qizx.xdm.BaseNodeFilter;
+import com.qizx.xdm.FONIDataModel;
+import com.qizx.xdm.FONIDocument;
+import com.qizx.xdm.NameIndex;
+import com.qizx.xdm.NodeFilter;
+import com.qizx.xdm.ValueIndex;
+import com.qizx.xquery.EvalContext;
+import com.qizx.xquery.Focus;
+import com.qizx.xquery.XQItem;
+import com.qizx.xquery.XQType;
+import com.qizx.xquery.XQValue;
+import com.qizx.xquery.dt.ArraySequence;
+
+import java.text.Collator;
+import java.util.Arrays;
+
+/**
+ * Plan for the evaluation of a filtered step by a lookup in a
+ * {@link ValueIndex}, like <code>descendant::product[@id = $p]</code> or
+ * <code>item[code &gt;= 100]</code>.
+ * <p>
+ * The first predicate must be a comparison (general, or value comparison on
+ * an attribute) between an attribute or a child element and a literal, a
+ * variable or a path starting from a variable; the step must be child:: or descendant(-or-self):: with an
+ * element name test.
+ * <p>
+ * The lookup yields candidate elements, in document order, on which all
+ * predicates are still evaluated: so the lookup needs only to find a
+ * superset of the result of the first predicate. It is used only if the
+ * context node belongs to a document that has built the index (see
+ * {@link FONIDataModel#getValueIndex}), otherwise the step is evaluated
+ * normally.
+ */
+public class ValueLookup
+{
+    // relative tolerance on numeric bounds (comparisons may be done on
+    // floats):
+    private static final double NUMERIC_SLACK = 1e-6;
+
+    private BasicStep step;
+    private QName element;
+    private QName key;
+    private boolean attribute;
+    private Comparison.Test test;  // as in 'key test value'
+    private boolean general;
+    private Expression value;
+
+    private ValueLookup(BasicStep step, QName element, QName key,
+                        boolean attribute, Comparison.Test test,
+                        boolean general, Expression value)
+    {
+        this.step = step;
+        this.element = element;
+        this.key = key;
+        this.attribute = attribute;
+        this.test = test;
+        this.general = general;
+        this.value = value;
+    }
+
+    /**
+     * Returns a lookup plan for a step with a predicate, or null if the
+     * predicate cannot be evaluated by an index.
+     */
+    public static ValueLookup analyze(Expression source, Expression predicate)
+    {
+        if (!(source instanceof ChildStep || source instanceof DescendantStep))
+            return null;
+        QName element = simpleName(((BasicStep) source).nodeTest, Node.ELEMENT);
+        if (element == null || !(predicate instanceof Comparison.Exec))
+            return null;
+        Comparison.Exec comp = (Comparison.Exec) predicate;
+        boolean general = comp instanceof GeneralComparison.ExecAny;
+        if (!general && !(comp instanceof ValueComparison.ExecAny))
+            return null;
+        Comparison.Test test = comp.test;
+        if (test != ValueEqOp.TEST && test != ValueLtOp.TEST
+            && test != ValueLeOp.TEST && test != ValueGtOp.TEST
+            && test != ValueGeOp.TEST)
+            return null;
+        Expression keyExpr = comp.args[0], value = comp.args[1];
+        if (!independent(value)) {
+            keyExpr = comp.args[1];
+            value = comp.args[0];
+            test = test.reverse();
+        }
+        if (!independent(value))
+            return null;
+        boolean attribute = keyExpr instanceof AttributeStep;
+        if (!attribute && !(general && keyExpr instanceof ChildStep))
+            return null;
+        QName key = simpleName(((BasicStep) keyExpr).nodeTest,
+                               attribute ? Node.ATTRIBUTE : Node.ELEMENT);
+        if (key == null)
+            return null;
+        return new ValueLookup((BasicStep) source, element, key, attribute,
+                               test, general, value);
+    }
+
+    // literal, variable, or path from a variable like $order/@product:
+    // does not depend on the focus
+    private static boolean independent(Expression expr)
+    {
+        if (expr instanceof PathExpr)
+            expr = ((PathExpr) expr).getStep(0);
+        return expr instanceof VarReference || expr instanceof StringLiteral
+               || expr instanceof IntegerLiteral
+               || expr instanceof DoubleLiteral
+               || expr instanceof DecimalLiteral;
+    }
+
+    private static QName simpleName(NodeFilter test, int kind)
+    {
+        if (!(test instanceof BaseNodeFilter))
+            return null;
+        BaseNodeFilter filter = (BaseNodeFilter) test;
+        if (filter.kind != kind || filter.schemaType != null)
+            return null;
+        return filter.qname;
+    }
+
+    /**
+     * Returns the candidate nodes for the step and its first predicate, or
+     * null if the index cannot be used.
+     */
+    public XQValue eval(Focus focus, EvalContext context)
+        throws EvaluationException
+    {
+        if (focus == null)
+            return null;
+        XQItem item = focus.currentItem();
+        if (item == null || !item.isNode()
+            || !(item.basicNode() instanceof FONIDataModel.FONINode))
+            return null;
+        FONIDataModel.FONINode node =
+            (FONIDataModel.FONINode) item.basicNode();
+        FONIDataModel dm = node.getDM();
+        try {
+            ValueIndex index = dm.getValueIndex(element, key, attribute);
+            if (index == null)
+                return null;
+            int[][] postings = lookup(index, focus, context);
+            if (postings == null)
+                return null;
+            return select(dm, node.getNodeId(), postings);
+        }
+        catch (DataModelException e) {
+            return null; // reported by normal evaluation
+        }
+    }
+
+    private int[][] lookup(ValueIndex index, Focus focus, EvalContext context)
+        throws EvaluationException
+    {
+        XQValue values = value.eval(focus, context);
+        if (!values.next())
+            return new int[0][];  // the comparison is false or empty
+        XQItem v = values.getItem();
+        if (values.next())
+            return null;
+        int quickCode = v.isNode() ? XQType.QT_UNTYPED
+                                   : v.getItemType().quickCode();
+        switch (quickCode) {
+        case XQType.QT_UNTYPED:
+        case XQType.QT_STRING:
+        case XQType.QT_ANYURI:
+            Collator collator = context.getCollator();
+            if (collator != null && collator != Collations.CODEPOINT_COLLATOR)
+                return null;
+            String s = v.getString();
+            return (test == ValueEqOp.TEST)
+                    ? index.stringRange(s, true, s, true)
+                 : (test == ValueLtOp.TEST || test == ValueLeOp.TEST)
+                    ? index.stringRange(null, false, s, test == ValueLeOp.TEST)
+                    : index.stringRange(s, test == ValueGeOp.TEST, null, false);
+        case XQType.QT_INT:
+        case XQType.QT_DEC:
+        case XQType.QT_FLOAT:
+        case XQType.QT_DOUBLE:
+            if (!general)
+                return null;  // untypedAtomic cast to string: type error
+            double d = v.getDouble();
+            if (d != d)
+                return null;
+            double slack = Math.abs(d) * NUMERIC_SLACK + Double.MIN_VALUE;
+            return (test == ValueEqOp.TEST)
+                    ? index.numberRange(d - slack, d + slack)
+                 : (test == ValueLtOp.TEST || test == ValueLeOp.TEST)
+                    ? index.numberRange(Double.NEGATIVE_INFINITY, d + slack)
+                    : index.numberRange(d - slack, Double.POSITIVE_INFINITY);
+        default:
+            return null;
+        }
+    }
+
+    // selects the candidates in the range of the step, in document order;
+    // returns null if scanning the elements of the range is cheaper
+    private XQValue select(FONIDataModel dm, int/*NId*/ origin,
+                           int[][] postings)
+        throws DataModelException
+    {
+        FONIDocument dom = dm.getDom();
+        boolean child = step instanceof ChildStep;
+        int/*NId*/ first = (step instanceof DescendantOrSelfStep)
+                           ? origin : origin + 1;
+        int/*NId*/ after = dom.getNodeAfter(origin);
+        if (after == 0)
+            after = Integer.MAX_VALUE;
+        if (postings.length > 1) {
+            int[] elements = dm.getNameIndex().getElements(element);
+            int scanned = NameIndex.lowerBound(elements, after)
+                          - NameIndex.lowerBound(elements, first);
+            if (postings.length > scanned)
+                return null;
+        }
+        int[] ids = new int[16];
+        int count = 0;
+        for (int p = 0; p < postings.length; p++) {
+            int[] list = postings[p];
+            for (int i = NameIndex.lowerBound(list, first);
+                 i < list.length && list[i] < after; i++) {
+                if (child && dom.getParent(list[i]) != origin)
+                    continue;
+                if (count == ids.length) {
+                    int[] old = ids;
+                    ids = new int[old.length * 2];
+                    System.arraycopy(old, 0, ids, 0, count);
+                }
+                ids[count++] = list[i];
+            }
+        }
+        if (postings.length > 1) {
+            Arrays.sort(ids, 0, count);
+            int n = 0;
+            for (int i = 0; i < count; i++)
+                if (n == 0 || ids[i] != ids[n - 1])
+                    ids[n++] = ids[i];
+            count = n;
+        }
+        Object[] nodes = new Object[count];
+        for (int i = 0; i < count; i++)
+            nodes[i] = dm.newNode(ids[i]);
+        return new ArraySequence(count, nodes, null);
+    }
+}